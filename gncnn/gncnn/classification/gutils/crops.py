@@ -0,0 +1,65 @@
+"""
+Readers of the glomerulus crops exported by the QuPath extension, either one
+PNG file per glomerulus or a packed crop container per WSI.
+
+The container layout (little-endian) is a 32-byte header with the magic
+"GNCC", the version, the number of records and the offset of the index; the
+PNG bytes of the records; and the index, with 52 bytes per record: annotation
+UUID, offset, length, x, y, width, height and downsample.
+"""
+import mmap
+import os
+import struct
+import uuid
+
+import cv2
+import numpy as np
+
+CONTAINER_NAME = "crops.gncc"
+MAGIC = b"GNCC"
+VERSION = 1
+HEADER = struct.Struct("<4sHHIQ")
+HEADER_BYTES = 32
+INDEX_ENTRY = struct.Struct("<qqQIiiiid")
+
+
+def _uuid_from_bits(msb, lsb):
+    return str(uuid.UUID(int=((msb & (2 ** 64 - 1)) << 64) | (lsb & (2 ** 64 - 1))))
+
+
+def read_crop_container(path):
+    """Yields (annotation_id, (x, y, width, height, downsample), png_bytes) for each record of a container."""
+    with open(path, "rb") as f, mmap.mmap(f.fileno(), 0, access=mmap.ACCESS_READ) as mm:
+        magic, version, _, count, index_offset = HEADER.unpack_from(mm, 0)
+        if magic != MAGIC:
+            raise ValueError(f"Not a crop container: {path}")
+        if version > VERSION:
+            raise ValueError(f"Unsupported crop container version {version}: {path}")
+        for i in range(count):
+            msb, lsb, offset, length, x, y, w, h, downsample = INDEX_ENTRY.unpack_from(
+                mm, index_offset + i * INDEX_ENTRY.size)
+            yield _uuid_from_bits(msb, lsb), (x, y, w, h, downsample), mm[offset:offset + length]
+
+
+def annotation_id_from_filename(filename):
+    """Returns the annotation ID of a crop named '{image}_{class}_{id}_{x}_{y}_{w}_{h}.png'."""
+    parts = os.path.splitext(os.path.basename(filename))[0].split("_")
+    return parts[-5] if len(parts) >= 6 else ""
+
+
+def iter_crops(prediction_dir):
+    """
+    Yields (filename, annotation_id, image) for each crop of a WSI, where image is the path of a
+    PNG file or a decoded BGR array, both accepted by the classifiers.
+    """
+    container_path = os.path.join(prediction_dir, CONTAINER_NAME)
+    if os.path.exists(container_path):
+        for annotation_id, _, png in read_crop_container(container_path):
+            img = cv2.imdecode(np.frombuffer(png, np.uint8), cv2.IMREAD_COLOR)
+            yield f"{CONTAINER_NAME}#{annotation_id}", annotation_id, img
+        return
+
+    for f in os.listdir(prediction_dir):
+        if f.endswith(".png"):
+            image_path = os.path.join(prediction_dir, f)
+            yield image_path, annotation_id_from_filename(f), image_path
@@ -8,6 +8,11 @@ Modifications:
     - Added top-3 prediction (instead of top-1) for the 12 classes
     - Added most predicted class to the summary report
     - Removed download of the models (only local models are used)
+    - Crops are read from the packed crop container of each WSI, if any, and
+      the report has the annotation ID of each crop
+    - The report of a WSI keeps the rows of the glomeruli which were not
+      classified again, and the summary the rows of the WSIs which were not
+      classified again
 """
 import logging
 import os
@@ -17,6 +22,7 @@ import pandas as pd
 
 from mmpretrain import ImageClassificationInferencer
 
+from gncnn.classification.gutils.crops import iter_crops
 from gncnn.classification.gutils.utils import get_proper_device
 from gncnn.classification.inference.paths import get_logs_path
 from gncnn.definitions import ROOT_DIR
@@ -29,6 +35,34 @@ def get_most_predicted_topk_classes(scores, topk):
     return topk_labels
 
 
+def merge_previous_report(report_csv, gdc_df):
+    """Adds the rows of a previous report of the WSI whose glomeruli were not classified again, so that the
+    report of an incremental run still has all the glomeruli."""
+    if not os.path.exists(report_csv):
+        return gdc_df
+    previous_df = pd.read_csv(report_csv, sep=';', dtype={'annotation-id': str})
+    if 'annotation-id' not in previous_df.columns:
+        # Reports of older versions cannot be matched with the glomeruli
+        return gdc_df
+    previous_df = previous_df[previous_df['annotation-id'].notna()
+                              & ~previous_df['annotation-id'].isin(gdc_df['annotation-id'])]
+    if previous_df.empty:
+        return gdc_df
+    return pd.concat([previous_df.reindex(columns=gdc_df.columns), gdc_df], ignore_index=True)
+
+
+def merge_previous_summary(summary_csv, wsi_df):
+    """Adds the rows of the WSIs of a previous summary which were not classified again, as each WSI may be
+    classified by a separate run."""
+    if not os.path.exists(summary_csv):
+        return wsi_df
+    previous_df = pd.read_csv(summary_csv, sep=';', dtype={'WSI-ID': str})
+    previous_df = previous_df[~previous_df['WSI-ID'].isin(wsi_df['WSI-ID'])]
+    if previous_df.empty:
+        return wsi_df
+    return pd.concat([previous_df.reindex(columns=wsi_df.columns), wsi_df], ignore_index=True)
+
+
 def main():
     import argparse
     parser = argparse.ArgumentParser(description='Classifiers Inference for Glomeruli Task')
@@ -38,6 +72,7 @@ def main():
     parser.add_argument('--netM', type=str, help='Network architecture for 12 classes (Non-sclerotic)', required=False)
     parser.add_argument('--multi', action='store_true', help='Use 12-class classification after Sclerotic vs. Non-Sclerotic classification', default=False)
     parser.add_argument('--topk', type=int, help='Top k classes to consider for 12-class classification', default=1)
+    parser.add_argument('-w', '--wsi', type=str, nargs='*', help='WSI IDs to classify (all of them if not given)', default=None)
     args = parser.parse_args()
 
     if args.multi and args.netM is None:
@@ -68,6 +103,13 @@ def main():
     os.makedirs(report_dir, exist_ok=True)
 
     wsi_ids = os.listdir(crop_dir)
+    if args.wsi is not None:
+        # Other WSIs may be being exported at the same time, so only the
+        # requested ones are classified
+        missing_ids = [wsi_id for wsi_id in args.wsi if wsi_id not in wsi_ids]
+        for wsi_id in missing_ids:
+            logging.warning(f"No exported annotations found for {wsi_id}")
+        wsi_ids = [wsi_id for wsi_id in args.wsi if wsi_id in wsi_ids]
     if len(wsi_ids) == 0:
         logging.warning("No WSI IDs found in the export directory")
         return
@@ -86,6 +128,7 @@ def main():
 
         gdc_dict = {
             'filename': [],
+            'annotation-id': [],
             'predicted-class': [],
 
             'NoSclerotic-prob': [],
@@ -130,11 +173,9 @@ def main():
                 head=dict(num_classes=12)
             )
         
-        images_list = os.listdir(prediction_dir)
-        images_list = [os.path.join(prediction_dir, f) for f in images_list if f.endswith(".png")]
-        for image_path in images_list:
+        for filename, annotation_id, image in iter_crops(prediction_dir):
             # Forward the sclerotic vs. non-sclerotic model
-            scores = bin_model(image_path)[0]["pred_scores"]
+            scores = bin_model(image)[0]["pred_scores"]
             class_idxs = np.argsort(scores)[::-1]
             pred_class = bin_model.classes[class_idxs[0]][3:]
 
@@ -158,7 +199,7 @@ def main():
                 gdc_dict['SLEGN-IV-prob'].append(np.nan)
             else:
                 # Forward the 12 classes model
-                scores = mult_model(image_path)[0]["pred_scores"]
+                scores = mult_model(image)[0]["pred_scores"]
                 # Collect the predicted class and the scores (scores have shape (num_classes,))
                 pred_label = np.argsort(scores)[::-1]
                 topk_labels = pred_label[:args.topk]
@@ -178,10 +219,12 @@ def main():
 
                 pred_class = " | ".join(pred_class)
             
-            gdc_dict['filename'].append(image_path)
+            gdc_dict['filename'].append(filename)
+            gdc_dict['annotation-id'].append(annotation_id)
             gdc_dict['predicted-class'].append(pred_class)
 
         gdc_df = pd.DataFrame(data=gdc_dict)
+        gdc_df = merge_previous_report(output_file_csv, gdc_df)
         gdc_df.to_csv(output_file_csv, sep=';', index=False)
 
         # Save each WSI's results
@@ -218,7 +261,12 @@ def main():
 
 
     wsi_df = pd.DataFrame(data=wsi_dict)
-    wsi_df.to_csv(output_file_summary_csv, sep=';', index=False)
+    wsi_df = merge_previous_summary(output_file_summary_csv, wsi_df)
+    # Written to a temporary file first, so that a run which is stopped does
+    # not leave the summary of the other WSIs truncated
+    tmp_summary_csv = output_file_summary_csv + ".tmp"
+    wsi_df.to_csv(tmp_summary_csv, sep=';', index=False)
+    os.replace(tmp_summary_csv, output_file_summary_csv)
 
 
 if __name__ == '__main__':
@@ -0,0 +1,73 @@
+"""
+Writer of the binary polygon files read by the QuPath extension, a compact
+alternative to GeoJSON for the detected glomeruli and tissue regions.
+
+The layout (little-endian) is a 32-byte header with the magic "GNCP", the
+version, the number of objects, the number of classes, the offset of the class
+table and the coordinate unit; the objects, each one with its class index
+(varint), score (f32, NaN if none), vertex count (varint) and the x and y of
+each vertex as zigzag varints relative to the previous vertex; and the class
+table, with the packed ARGB color (i32), name length (u16) and UTF-8 name of
+each class. Must match qupath.ext.gncnn.io.PolygonFile.
+
+Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+"""
+import math
+import struct
+
+import numpy as np
+
+MAGIC = b"GNCP"
+VERSION = 1
+HEADER = struct.Struct("<4sHHIHHQd")
+SCORE = struct.Struct("<f")
+CLASS_ENTRY = struct.Struct("<iH")
+
+
+def _write_varint(out, value):
+    while value > 0x7F:
+        out.append((value & 0x7F) | 0x80)
+        value >>= 7
+    out.append(value)
+
+
+def _pack_color(color):
+    if color is None:
+        return 0
+    r, g, b = color
+    return struct.unpack("<i", struct.pack("<I", 0xFF000000 | (r << 16) | (g << 8) | b))[0]
+
+
+def write_polygons(path, polygons, class_name, class_color, scores=None, unit=1.0):
+    """Write polygons of a single class to a binary polygon file.
+
+    Each polygon is an array of (x, y) vertices, or a shapely polygon, whose
+    exterior is written. Coordinates are rounded to multiples of unit. Returns
+    the number of bytes written.
+    """
+    out = bytearray(HEADER.size)
+    for i, polygon in enumerate(polygons):
+        if hasattr(polygon, 'exterior'):
+            # Shapely rings are closed, the polygons in the file are not
+            vertices = np.asarray(polygon.exterior.coords)[:-1]
+        else:
+            vertices = np.asarray(polygon)
+        coords = np.rint(vertices.reshape(-1, 2) / unit).astype(np.int64)
+        deltas = np.diff(coords, axis=0, prepend=np.zeros((1, 2), dtype=np.int64)).ravel()
+        zigzag = (deltas << 1) ^ (deltas >> 63)
+
+        _write_varint(out, 0)
+        out += SCORE.pack(float(scores[i]) if scores is not None else math.nan)
+        _write_varint(out, len(coords))
+        for value in zigzag.tolist():
+            _write_varint(out, value)
+
+    class_offset = len(out)
+    name = class_name.encode("utf-8")
+    out += CLASS_ENTRY.pack(_pack_color(class_color), len(name))
+    out += name
+
+    HEADER.pack_into(out, 0, MAGIC, VERSION, 0, len(polygons), 1, 0, class_offset, unit)
+    with open(path, "wb") as fp:
+        fp.write(out)
+    return len(out)
@@ -7,6 +7,11 @@ Modifications:
     - Modified area computation to use pixel size
     - Added annotations export to GeoJSON
     - Added TorchScript support for Windows/MacOS
+    - Split model loading and segmentation, so the model can be reused by the worker
+    - Added reading tiles from a local stream instead of the tiler output folder
+    - Added option to skip the NMS, which is then done by QuPath, and export of the scores
+    - Added per-tile detection records, and kept only the polygons instead of the full-tile masks
+    - Added binary polygon output, keeping GeoJSON as a debug option
 """
 import logging
 import os
@@ -41,36 +46,28 @@ print("Loading local libraries...")
 from gncnn.classification.gutils.utils import get_proper_device
 from gncnn.definitions import ROOT_DIR
 from gncnn.detection.qupath.config import MIN_AREA_GLOMERULUS_UM, DETECTRON_SCORE_THRESHOLD
-from gncnn.detection.qupath.utils import get_dataset_dicts_validation, tile2xywh, mask2polygon, get_area_10x
+from gncnn.detection.qupath.utils import read_tile_files, read_tile_stream, mask2polygon, get_area_10x, \
+    DetectionRecordWriter
 from gncnn.detection.qupath.nms import nms
 from gncnn.detection.qupath.download import download_detector
 from gncnn.detection.qupath.shapely2geojson import poly2geojson
+from gncnn.detection.qupath.polygons import write_polygons
 from gncnn.detection.qupath.mask_ops import paste_masks_in_image
 print("Local libraries loaded!")
 
 
-def main():
-    import argparse
-    parser = argparse.ArgumentParser(description='Segment Glomeruli with Detectron2 from WSI')
-    parser.add_argument('-w', '--wsi', type=str, help='path/to/wsi', required=True)
-    parser.add_argument('-e', '--export', type=str, help='path/to/export', required=True)
-    parser.add_argument('-m', '--model', type=str, help='Model to use for inference', default="cascade_R_50_FPN_1x")
-    parser.add_argument('-c', '--train-config', type=str, help='I=Internal/E=External/A=All', default="external")
-    parser.add_argument('--undersampling', type=float, help='Undersampling factor of tiles', default=4)
-    parser.add_argument('--pixel-size', type=float, help='Pixel size of the WSI', default=0.5)
-
-    args = parser.parse_args()
-
-    print("undersampling: ", args.undersampling)
-    print("pixel size: ", args.pixel_size)
+def load_predictor(model, train_config):
+    """Load the detection model, downloading its weights if needed.
 
+    Returns the predictor and the device it runs on, so that the model can
+    be reused to segment several WSIs.
+    """
     if 'linux' in sys.platform:
-        if args.model not in CLI_MODEL_NAME_DICT:
-            logging.warning(f"Model '{args.model}' not present, default to {DEFAULT_SEGMENTATION_MODEL}!")
-            args.model = DEFAULT_SEGMENTATION_MODEL
+        if model not in CLI_MODEL_NAME_DICT:
+            logging.warning(f"Model '{model}' not present, default to {DEFAULT_SEGMENTATION_MODEL}!")
+            model = DEFAULT_SEGMENTATION_MODEL
 
-        train_config = args.train_config
-        config_file, model_name = CLI_MODEL_NAME_DICT[args.model]
+        config_file, model_name = CLI_MODEL_NAME_DICT[model]
 
         cfg = build_model_config(config_file)
         config_dir = set_config(cfg, train_config)
@@ -78,8 +75,6 @@ def main():
         model_name = "cascade_mask_rcnn_R_50_FPN_1x"
         config_dir = 'external-validation'
 
-    undersampling = args.undersampling
-
     tool_dir = os.path.join(ROOT_DIR, 'gncnn')
     model_folder = os.path.join(tool_dir, 'detection', 'logs', model_name, config_dir)
     logs_dir = os.path.join(model_folder, 'output')
@@ -113,80 +108,118 @@ def main():
         cfg.MODEL.ROI_HEADS.SCORE_THRESH_TEST = DETECTRON_SCORE_THRESHOLD
         predictor = DefaultPredictor(cfg)
 
-    tile_dir = os.path.join(args.export, 'Temp', 'tiler-output', 'Tiles', args.wsi)
-    path_to_segment_output = os.path.join(args.export, 'Temp', 'segment-output')
+    return predictor, device
+
 
-    detection_dir = os.path.join(path_to_segment_output, 'Detections', args.wsi)
+def segment_wsi(predictor, device, wsi, export_dir, undersampling, pixel_size, stream_port=None, apply_nms=True,
+                write_geojson=False):
+    """Segment the glomeruli in the tiles of a WSI and save them as a binary
+    polygon file, and also as GeoJSON if write_geojson is True.
+
+    Tiles are read from the tiler output folder, or from the local tile stream
+    at stream_port if given. If apply_nms is False, the duplicates of
+    overlapping tiles are kept, to be removed by the caller from the score of
+    each glomerulus, and the detections of each tile are also written to
+    detections.jsonl as soon as the tile is segmented. Returns the number of
+    glomeruli saved.
+    """
+    platform = sys.platform
+
+    tile_dir = os.path.join(export_dir, 'Temp', 'tiler-output', 'Tiles', wsi)
+    path_to_segment_output = os.path.join(export_dir, 'Temp', 'segment-output')
+
+    detection_dir = os.path.join(path_to_segment_output, 'Detections', wsi)
     os.makedirs(detection_dir, exist_ok=True)
 
-    print(f"Attempting to build dataset dict from {tile_dir}")
-    dataset_dicts = get_dataset_dicts_validation(tile_dir)
+    if stream_port is None:
+        print(f"Reading tiles from {tile_dir}")
+        n_tiles, tiles = read_tile_files(tile_dir)
+    else:
+        print(f"Reading tiles from stream at port {stream_port}")
+        n_tiles, tiles = read_tile_stream(stream_port)
 
-    masks_wsi = []
+    # Only the polygon of each detection is kept, not its full-tile mask, so
+    # the memory used does not grow with the size of the masks
     bboxes_wsi = []
     scores_wsi = []
-    offset_wsi = []
-
-    counts = 0
-    for dd, d in enumerate(tqdm.tqdm(dataset_dicts)):
-        filename = d["file_name"]
-        base_name = os.path.basename(filename)
-        x1_off, y1_off, _, _ = tile2xywh(filename)
-
-        logging.info(f"Basename: {base_name}, x_off: {x1_off}, y_off: {y1_off}")
-
-        im = cv2.imread(filename)
-        start_time = time.time()
-        if 'linux' not in platform:
-            lib = "TorchScript"
-            # Disable gradient computation during inference
-            with torch.no_grad():
-                inputs = preprocess_input(im, device)  # Preprocess input image if needed
-                image = inputs["image"]
-                outputs = predictor(image)
-            
-            # keys=['pred_boxes', 'pred_classes', 'pred_masks', 'scores']
-            boxes = outputs[0]
-            scores = outputs[3].cpu().numpy()
-            masks = outputs[2][:, 0, :, :]
-            
-            if outputs[2].shape[0] > 0:
-                scale_factor_w = inputs["width"] / image.shape[2]
-                scale_factor_h = inputs["height"] / image.shape[1]
-                boxes[:, [0, 2]] *= scale_factor_w
-                boxes[:, [1, 3]] *= scale_factor_h
-                masks = paste_masks_in_image(masks, boxes, im.shape[:2])
-            mask_array = masks.cpu().numpy()
-        else:
-            lib = "Detectron2"
-            outputs = predictor(im)
-            classes = outputs["instances"].get("pred_classes").cpu().numpy()
-            scores = outputs["instances"].get("scores").cpu().numpy()
-
-            mask_array = outputs['instances'].to("cpu").pred_masks.numpy()
-
-        mask_array = mask_array.astype(np.uint8)
-        end_time = time.time()
-        elapsed_time = end_time - start_time
-        logging.info(f"[{lib}] Elapsed Time (sec): {elapsed_time:.2f}")
-
-        for m, mask in enumerate(mask_array):
-            logging.info(f"Mask ({m}) - shape: {mask.shape}, dtype: {mask.dtype}, sum: {mask.sum()}")
-
-            contours, heirarchy = cv2.findContours(mask, cv2.RETR_EXTERNAL, cv2.CHAIN_APPROX_SIMPLE)
-            bounding_boxes = [cv2.boundingRect(contour) for contour in contours]
-
-            if bounding_boxes:
-                x1, y1 = bounding_boxes[0][0]*undersampling + int(x1_off), bounding_boxes[0][1]*undersampling + int(y1_off)
-                w, h = bounding_boxes[0][2]*undersampling, bounding_boxes[0][3]*undersampling
-                x2, y2 = x1 + w, y1 + h
-                bboxes_wsi.append((x1, y1, x2, y2))
-                scores_wsi.append(scores[m])
-                masks_wsi.append(mask*255)
-                offset_wsi.append((x1_off, y1_off))
-                counts = counts + 1
-
-    if len(bboxes_wsi) != 0:
+    polygons_wsi = []
+    areas_wsi = []
+
+    path_to_records = os.path.join(detection_dir, 'detections.jsonl')
+    with DetectionRecordWriter(path_to_records) as records:
+        for base_name, x1_off, y1_off, im in tqdm.tqdm(tiles, total=n_tiles):
+            logging.info(f"Basename: {base_name}, x_off: {x1_off}, y_off: {y1_off}")
+
+            start_time = time.time()
+            if 'linux' not in platform:
+                lib = "TorchScript"
+                # Disable gradient computation during inference
+                with torch.no_grad():
+                    inputs = preprocess_input(im, device)  # Preprocess input image if needed
+                    image = inputs["image"]
+                    outputs = predictor(image)
+
+                # keys=['pred_boxes', 'pred_classes', 'pred_masks', 'scores']
+                boxes = outputs[0]
+                scores = outputs[3].cpu().numpy()
+                masks = outputs[2][:, 0, :, :]
+
+                if outputs[2].shape[0] > 0:
+                    scale_factor_w = inputs["width"] / image.shape[2]
+                    scale_factor_h = inputs["height"] / image.shape[1]
+                    boxes[:, [0, 2]] *= scale_factor_w
+                    boxes[:, [1, 3]] *= scale_factor_h
+                    masks = paste_masks_in_image(masks, boxes, im.shape[:2])
+                mask_array = masks.cpu().numpy()
+            else:
+                lib = "Detectron2"
+                outputs = predictor(im)
+                classes = outputs["instances"].get("pred_classes").cpu().numpy()
+                scores = outputs["instances"].get("scores").cpu().numpy()
+
+                mask_array = outputs['instances'].to("cpu").pred_masks.numpy()
+
+            mask_array = mask_array.astype(np.uint8)
+            end_time = time.time()
+            elapsed_time = end_time - start_time
+            logging.info(f"[{lib}] Elapsed Time (sec): {elapsed_time:.2f}")
+
+            tile_polygons = []
+            tile_scores = []
+            for m, mask in enumerate(mask_array):
+                logging.info(f"Mask ({m}) - shape: {mask.shape}, dtype: {mask.dtype}, sum: {mask.sum()}")
+
+                contours, heirarchy = cv2.findContours(mask, cv2.RETR_EXTERNAL, cv2.CHAIN_APPROX_SIMPLE)
+                bounding_boxes = [cv2.boundingRect(contour) for contour in contours]
+
+                if bounding_boxes:
+                    x1, y1 = bounding_boxes[0][0]*undersampling + int(x1_off), bounding_boxes[0][1]*undersampling + int(y1_off)
+                    w, h = bounding_boxes[0][2]*undersampling, bounding_boxes[0][3]*undersampling
+                    x2, y2 = x1 + w, y1 + h
+
+                    polygon = mask2polygon(mask)
+                    area_um = get_area_10x(polygon) * (pixel_size * undersampling) ** 2
+                    polygon_large = np.array([[point[0]*undersampling + x1_off,
+                                               point[1]*undersampling + y1_off] for point in polygon])
+
+                    bboxes_wsi.append((x1, y1, x2, y2))
+                    scores_wsi.append(scores[m])
+                    polygons_wsi.append(polygon_large)
+                    areas_wsi.append(area_um)
+
+                    if area_um > MIN_AREA_GLOMERULUS_UM:
+                        tile_polygons.append(polygon_large)
+                        tile_scores.append(scores[m])
+
+            # Without the NMS, the detections of the tile are final
+            records.write_tile(base_name, x1_off, y1_off, tile_polygons if not apply_nms else [],
+                               tile_scores if not apply_nms else [])
+            del mask_array
+
+    if not apply_nms:
+        print(f"Skipping NMS: {len(bboxes_wsi)}")
+        idxs = list(range(len(bboxes_wsi)))
+    elif len(bboxes_wsi) != 0:
         print(f"Before NMS: {len(bboxes_wsi)}")
         idxs = nms(bboxes_wsi, scores_wsi, threshold_iou=0.4, threshold_iom=0.4, return_idxs=True)
         print(f"After  NMS: {len(idxs)}")
@@ -194,38 +227,51 @@ def main():
         print("No detections found!")
         idxs = []
 
-    picked_boxes = [bboxes_wsi[i] for i in idxs]
-    picked_score = [scores_wsi[i] for i in idxs]
-    picked_masks = [masks_wsi[i] for i in idxs]
-    picked_offset = [offset_wsi[i] for i in idxs]
-
     list_polygons = []
-    glomerular_areas = []
+    list_scores = []
 
-    for glomerulus_roi, single_glomerulus_mask, xy_offset in zip(picked_boxes, picked_masks, picked_offset):
-        x1_roi, y1_roi, x2_roi, y2_roi = glomerulus_roi
-        w_roi, h_roi = x2_roi - x1_roi, y2_roi - y1_roi
+    for i in idxs:
+        if areas_wsi[i] > MIN_AREA_GLOMERULUS_UM:
+            list_polygons.append(polygons_wsi[i])
+            list_scores.append(float(scores_wsi[i]))
+        else:
+            logging.warning(f"Area: {areas_wsi[i]} below min area of {MIN_AREA_GLOMERULUS_UM}!")
 
-        single_glomerulus_mask[single_glomerulus_mask>0] = 255
-        single_glomerulus_mask = single_glomerulus_mask.astype(np.uint8)
+    logging.info(f"BBoxes before NMS: {len(bboxes_wsi)} / after NMS: {len(idxs)}")
 
-        polygon = mask2polygon(single_glomerulus_mask)
-        area_um = get_area_10x(polygon) * (args.pixel_size * undersampling) ** 2
-        glomerular_areas.append(area_um)
+    # Save as a binary polygon file for QuPath
+    path_to_polygons = os.path.join(detection_dir, 'detections.gncp')
+    n_bytes = write_polygons(path_to_polygons, list_polygons, 'Glomerulus', [0, 0, 255], scores=list_scores)
+    logging.info(f"Saved {len(list_polygons)} glomeruli to {path_to_polygons} ({n_bytes} bytes)")
 
-        polygon_large = np.array([[point[0]*undersampling + xy_offset[0],
-                                   point[1]*undersampling + xy_offset[1]] for point in polygon])
+    if write_geojson:
+        path_to_geojson = os.path.join(detection_dir, 'detections.geojson')
+        poly2geojson(list_polygons, 'Glomerulus', [0, 0, 255], path_to_geojson, scores=list_scores)
 
-        if area_um > MIN_AREA_GLOMERULUS_UM:
-            list_polygons.append(polygon_large)
-        else:
-            logging.warning(f"Area: {area_um} below min area of {MIN_AREA_GLOMERULUS_UM}!")
+    return len(list_polygons)
+
+
+def main():
+    import argparse
+    parser = argparse.ArgumentParser(description='Segment Glomeruli with Detectron2 from WSI')
+    parser.add_argument('-w', '--wsi', type=str, help='path/to/wsi', required=True)
+    parser.add_argument('-e', '--export', type=str, help='path/to/export', required=True)
+    parser.add_argument('-m', '--model', type=str, help='Model to use for inference', default="cascade_R_50_FPN_1x")
+    parser.add_argument('-c', '--train-config', type=str, help='I=Internal/E=External/A=All', default="external")
+    parser.add_argument('--undersampling', type=float, help='Undersampling factor of tiles', default=4)
+    parser.add_argument('--pixel-size', type=float, help='Pixel size of the WSI', default=0.5)
+    parser.add_argument('--stream-port', type=int, help='Read the tiles from the local tile stream at this port', default=None)
+    parser.add_argument('--no-nms', action='store_true', help='Keep the duplicates of overlapping tiles', default=False)
+    parser.add_argument('--geojson', action='store_true', help='Also save the detections as GeoJSON', default=False)
+
+    args = parser.parse_args()
+
+    print("undersampling: ", args.undersampling)
+    print("pixel size: ", args.pixel_size)
 
-    logging.info(f"BBoxes before NMS: {len(bboxes_wsi)} / after NMS: {len(picked_boxes)}")
-    
-    # Save as GeoJSON for QuPath
-    path_to_geojson = os.path.join(detection_dir, 'detections.geojson')
-    poly2geojson(list_polygons, 'Glomerulus', [0, 0, 255], path_to_geojson)
+    predictor, device = load_predictor(args.model, args.train_config)
+    segment_wsi(predictor, device, args.wsi, args.export, args.undersampling, args.pixel_size,
+                stream_port=args.stream_port, apply_nms=not args.no_nms, write_geojson=args.geojson)
 
 
 if __name__ == '__main__':
@@ -5,6 +5,7 @@ Original:
 Modified by: Israel Mateos-Aparicio-Ruiz
 Modifications:
     - Adapted output to match the QuPath format
+    - Added optional score measurement of each polygon
 
 As this source code is licensed under the MIT license, a copy of the license
 terms is provided in the LICENSE_SHAPELY-GEOJSON file in the root of this
@@ -117,16 +118,22 @@ def dumps(obj, *args, **kwargs):
     return json.dumps(mapping(obj), *args, **kwargs)
 
 
-def poly2geojson(polygons, class_name, class_color, path_to_geojson):
+SCORE_MEASUREMENT = "Detection score"
+
+
+def poly2geojson(polygons, class_name, class_color, path_to_geojson, scores=None):
     features = []
-    for polygon in polygons:
-        features.append(Feature(Polygon(polygon), {
+    for i, polygon in enumerate(polygons):
+        properties = {
             "objectType": "annotation",
             "classification": {
                 "name": class_name,
                 "color": class_color
             }
-        }))
+        }
+        if scores is not None:
+            properties["measurements"] = {SCORE_MEASUREMENT: scores[i]}
+        features.append(Feature(Polygon(polygon), properties))
 
     with open(path_to_geojson, "w") as fp:
         feature_dict = json.loads(dumps(FeatureCollection(features)))
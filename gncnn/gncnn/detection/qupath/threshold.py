@@ -1,4 +1,5 @@
-"""Apply thresholding to an image and save the result as a GeoJSON file.
+"""Apply thresholding to an image and save the result as a binary polygon file,
+and optionally as a GeoJSON file.
 
 Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
 """
@@ -11,6 +12,7 @@ import shapely.geometry
 
 from gncnn.detection.qupath.config import MIN_AREA_GLOMERULUS_UM
 from gncnn.detection.qupath.shapely2geojson import poly2geojson
+from gncnn.detection.qupath.polygons import write_polygons
 
 def thresholding(img_path):
     # 1. Median filtering
@@ -43,8 +45,8 @@ def get_original_contours(contours, downsample):
     return original_contours
 
 
-def contours2geojson(contours, pixel_size, output_path):
-    """Convert contours to a GeoJSON file."""
+def contours2polygons(contours, pixel_size, output_path, geojson_path=None):
+    """Convert contours to a binary polygon file, and to a GeoJSON file if geojson_path is given."""
     # 1. Convert contours to polygons
     polygons = []
     for contour in contours:
@@ -60,9 +62,11 @@ def contours2geojson(contours, pixel_size, output_path):
             continue
         final_polygons.append(polygon)
 
-    # 3. Convert polygons to GeoJSON
-    logging.info(f'Saving {len(final_polygons)} tissue polygons to {output_path}')
-    poly2geojson(final_polygons, 'Tissue', [255, 0, 0], output_path)
+    # 3. Save the polygons
+    n_bytes = write_polygons(output_path, final_polygons, 'Tissue', [255, 0, 0])
+    logging.info(f'Saved {len(final_polygons)} tissue polygons to {output_path} ({n_bytes} bytes)')
+    if geojson_path is not None:
+        poly2geojson(final_polygons, 'Tissue', [255, 0, 0], geojson_path)
 
 
 def main():
@@ -71,6 +75,7 @@ def main():
     parser.add_argument('-w', '--wsi', type=str, help='path/to/wsi', required=True)
     parser.add_argument('-e', '--export', type=str, help='path/to/export', required=True)
     parser.add_argument('--pixel-size', type=float, help='Pixel size of the WSI', default=0.5)
+    parser.add_argument('--geojson', action='store_true', help='Also save the tissue as GeoJSON', default=False)
     args = parser.parse_args()
 
     lowres_dir = os.path.join(args.export, 'Temp', 'lowres-output', 'Images', args.wsi)
@@ -95,9 +100,10 @@ def main():
                 continue
             final_contours.append(contour)
 
-        # Save as GeoJSON for QuPath
-        path_to_geojson = os.path.join(annotation_dir, 'annotations.geojson')
-        contours2geojson(final_contours, args.pixel_size, path_to_geojson)
+        # Save as a binary polygon file for QuPath
+        path_to_polygons = os.path.join(annotation_dir, 'annotations.gncp')
+        path_to_geojson = os.path.join(annotation_dir, 'annotations.geojson') if args.geojson else None
+        contours2polygons(final_contours, args.pixel_size, path_to_polygons, path_to_geojson)
 
 
 if __name__ == '__main__':
@@ -4,12 +4,20 @@ Modified by: Israel Mateos-Aparicio-Ruiz
 Modifications:
     - Removed unused functions
     - Adapted tile2xywh to own format
+    - Added tile iterators for tile folders and tile streams
+    - Added writer of per-tile detection records
 """
+import json
 import os
+import socket
+import struct
 
 import cv2
 import numpy as np
 
+# Must match qupath.ext.gncnn.tasks.TileStreamer
+TILE_STREAM_MAGIC = 0x54434E47
+
 
 def get_dataset_dicts_validation(basepath):
     dataset_dicts = []
@@ -32,6 +40,62 @@ def get_dataset_dicts_validation(basepath):
     return dataset_dicts
 
 
+def read_tile_files(basepath):
+    """Return the number of tiles in a folder, and an iterator over them.
+
+    Each tile is yielded as (name, x, y, image), where (x, y) is the offset
+    of the tile in the WSI and the image is BGR, as read by OpenCV. Each tile
+    is only read once, when it is yielded.
+    """
+    filenames = sorted(os.listdir(basepath))
+
+    def tiles():
+        for image in filenames:
+            filename = os.path.join(basepath, image)
+            x_tile, y_tile, _, _ = tile2xywh(filename)
+            yield image, x_tile, y_tile, cv2.imread(filename)
+
+    return len(filenames), tiles()
+
+
+def _recv_exactly(sock, buffer):
+    view = memoryview(buffer)
+    while len(view) > 0:
+        n = sock.recv_into(view)
+        if n == 0:
+            raise ConnectionError("Tile stream closed unexpectedly")
+        view = view[n:]
+    return buffer
+
+
+def read_tile_stream(port):
+    """Connect to a local tile stream, and return the number of tiles and an
+    iterator over them.
+
+    Tiles are yielded as read_tile_files does, converting the raw RGB frames
+    to BGR, so that they are decoded exactly as the tiles written to disk.
+    """
+    sock = socket.create_connection(('127.0.0.1', port))
+    magic, n_tiles = struct.unpack('<2i', _recv_exactly(sock, bytearray(8)))
+    if magic != TILE_STREAM_MAGIC:
+        sock.close()
+        raise ValueError(f"Unexpected tile stream magic number: {magic:#x}")
+
+    def tiles():
+        try:
+            while True:
+                x, y, w, h, width, height = struct.unpack('<6i', _recv_exactly(sock, bytearray(24)))
+                if width == 0 and height == 0:
+                    return
+                frame = _recv_exactly(sock, bytearray(width * height * 3))
+                image = np.frombuffer(frame, dtype=np.uint8).reshape(height, width, 3)[:, :, ::-1]
+                yield f"[x={x},y={y},w={w},h={h}]", x, y, np.ascontiguousarray(image)
+        finally:
+            sock.close()
+
+    return n_tiles, tiles()
+
+
 def tile2xywh(filename):
     x_tile = int(filename.split('x=')[1].split(',')[0])
     y_tile = int(filename.split('y=')[1].split(',')[0])
@@ -51,3 +115,47 @@ def get_area_10x(polygon):
     polygon_small = np.array([[point[0], point[1]] for point in polygon])
     area_um = cv2.contourArea(polygon_small)
     return area_um
+
+
+class DetectionRecordWriter:
+    """Writer of the detections of each tile as soon as the tile is segmented.
+
+    Each tile is written as one JSON line, flushed at once, so that QuPath can
+    read the detections while the segmentation is still running:
+
+        {"tile": name, "x": x, "y": y, "detections": [{"polygon": [[x, y], ...], "score": s}, ...]}
+
+    A final {"done": true, "tiles": n} line marks that all the tiles were
+    written. Must match qupath.ext.gncnn.detection.DetectionRecordReader.
+    """
+
+    def __init__(self, path):
+        self.path = path
+        self.tiles = 0
+        self._fp = open(path, 'w')
+
+    def write_tile(self, name, x, y, polygons, scores):
+        detections = [{'polygon': np.asarray(polygon).tolist(), 'score': float(score)}
+                      for polygon, score in zip(polygons, scores)]
+        record = {'tile': name, 'x': int(x), 'y': int(y), 'detections': detections}
+        self._fp.write(json.dumps(record, separators=(',', ':')) + '\n')
+        self._fp.flush()
+        self.tiles += 1
+
+    def close(self):
+        if self._fp is None:
+            return
+        self._fp.write(json.dumps({'done': True, 'tiles': self.tiles}) + '\n')
+        self._fp.close()
+        self._fp = None
+
+    def __enter__(self):
+        return self
+
+    def __exit__(self, exc_type, exc, tb):
+        if exc_type is None:
+            self.close()
+        else:
+            # Without the final line the records are known to be incomplete
+            self._fp.close()
+            self._fp = None
@@ -0,0 +1,93 @@
+"""Long-lived worker which keeps the models loaded across WSIs.
+
+The worker reads one JSON request per line from stdin and writes one JSON
+response per line to stdout. Anything else printed by the libraries goes to
+stderr, so stdout only carries the protocol:
+
+    request:  {"id": 1, "job": "segment", "params": {...}}
+    response: {"id": 1, "status": "ok", "result": {...}}
+              {"id": 1, "status": "error", "message": "..."}
+
+A {"id": 0, "status": "ready"} message is sent once the worker is started.
+
+Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+"""
+import json
+import logging
+import sys
+import traceback
+
+# Keep a handle to the real stdout for the protocol, and send everything else
+# printed by the libraries to stderr
+_protocol_out = sys.stdout
+sys.stdout = sys.stderr
+
+_predictors = {}
+
+
+def send(message):
+    _protocol_out.write(json.dumps(message) + "\n")
+    _protocol_out.flush()
+
+
+def ping(params):
+    return {}
+
+
+def segment(params):
+    from gncnn.detection.qupath.segment import load_predictor, segment_wsi
+
+    # Models are loaded only once for each configuration
+    key = (params['model'], params['train_config'])
+    if key not in _predictors:
+        print(f"Loading detection model {key}")
+        _predictors[key] = load_predictor(*key)
+    predictor, device = _predictors[key]
+
+    n_detections = segment_wsi(predictor, device, params['wsi'], params['export'],
+                               params['undersampling'], params['pixel_size'],
+                               stream_port=params.get('stream_port'),
+                               apply_nms=params.get('nms', True),
+                               write_geojson=params.get('geojson', False))
+    return {'detections': n_detections}
+
+
+JOBS = {
+    'ping': ping,
+    'segment': segment,
+}
+
+
+def main():
+    send({'id': 0, 'status': 'ready'})
+
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+
+        request = json.loads(line)
+        request_id = request.get('id')
+        job = request.get('job')
+
+        if job == 'shutdown':
+            send({'id': request_id, 'status': 'ok', 'result': {}})
+            break
+
+        if job not in JOBS:
+            send({'id': request_id, 'status': 'error', 'message': f"Unknown job '{job}'"})
+            continue
+
+        try:
+            result = JOBS[job](request.get('params', {}))
+            send({'id': request_id, 'status': 'ok', 'result': result})
+        except Exception as e:
+            logging.error(traceback.format_exc())
+            send({'id': request_id, 'status': 'error', 'message': str(e)})
+
+        # Flush the progress output of the job before waiting for the next one
+        sys.stderr.flush()
+
+
+if __name__ == '__main__':
+    main()
@@ -62,6 +62,8 @@ public class GNCnnExtension implements QuPathExtension, GitHubProject {
 		// Add the items to the preferences dialog
 		QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().add(
 				enableExtensionItem);
+		QuPathGUI.getInstance().getPreferencePane().getPropertySheet().getItems().addAll(
+				GNCnnPreferences.getItems());
 	}
 
 	/**
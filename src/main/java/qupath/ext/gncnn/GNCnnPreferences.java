@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.controlsfx.control.PropertySheet;
+
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.ObjectProperty;
+import qupath.ext.gncnn.detection.DetectionDeduplicator;
+import qupath.ext.gncnn.tasks.ImageDataSession;
+import qupath.ext.gncnn.tasks.TaskManager;
+import qupath.fx.prefs.controlsfx.PropertyItemBuilder;
+import qupath.lib.gui.prefs.PathPrefs;
+
+/**
+ * Persistent preferences of the GNCnn pipeline, shown in the QuPath
+ * preferences dialog and applied to the {@link TaskManager} before each run
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class GNCnnPreferences {
+
+    private static final String CATEGORY = "GNCnn";
+
+    private static final IntegerProperty maxImagesInFlightProperty = PathPrefs.createPersistentPreference(
+            "gncnn.maxImagesInFlight", 3);
+
+    private static final BooleanProperty useDetectionWorkerProperty = PathPrefs.createPersistentPreference(
+            "gncnn.useDetectionWorker", true);
+
+    private static final BooleanProperty streamTilesProperty = PathPrefs.createPersistentPreference(
+            "gncnn.streamTiles", false);
+
+    private static final DoubleProperty minTissueFractionProperty = PathPrefs.createPersistentPreference(
+            "gncnn.minTissueFraction", 0.01);
+
+    private static final BooleanProperty useJavaTissueDetectionProperty = PathPrefs.createPersistentPreference(
+            "gncnn.useJavaTissueDetection", false);
+
+    private static final BooleanProperty resumeProperty = PathPrefs.createPersistentPreference(
+            "gncnn.resume", true);
+
+    private static final BooleanProperty useDetectionCacheProperty = PathPrefs.createPersistentPreference(
+            "gncnn.useDetectionCache", true);
+
+    private static final IntegerProperty detectionCacheSizeMBProperty = PathPrefs.createPersistentPreference(
+            "gncnn.detectionCacheSizeMB", 1024);
+
+    private static final IntegerProperty imageDataMemoryBudgetMBProperty = PathPrefs.createPersistentPreference(
+            "gncnn.imageDataMemoryBudgetMB", (int) (ImageDataSession.DEFAULT_MEMORY_BUDGET >> 20));
+
+    private static final BooleanProperty useCropContainerProperty = PathPrefs.createPersistentPreference(
+            "gncnn.useCropContainer", true);
+
+    private static final BooleanProperty mergeDetectionsByUnionProperty = PathPrefs.createPersistentPreference(
+            "gncnn.mergeDetectionsByUnion", false);
+
+    private static final BooleanProperty writeGeoJSONProperty = PathPrefs.createPersistentPreference(
+            "gncnn.writeGeoJSON", false);
+
+    private static final DoubleProperty detectionSimplifyToleranceProperty = PathPrefs.createPersistentPreference(
+            "gncnn.detectionSimplifyTolerance", 1.0);
+
+    private static final IntegerProperty detectionMaxVerticesProperty = PathPrefs.createPersistentPreference(
+            "gncnn.detectionMaxVertices", 256);
+
+    private static final DoubleProperty tissueSimplifyToleranceProperty = PathPrefs.createPersistentPreference(
+            "gncnn.tissueSimplifyTolerance", 4.0);
+
+    private static final ObjectProperty<DetectionDeduplicator.Mode> detectionIngestModeProperty = PathPrefs
+            .createPersistentPreference("gncnn.detectionIngestMode", DetectionDeduplicator.Mode.SKIP,
+                    DetectionDeduplicator.Mode.class);
+
+    private GNCnnPreferences() {
+    }
+
+    /**
+     * Returns the items of the preferences dialog
+     *
+     * @return The items, in the order they are shown
+     */
+    public static List<PropertySheet.Item> getItems() {
+        List<PropertySheet.Item> items = new ArrayList<>();
+        items.add(new PropertyItemBuilder<>(maxImagesInFlightProperty, Integer.class)
+                .name("Images processed at the same time")
+                .category(CATEGORY)
+                .description("Maximum number of images going through the pipeline at the same time. "
+                        + "More images keep the GPU busy, but use more memory.")
+                .build());
+        items.add(new PropertyItemBuilder<>(useDetectionWorkerProperty, Boolean.class)
+                .name("Keep the detection model loaded")
+                .category(CATEGORY)
+                .description("Run the glomerulus detection in a Python process kept alive across images, "
+                        + "instead of starting a new process and loading the model for each image.")
+                .build());
+        items.add(new PropertyItemBuilder<>(streamTilesProperty, Boolean.class)
+                .name("Stream tiles to the detection")
+                .category(CATEGORY)
+                .description("Pass the tiles from memory to the glomerulus detection, "
+                        + "instead of writing them to disk first.")
+                .build());
+        items.add(new PropertyItemBuilder<>(minTissueFractionProperty, Double.class)
+                .name("Minimum tissue fraction of a tile")
+                .category(CATEGORY)
+                .description("Tiles with less tissue than this fraction, between 0 and 1, "
+                        + "are not passed to the glomerulus detection. 0 keeps all the tiles.")
+                .build());
+        items.add(new PropertyItemBuilder<>(useJavaTissueDetectionProperty, Boolean.class)
+                .name("Detect tissue in memory")
+                .category(CATEGORY)
+                .description("Detect the tissue in QuPath, instead of running the thresholding script "
+                        + "on a low-resolution export of each image.")
+                .build());
+        items.add(new PropertyItemBuilder<>(resumeProperty, Boolean.class)
+                .name("Resume interrupted runs")
+                .category(CATEGORY)
+                .description("Skip the stages already completed for an image with the same parameters. "
+                        + "Disable it to run every stage again.")
+                .build());
+        items.add(new PropertyItemBuilder<>(useDetectionCacheProperty, Boolean.class)
+                .name("Cache detections")
+                .category(CATEGORY)
+                .description("Reuse the detections of a slide already processed with the same parameters, "
+                        + "even from another project.")
+                .build());
+        items.add(new PropertyItemBuilder<>(detectionCacheSizeMBProperty, Integer.class)
+                .name("Detection cache size (MB)")
+                .category(CATEGORY)
+                .description("Maximum size of the detection cache on disk. "
+                        + "The least recently used detections are removed when it is exceeded.")
+                .build());
+        items.add(new PropertyItemBuilder<>(imageDataMemoryBudgetMBProperty, Integer.class)
+                .name("Image data kept in memory (MB)")
+                .category(CATEGORY)
+                .description("Maximum estimated size of the image data shared by the stages of the pipeline. "
+                        + "Above it, the least recently used images are saved and read again when needed.")
+                .build());
+        items.add(new PropertyItemBuilder<>(useCropContainerProperty, Boolean.class)
+                .name("Pack the exported glomeruli")
+                .category(CATEGORY)
+                .description("Pack the glomeruli exported for the classification of each image in a single file. "
+                        + "Disable it to write each glomerulus to its own PNG file.")
+                .build());
+        items.add(new PropertyItemBuilder<>(mergeDetectionsByUnionProperty, Boolean.class)
+                .name("Merge duplicate detections")
+                .category(CATEGORY)
+                .description("Merge the glomeruli detected in more than one overlapping tile by the union "
+                        + "of their shapes, instead of keeping only the best ranked one.")
+                .build());
+        items.add(new PropertyItemBuilder<>(writeGeoJSONProperty, Boolean.class)
+                .name("Also write GeoJSON")
+                .category(CATEGORY)
+                .description("Also write the tissue regions and detections as GeoJSON, for debugging.")
+                .build());
+        items.add(new PropertyItemBuilder<>(detectionSimplifyToleranceProperty, Double.class)
+                .name("Glomerulus simplification (\u00b5m)")
+                .category(CATEGORY)
+                .description("Maximum distance of the simplified glomeruli to the detected polygons. "
+                        + "0 does not simplify them.")
+                .build());
+        items.add(new PropertyItemBuilder<>(detectionMaxVerticesProperty, Integer.class)
+                .name("Maximum vertices of a glomerulus")
+                .category(CATEGORY)
+                .description("Maximum number of vertices of each detected glomerulus. 0 for no limit.")
+                .build());
+        items.add(new PropertyItemBuilder<>(tissueSimplifyToleranceProperty, Double.class)
+                .name("Tissue simplification (\u00b5m)")
+                .category(CATEGORY)
+                .description("Maximum distance of the simplified tissue regions to the traced polygons. "
+                        + "0 does not simplify them.")
+                .build());
+        items.add(new PropertyItemBuilder<>(detectionIngestModeProperty, DetectionDeduplicator.Mode.class)
+                .propertyType(PropertyItemBuilder.PropertyType.CHOICE)
+                .choices(List.of(DetectionDeduplicator.Mode.values()))
+                .name("Glomeruli detected again")
+                .category(CATEGORY)
+                .description("What is done with the detections overlapping glomeruli detected by a previous run: "
+                        + "SKIP keeps the existing glomeruli, REPLACE replaces them by the detections "
+                        + "and MERGE by the union of both.")
+                .build());
+        return items;
+    }
+
+    /**
+     * Applies the preferences to a task manager
+     *
+     * @param taskManager
+     */
+    public static void applyTo(TaskManager taskManager) {
+        taskManager.setMaxImagesInFlight(maxImagesInFlightProperty.get());
+        taskManager.setUseDetectionWorker(useDetectionWorkerProperty.get());
+        taskManager.setStreamTiles(streamTilesProperty.get());
+        taskManager.setMinTissueFraction(minTissueFractionProperty.get());
+        taskManager.setUseJavaTissueDetection(useJavaTissueDetectionProperty.get());
+        taskManager.setResume(resumeProperty.get());
+        taskManager.setUseDetectionCache(useDetectionCacheProperty.get());
+        taskManager.setDetectionCacheSize((long) detectionCacheSizeMBProperty.get() << 20);
+        taskManager.setImageDataMemoryBudget((long) imageDataMemoryBudgetMBProperty.get() << 20);
+        taskManager.setUseCropContainer(useCropContainerProperty.get());
+        taskManager.setMergeDetectionsByUnion(mergeDetectionsByUnionProperty.get());
+        taskManager.setWriteGeoJSON(writeGeoJSONProperty.get());
+        taskManager.setDetectionSimplification(detectionSimplifyToleranceProperty.get(),
+                detectionMaxVerticesProperty.get());
+        taskManager.setTissueSimplification(tissueSimplifyToleranceProperty.get());
+        taskManager.setDetectionIngestMode(detectionIngestModeProperty.get());
+    }
+}
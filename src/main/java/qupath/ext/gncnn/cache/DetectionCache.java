@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.cache;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.gncnn.io.PolygonFile;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Local on-disk cache of the glomerulus detections of a slide, so that the
+ * detection is not repeated when the same slide is processed again with the
+ * same model, e.g. in another project or after a cleanup.
+ *
+ * Entries are content-addressed: the key is the hash of a fingerprint of the
+ * slide and of the detection parameters. The fingerprint combines the server
+ * metadata with a hash of a few small regions sampled from the lowest
+ * resolution level, so it does not depend on the path of the slide. The least
+ * recently used entries are removed when the cache exceeds its size limit.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class DetectionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DetectionCache.class);
+
+    private static final String ENTRY_EXTENSION = PolygonFile.FILE_EXTENSION;
+
+    private static final int SAMPLE_SIZE = 64;
+
+    // Relative positions of the centres of the sampled regions
+    private static final double[][] SAMPLE_POSITIONS = { { 0.5, 0.5 }, { 0.25, 0.25 }, { 0.75, 0.25 },
+            { 0.25, 0.75 }, { 0.75, 0.75 } };
+
+    private final Path cacheDir;
+
+    private long maxSizeBytes;
+
+    private final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache in the given folder
+     *
+     * @param cacheDir
+     * @param maxSizeBytes
+     */
+    public DetectionCache(String cacheDir, long maxSizeBytes) {
+        this.cacheDir = Paths.get(cacheDir);
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Returns the default folder of the cache, shared by all the projects
+     *
+     * @return The default cache folder
+     */
+    public static String getDefaultCacheDir() {
+        return Paths.get(System.getProperty("user.home"), ".gncnn", "cache", "detections").toString();
+    }
+
+    public void setMaxSizeBytes(long maxSizeBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the key of the detections of a slide with the given parameters
+     *
+     * @param server
+     * @param params Detection parameters, e.g. model name and tile size
+     * @return The key of the cache entry
+     * @throws IOException If the sampled regions cannot be read
+     */
+    public String getKey(ImageServer<BufferedImage> server, Map<String, String> params) throws IOException {
+        StringBuilder sb = new StringBuilder(getFingerprint(server));
+        new TreeMap<>(params).forEach((name, value) -> sb.append('\n').append(name).append('=').append(value));
+        return toHex(sha256().digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Checks if the cache has an entry, without counting it as a hit or miss
+     *
+     * @param key
+     * @return True if the entry exists
+     */
+    public boolean contains(String key) {
+        return Files.exists(getEntryPath(key));
+    }
+
+    /**
+     * Returns the polygon file of the detections with the given key, and marks
+     * the entry as recently used
+     *
+     * @param key
+     * @return The path to the cached detections, or null if they are not cached
+     */
+    public synchronized Path get(String key) {
+        Path entry = getEntryPath(key);
+        if (!Files.exists(entry)) {
+            misses.incrementAndGet();
+            logger.info("Detection cache miss for {} [hits={}, misses={}]", key, hits.get(), misses.get());
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            logger.debug("Could not update the access time of {}: {}", entry, e.getMessage());
+        }
+        hits.incrementAndGet();
+        logger.info("Detection cache hit for {} [hits={}, misses={}]", key, hits.get(), misses.get());
+        return entry;
+    }
+
+    /**
+     * Copies the polygon file of the detections with the given key out of the
+     * cache, and marks the entry as recently used. Unlike {@link #get(String)},
+     * the copy cannot be evicted while it is read, e.g. by the detections of
+     * another image being stored
+     *
+     * @param key
+     * @param target Path of the copy
+     * @return False if the detections are not cached
+     * @throws IOException If the entry cannot be copied
+     */
+    public synchronized boolean copyTo(String key, Path target) throws IOException {
+        Path entry = get(key);
+        if (entry == null) {
+            return false;
+        }
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Stores a copy of the polygon file of the detections with the given key,
+     * removing the least recently used entries if the cache is too large
+     *
+     * @param key
+     * @param detectionsPath
+     * @throws IOException
+     */
+    public synchronized void put(String key, Path detectionsPath) throws IOException {
+        Files.createDirectories(cacheDir);
+        Path entry = getEntryPath(key);
+        Path tmpEntry = cacheDir.resolve(key + ENTRY_EXTENSION + ".tmp");
+        Files.copy(detectionsPath, tmpEntry, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmpEntry, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        evict();
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits its limit
+     */
+    private void evict() {
+        File[] entries = cacheDir.toFile().listFiles((dir, name) -> name.endsWith(ENTRY_EXTENSION));
+        if (entries == null) {
+            return;
+        }
+        long size = Arrays.stream(entries).mapToLong(File::length).sum();
+        if (size <= maxSizeBytes) {
+            return;
+        }
+
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (File entry : entries) {
+            if (size <= maxSizeBytes) {
+                break;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                size -= length;
+                logger.info("Evicted {} from the detection cache", entry.getName());
+            }
+        }
+    }
+
+    private Path getEntryPath(String key) {
+        return cacheDir.resolve(key + ENTRY_EXTENSION);
+    }
+
+    /**
+     * Returns a fingerprint of the slide, computed once per server path
+     *
+     * @param server
+     * @return The fingerprint
+     * @throws IOException
+     */
+    private String getFingerprint(ImageServer<BufferedImage> server) throws IOException {
+        String fingerprint = fingerprints.get(server.getPath());
+        if (fingerprint == null) {
+            fingerprint = computeFingerprint(server);
+            fingerprints.put(server.getPath(), fingerprint);
+        }
+        return fingerprint;
+    }
+
+    private static String computeFingerprint(ImageServer<BufferedImage> server) throws IOException {
+        MessageDigest digest = sha256();
+        ImageServerMetadata metadata = server.getMetadata();
+        String description = metadata.getWidth() + "x" + metadata.getHeight()
+                + ",levels=" + Arrays.toString(server.getPreferredDownsamples())
+                + ",channels=" + metadata.getSizeC()
+                + ",pixelSize=" + metadata.getPixelCalibration().getAveragedPixelSize();
+        digest.update(description.getBytes(StandardCharsets.UTF_8));
+
+        // Regions of the lowest resolution level are cheap to read
+        double[] downsamples = server.getPreferredDownsamples();
+        double downsample = downsamples[downsamples.length - 1];
+        int size = (int) Math.round(SAMPLE_SIZE * downsample);
+        for (double[] position : SAMPLE_POSITIONS) {
+            int w = Math.min(size, server.getWidth());
+            int h = Math.min(size, server.getHeight());
+            int x = (int) Math.max(0, Math.min(server.getWidth() - w, position[0] * server.getWidth() - w / 2.0));
+            int y = (int) Math.max(0, Math.min(server.getHeight() - h, position[1] * server.getHeight() - h / 2.0));
+            BufferedImage img = server.readRegion(RegionRequest.createInstance(server.getPath(), downsample, x, y, w, h));
+            int[] rgb = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+            byte[] bytes = new byte[rgb.length * 4];
+            for (int i = 0; i < rgb.length; i++) {
+                bytes[4 * i] = (byte) (rgb[i] >> 24);
+                bytes[4 * i + 1] = (byte) (rgb[i] >> 16);
+                bytes[4 * i + 2] = (byte) (rgb[i] >> 8);
+                bytes[4 * i + 3] = (byte) rgb[i];
+            }
+            digest.update(bytes);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.cache;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import qupath.ext.gncnn.entities.ResultsSummary;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Store of the results summaries of the images of a project, one JSON file
+ * per project entry, named by the entry ID.
+ *
+ * Each summary records the modification time and size of the image data it
+ * was computed from, and it is ignored once the image data changes, e.g. if
+ * the glomeruli are edited after the classification.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class ResultsSummaryStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResultsSummaryStore.class);
+
+    private static final Gson gson = new Gson();
+
+    // Name of the image data file in the folder of a project entry
+    private static final String DATA_FILE = "data.qpdata";
+
+    private final Path summaryDir;
+
+    /**
+     * Creates a store in the given folder
+     *
+     * @param summaryDir
+     */
+    public ResultsSummaryStore(String summaryDir) {
+        this.summaryDir = Paths.get(summaryDir);
+    }
+
+    /**
+     * Returns the summary of a project entry, if it is up to date with its
+     * image data
+     *
+     * @param entry
+     * @return The summary, or null if it is missing or stale
+     */
+    public ResultsSummary read(ProjectImageEntry<BufferedImage> entry) {
+        Path summaryPath = getSummaryPath(entry);
+        if (!Files.exists(summaryPath)) {
+            return null;
+        }
+        ResultsSummary summary;
+        try (Reader reader = Files.newBufferedReader(summaryPath, StandardCharsets.UTF_8)) {
+            summary = gson.fromJson(reader, ResultsSummary.class);
+        } catch (IOException | JsonParseException e) {
+            logger.warn("Could not read the results summary {}: {}", summaryPath, e.getMessage());
+            return null;
+        }
+
+        Path dataPath = getDataPath(entry);
+        try {
+            if (summary == null || !summary.isValid() || dataPath == null
+                    || Files.getLastModifiedTime(dataPath).toMillis() != summary.getDataModified()
+                    || Files.size(dataPath) != summary.getDataSize()) {
+                logger.debug("Results summary of {} is stale", entry.getImageName());
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return summary;
+    }
+
+    /**
+     * Writes the summary of a project entry, stamped with its current image
+     * data. It must be called once the image data has been saved
+     *
+     * @param entry
+     * @param summary
+     */
+    public void write(ProjectImageEntry<BufferedImage> entry, ResultsSummary summary) {
+        Path dataPath = getDataPath(entry);
+        if (dataPath == null || !Files.exists(dataPath)) {
+            // Without saved image data the summary could not be validated
+            return;
+        }
+        Path summaryPath = getSummaryPath(entry);
+        try {
+            summary.setDataStamp(Files.getLastModifiedTime(dataPath).toMillis(), Files.size(dataPath));
+            Files.createDirectories(summaryDir);
+            Path tmpPath = summaryPath.resolveSibling(summaryPath.getFileName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+                gson.toJson(summary, writer);
+            }
+            Files.move(tmpPath, summaryPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The results are computed from the image data instead
+            logger.warn("Could not write the results summary {}: {}", summaryPath, e.getMessage());
+        }
+    }
+
+    private Path getSummaryPath(ProjectImageEntry<BufferedImage> entry) {
+        return summaryDir.resolve(entry.getID() + ".json");
+    }
+
+    private static Path getDataPath(ProjectImageEntry<BufferedImage> entry) {
+        Path entryPath = entry.getEntryPath();
+        return entryPath == null ? null : entryPath.resolve(DATA_FILE);
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.cache;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Service which loads the thumbnails of the results view in the background.
+ *
+ * Thumbnails are taken from the thumbnail stored in the project, or read from
+ * the lowest resolution level of the slide, scaled and decoded off the FX
+ * thread. The scaled images are kept in a memory LRU cache, and in an on-disk
+ * cache shared by all the projects, both bounded by size.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class ThumbnailService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailService.class);
+
+    private static final String ENTRY_EXTENSION = ".png";
+
+    /**
+     * Function which reads the full thumbnail of an image
+     */
+    @FunctionalInterface
+    public interface ThumbnailSource {
+        BufferedImage read() throws IOException;
+    }
+
+    private final Path cacheDir;
+
+    private final int size;
+
+    private final long maxMemoryBytes;
+
+    private final long maxDiskBytes;
+
+    // Scaled thumbnails, in access order
+    private final LinkedHashMap<String, Image> memoryCache = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long memoryBytes = 0;
+
+    // Size of the disk cache, computed on the first write
+    private long diskBytes = -1;
+
+    private final Map<String, CompletableFuture<Image>> pending = new ConcurrentHashMap<>();
+
+    private final ExecutorService pool;
+
+    /**
+     * Creates a thumbnail service
+     *
+     * @param cacheDir       Folder of the on-disk cache
+     * @param size           Maximum width and height of the thumbnails
+     * @param maxMemoryBytes Maximum size of the decoded thumbnails kept in memory
+     * @param maxDiskBytes   Maximum size of the on-disk cache
+     * @param nThreads       Number of threads loading thumbnails
+     */
+    public ThumbnailService(String cacheDir, int size, long maxMemoryBytes, long maxDiskBytes, int nThreads) {
+        this.cacheDir = Paths.get(cacheDir);
+        this.size = size;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.pool = Executors.newFixedThreadPool(nThreads,
+                ThreadTools.createThreadFactory("GNCnn-thumbnails-", true));
+    }
+
+    /**
+     * Returns the default folder of the cache, shared by all the projects
+     *
+     * @return The default cache folder
+     */
+    public static String getDefaultCacheDir() {
+        return Paths.get(System.getProperty("user.home"), ".gncnn", "cache", "thumbnails").toString();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns a thumbnail if it is in the memory cache, without blocking
+     *
+     * @param key
+     * @return The thumbnail, or null if it has to be loaded
+     */
+    public synchronized Image getCached(String key) {
+        return memoryCache.get(key);
+    }
+
+    /**
+     * Loads a thumbnail in the background, from the disk cache or its source.
+     * Cancelling the returned future before the load starts skips it, e.g.
+     * when its row is scrolled out of view
+     *
+     * @param key    Key of the image, stable across sessions
+     * @param source Source used if the thumbnail is not cached
+     * @return A future completed with the thumbnail, or null if it could not
+     *         be read
+     */
+    public CompletableFuture<Image> load(String key, ThumbnailSource source) {
+        Image cached = getCached(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<Image> future = pending.get(key);
+        if (future != null && !future.isDone()) {
+            return future;
+        }
+        CompletableFuture<Image> newFuture = new CompletableFuture<>();
+        pending.put(key, newFuture);
+        pool.execute(() -> {
+            try {
+                if (!newFuture.isDone()) {
+                    newFuture.complete(loadNow(key, source));
+                }
+            } catch (Exception e) {
+                logger.warn("Could not load the thumbnail of {}: {}", key, e.getMessage());
+                newFuture.complete(null);
+            } finally {
+                pending.remove(key, newFuture);
+            }
+        });
+        return newFuture;
+    }
+
+    private Image loadNow(String key, ThumbnailSource source) throws IOException {
+        Path entry = getEntryPath(key);
+        BufferedImage img = null;
+        if (Files.exists(entry)) {
+            img = ImageIO.read(entry.toFile());
+            try {
+                Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                logger.debug("Could not update the access time of {}: {}", entry, e.getMessage());
+            }
+        }
+        if (img == null) {
+            BufferedImage full = source.read();
+            if (full == null) {
+                return null;
+            }
+            img = scale(full, size);
+            writeEntry(entry, img);
+        }
+
+        Image image = SwingFXUtils.toFXImage(img, null);
+        putCached(key, image, 4L * img.getWidth() * img.getHeight());
+        return image;
+    }
+
+    private synchronized void putCached(String key, Image image, long bytes) {
+        if (memoryCache.put(key, image) == null) {
+            memoryBytes += bytes;
+        }
+        var iterator = memoryCache.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+            Image evicted = iterator.next().getValue();
+            if (evicted == image) {
+                break;
+            }
+            memoryBytes -= 4L * (long) evicted.getWidth() * (long) evicted.getHeight();
+            iterator.remove();
+        }
+    }
+
+    private synchronized void writeEntry(Path entry, BufferedImage img) {
+        try {
+            Files.createDirectories(cacheDir);
+            Path tmpEntry = cacheDir.resolve(entry.getFileName() + ".tmp");
+            ImageIO.write(img, "png", tmpEntry.toFile());
+            Files.move(tmpEntry, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (diskBytes < 0) {
+                diskBytes = getDiskSize();
+            } else {
+                diskBytes += Files.size(entry);
+            }
+            if (diskBytes > maxDiskBytes) {
+                evictDisk();
+            }
+        } catch (IOException e) {
+            // The thumbnail is still served from memory
+            logger.debug("Could not cache the thumbnail {}: {}", entry, e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits its limit
+     */
+    private void evictDisk() {
+        File[] entries = cacheDir.toFile().listFiles((dir, name) -> name.endsWith(ENTRY_EXTENSION));
+        if (entries == null) {
+            return;
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        diskBytes = Arrays.stream(entries).mapToLong(File::length).sum();
+        for (File entry : entries) {
+            if (diskBytes <= maxDiskBytes) {
+                break;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                diskBytes -= length;
+            }
+        }
+    }
+
+    private long getDiskSize() {
+        File[] entries = cacheDir.toFile().listFiles((dir, name) -> name.endsWith(ENTRY_EXTENSION));
+        return entries == null ? 0 : Arrays.stream(entries).mapToLong(File::length).sum();
+    }
+
+    private Path getEntryPath(String key) {
+        return cacheDir.resolve(sha256(key + "@" + size) + ENTRY_EXTENSION);
+    }
+
+    /**
+     * Returns a source which reads the thumbnail stored in the project, or
+     * the lowest resolution level of the slide if there is none
+     *
+     * @param entry
+     * @return The thumbnail source
+     */
+    public static ThumbnailSource fromProjectEntry(ProjectImageEntry<BufferedImage> entry) {
+        return () -> {
+            BufferedImage thumbnail = entry.getThumbnail();
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+            try (ImageServer<BufferedImage> server = entry.getServerBuilder().build()) {
+                return readLowestLevel(server);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        };
+    }
+
+    /**
+     * Returns a source which reads the lowest resolution level of a slide
+     *
+     * @param server
+     * @return The thumbnail source
+     */
+    public static ThumbnailSource fromServer(ImageServer<BufferedImage> server) {
+        return () -> readLowestLevel(server);
+    }
+
+    private static BufferedImage readLowestLevel(ImageServer<BufferedImage> server) throws IOException {
+        double[] downsamples = server.getPreferredDownsamples();
+        double downsample = downsamples[downsamples.length - 1];
+        RegionRequest request = RegionRequest.createInstance(server.getPath(), downsample, 0, 0,
+                server.getWidth(), server.getHeight());
+        return server.readRegion(request);
+    }
+
+    /**
+     * Scales an image so that its largest side is at most the given size
+     *
+     * @param img
+     * @param size
+     * @return The scaled RGB image
+     */
+    private static BufferedImage scale(BufferedImage img, int size) {
+        double scale = Math.min(1.0, (double) size / Math.max(img.getWidth(), img.getHeight()));
+        int width = Math.max(1, (int) Math.round(img.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(img.getHeight() * scale));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = scaled.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(img, 0, 0, width, height, null);
+        g2d.dispose();
+        return scaled;
+    }
+
+    private static String sha256(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.detection;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.TopologyException;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.gncnn.entities.GlomerulusClass;
+import qupath.ext.gncnn.utils.ClassificationMetadata;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Class to add the detected glomeruli to an image hierarchy which may
+ * already have glomeruli, e.g. when the detection is run again on an image.
+ *
+ * The existing glomeruli are indexed in an STR-tree, and each new detection
+ * is compared with the ones it overlaps by intersection over the smaller
+ * area. A detection which overlaps a glomerulus detected by a previous run
+ * is skipped, replaces it or is merged into it, depending on the mode. A
+ * detection which overlaps a glomerulus annotated by hand is always skipped,
+ * and the annotation is never modified. Glomeruli detected before the
+ * detections were marked, or whose ROI has been edited since they were
+ * detected, are treated as annotated by hand.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class DetectionDeduplicator {
+
+    private static final Logger logger = LoggerFactory.getLogger(DetectionDeduplicator.class);
+
+    public static final String SOURCE_KEY = "gncnn.source";
+
+    public static final String DETECTION_SOURCE = "detection";
+
+    public static final String DETECTED_ROI_HASH_KEY = "gncnn.detectedRoiHash";
+
+    public static final double DEFAULT_OVERLAP_THRESHOLD = 0.4;
+
+    /**
+     * What is done with a new detection which overlaps a glomerulus detected
+     * by a previous run
+     */
+    public enum Mode {
+        /**
+         * The detection is not added, and the existing glomerulus is kept
+         * with its class
+         */
+        SKIP,
+        /**
+         * The existing glomerulus is replaced by the detection, which keeps
+         * its class, measurements and metadata until it is classified again
+         */
+        REPLACE,
+        /**
+         * The existing glomerulus is replaced by the union of both, keeping
+         * its class, measurements and metadata
+         */
+        MERGE
+    }
+
+    private Mode mode = Mode.SKIP;
+
+    private double overlapThreshold = DEFAULT_OVERLAP_THRESHOLD;
+
+    /**
+     * Sets what is done with the detections which overlap glomeruli detected
+     * by a previous run
+     *
+     * @param mode
+     * @return This deduplicator
+     */
+    public DetectionDeduplicator mode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * Sets the intersection over the smaller area from which a detection is a
+     * duplicate of an existing glomerulus
+     *
+     * @param overlapThreshold
+     * @return This deduplicator
+     */
+    public DetectionDeduplicator overlapThreshold(double overlapThreshold) {
+        this.overlapThreshold = overlapThreshold;
+        return this;
+    }
+
+    /**
+     * Records that an object was created by the detection, and its ROI at that
+     * moment, so that it can be replaced or merged by a later run
+     *
+     * @param object
+     */
+    public static void markDetected(PathObject object) {
+        Map<String, String> metadata = object.getMetadata();
+        metadata.put(SOURCE_KEY, DETECTION_SOURCE);
+        metadata.put(DETECTED_ROI_HASH_KEY, ClassificationMetadata.getRoiHash(object.getROI()));
+    }
+
+    /**
+     * Checks if an object was created by the detection and its ROI has not
+     * been edited since
+     *
+     * @param object
+     * @return True if the object is as it was detected
+     */
+    public static boolean isDetected(PathObject object) {
+        Map<String, String> metadata = object.getMetadata();
+        return DETECTION_SOURCE.equals(metadata.get(SOURCE_KEY))
+                && ClassificationMetadata.getRoiHash(object.getROI()).equals(metadata.get(DETECTED_ROI_HASH_KEY));
+    }
+
+    /**
+     * Adds the detections to the hierarchy, replacing, skipping or merging the
+     * ones which overlap existing glomeruli. The detections added are marked
+     * as detected
+     *
+     * @param hierarchy
+     * @param detections
+     * @return The number of detections added, or merged into an existing
+     *         glomerulus
+     */
+    public int addDetections(PathObjectHierarchy hierarchy, List<PathObject> detections) {
+        long startTime = System.currentTimeMillis();
+        STRtree tree = new STRtree();
+        int nExisting = 0;
+        for (PathObject annotation : hierarchy.getAnnotationObjects()) {
+            if (annotation.hasROI() && GlomerulusClass.indexOf(annotation.getPathClass()) >= 0) {
+                tree.insert(annotation.getROI().getGeometry().getEnvelopeInternal(), annotation);
+                nExisting++;
+            }
+        }
+
+        List<PathObject> added = new ArrayList<>();
+        Set<PathObject> removed = new LinkedHashSet<>();
+        // Glomeruli detected by a previous run, with the detections to merge
+        // into them
+        Map<PathObject, List<Geometry>> merged = new LinkedHashMap<>();
+        int nSkipped = 0;
+        int nManual = 0;
+        for (PathObject detection : detections) {
+            if (nExisting == 0) {
+                markDetected(detection);
+                added.add(detection);
+                continue;
+            }
+            Geometry geometry = detection.getROI().getGeometry();
+            List<PathObject> duplicated = new ArrayList<>();
+            // The duplicated glomerulus which overlaps the detection the most
+            PathObject closest = null;
+            double closestOverlap = 0;
+            boolean overlapsManual = false;
+            @SuppressWarnings("unchecked")
+            List<PathObject> neighbours = tree.query(geometry.getEnvelopeInternal());
+            for (PathObject existing : neighbours) {
+                double overlap = overlap(geometry, existing.getROI().getGeometry());
+                if (overlap < overlapThreshold) {
+                    continue;
+                }
+                if (isDetected(existing)) {
+                    duplicated.add(existing);
+                    if (overlap > closestOverlap) {
+                        closest = existing;
+                        closestOverlap = overlap;
+                    }
+                } else {
+                    overlapsManual = true;
+                }
+            }
+
+            if (overlapsManual) {
+                nManual++;
+            } else if (duplicated.isEmpty()) {
+                markDetected(detection);
+                added.add(detection);
+            } else if (mode == Mode.SKIP) {
+                nSkipped++;
+            } else if (mode == Mode.MERGE) {
+                for (PathObject existing : duplicated) {
+                    merged.computeIfAbsent(existing, e -> new ArrayList<>()).add(geometry);
+                }
+            } else {
+                removed.addAll(duplicated);
+                added.add(replace(closest, detection));
+            }
+        }
+
+        for (Map.Entry<PathObject, List<Geometry>> entry : merged.entrySet()) {
+            removed.add(entry.getKey());
+            added.add(union(entry.getKey(), entry.getValue()));
+        }
+        if (!removed.isEmpty()) {
+            hierarchy.removeObjects(removed, true);
+        }
+        hierarchy.addObjects(added);
+
+        logger.info("Added {} of {} detections to {} existing glomeruli in {} ms: {} replaced, {} merged, "
+                + "{} skipped, {} overlapping manual annotations", added.size() - merged.size(), detections.size(),
+                nExisting, System.currentTimeMillis() - startTime, mode == Mode.REPLACE ? removed.size() : 0,
+                merged.size(), nSkipped, nManual);
+        return added.size();
+    }
+
+    /**
+     * Returns the intersection of two geometries over the smaller area, or
+     * of their bounding boxes if the intersection cannot be computed
+     *
+     * @param geometry
+     * @param other
+     * @return The overlap, from 0 to 1
+     */
+    private static double overlap(Geometry geometry, Geometry other) {
+        double minArea = Math.min(geometry.getArea(), other.getArea());
+        if (minArea <= 0) {
+            return 0;
+        }
+        double intersection;
+        try {
+            intersection = geometry.intersection(other).getArea();
+        } catch (TopologyException e) {
+            // Invalid polygons, e.g. self-intersecting ones drawn by hand
+            intersection = geometry.getEnvelopeInternal().intersection(other.getEnvelopeInternal()).getArea();
+            minArea = Math.min(geometry.getEnvelopeInternal().getArea(), other.getEnvelopeInternal().getArea());
+        }
+        return intersection / minArea;
+    }
+
+    /**
+     * Creates a glomerulus with the union of the geometries of an existing
+     * glomerulus and the detections which duplicate it, keeping its class,
+     * measurements, name and metadata
+     *
+     * @param existing
+     * @param geometries
+     * @return The merged glomerulus
+     */
+    private static PathObject union(PathObject existing, List<Geometry> geometries) {
+        ROI roi = existing.getROI();
+        List<Geometry> all = new ArrayList<>(geometries.size() + 1);
+        all.add(roi.getGeometry());
+        all.addAll(geometries);
+        ROI unionROI = GeometryTools.geometryToROI(UnaryUnionOp.union(all), roi.getImagePlane());
+        PathObject object = PathObjects.createAnnotationObject(unionROI, existing.getPathClass(),
+                existing.getMeasurementList());
+        object.setName(existing.getName());
+        // The ROI hash of the classification metadata no longer matches, so
+        // the merged glomerulus is classified again
+        object.getMetadata().putAll(existing.getMetadata());
+        markDetected(object);
+        return object;
+    }
+
+    /**
+     * Creates a glomerulus with the ROI of a detection and the class,
+     * measurements, name and metadata of the existing glomerulus it replaces,
+     * with the score of the detection
+     *
+     * @param existing
+     * @param detection
+     * @return The replacing glomerulus
+     */
+    private static PathObject replace(PathObject existing, PathObject detection) {
+        PathObject object = PathObjects.createAnnotationObject(detection.getROI(), existing.getPathClass(),
+                existing.getMeasurementList());
+        double score = detection.getMeasurementList().get(DetectionMerger.SCORE_MEASUREMENT);
+        if (!Double.isNaN(score)) {
+            try (MeasurementList measurements = object.getMeasurementList()) {
+                measurements.put(DetectionMerger.SCORE_MEASUREMENT, score);
+            }
+        }
+        object.setName(existing.getName());
+        // As when merging, the glomerulus is classified again
+        object.getMetadata().putAll(existing.getMetadata());
+        markDetected(object);
+        return object;
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.detection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Class to remove the duplicated glomeruli detected in overlapping tiles.
+ *
+ * The detections are ranked by the area of their bounding box times the
+ * square of their score, and each detection suppresses the lower ranked ones
+ * whose bounding boxes overlap it, by intersection over union or intersection
+ * over minimum, as the non-maximum suppression of the detector did. The
+ * bounding boxes are indexed in an STR-tree, so each detection is only
+ * compared with its neighbours. Optionally, the suppressed detections are
+ * merged into the one which suppressed them, by the union of their
+ * geometries.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class DetectionMerger {
+
+    private static final Logger logger = LoggerFactory.getLogger(DetectionMerger.class);
+
+    /**
+     * Name of the measurement with the score given by the detector
+     */
+    public static final String SCORE_MEASUREMENT = "Detection score";
+
+    public static final double DEFAULT_IOU_THRESHOLD = 0.4;
+
+    public static final double DEFAULT_IOM_THRESHOLD = 0.4;
+
+    private double iouThreshold = DEFAULT_IOU_THRESHOLD;
+
+    private double iomThreshold = DEFAULT_IOM_THRESHOLD;
+
+    private boolean mergeByUnion = false;
+
+    /**
+     * Sets the intersection over union from which a detection is a duplicate
+     *
+     * @param iouThreshold
+     * @return This merger
+     */
+    public DetectionMerger iouThreshold(double iouThreshold) {
+        this.iouThreshold = iouThreshold;
+        return this;
+    }
+
+    /**
+     * Sets the intersection over the smaller area from which a detection is a
+     * duplicate, e.g. a part of a glomerulus cut by a tile border
+     *
+     * @param iomThreshold
+     * @return This merger
+     */
+    public DetectionMerger iomThreshold(double iomThreshold) {
+        this.iomThreshold = iomThreshold;
+        return this;
+    }
+
+    /**
+     * Sets whether the duplicates are merged into the kept detection, instead
+     * of being removed
+     *
+     * @param mergeByUnion
+     * @return This merger
+     */
+    public DetectionMerger mergeByUnion(boolean mergeByUnion) {
+        this.mergeByUnion = mergeByUnion;
+        return this;
+    }
+
+    /**
+     * Removes, or merges, the duplicated detections
+     *
+     * @param detections Detections of all the tiles of an image
+     * @return The detections kept, from the highest to the lowest ranked
+     */
+    public List<PathObject> merge(List<PathObject> detections) {
+        int n = detections.size();
+        if (n == 0) {
+            return new ArrayList<>();
+        }
+        long startTime = System.currentTimeMillis();
+
+        // Bounding boxes, with the pixel-inclusive areas of the detector
+        double[] minX = new double[n];
+        double[] minY = new double[n];
+        double[] maxX = new double[n];
+        double[] maxY = new double[n];
+        double[] areas = new double[n];
+        double[] ranks = new double[n];
+        STRtree tree = new STRtree();
+        for (int i = 0; i < n; i++) {
+            PathObject detection = detections.get(i);
+            ROI roi = detection.getROI();
+            minX[i] = roi.getBoundsX();
+            minY[i] = roi.getBoundsY();
+            maxX[i] = minX[i] + roi.getBoundsWidth();
+            maxY[i] = minY[i] + roi.getBoundsHeight();
+            areas[i] = (maxX[i] - minX[i] + 1) * (maxY[i] - minY[i] + 1);
+            double score = getScore(detection);
+            ranks[i] = areas[i] * score * score;
+            tree.insert(new Envelope(minX[i], maxX[i], minY[i], maxY[i]), i);
+        }
+        tree.build();
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble((Integer i) -> ranks[i]).reversed());
+
+        // Detections already kept or suppressed
+        boolean[] done = new boolean[n];
+        List<PathObject> kept = new ArrayList<>();
+        long comparisons = 0;
+        for (int index : order) {
+            if (done[index]) {
+                continue;
+            }
+            done[index] = true;
+
+            List<Integer> duplicates = new ArrayList<>();
+            @SuppressWarnings("unchecked")
+            List<Integer> neighbours = tree.query(new Envelope(minX[index], maxX[index], minY[index], maxY[index]));
+            for (int other : neighbours) {
+                if (done[other]) {
+                    continue;
+                }
+                comparisons++;
+                double w = Math.max(0, Math.min(maxX[index], maxX[other]) - Math.max(minX[index], minX[other]) + 1);
+                double h = Math.max(0, Math.min(maxY[index], maxY[other]) - Math.max(minY[index], minY[other]) + 1);
+                double intersection = w * h;
+                double iou = intersection / (areas[index] + areas[other] - intersection);
+                double iom = intersection / Math.min(areas[index], areas[other]);
+                if (iou >= iouThreshold || iom >= iomThreshold) {
+                    done[other] = true;
+                    duplicates.add(other);
+                }
+            }
+
+            PathObject detection = detections.get(index);
+            if (mergeByUnion && !duplicates.isEmpty()) {
+                detection = union(detection, duplicates.stream().map(detections::get).toList());
+            }
+            kept.add(detection);
+        }
+
+        logger.debug("Merged {} detections into {} in {} ms ({} comparisons)", n, kept.size(),
+                System.currentTimeMillis() - startTime, comparisons);
+        return kept;
+    }
+
+    /**
+     * Returns the score of a detection, or 1 if the detector did not give one
+     *
+     * @param detection
+     * @return The score
+     */
+    private static double getScore(PathObject detection) {
+        double score = detection.getMeasurementList().get(SCORE_MEASUREMENT);
+        return Double.isNaN(score) ? 1 : score;
+    }
+
+    /**
+     * Creates a detection with the union of the geometries of a detection and
+     * its duplicates, keeping the class and measurements of the detection
+     *
+     * @param detection
+     * @param duplicates
+     * @return The merged detection
+     */
+    private static PathObject union(PathObject detection, List<PathObject> duplicates) {
+        ROI roi = detection.getROI();
+        List<Geometry> geometries = new ArrayList<>(duplicates.size() + 1);
+        geometries.add(roi.getGeometry());
+        for (PathObject duplicate : duplicates) {
+            geometries.add(duplicate.getROI().getGeometry());
+        }
+        Geometry union = UnaryUnionOp.union(geometries);
+        ROI unionROI = GeometryTools.geometryToROI(union, roi.getImagePlane());
+        return PathObjects.createAnnotationObject(unionROI, detection.getPathClass(), detection.getMeasurementList());
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.detection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import qupath.ext.gncnn.entities.GlomerulusClass;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Class to read the detections of each tile while the detector is still
+ * writing them. The detector writes one JSON line per segmented tile:
+ *
+ * <pre>
+ * {"tile": name, "x": x, "y": y, "detections": [{"polygon": [[x, y], ...], "score": s}, ...]}
+ * </pre>
+ *
+ * and a final {"done": true, "tiles": n} line once all the tiles are written.
+ * Each call to {@link #poll()} only reads the lines completed since the last
+ * call, so the file is read once however often it is polled.
+ *
+ * Must match gncnn.detection.qupath.utils.DetectionRecordWriter
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class DetectionRecordReader {
+
+    private final Path path;
+
+    private final PathClass pathClass = PathClass.fromString(GlomerulusClass.NON_CLASSIFIED.getClassName());
+
+    // Position after the last complete line read
+    private long offset = 0;
+
+    private int tiles = 0;
+
+    private int detections = 0;
+
+    private boolean done = false;
+
+    public DetectionRecordReader(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Reads the detections of the tiles written since the last call
+     *
+     * @return The new detections, as annotations with their score as a
+     *         measurement
+     * @throws IOException If the records cannot be read or parsed
+     */
+    public List<PathObject> poll() throws IOException {
+        List<PathObject> objects = new ArrayList<>();
+        if (done || !Files.exists(path)) {
+            return objects;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+            long length = file.length();
+            if (length <= offset) {
+                return objects;
+            }
+            byte[] bytes = new byte[(int) Math.min(Integer.MAX_VALUE - 8, length - offset)];
+            file.seek(offset);
+            file.readFully(bytes);
+
+            // The last line may still be being written, so it is left for the
+            // next call
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != '\n') {
+                    line.write(bytes[i]);
+                    continue;
+                }
+                offset += line.size() + 1;
+                parseLine(line.toString(StandardCharsets.UTF_8), objects);
+                line.reset();
+            }
+        }
+        return objects;
+    }
+
+    private void parseLine(String line, List<PathObject> objects) throws IOException {
+        if (line.isBlank()) {
+            return;
+        }
+        try {
+            JsonObject record = JsonParser.parseString(line).getAsJsonObject();
+            if (record.has("done")) {
+                done = record.get("done").getAsBoolean();
+                return;
+            }
+            int before = objects.size();
+            for (JsonElement element : record.getAsJsonArray("detections")) {
+                JsonObject detection = element.getAsJsonObject();
+                JsonArray polygon = detection.getAsJsonArray("polygon");
+                double[] x = new double[polygon.size()];
+                double[] y = new double[polygon.size()];
+                for (int i = 0; i < polygon.size(); i++) {
+                    JsonArray point = polygon.get(i).getAsJsonArray();
+                    x[i] = point.get(0).getAsDouble();
+                    y[i] = point.get(1).getAsDouble();
+                }
+                PathObject object = PathObjects.createAnnotationObject(
+                        ROIs.createPolygonROI(x, y, ImagePlane.getDefaultPlane()), pathClass);
+                object.getMeasurementList().put(DetectionMerger.SCORE_MEASUREMENT,
+                        detection.get("score").getAsDouble());
+                object.getMeasurementList().close();
+                objects.add(object);
+            }
+            tiles++;
+            detections += objects.size() - before;
+        } catch (JsonParseException | IllegalStateException | NullPointerException e) {
+            throw new IOException("Invalid detection record in " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Checks if the detector has written the records of all the tiles
+     *
+     * @return True if the final record has been read
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns the number of tiles read
+     *
+     * @return The number of tiles
+     */
+    public int getTiles() {
+        return tiles;
+    }
+
+    /**
+     * Returns the number of detections read
+     *
+     * @return The number of detections
+     */
+    public int getDetections() {
+        return detections;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.detection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Class to simplify the polygons of the detected objects before they are
+ * added to the image hierarchy. The contours traced from masks have a vertex
+ * at every pixel step, which makes the objects slow to draw and large to
+ * save, with no visible difference at the resolution of the masks.
+ *
+ * The simplification preserves the topology, so it never creates
+ * self-intersections or merges the holes of a polygon. If a vertex budget is
+ * set, the tolerance is doubled for the objects which still have more
+ * vertices than the budget.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class PolygonSimplifier {
+
+    private static final Logger logger = LoggerFactory.getLogger(PolygonSimplifier.class);
+
+    // Bytes of a vertex of a polygon ROI, stored as two floats, and of a JTS
+    // coordinate, with three doubles plus the object header
+    private static final int ROI_VERTEX_BYTES = 8;
+
+    private static final int GEOMETRY_VERTEX_BYTES = 40;
+
+    // Times the tolerance is doubled to fit the vertex budget
+    private static final int MAX_BUDGET_ITERATIONS = 6;
+
+    private final double pixelSizeMicrons;
+
+    private double toleranceMicrons = 1;
+
+    private int maxVertices = 0;
+
+    /**
+     * Creates a simplifier for an image with the given pixel size
+     *
+     * @param pixelSizeMicrons Full resolution pixel size, NaN if the image is
+     *                         not calibrated, in which case the tolerance is
+     *                         in pixels
+     */
+    public PolygonSimplifier(double pixelSizeMicrons) {
+        this.pixelSizeMicrons = pixelSizeMicrons;
+    }
+
+    /**
+     * Sets the maximum distance between the original and simplified polygons
+     *
+     * @param toleranceMicrons
+     * @return This simplifier
+     */
+    public PolygonSimplifier toleranceMicrons(double toleranceMicrons) {
+        this.toleranceMicrons = toleranceMicrons;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of vertices of each object, 0 for no limit
+     *
+     * @param maxVertices
+     * @return This simplifier
+     */
+    public PolygonSimplifier maxVertices(int maxVertices) {
+        this.maxVertices = maxVertices;
+        return this;
+    }
+
+    /**
+     * Simplifies the objects, keeping their class and measurements
+     *
+     * @param objects
+     * @return The simplified objects, in the same order
+     */
+    public List<PathObject> simplify(List<PathObject> objects) {
+        if (objects.isEmpty() || toleranceMicrons <= 0) {
+            return objects;
+        }
+        long startTime = System.currentTimeMillis();
+        double tolerance = Double.isNaN(pixelSizeMicrons) || pixelSizeMicrons <= 0 ? toleranceMicrons
+                : toleranceMicrons / pixelSizeMicrons;
+
+        List<PathObject> simplified = new ArrayList<>(objects.size());
+        long verticesBefore = 0;
+        long verticesAfter = 0;
+        for (PathObject object : objects) {
+            ROI roi = object.getROI();
+            if (roi == null || !roi.isArea()) {
+                simplified.add(object);
+                continue;
+            }
+            Geometry geometry = roi.getGeometry();
+            int nVertices = geometry.getNumPoints();
+            verticesBefore += nVertices;
+
+            Geometry result = TopologyPreservingSimplifier.simplify(geometry, tolerance);
+            double objectTolerance = tolerance;
+            for (int i = 0; maxVertices > 0 && result.getNumPoints() > maxVertices
+                    && i < MAX_BUDGET_ITERATIONS; i++) {
+                objectTolerance *= 2;
+                result = TopologyPreservingSimplifier.simplify(geometry, objectTolerance);
+            }
+            if (result.isEmpty() || result.getNumPoints() >= nVertices) {
+                verticesAfter += nVertices;
+                simplified.add(object);
+                continue;
+            }
+            verticesAfter += result.getNumPoints();
+            ROI simplifiedROI = GeometryTools.geometryToROI(result, roi.getImagePlane());
+            PathObject simplifiedObject = PathObjects.createAnnotationObject(simplifiedROI, object.getPathClass(),
+                    object.getMeasurementList());
+            simplifiedObject.setName(object.getName());
+            simplified.add(simplifiedObject);
+        }
+
+        logger.info("Simplified {} objects from {} to {} vertices (~{} to ~{} KB as ROIs, ~{} to ~{} KB as "
+                + "geometries) in {} ms", objects.size(), verticesBefore, verticesAfter,
+                verticesBefore * ROI_VERTEX_BYTES / 1024, verticesAfter * ROI_VERTEX_BYTES / 1024,
+                verticesBefore * GEOMETRY_VERTEX_BYTES / 1024, verticesAfter * GEOMETRY_VERTEX_BYTES / 1024,
+                System.currentTimeMillis() - startTime);
+        return simplified;
+    }
+}
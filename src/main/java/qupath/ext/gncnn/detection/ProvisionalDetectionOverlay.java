@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.detection;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import qupath.lib.gui.viewer.OverlayOptions;
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Viewer overlay which draws the glomeruli detected so far in an image, while
+ * the detection is still running. The glomeruli are only drawn, not added to
+ * the image hierarchy, so they are never saved
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class ProvisionalDetectionOverlay extends AbstractOverlay {
+
+    private static final Color COLOR = new Color(0, 0, 255, 180);
+
+    private volatile List<ROI> rois = List.of();
+
+    public ProvisionalDetectionOverlay(OverlayOptions overlayOptions) {
+        super(overlayOptions);
+    }
+
+    /**
+     * Sets the glomeruli to draw. It may be called from any thread, the viewer
+     * must be repainted afterwards
+     *
+     * @param detections
+     */
+    public void setDetections(List<PathObject> detections) {
+        rois = detections.stream().map(PathObject::getROI).toList();
+    }
+
+    @Override
+    public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor,
+            ImageData<BufferedImage> imageData, boolean paintCompletely) {
+        List<ROI> rois = this.rois;
+        if (rois.isEmpty()) {
+            return;
+        }
+        Graphics2D g = (Graphics2D) g2d.create();
+        g.setColor(COLOR);
+        g.setStroke(new BasicStroke((float) (2 * downsampleFactor)));
+        Rectangle bounds = new Rectangle(imageRegion.getX(), imageRegion.getY(), imageRegion.getWidth(),
+                imageRegion.getHeight());
+        for (ROI roi : rois) {
+            if (bounds.intersects(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight())) {
+                g.draw(roi.getShape());
+            }
+        }
+        g.dispose();
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.entities;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import qupath.lib.common.ColorTools;
+import qupath.lib.objects.classes.PathClass;
+
+/**
+ * Registry of the classes of glomeruli, in the order of the results table.
+ * The ordinal of each class is its index in the count and probability arrays
+ * used to aggregate the results of an image
+ *
+ * @author Israel Mateos Aparicio
+ */
+public enum GlomerulusClass {
+
+    NON_SCLEROTIC("NoSclerotic", "Non-sclerotic", ColorTools.GREEN),
+    SCLEROTIC("Sclerotic", "Sclerotic", ColorTools.RED),
+    ABMGN("ABMGN", "ABMGN", ColorTools.BLUE),
+    ANCA("ANCA", "ANCA", ColorTools.BLACK),
+    C3_GN("C3-GN", "C3-GN", ColorTools.MAGENTA),
+    CRYOGLOBULINEMIC_GN("CryoglobulinemicGN", "CryoglobulinemicGN", ColorTools.CYAN),
+    DDD("DDD", "DDD", ColorTools.YELLOW),
+    FIBRILLARY("Fibrillary", "Fibrillary", ColorTools.packRGB(225, 128, 128)), // Pink
+    IAGN("IAGN", "IAGN", ColorTools.packRGB(75, 0, 130)), // Indigo
+    IGAGN("IgAGN", "IgAGN", ColorTools.packRGB(128, 0, 0)), // Brown
+    MPGN("MPGN", "MPGN", ColorTools.packRGB(255, 165, 0)), // Orange
+    MEMBRANOUS("Membranous", "Membranous", ColorTools.packRGB(0, 128, 128)), // Teal
+    PGNMID("PGNMID", "PGNMID", ColorTools.packRGB(128, 0, 128)), // Purple
+    SLEGN_IV("SLEGN-IV", "SLEGN-IV", ColorTools.packRGB(64, 224, 208)), // Turquoise
+    // Detected glomeruli which have not been classified
+    NON_CLASSIFIED("Glomerulus", "Non-classified", null);
+
+    /**
+     * All the classes, without the copy made by values()
+     */
+    public static final GlomerulusClass[] CLASSES = values();
+
+    /**
+     * Classes predicted by the classification models, i.e. with a probability
+     * in the classification reports
+     */
+    public static final GlomerulusClass[] PREDICTED_CLASSES = { NON_SCLEROTIC, SCLEROTIC, ABMGN, ANCA, C3_GN,
+            CRYOGLOBULINEMIC_GN, DDD, FIBRILLARY, IAGN, IGAGN, MPGN, MEMBRANOUS, PGNMID, SLEGN_IV };
+
+    private static final String PROB_SUFFIX = "-prob";
+
+    private static final Map<String, GlomerulusClass> BY_NAME = new HashMap<>();
+
+    // Path classes are shared instances, so each one is resolved once. The
+    // value is the ordinal of the class, or -1 if it is not a glomerulus
+    private static final Map<PathClass, Integer> BY_PATH_CLASS = new ConcurrentHashMap<>();
+
+    static {
+        for (GlomerulusClass glomerulusClass : CLASSES) {
+            BY_NAME.put(glomerulusClass.className, glomerulusClass);
+        }
+    }
+
+    private final String className;
+
+    private final String displayName;
+
+    private final String probName;
+
+    private final Integer color;
+
+    private GlomerulusClass(String className, String displayName, Integer color) {
+        this.className = className;
+        this.displayName = displayName;
+        this.probName = className + PROB_SUFFIX;
+        this.color = color;
+    }
+
+    /**
+     * Returns the name of the class in the path classes and the reports
+     *
+     * @return The name of the class
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Returns the name of the class in the results
+     *
+     * @return The display name of the class
+     */
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * Returns the name of the measurement with the probability of the class
+     *
+     * @return The name of the probability measurement
+     */
+    public String getProbName() {
+        return probName;
+    }
+
+    public Integer getColor() {
+        return color;
+    }
+
+    /**
+     * Returns the class with the given name in the path classes and reports
+     *
+     * @param className
+     * @return The class, or null if there is none with that name
+     */
+    public static GlomerulusClass fromClassName(String className) {
+        return BY_NAME.get(className);
+    }
+
+    /**
+     * Returns the index of the class of a glomerulus from its path class.
+     * Multiclass predictions are the top-k classes separated by " | ", and
+     * count as the first one
+     *
+     * @param pathClass
+     * @return The ordinal of the class, or -1 if the path class is not of a
+     *         glomerulus
+     */
+    public static int indexOf(PathClass pathClass) {
+        if (pathClass == null) {
+            return -1;
+        }
+        return BY_PATH_CLASS.computeIfAbsent(pathClass, GlomerulusClass::resolveIndex);
+    }
+
+    private static int resolveIndex(PathClass pathClass) {
+        String className = pathClass.getName();
+        int space = className.indexOf(' ');
+        GlomerulusClass glomerulusClass = BY_NAME.get(space < 0 ? className : className.substring(0, space));
+        return glomerulusClass == null ? -1 : glomerulusClass.ordinal();
+    }
+
+    /**
+     * Returns the top-k most predicted classes from the summed probabilities
+     * of an image, separated by " | ". If any class other than "Non-sclerotic"
+     * and "Sclerotic" has been predicted, these two are left out, as the other
+     * classes are sub-classes of "Non-sclerotic"; otherwise only the most
+     * predicted class is returned. Ties are resolved in the order of the
+     * classes
+     *
+     * @param probs Summed probabilities, indexed by ordinal
+     * @param k
+     * @return The top-k classes
+     */
+    public static String getTopkMostPredicted(double[] probs, int k) {
+        boolean removeNonSclerotic = false;
+        for (int i = 0; i < probs.length; i++) {
+            if (i != NON_SCLEROTIC.ordinal() && i != SCLEROTIC.ordinal() && probs[i] > 0) {
+                removeNonSclerotic = true;
+                break;
+            }
+        }
+
+        // Classes already taken, or left out, as bits of a mask
+        long taken = 0;
+        if (removeNonSclerotic) {
+            taken |= 1L << NON_SCLEROTIC.ordinal();
+            taken |= 1L << SCLEROTIC.ordinal();
+        }
+        int topk = removeNonSclerotic ? k : 1;
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < topk; n++) {
+            int best = -1;
+            for (int i = 0; i < probs.length; i++) {
+                if ((taken & (1L << i)) == 0 && (best < 0 || probs[i] > probs[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            taken |= 1L << best;
+            if (sb.length() > 0) {
+                sb.append(" | ");
+            }
+            sb.append(CLASSES[best].displayName);
+        }
+        return sb.toString();
+    }
+}
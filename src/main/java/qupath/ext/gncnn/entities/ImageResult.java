@@ -3,13 +3,13 @@
  */
 package qupath.ext.gncnn.entities;
 
-import java.util.HashMap;
-
-import javafx.scene.image.ImageView;
+import qupath.ext.gncnn.cache.ThumbnailService.ThumbnailSource;
 
 public class ImageResult {
 
-    private ImageView thumbnail;
+    private String thumbnailKey;
+
+    private ThumbnailSource thumbnailSource;
 
     private String name;
 
@@ -17,19 +17,37 @@ public class ImageResult {
 
     private int nGlomeruli;
 
-    private HashMap<String, Integer> diseaseCounts;
+    // Number of glomeruli of each class, indexed by the ordinal of the class
+    private int[] counts;
 
-    public ImageResult(ImageView thumbnail, String name, String mostPredictedClass, int nGlomeruli,
-            HashMap<String, Integer> diseaseCounts) {
-        this.thumbnail = thumbnail;
+    /**
+     * Creates the result of an image. The thumbnail is not read here, but
+     * loaded when it is displayed
+     * 
+     * @param thumbnailKey    Key of the thumbnail in the thumbnail cache
+     * @param thumbnailSource Source of the thumbnail if it is not cached
+     * @param name
+     * @param mostPredictedClass
+     * @param nGlomeruli
+     * @param counts          Number of glomeruli of each class, indexed by
+     *                        the ordinal of the class
+     */
+    public ImageResult(String thumbnailKey, ThumbnailSource thumbnailSource, String name, String mostPredictedClass,
+            int nGlomeruli, int[] counts) {
+        this.thumbnailKey = thumbnailKey;
+        this.thumbnailSource = thumbnailSource;
         this.name = name;
         this.mostPredictedClass = mostPredictedClass;
         this.nGlomeruli = nGlomeruli;
-        this.diseaseCounts = diseaseCounts;
+        this.counts = counts;
+    }
+
+    public String getThumbnailKey() {
+        return thumbnailKey;
     }
 
-    public ImageView getThumbnail() {
-        return thumbnail;
+    public ThumbnailSource getThumbnailSource() {
+        return thumbnailSource;
     }
 
     public String getName() {
@@ -44,64 +62,74 @@ public class ImageResult {
         return nGlomeruli;
     }
 
+    /**
+     * Returns the number of glomeruli of a class
+     * 
+     * @param glomerulusClass
+     * @return The number of glomeruli
+     */
+    public int getCount(GlomerulusClass glomerulusClass) {
+        return counts[glomerulusClass.ordinal()];
+    }
+
     public int getNoSclerotic() {
-        return diseaseCounts.getOrDefault("Non-sclerotic", 0);
+        return getCount(GlomerulusClass.NON_SCLEROTIC);
     }
 
     public int getSclerotic() {
-        return diseaseCounts.getOrDefault("Sclerotic", 0);
+        return getCount(GlomerulusClass.SCLEROTIC);
     }
 
     public int getABMGN() {
-        return diseaseCounts.getOrDefault("ABMGN", 0);
+        return getCount(GlomerulusClass.ABMGN);
     }
 
     public int getANCA() {
-        return diseaseCounts.getOrDefault("ANCA", 0);
+        return getCount(GlomerulusClass.ANCA);
     }
 
     public int getC3GN() {
-        return diseaseCounts.getOrDefault("C3-GN", 0);
+        return getCount(GlomerulusClass.C3_GN);
     }
 
     public int getCryoglobulinemicGN() {
-        return diseaseCounts.getOrDefault("CryoglobulinemicGN", 0);
+        return getCount(GlomerulusClass.CRYOGLOBULINEMIC_GN);
     }
 
     public int getDDD() {
-        return diseaseCounts.getOrDefault("DDD", 0);
+        return getCount(GlomerulusClass.DDD);
     }
 
     public int getFibrillary() {
-        return diseaseCounts.getOrDefault("Fibrillary", 0);
+        return getCount(GlomerulusClass.FIBRILLARY);
     }
 
     public int getIAGN() {
-        return diseaseCounts.getOrDefault("IAGN", 0);
+        return getCount(GlomerulusClass.IAGN);
     }
 
     public int getIgAGN() {
-        return diseaseCounts.getOrDefault("IgAGN", 0);
+        return getCount(GlomerulusClass.IGAGN);
     }
 
     public int getMPGN() {
-        return diseaseCounts.getOrDefault("MPGN", 0);
+        return getCount(GlomerulusClass.MPGN);
     }
 
     public int getMembranous() {
-        return diseaseCounts.getOrDefault("Membranous", 0);
+        return getCount(GlomerulusClass.MEMBRANOUS);
     }
 
     public int getPGNMID() {
-        return diseaseCounts.getOrDefault("PGNMID", 0);
+        return getCount(GlomerulusClass.PGNMID);
     }
 
     public int getSLEGNIV() {
-        return diseaseCounts.getOrDefault("SLEGN-IV", 0);
+        return getCount(GlomerulusClass.SLEGN_IV);
     }
 
     public int getNoClassified() {
-        return diseaseCounts.getOrDefault("Non-classified", 0);
+        return getCount(GlomerulusClass.NON_CLASSIFIED);
     }
 
     /*
@@ -24,13 +24,20 @@ public class ProgressListener {
         this.progressStep = progressStep;
     }
 
-    public void updateProgress() {
+    public synchronized void updateProgress() {
         progress.set(progress.get() + progressStep);
         logger.info("Progress: " + progress.get());
     }
 
-    public void updateProgress(double currentProgress, double partialProgressStep) {
-        double newProgress = currentProgress + progressStep * partialProgressStep;
+    /**
+     * Advances the progress by a fraction of the progress step. The fraction is
+     * added to the current progress, so partial progress reported by tasks
+     * running at the same time accumulates instead of overwriting each other
+     * 
+     * @param partialProgressStep Fraction of the progress step to advance
+     */
+    public synchronized void updatePartialProgress(double partialProgressStep) {
+        double newProgress = progress.get() + progressStep * partialProgressStep;
         // If the new progress rounds to 1.0, set it to 0.99 to avoid the
         // progress indicator to be full
         // This fixes a bug when detecting glomeruli and not classifying them
@@ -42,7 +49,17 @@ public class ProgressListener {
         logger.info("Progress: " + progress.get());
     }
 
-    public double getProgress() {
+    /**
+     * Sets the progress as complete, e.g. once all the images have gone
+     * through a pipeline where some of their stages failed and did not report
+     * their progress
+     */
+    public synchronized void complete() {
+        progress.set(1.0);
+        logger.info("Progress: " + progress.get());
+    }
+
+    public synchronized double getProgress() {
         return progress.get();
     }
 
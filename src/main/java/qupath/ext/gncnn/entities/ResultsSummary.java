@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.entities;
+
+import qupath.ext.gncnn.cache.ThumbnailService.ThumbnailSource;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Summary of the classified glomeruli of an image, i.e. the number of
+ * glomeruli of each class and the summed probabilities of each class, from
+ * which the results view is built without reading the image hierarchy
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class ResultsSummary {
+
+    // Version of the summary format, summaries of other versions are stale
+    public static final int VERSION = 2;
+
+    private int version = VERSION;
+
+    private int nGlomeruli;
+
+    private String mostPredictedClass;
+
+    // Number of glomeruli and summed probabilities of each class, indexed by
+    // the ordinal of the class
+    private int[] counts;
+
+    private double[] probs;
+
+    // Modification time and size of the image data the summary was computed
+    // from, used to detect if it is stale
+    private long dataModified;
+
+    private long dataSize;
+
+    private ResultsSummary(int nGlomeruli, String mostPredictedClass, int[] counts, double[] probs) {
+        this.nGlomeruli = nGlomeruli;
+        this.mostPredictedClass = mostPredictedClass;
+        this.counts = counts;
+        this.probs = probs;
+    }
+
+    /**
+     * Computes the summary of the glomeruli in a hierarchy
+     *
+     * @param hierarchy
+     * @return The summary
+     */
+    public static ResultsSummary fromHierarchy(PathObjectHierarchy hierarchy) {
+        GlomerulusClass[] classes = GlomerulusClass.CLASSES;
+        int[] counts = new int[classes.length];
+        double[] probs = new double[classes.length];
+        int nGlomeruli = 0;
+        int nonSclerotic = GlomerulusClass.NON_SCLEROTIC.ordinal();
+        int sclerotic = GlomerulusClass.SCLEROTIC.ordinal();
+
+        for (PathObject annotation : hierarchy.getAnnotationObjects()) {
+            int classIndex = GlomerulusClass.indexOf(annotation.getPathClass());
+            if (classIndex < 0) {
+                continue;
+            }
+            counts[classIndex]++;
+            nGlomeruli++;
+
+            // Get the probabilities of the predicted classes
+            MeasurementList measurements = annotation.getMeasurementList();
+            if (measurements.isEmpty()) {
+                continue;
+            }
+            double noScleroticProb = measurements.get(GlomerulusClass.NON_SCLEROTIC.getProbName());
+            if (Double.isNaN(noScleroticProb)) {
+                noScleroticProb = 0;
+            }
+
+            // All the probabilities except the "NoSclerotic" and "Sclerotic"
+            // must be multiplied by the "NoSclerotic" probability, as they
+            // are sub-classes of "NoSclerotic"
+            for (GlomerulusClass predictedClass : GlomerulusClass.PREDICTED_CLASSES) {
+                double value = measurements.get(predictedClass.getProbName());
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                int i = predictedClass.ordinal();
+                probs[i] += i == nonSclerotic || i == sclerotic ? value : value * noScleroticProb;
+            }
+        }
+
+        // If all the probabilities are 0, the class is empty
+        boolean empty = true;
+        for (double prob : probs) {
+            if (prob > 0) {
+                empty = false;
+                break;
+            }
+        }
+
+        // Get the top 3 most predicted classes
+        String mostPredictedClass = "";
+        if (empty) {
+            // If there are non-classified glomeruli, the most predicted class is "Non-classified"
+            if (counts[GlomerulusClass.NON_CLASSIFIED.ordinal()] > 0) {
+                mostPredictedClass = GlomerulusClass.NON_CLASSIFIED.getDisplayName();
+            }
+        } else {
+            mostPredictedClass = GlomerulusClass.getTopkMostPredicted(probs, 3);
+        }
+
+        return new ResultsSummary(nGlomeruli, mostPredictedClass, counts, probs);
+    }
+
+    /**
+     * Creates the result of the image shown in the results view
+     *
+     * @param name
+     * @param thumbnailKey
+     * @param thumbnailSource
+     * @return The image result
+     */
+    public ImageResult toImageResult(String name, String thumbnailKey, ThumbnailSource thumbnailSource) {
+        return new ImageResult(thumbnailKey, thumbnailSource, name, mostPredictedClass, nGlomeruli, counts.clone());
+    }
+
+    /**
+     * Checks if the summary was written in the current format, with a count
+     * and probability for each class
+     *
+     * @return True if the summary can be used
+     */
+    public boolean isValid() {
+        return version == VERSION && counts != null && counts.length == GlomerulusClass.CLASSES.length
+                && probs != null && probs.length == GlomerulusClass.CLASSES.length;
+    }
+
+    public int getNGlomeruli() {
+        return nGlomeruli;
+    }
+
+    public String getMostPredictedClass() {
+        return mostPredictedClass;
+    }
+
+    /**
+     * Returns the number of glomeruli of a class
+     *
+     * @param glomerulusClass
+     * @return The number of glomeruli
+     */
+    public int getCount(GlomerulusClass glomerulusClass) {
+        return counts[glomerulusClass.ordinal()];
+    }
+
+    /**
+     * Returns the summed probabilities of a class
+     *
+     * @param glomerulusClass
+     * @return The summed probabilities
+     */
+    public double getProb(GlomerulusClass glomerulusClass) {
+        return probs[glomerulusClass.ordinal()];
+    }
+
+    public long getDataModified() {
+        return dataModified;
+    }
+
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * Records the image data the summary was computed from
+     *
+     * @param dataModified Modification time of the image data, in milliseconds
+     * @param dataSize     Size of the image data, in bytes
+     */
+    public void setDataStamp(long dataModified, long dataSize) {
+        this.dataModified = dataModified;
+        this.dataSize = dataSize;
+    }
+}
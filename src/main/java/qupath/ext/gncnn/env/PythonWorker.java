@@ -0,0 +1,364 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.env;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+import qupath.lib.common.ThreadTools;
+
+/**
+ * Long-lived Python process which keeps the models loaded across images and
+ * runs. Jobs are sent as JSON lines through stdin, and the responses are read
+ * as JSON lines from stdout, while stderr is forwarded to a log listener.
+ *
+ * The worker is started on the first job, restarted if it crashes, checked
+ * with a 'ping' job before each job and stopped after being idle for a while.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class PythonWorker {
+
+    private static final Logger logger = LoggerFactory.getLogger(PythonWorker.class);
+
+    private static final String EOF = "\u0000EOF";
+
+    private final String name;
+
+    private final List<String> command;
+
+    private long startupTimeoutMillis = TimeUnit.MINUTES.toMillis(5);
+
+    private long pingTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+
+    private long idleTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+
+    private final ScheduledExecutorService idleTimer = Executors
+            .newSingleThreadScheduledExecutor(ThreadTools.createThreadFactory("GNCnn-worker-idle", true));
+
+    private ScheduledFuture<?> idleShutdown;
+
+    // Incremented each time the idle shutdown is scheduled or cancelled, so
+    // that a shutdown which fires while a job is being submitted is ignored
+    private long idleGeneration = 0;
+
+    private boolean busy = false;
+
+    private Process process;
+
+    private BufferedWriter stdIn;
+
+    private BlockingQueue<String> responses;
+
+    private volatile Consumer<String> logListener;
+
+    private long nextId = 1;
+
+    /**
+     * Creates a worker which is started with the given command
+     *
+     * @param name    Name used in the logs
+     * @param command Full command to start the worker process
+     */
+    public PythonWorker(String name, List<String> command) {
+        this.name = name;
+        this.command = command;
+    }
+
+    public void setStartupTimeout(long timeout, TimeUnit unit) {
+        this.startupTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    public void setPingTimeout(long timeout, TimeUnit unit) {
+        this.pingTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    public void setIdleTimeout(long timeout, TimeUnit unit) {
+        this.idleTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    public synchronized boolean isAlive() {
+        return process != null && process.isAlive();
+    }
+
+    /**
+     * Runs a job in the worker and waits for its result. If the worker is not
+     * running or does not answer to a health check, it is (re)started first.
+     * If the worker crashes while running the job, it is restarted and the job
+     * is retried once
+     *
+     * @param job         Name of the job
+     * @param params      Parameters of the job
+     * @param logListener Receives the lines written by the worker to stderr
+     *                    while running the job
+     * @return The result of the job
+     * @throws IOException          If the worker cannot be started or the job
+     *                              fails
+     * @throws InterruptedException If the thread is interrupted while waiting
+     *                              for the job. The worker is stopped, as the
+     *                              job cannot be aborted
+     */
+    public synchronized JsonObject submit(String job, JsonObject params, Consumer<String> logListener)
+            throws IOException, InterruptedException {
+        cancelIdleShutdown();
+        busy = true;
+        try {
+            for (int attempt = 0;; attempt++) {
+                ensureRunning();
+                this.logListener = logListener;
+                try {
+                    return request(job, params, 0);
+                } catch (WorkerCrashedException e) {
+                    if (attempt > 0) {
+                        throw new IOException("Worker '" + name + "' crashed twice running '" + job + "'", e);
+                    }
+                    logger.warn("Worker '{}' crashed running '{}', restarting it", name, job);
+                } finally {
+                    this.logListener = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Thread interrupted, stopping worker '{}'", name);
+            destroy();
+            throw e;
+        } finally {
+            busy = false;
+            scheduleIdleShutdown();
+        }
+    }
+
+    /**
+     * Checks that the worker is running and answers to a 'ping' job in time
+     *
+     * @return True if the worker is healthy
+     * @throws InterruptedException
+     */
+    public synchronized boolean ping() throws InterruptedException {
+        if (!isAlive()) {
+            return false;
+        }
+        try {
+            request("ping", new JsonObject(), pingTimeoutMillis);
+            return true;
+        } catch (IOException e) {
+            logger.warn("Worker '{}' failed the health check: {}", name, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Asks the worker to stop, killing it if it does not
+     */
+    public synchronized void shutdown() {
+        cancelIdleShutdown();
+        if (!isAlive()) {
+            return;
+        }
+        logger.info("Stopping worker '{}'", name);
+        try {
+            request("shutdown", new JsonObject(), pingTimeoutMillis);
+            process.waitFor(pingTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (IOException | InterruptedException e) {
+            logger.warn("Worker '{}' did not stop cleanly: {}", name, e.getMessage());
+        }
+        destroy();
+    }
+
+    private void ensureRunning() throws IOException, InterruptedException {
+        if (isAlive() && ping()) {
+            return;
+        }
+        destroy();
+        start();
+    }
+
+    private void start() throws IOException, InterruptedException {
+        logger.info("Starting worker '{}': {}", name, command);
+        process = new ProcessBuilder(command).start();
+        stdIn = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        responses = new LinkedBlockingQueue<>();
+
+        Process p = process;
+        BlockingQueue<String> queue = responses;
+        Thread stdOutReader = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    queue.add(line);
+                }
+            } catch (IOException e) {
+                logger.debug("Worker '{}' stdout closed: {}", name, e.getMessage());
+            }
+            queue.add(EOF);
+        }, "GNCnn-worker-" + name + "-out");
+        stdOutReader.setDaemon(true);
+        stdOutReader.start();
+
+        Thread stdErrReader = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(p.getErrorStream(), StandardCharsets.UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    Consumer<String> listener = logListener;
+                    if (listener != null) {
+                        listener.accept(line);
+                    } else {
+                        logger.info("{}: {}", name, line);
+                    }
+                }
+            } catch (IOException e) {
+                logger.debug("Worker '{}' stderr closed: {}", name, e.getMessage());
+            }
+        }, "GNCnn-worker-" + name + "-err");
+        stdErrReader.setDaemon(true);
+        stdErrReader.start();
+
+        // Wait for the worker to be ready
+        try {
+            JsonObject ready = readResponse(0, startupTimeoutMillis);
+            logger.info("Worker '{}' ready: {}", name, ready);
+        } catch (IOException e) {
+            destroy();
+            throw new IOException("Worker '" + name + "' could not be started: " + e.getMessage(), e);
+        }
+    }
+
+    private void destroy() {
+        if (process != null) {
+            process.destroy();
+            process = null;
+        }
+    }
+
+    /**
+     * Sends a request and waits for its response
+     *
+     * @param job
+     * @param params
+     * @param timeoutMillis Maximum time to wait, or 0 to wait until the worker
+     *                      answers or exits
+     * @return The result of the job
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private JsonObject request(String job, JsonObject params, long timeoutMillis)
+            throws IOException, InterruptedException {
+        long id = nextId++;
+        JsonObject request = new JsonObject();
+        request.addProperty("id", id);
+        request.addProperty("job", job);
+        request.add("params", params);
+
+        try {
+            stdIn.write(request.toString());
+            stdIn.newLine();
+            stdIn.flush();
+        } catch (IOException e) {
+            throw new WorkerCrashedException("Could not send request: " + e.getMessage());
+        }
+
+        JsonObject response = readResponse(id, timeoutMillis);
+        if (!"ok".equals(getString(response, "status"))) {
+            throw new IOException("Worker '" + name + "' failed running '" + job + "': "
+                    + getString(response, "message"));
+        }
+        return response.has("result") ? response.getAsJsonObject("result") : new JsonObject();
+    }
+
+    private JsonObject readResponse(long id, long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new IOException("Timed out waiting for worker '" + name + "'");
+            }
+            String line = responses.poll(Math.min(remaining, 1000), TimeUnit.MILLISECONDS);
+            if (line == null) {
+                continue;
+            }
+            if (EOF.equals(line)) {
+                int exitValue = process == null ? -1 : process.waitFor();
+                throw new WorkerCrashedException("Worker '" + name + "' exited with value " + exitValue);
+            }
+
+            JsonObject response;
+            try {
+                response = JsonParser.parseString(line).getAsJsonObject();
+            } catch (JsonSyntaxException | IllegalStateException e) {
+                logger.info("{}: {}", name, line);
+                continue;
+            }
+            if (response.has("id") && response.get("id").getAsLong() == id) {
+                return response;
+            }
+            logger.warn("Ignoring unexpected response from worker '{}': {}", name, line);
+        }
+    }
+
+    private static String getString(JsonObject object, String key) {
+        return object.has(key) && !object.get(key).isJsonNull() ? object.get(key).getAsString() : null;
+    }
+
+    private void cancelIdleShutdown() {
+        idleGeneration++;
+        if (idleShutdown != null) {
+            idleShutdown.cancel(false);
+            idleShutdown = null;
+        }
+    }
+
+    private void scheduleIdleShutdown() {
+        cancelIdleShutdown();
+        if (idleTimeoutMillis > 0) {
+            long generation = idleGeneration;
+            idleShutdown = idleTimer.schedule(() -> shutdownIfIdle(generation), idleTimeoutMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the worker if no job has been submitted since the idle shutdown
+     * was scheduled. The timer may fire while a job is waiting for the lock,
+     * in which case the shutdown has already been cancelled
+     *
+     * @param generation
+     */
+    private synchronized void shutdownIfIdle(long generation) {
+        if (generation != idleGeneration || busy) {
+            return;
+        }
+        logger.info("Worker '{}' idle for {} s", name, idleTimeoutMillis / 1000);
+        shutdown();
+    }
+
+    /**
+     * Thrown when the worker process exits or stops accepting requests
+     */
+    private static class WorkerCrashedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        WorkerCrashedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -8,13 +8,18 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.controlsfx.tools.Platform;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonObject;
+
 import qupath.ext.gncnn.entities.ProgressListener;
 
 /**
@@ -27,6 +32,14 @@ public class VirtualEnvironment {
 
     private final Logger logger = LoggerFactory.getLogger(VirtualEnvironment.class);
 
+    // Workers are shared by all the environments, so the models stay loaded
+    // across images and runs
+    private static final Map<String, PythonWorker> workers = new HashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(VirtualEnvironment::shutdownWorkers));
+    }
+
     private String name;
 
     private List<String> arguments;
@@ -59,19 +72,12 @@ public class VirtualEnvironment {
     }
 
     /**
-     * Builds the command to be run and executes it
+     * Wraps the command in the shell of the current platform
      * 
-     * @throws IOException          // In case there is an issue starting the
-     *                              process
-     * @throws InterruptedException // In case there is an issue after the process
-     *                              is started
+     * @param command
+     * @return The command to be passed to the process builder
      */
-    public void runCommand() throws IOException, InterruptedException {
-        List<String> command = new ArrayList<>();
-
-        // Get the arguments specific to the command we want to run
-        command.addAll(arguments);
-
+    private static List<String> buildShellCommand(List<String> command) {
         List<String> shell = new ArrayList<>();
         switch (Platform.getCurrent()) {
             // For UNIX, encapsulate the command in a single string
@@ -99,6 +105,24 @@ public class VirtualEnvironment {
                 shell.addAll(command);
                 break;
         }
+        return shell;
+    }
+
+    /**
+     * Builds the command to be run and executes it
+     * 
+     * @throws IOException          // In case there is an issue starting the
+     *                              process
+     * @throws InterruptedException // In case there is an issue after the process
+     *                              is started
+     */
+    public void runCommand() throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+
+        // Get the arguments specific to the command we want to run
+        command.addAll(arguments);
+
+        List<String> shell = buildShellCommand(command);
 
         // Make the command human readable
         List<String> printable = shell.stream().map(s -> {
@@ -128,19 +152,10 @@ public class VirtualEnvironment {
             public void run() {
                 BufferedReader stdIn = new BufferedReader(new InputStreamReader(p.getInputStream()));
                 try {
-                    double currentProgress = 0.0;
-                    if (name.equals("GlomerulusDetectionTask")) {
-                        currentProgress = progressListener.getProgress();
-                    }
+                    Consumer<String> outputHandler = createOutputHandler();
 
                     for (String line = stdIn.readLine(); line != null;) {
-                        logger.info("{}: {}", name, line);
-                        if (name.equals("GlomerulusDetectionTask") && line.contains("%")) {
-                            double detectionProgress = parseDetectionProgress(line);
-                            if (detectionProgress != -1.0) {
-                                progressListener.updateProgress(currentProgress, detectionProgress);
-                            }
-                        }
+                        outputHandler.accept(line);
                         line = stdIn.readLine();
                     }
                 } catch (IOException e) {
@@ -172,6 +187,68 @@ public class VirtualEnvironment {
         }
     }
 
+    /**
+     * Runs a job in the long-lived worker started with the given command, so
+     * that the models loaded by previous jobs are reused. The worker is started
+     * on the first job
+     * 
+     * @param workerCommand Command which starts the worker
+     * @param job           Name of the job
+     * @param params        Parameters of the job
+     * @return The result of the job
+     * @throws IOException          In case the worker cannot be started or the
+     *                              job fails
+     * @throws InterruptedException In case the thread is interrupted while
+     *                              running the job
+     */
+    public JsonObject runWorkerJob(String workerCommand, String job, JsonObject params)
+            throws IOException, InterruptedException {
+        PythonWorker worker;
+        synchronized (workers) {
+            worker = workers.computeIfAbsent(workerCommand,
+                    c -> new PythonWorker(c, buildShellCommand(Arrays.asList(c))));
+        }
+
+        logger.info("Running '{}' in worker '{}'", job, workerCommand);
+        JsonObject result = worker.submit(job, params, createOutputHandler());
+        logger.info("Worker job '{}' finished: {}", job, result);
+        return result;
+    }
+
+    /**
+     * Stops all the workers
+     */
+    public static void shutdownWorkers() {
+        synchronized (workers) {
+            for (PythonWorker worker : workers.values()) {
+                worker.shutdown();
+            }
+            workers.clear();
+        }
+    }
+
+    /**
+     * Creates a handler for the output lines of a command or job, which logs
+     * them and updates the detection progress
+     * 
+     * @return The output handler
+     */
+    private Consumer<String> createOutputHandler() {
+        double[] lastDetectionProgress = { 0.0 };
+        return line -> {
+            logger.info("{}: {}", name, line);
+            if (name.equals("GlomerulusDetectionTask") && line.contains("%")) {
+                double detectionProgress = parseDetectionProgress(line);
+                if (detectionProgress != -1.0 && detectionProgress > lastDetectionProgress[0]) {
+                    // Only the increment is reported, as other tasks
+                    // may update the progress at the same time
+                    progressListener.updatePartialProgress(detectionProgress - lastDetectionProgress[0]);
+                    lastDetectionProgress[0] = detectionProgress;
+                }
+            }
+        };
+    }
+
     /**
      * Interrupts the thread running the command
      */
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.io;
+
+import java.util.UUID;
+
+/**
+ * Layout of the packed crop container, a single file with the exported crops
+ * of an image. All the numbers are little-endian.
+ *
+ * <pre>
+ * header  (32 bytes)  magic "GNCC", version (u16), reserved (u16),
+ *                     record count (u32), index offset (u64), reserved
+ * records             the PNG bytes of each crop, one after the other
+ * index   (52 bytes   annotation UUID (2 x u64, most significant first),
+ *          per record) record offset (u64), record length (u32),
+ *                     x, y, width, height (i32, full resolution pixels),
+ *                     downsample (f64)
+ * </pre>
+ *
+ * New records are appended after the current index, followed by a new index,
+ * and the header is updated last, so an interrupted append leaves the
+ * previous content readable.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public final class CropContainer {
+
+    /**
+     * Name of the container in the export folder of each image
+     */
+    public static final String FILE_NAME = "crops.gncc";
+
+    public static final int MAGIC = 0x43434E47; // "GNCC" in little-endian
+
+    public static final short VERSION = 1;
+
+    public static final int HEADER_BYTES = 32;
+
+    public static final int INDEX_ENTRY_BYTES = 52;
+
+    /**
+     * A crop of the container
+     */
+    public static class Record {
+
+        private final UUID annotationId;
+
+        private final long offset;
+
+        private final int length;
+
+        private final int x, y, width, height;
+
+        private final double downsample;
+
+        public Record(UUID annotationId, long offset, int length, int x, int y, int width, int height,
+                double downsample) {
+            this.annotationId = annotationId;
+            this.offset = offset;
+            this.length = length;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.downsample = downsample;
+        }
+
+        public UUID getAnnotationId() {
+            return annotationId;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public double getDownsample() {
+            return downsample;
+        }
+    }
+
+    private CropContainer() {
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Class to read a packed crop container through a memory-mapped file
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class CropContainerReader implements AutoCloseable {
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private final List<CropContainer.Record> records;
+
+    private final long indexOffset;
+
+    /**
+     * Opens a container and reads its index
+     *
+     * @param path
+     * @throws IOException If the file is not a valid container
+     */
+    public CropContainerReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            // Containers hold the crops of a single image, far below the
+            // limit of a mapped buffer
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Crop container too large to map: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.limit() < CropContainer.HEADER_BYTES || buffer.getInt(0) != CropContainer.MAGIC) {
+                throw new IOException("Not a crop container: " + path);
+            }
+            short version = buffer.getShort(4);
+            if (version > CropContainer.VERSION) {
+                throw new IOException("Unsupported crop container version " + version + ": " + path);
+            }
+            int count = buffer.getInt(8);
+            indexOffset = buffer.getLong(12);
+            if (indexOffset + (long) count * CropContainer.INDEX_ENTRY_BYTES > buffer.limit()) {
+                throw new IOException("Truncated crop container: " + path);
+            }
+            records = readIndex(count);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private List<CropContainer.Record> readIndex(int count) {
+        List<CropContainer.Record> index = new ArrayList<>(count);
+        int position = (int) indexOffset;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer entry = buffer.slice(position, CropContainer.INDEX_ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            UUID annotationId = new UUID(entry.getLong(0), entry.getLong(8));
+            index.add(new CropContainer.Record(annotationId, entry.getLong(16), entry.getInt(24), entry.getInt(28),
+                    entry.getInt(32), entry.getInt(36), entry.getInt(40), entry.getDouble(44)));
+            position += CropContainer.INDEX_ENTRY_BYTES;
+        }
+        return Collections.unmodifiableList(index);
+    }
+
+    /**
+     * Returns the records of the container, in the order they were written
+     *
+     * @return The records
+     */
+    public List<CropContainer.Record> getRecords() {
+        return records;
+    }
+
+    /**
+     * Returns the offset of the index, where new records are appended
+     *
+     * @return The index offset
+     */
+    long getIndexOffset() {
+        return indexOffset;
+    }
+
+    /**
+     * Returns the PNG bytes of a record, without copying them
+     *
+     * @param record
+     * @return A read-only buffer with the bytes of the record
+     */
+    public ByteBuffer getData(CropContainer.Record record) {
+        return buffer.slice((int) record.getOffset(), record.getLength()).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
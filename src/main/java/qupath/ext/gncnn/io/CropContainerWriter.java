@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Class to write the crops of an image to a packed crop container. If the
+ * container exists, the new crops are appended to it, and replace the
+ * previous crops of the same annotations. Crops can be appended from several
+ * threads
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class CropContainerWriter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CropContainerWriter.class);
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    // Records by annotation, in the order they were last written
+    private final Map<UUID, CropContainer.Record> records = new LinkedHashMap<>();
+
+    private long position;
+
+    private int appended = 0;
+
+    /**
+     * Opens a container to append crops, creating it if it does not exist
+     *
+     * @param path
+     * @throws IOException
+     */
+    public CropContainerWriter(Path path) throws IOException {
+        this.path = path;
+        if (Files.exists(path) && Files.size(path) > 0) {
+            try (CropContainerReader reader = new CropContainerReader(path)) {
+                for (CropContainer.Record record : reader.getRecords()) {
+                    records.put(record.getAnnotationId(), record);
+                }
+            }
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // The previous index stays valid until the header points to the
+            // new one
+            position = channel.size();
+        } else {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            position = CropContainer.HEADER_BYTES;
+            writeHeader(0, position);
+        }
+    }
+
+    /**
+     * Appends the PNG bytes of the crop of an annotation
+     *
+     * @param annotationId
+     * @param region       Region of the crop
+     * @param png
+     * @throws IOException
+     */
+    public synchronized void append(UUID annotationId, RegionRequest region, byte[] png) throws IOException {
+        long offset = position;
+        writeFully(ByteBuffer.wrap(png), offset);
+        position += png.length;
+        records.remove(annotationId);
+        records.put(annotationId, new CropContainer.Record(annotationId, offset, png.length, region.getX(),
+                region.getY(), region.getWidth(), region.getHeight(), region.getDownsample()));
+        appended++;
+    }
+
+    /**
+     * Writes the index and the header, and closes the container
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (appended > 0) {
+                ByteBuffer index = ByteBuffer.allocate(records.size() * CropContainer.INDEX_ENTRY_BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                for (CropContainer.Record record : records.values()) {
+                    index.putLong(record.getAnnotationId().getMostSignificantBits());
+                    index.putLong(record.getAnnotationId().getLeastSignificantBits());
+                    index.putLong(record.getOffset());
+                    index.putInt(record.getLength());
+                    index.putInt(record.getX());
+                    index.putInt(record.getY());
+                    index.putInt(record.getWidth());
+                    index.putInt(record.getHeight());
+                    index.putDouble(record.getDownsample());
+                }
+                index.flip();
+                writeFully(index, position);
+                channel.force(false);
+                writeHeader(records.size(), position);
+                channel.force(false);
+                logger.debug("Appended {} crops to {} ({} in total)", appended, path, records.size());
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeHeader(int count, long indexOffset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(CropContainer.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(CropContainer.MAGIC);
+        header.putShort(CropContainer.VERSION);
+        header.putShort((short) 0);
+        header.putInt(count);
+        header.putLong(indexOffset);
+        header.position(CropContainer.HEADER_BYTES);
+        header.flip();
+        writeFully(header, 0);
+    }
+
+    private void writeFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+}
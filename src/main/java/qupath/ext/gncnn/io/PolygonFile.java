@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Layout of the binary polygon file, with the objects written by the Python
+ * scripts, e.g. the detected glomeruli or the tissue regions. All the fixed
+ * size numbers are little-endian.
+ *
+ * <pre>
+ * header  (32 bytes)  magic "GNCP", version (u16), reserved (u16),
+ *                     object count (u32), class count (u16), reserved (u16),
+ *                     class table offset (u64), coordinate unit (f64)
+ * objects             class index (varint), score (f32, NaN if none),
+ *                     vertex count (varint), and the x and y of each vertex
+ *                     as zigzag varints, relative to the previous vertex and
+ *                     the first one to (0, 0), in coordinate units
+ * classes             color (i32, packed ARGB, 0 if none), name length (u16)
+ *                     and UTF-8 name of each class
+ * </pre>
+ *
+ * Coordinates are in full resolution pixels divided by the coordinate unit,
+ * and rounded, so a unit of 1 stores whole pixels.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public final class PolygonFile {
+
+    public static final String FILE_EXTENSION = ".gncp";
+
+    public static final int MAGIC = 0x50434E47; // "GNCP" in little-endian
+
+    public static final short VERSION = 1;
+
+    public static final int HEADER_BYTES = 32;
+
+    /**
+     * Checks if a file starts as a polygon file, e.g. to read the detections
+     * cached by older versions as GeoJSON
+     *
+     * @param path
+     * @return True if the file has the magic number of a polygon file
+     */
+    public static boolean isPolygonFile(Path path) {
+        byte[] magic = new byte[4];
+        try (InputStream stream = Files.newInputStream(path)) {
+            if (stream.readNBytes(magic, 0, magic.length) < magic.length) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC;
+    }
+
+    private PolygonFile() {
+    }
+}
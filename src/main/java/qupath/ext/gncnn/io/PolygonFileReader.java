@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.io;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.gncnn.detection.DetectionMerger;
+import qupath.lib.io.PathIO;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Class to read a binary polygon file through a memory-mapped file, building
+ * the ROIs straight from the mapped bytes
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class PolygonFileReader implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PolygonFileReader.class);
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private final int count;
+
+    private final double unit;
+
+    private final PathClass[] classes;
+
+    // Position of the next byte to read
+    private int position;
+
+    /**
+     * Opens a polygon file and reads its classes
+     *
+     * @param path
+     * @throws IOException If the file is not a valid polygon file
+     */
+    public PolygonFileReader(Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Polygon file too large to map: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.limit() < PolygonFile.HEADER_BYTES || buffer.getInt(0) != PolygonFile.MAGIC) {
+                throw new IOException("Not a polygon file: " + path);
+            }
+            short version = buffer.getShort(4);
+            if (version > PolygonFile.VERSION) {
+                throw new IOException("Unsupported polygon file version " + version + ": " + path);
+            }
+            count = buffer.getInt(8);
+            int classCount = Short.toUnsignedInt(buffer.getShort(12));
+            long classOffset = buffer.getLong(16);
+            unit = buffer.getDouble(24);
+            if (classOffset > buffer.limit()) {
+                throw new IOException("Truncated polygon file: " + path);
+            }
+            classes = readClasses((int) classOffset, classCount);
+        } catch (IOException | IndexOutOfBoundsException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e
+                    : new IOException("Truncated polygon file: " + path, e);
+        }
+    }
+
+    private PathClass[] readClasses(int offset, int classCount) {
+        PathClass[] classes = new PathClass[classCount];
+        position = offset;
+        for (int i = 0; i < classCount; i++) {
+            int color = buffer.getInt(position);
+            int length = Short.toUnsignedInt(buffer.getShort(position + 4));
+            byte[] name = new byte[length];
+            buffer.get(position + 6, name);
+            position += 6 + length;
+            // Objects without a class have an empty name
+            if (length == 0) {
+                classes[i] = null;
+            } else if (color == 0) {
+                classes[i] = PathClass.fromString(new String(name, StandardCharsets.UTF_8));
+            } else {
+                classes[i] = PathClass.fromString(new String(name, StandardCharsets.UTF_8), color);
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Returns the number of objects in the file
+     *
+     * @return The number of objects
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Reads all the objects of the file as annotations, with their score as a
+     * measurement if they have one
+     *
+     * @return The objects
+     * @throws IOException If the file is truncated or corrupted
+     */
+    public List<PathObject> readObjects() throws IOException {
+        List<PathObject> objects = new ArrayList<>(count);
+        position = PolygonFile.HEADER_BYTES;
+        ImagePlane plane = ImagePlane.getDefaultPlane();
+        try {
+            for (int i = 0; i < count; i++) {
+                PathClass pathClass = classes[readVarint()];
+                float score = buffer.getFloat(position);
+                position += 4;
+                int nVertices = readVarint();
+                double[] x = new double[nVertices];
+                double[] y = new double[nVertices];
+                long px = 0;
+                long py = 0;
+                for (int v = 0; v < nVertices; v++) {
+                    px += readZigzag();
+                    py += readZigzag();
+                    x[v] = px * unit;
+                    y[v] = py * unit;
+                }
+                PathObject object = PathObjects.createAnnotationObject(ROIs.createPolygonROI(x, y, plane),
+                        pathClass);
+                if (!Float.isNaN(score)) {
+                    object.getMeasurementList().put(DetectionMerger.SCORE_MEASUREMENT, score);
+                    object.getMeasurementList().close();
+                }
+                objects.add(object);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated polygon file: " + path, e);
+        }
+        return objects;
+    }
+
+    /**
+     * Reads the objects written by a Python script. The polygon file is read
+     * if it exists, otherwise the GeoJSON file. If both exist, i.e. GeoJSON
+     * was written for debugging, both are read and their sizes and parse times
+     * are logged
+     *
+     * @param polygonPath Polygon file, which may also be a GeoJSON file, e.g.
+     *                    a detection cache entry of an older version
+     * @param geoJSONPath GeoJSON file, or null if there is none
+     * @return The objects
+     * @throws IOException If neither file can be read
+     */
+    public static List<PathObject> read(Path polygonPath, Path geoJSONPath) throws IOException {
+        boolean hasGeoJSON = geoJSONPath != null && Files.exists(geoJSONPath);
+        if (!Files.exists(polygonPath)) {
+            if (hasGeoJSON) {
+                return PathIO.readObjects(geoJSONPath);
+            }
+            throw new IOException("No objects found in " + polygonPath);
+        }
+        if (!PolygonFile.isPolygonFile(polygonPath)) {
+            return PathIO.readObjects(polygonPath);
+        }
+
+        long startTime = System.nanoTime();
+        List<PathObject> objects;
+        try (PolygonFileReader reader = new PolygonFileReader(polygonPath)) {
+            objects = reader.readObjects();
+        }
+        long polygonTime = System.nanoTime() - startTime;
+        logger.info("Read {} objects ({} bytes) from {} in {} ms", objects.size(), Files.size(polygonPath),
+                polygonPath.getFileName(), polygonTime / 1_000_000);
+
+        if (hasGeoJSON) {
+            startTime = System.nanoTime();
+            int nGeoJSON = PathIO.readObjects(geoJSONPath).size();
+            long geoJSONTime = System.nanoTime() - startTime;
+            logger.info("Read {} objects ({} bytes) from {} in {} ms, {}x the bytes and {}x the time of the "
+                    + "polygon file", nGeoJSON, Files.size(geoJSONPath), geoJSONPath.getFileName(),
+                    geoJSONTime / 1_000_000,
+                    String.format("%.1f", (double) Files.size(geoJSONPath) / Math.max(1, Files.size(polygonPath))),
+                    String.format("%.1f", (double) geoJSONTime / Math.max(1, polygonTime)));
+        }
+        return objects;
+    }
+
+    private int readVarint() throws IOException {
+        long value = readVarlong();
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Invalid polygon file: " + path);
+        }
+        return (int) value;
+    }
+
+    private long readZigzag() throws IOException {
+        long value = readVarlong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarlong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get(position++);
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint in polygon file: " + path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.io;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.gncnn.detection.DetectionMerger;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Class to write objects to a binary polygon file, as the Python scripts do.
+ * Only the exterior ring of each object is written, so objects with holes or
+ * several parts are written as the exterior of their largest polygon
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class PolygonFileWriter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PolygonFileWriter.class);
+
+    private final Path path;
+
+    private final double unit;
+
+    private final OutputStream stream;
+
+    private final List<PathClass> classes = new ArrayList<>();
+
+    private final Map<PathClass, Integer> classIndices = new HashMap<>();
+
+    private final ByteBuffer scratch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+    private long position = PolygonFile.HEADER_BYTES;
+
+    private int count = 0;
+
+    /**
+     * Creates a polygon file, replacing it if it exists
+     *
+     * @param path
+     * @param unit Size of the coordinate unit, in full resolution pixels
+     * @throws IOException
+     */
+    public PolygonFileWriter(Path path, double unit) throws IOException {
+        this.path = path;
+        this.unit = unit;
+        stream = new BufferedOutputStream(Files.newOutputStream(path));
+        // The header is written once the counts are known
+        stream.write(new byte[PolygonFile.HEADER_BYTES]);
+    }
+
+    /**
+     * Writes an object
+     *
+     * @param object
+     * @throws IOException
+     */
+    public void write(PathObject object) throws IOException {
+        Coordinate[] coordinates = getExteriorRing(object.getROI());
+        PathClass pathClass = object.getPathClass();
+        Integer classIndex = classIndices.get(pathClass);
+        if (classIndex == null) {
+            classIndex = classes.size();
+            classes.add(pathClass);
+            classIndices.put(pathClass, classIndex);
+        }
+
+        writeVarlong(classIndex);
+        double score = object.getMeasurementList().get(DetectionMerger.SCORE_MEASUREMENT);
+        scratch.clear();
+        scratch.putFloat((float) score);
+        writeScratch();
+
+        // The ring of a polygon is closed, but the vertices of a ROI are not
+        int nVertices = coordinates.length > 1 && coordinates[0].equals2D(coordinates[coordinates.length - 1])
+                ? coordinates.length - 1
+                : coordinates.length;
+        writeVarlong(nVertices);
+        long px = 0;
+        long py = 0;
+        for (int v = 0; v < nVertices; v++) {
+            long x = Math.round(coordinates[v].x / unit);
+            long y = Math.round(coordinates[v].y / unit);
+            writeZigzag(x - px);
+            writeZigzag(y - py);
+            px = x;
+            py = y;
+        }
+        count++;
+    }
+
+    /**
+     * Writes a list of objects
+     *
+     * @param objects
+     * @throws IOException
+     */
+    public void writeAll(List<PathObject> objects) throws IOException {
+        for (PathObject object : objects) {
+            write(object);
+        }
+    }
+
+    private static Coordinate[] getExteriorRing(ROI roi) {
+        Geometry geometry = roi.getGeometry();
+        Polygon largest = null;
+        for (int i = 0; i < geometry.getNumGeometries(); i++) {
+            Geometry part = geometry.getGeometryN(i);
+            if (part instanceof Polygon polygon && (largest == null || polygon.getArea() > largest.getArea())) {
+                largest = polygon;
+            }
+        }
+        return largest == null ? geometry.getCoordinates() : largest.getExteriorRing().getCoordinates();
+    }
+
+    private void writeZigzag(long value) throws IOException {
+        writeVarlong((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarlong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            stream.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+            position++;
+        }
+        stream.write((int) value);
+        position++;
+    }
+
+    private void writeScratch() throws IOException {
+        stream.write(scratch.array(), 0, scratch.position());
+        position += scratch.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        long classOffset = position;
+        for (PathClass pathClass : classes) {
+            byte[] name = pathClass == null ? new byte[0] : pathClass.toString().getBytes(StandardCharsets.UTF_8);
+            Integer color = pathClass == null ? null : pathClass.getColor();
+            scratch.clear();
+            scratch.putInt(color == null ? 0 : color);
+            scratch.putShort((short) name.length);
+            writeScratch();
+            stream.write(name);
+            position += name.length;
+        }
+        stream.close();
+
+        ByteBuffer header = ByteBuffer.allocate(PolygonFile.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(PolygonFile.MAGIC);
+        header.putShort(PolygonFile.VERSION);
+        header.putShort((short) 0);
+        header.putInt(count);
+        header.putShort((short) classes.size());
+        header.putShort((short) 0);
+        header.putLong(classOffset);
+        header.putDouble(unit);
+        header.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(header, 0);
+        }
+        logger.debug("Wrote {} objects ({} bytes) to {}", count, position, path);
+    }
+}
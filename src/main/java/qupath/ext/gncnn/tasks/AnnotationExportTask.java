@@ -6,16 +6,19 @@ package qupath.ext.gncnn.tasks;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
-import javax.imageio.ImageIO;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javafx.concurrent.Task;
 import qupath.ext.gncnn.entities.ProgressListener;
+import qupath.ext.gncnn.io.CropContainer;
+import qupath.ext.gncnn.io.CropContainerWriter;
+import qupath.ext.gncnn.utils.ClassificationMetadata;
 import qupath.ext.gncnn.utils.Utils;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.QuPathGUI;
@@ -23,10 +26,8 @@ import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.PathObject;
 import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.interfaces.ROI;
-import qupath.lib.scripting.QP;
 
 /**
  * Class to export the annotations to images
@@ -35,6 +36,23 @@ public class AnnotationExportTask extends Task<Void> {
 
     private static final Logger logger = LoggerFactory.getLogger(AnnotationExportTask.class);
 
+    /**
+     * Short edge, in pixels, to which the classifiers resize their input
+     * before cropping its centre
+     */
+    public static final int CLASSIFIER_INPUT_SIZE = 256;
+
+    /**
+     * Padding of the glomeruli relative to their largest side, which is about
+     * 300 px for a typical glomerulus at full resolution
+     */
+    public static final double PADDING_RATIO = 0.375;
+
+    // Relative difference below the required downsample within which a
+    // pyramid level is read instead, avoiding the resampling. Coarser levels
+    // are never used, as the crop would be smaller than the input size
+    private static final double LEVEL_TOLERANCE = 0.1;
+
     private QuPathGUI qupath;
 
     private List<String> selectedImages;
@@ -43,17 +61,88 @@ public class AnnotationExportTask extends Task<Void> {
 
     private double downsample;
 
+    private int inputSize = 0;
+
+    private double paddingRatio;
+
+    private String modelId;
+
+    private boolean useCropContainer = false;
+
     private ProgressListener progressListener;
 
+    private ImageDataSession session;
+
     public AnnotationExportTask(QuPathGUI quPath, List<String> selectedImages, int padding, double downsample,
             ProgressListener progressListener) {
+        this(quPath, selectedImages, padding, downsample, null, progressListener);
+    }
+
+    /**
+     * Creates an export task which only exports the glomeruli which have to be
+     * classified with the given model, i.e. new glomeruli and glomeruli
+     * classified with another model or changed since they were classified
+     * 
+     * @param quPath
+     * @param selectedImages
+     * @param padding
+     * @param downsample
+     * @param modelId          Identifier of the classification models, or null
+     *                         to export only the "Glomerulus" annotations
+     * @param progressListener
+     */
+    public AnnotationExportTask(QuPathGUI quPath, List<String> selectedImages, int padding, double downsample,
+            String modelId, ProgressListener progressListener) {
         this.qupath = quPath;
         this.selectedImages = selectedImages;
         this.padding = padding;
         this.downsample = downsample;
+        this.modelId = modelId;
         this.progressListener = progressListener;
     }
 
+    /**
+     * Creates an export task whose crops have the resolution used by the
+     * classifiers, instead of the full resolution. The padding is relative to
+     * the size of each glomerulus, and each crop is read at the downsample
+     * which makes its short edge about the input size of the classifiers
+     * 
+     * @param quPath
+     * @param selectedImages
+     * @param modelId          Identifier of the classification models, or null
+     *                         to export only the "Glomerulus" annotations
+     * @param inputSize        Short edge of the classifier input, in pixels
+     * @param paddingRatio     Padding relative to the largest side of the
+     *                         glomerulus
+     * @param progressListener
+     */
+    public AnnotationExportTask(QuPathGUI quPath, List<String> selectedImages, String modelId, int inputSize,
+            double paddingRatio, ProgressListener progressListener) {
+        this(quPath, selectedImages, 0, 1, modelId, progressListener);
+        this.inputSize = inputSize;
+        this.paddingRatio = paddingRatio;
+    }
+
+    /**
+     * Sets whether the crops of each image are packed in a single container,
+     * instead of written as one PNG file per glomerulus
+     * 
+     * @param useCropContainer
+     */
+    public void setUseCropContainer(boolean useCropContainer) {
+        this.useCropContainer = useCropContainer;
+    }
+
+    /**
+     * Sets the session whose image data is shared with the other stages. The
+     * images are then saved by the pipeline instead of by this task
+     * 
+     * @param session
+     */
+    public void setImageDataSession(ImageDataSession session) {
+        this.session = session;
+    }
+
     @Override
     protected Void call() throws Exception {
         try {
@@ -70,9 +159,13 @@ public class AnnotationExportTask extends Task<Void> {
                 }
             }
         } catch (IOException e) {
+            // Rethrown so that the task fails, and the image is not recorded
+            // as completed
             logger.error("Error with I/O of files: {}", e.getMessage(), e);
+            throw e;
         } catch (InterruptedException e) {
-            logger.error("Thread interrupted: {}", e.getMessage(), e);
+            logger.warn("Thread interrupted: {}", e.getMessage());
+            throw e;
         }
 
         return null;
@@ -90,16 +183,22 @@ public class AnnotationExportTask extends Task<Void> {
             throws IOException, InterruptedException {
         ImageServer<BufferedImage> server = imageData.getServer();
         String imageName = server.getMetadata().getName();
-        String outputPath = QP.buildFilePath(outputBaseDir, "Temp", "ann-export-output",
-                GeneralTools.stripExtension(imageName));
+        String outputPath = TaskPaths.getAnnotationOutputDir(outputBaseDir, GeneralTools.stripExtension(imageName));
 
         Collection<PathObject> annotations = imageData.getHierarchy().getAnnotationObjects();
-        // Use only 'Glomerulus' annotations
-        annotations.removeIf(annotation -> annotation.getPathClass() == null
-                || !annotation.getPathClass().getName().equals("Glomerulus"));
+        if (modelId == null) {
+            // Use only 'Glomerulus' annotations
+            annotations.removeIf(annotation -> annotation.getPathClass() == null
+                    || !annotation.getPathClass().getName().equals("Glomerulus"));
+        } else {
+            // Glomeruli already classified with this model, and not changed
+            // since then, keep their results
+            annotations.removeIf(annotation -> !ClassificationMetadata.needsClassification(annotation, modelId));
+        }
 
         if (annotations.isEmpty()) {
-            logger.info("No annotations found for {}", imageName);
+            logger.info("No annotations to classify found for {}", imageName);
+            progressListener.updateProgress();
             return;
         } else {
             // Create the output folder if it does not exist
@@ -107,28 +206,40 @@ public class AnnotationExportTask extends Task<Void> {
         }
 
         logger.info("Exporting {} annotations for {}", annotations.size(), imageName);
+        List<CropExporter.Crop> crops = new ArrayList<>(annotations.size());
+        double megapixels = 0;
         for (PathObject annotation : annotations) {
-            // TODO: Update progress with each annotation
-            if (Thread.interrupted()) {
-                throw new InterruptedException();
-            }
-
             ROI roi = annotation.getROI();
-            String className = annotation.getPathClass().getName();
+            // Glomeruli classified before are exported as 'Glomerulus' too, as
+            // the class is used to find the ID in the crop name
+            String className = "Glomerulus";
             String annotationId = annotation.getID().toString();
 
-            RegionRequest region = RegionRequest.createInstance(server.getPath(), downsample,
-                    (int) roi.getBoundsX() - padding, (int) roi.getBoundsY() - padding,
-                    (int) roi.getBoundsWidth() + padding * 2, (int) roi.getBoundsHeight() + padding * 2, roi.getZ(),
-                    roi.getT());
+            RegionRequest region = getCropRegion(server, roi);
+            megapixels += (double) region.getWidth() * region.getHeight()
+                    / (region.getDownsample() * region.getDownsample() * 1e6);
 
             String outputName = String.format("%s_%s_%s_%d_%d_%d_%d.png", imageName, className, annotationId,
                     region.getX(), region.getY(), region.getWidth(), region.getHeight());
 
-            BufferedImage img = server.readRegion(region);
-            File outputFile = new File(outputPath, outputName);
+            crops.add(new CropExporter.Crop(region, annotation.getID(), new File(outputPath, outputName)));
+        }
+
+        logger.info("Crops of {} have {} megapixels in total", imageName, String.format("%.1f", megapixels));
 
-            ImageIO.write(img, "PNG", outputFile);
+        // Check if the thread has been interrupted before reading the crops
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        // Neighbouring crops are read together, and encoded in parallel
+        if (useCropContainer) {
+            try (CropContainerWriter container = new CropContainerWriter(
+                    Paths.get(outputPath, CropContainer.FILE_NAME))) {
+                new CropExporter(server).container(container).export(crops);
+            }
+        } else {
+            new CropExporter(server).export(crops);
         }
         logger.info("Exporting annotations for {} finished", imageName);
 
@@ -136,6 +247,39 @@ public class AnnotationExportTask extends Task<Void> {
         progressListener.updateProgress();
     }
 
+    /**
+     * Returns the region exported for a glomerulus. With a classifier input
+     * size, the padding scales with the glomerulus, and the downsample is the
+     * largest one which keeps the short edge of the crop at least the input
+     * size, rounded down to quarter powers of 2 so that nearby crops share it
+     * and can be read together. A pyramid level slightly finer than the
+     * required downsample is preferred
+     * 
+     * @param server
+     * @param roi
+     * @return The region of the crop
+     */
+    private RegionRequest getCropRegion(ImageServer<BufferedImage> server, ROI roi) {
+        int cropPadding = padding;
+        double cropDownsample = downsample;
+        if (inputSize > 0) {
+            cropPadding = (int) Math.round(paddingRatio * Math.max(roi.getBoundsWidth(), roi.getBoundsHeight()));
+            double shortEdge = Math.min(roi.getBoundsWidth(), roi.getBoundsHeight()) + cropPadding * 2;
+            double required = Math.max(1, shortEdge / inputSize);
+            cropDownsample = Math.pow(2, Math.floor(Math.log(required) / Math.log(2) * 4) / 4);
+            for (double levelDownsample : server.getPreferredDownsamples()) {
+                if (levelDownsample <= required && levelDownsample >= required * (1 - LEVEL_TOLERANCE)) {
+                    cropDownsample = levelDownsample;
+                    break;
+                }
+            }
+        }
+        return RegionRequest.createInstance(server.getPath(), cropDownsample,
+                (int) roi.getBoundsX() - cropPadding, (int) roi.getBoundsY() - cropPadding,
+                (int) roi.getBoundsWidth() + cropPadding * 2, (int) roi.getBoundsHeight() + cropPadding * 2,
+                roi.getZ(), roi.getT());
+    }
+
     /**
      * Export the annotations for each WSI in the project to images
      * 
@@ -146,14 +290,15 @@ public class AnnotationExportTask extends Task<Void> {
      */
     private void exportAnnotationsProject(Project<BufferedImage> project, String outputBaseDir)
             throws IOException, InterruptedException {
-        List<ProjectImageEntry<BufferedImage>> imageEntryList = project.getImageList();
+        // Without a session shared by the pipeline, the images are saved at the end
+        ImageDataSession session = this.session != null ? this.session : new ImageDataSession(project);
         logger.info("Exporting annotations for {} images in the project", selectedImages.size());
         // Only process the selected images
-        for (ProjectImageEntry<BufferedImage> imageEntry : imageEntryList) {
-            ImageData<BufferedImage> imageData = imageEntry.readImageData();
-            if (selectedImages.contains(GeneralTools.stripExtension(imageData.getServer().getMetadata().getName()))) {
-                exportAnnotations(imageData, outputBaseDir);
-            }
+        for (String imageName : selectedImages) {
+            session.process(imageName, false, imageData -> exportAnnotations(imageData, outputBaseDir));
+        }
+        if (this.session == null) {
+            session.closeAll();
         }
         logger.info("Exporting annotations for {} images in the project finished", selectedImages.size());
     }
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Class to record which pipeline stages have completed for each image, and
+ * with which parameters, so that interrupted runs can be resumed.
+ *
+ * For each image, the completed stages are kept in the order they completed,
+ * i.e. the order of the pipeline. Running a stage again invalidates it and all
+ * the stages which completed after it, as their outputs depend on it.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class CheckpointManifest {
+
+    private static final Logger logger = LoggerFactory.getLogger(CheckpointManifest.class);
+
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    private final Path path;
+
+    private final JsonObject images;
+
+    private CheckpointManifest(Path path, JsonObject images) {
+        this.path = path;
+        this.images = images;
+    }
+
+    /**
+     * Reads the manifest from the given file. If the file does not exist or
+     * cannot be read, an empty manifest is returned
+     *
+     * @param path
+     * @return The manifest
+     */
+    public static CheckpointManifest read(String path) {
+        Path manifestPath = Paths.get(path);
+        JsonObject images = new JsonObject();
+        if (Files.exists(manifestPath)) {
+            try (Reader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+                images = JsonParser.parseReader(reader).getAsJsonObject();
+            } catch (IOException | JsonParseException | IllegalStateException e) {
+                logger.warn("Could not read checkpoints from {}, starting from scratch: {}", path, e.getMessage());
+            }
+        }
+        return new CheckpointManifest(manifestPath, images);
+    }
+
+    /**
+     * Checks if a stage has completed for an image with the given parameters
+     *
+     * @param imageName
+     * @param stageName
+     * @param params
+     * @return True if the stage has a checkpoint with the same parameters
+     */
+    public synchronized boolean isCompleted(String imageName, String stageName, Map<String, String> params) {
+        JsonObject checkpoint = getCheckpoint(imageName, stageName);
+        return checkpoint != null && checkpoint.get("params").equals(toJson(params));
+    }
+
+    /**
+     * Records that a stage has completed for an image, and saves the manifest
+     *
+     * @param imageName
+     * @param stageName
+     * @param params
+     */
+    public synchronized void markCompleted(String imageName, String stageName, Map<String, String> params) {
+        JsonArray stages = getStages(imageName, true);
+        removeFrom(stages, stageName);
+
+        JsonObject checkpoint = new JsonObject();
+        checkpoint.addProperty("stage", stageName);
+        checkpoint.add("params", toJson(params));
+        checkpoint.addProperty("completed", Instant.now().toString());
+        stages.add(checkpoint);
+        save();
+    }
+
+    /**
+     * Removes the checkpoint of a stage for an image, and the checkpoints of
+     * the stages which completed after it, and saves the manifest
+     *
+     * @param imageName
+     * @param stageName
+     */
+    public synchronized void invalidate(String imageName, String stageName) {
+        JsonArray stages = getStages(imageName, false);
+        if (stages != null && removeFrom(stages, stageName)) {
+            save();
+        }
+    }
+
+    /**
+     * Returns the name of the last stage completed for an image
+     *
+     * @param imageName
+     * @return The name of the stage, or null if no stage has completed
+     */
+    public synchronized String getLastCompletedStage(String imageName) {
+        JsonArray stages = getStages(imageName, false);
+        if (stages == null || stages.isEmpty()) {
+            return null;
+        }
+        return stages.get(stages.size() - 1).getAsJsonObject().get("stage").getAsString();
+    }
+
+    private JsonArray getStages(String imageName, boolean create) {
+        if (!images.has(imageName)) {
+            if (!create) {
+                return null;
+            }
+            images.add(imageName, new JsonArray());
+        }
+        return images.getAsJsonArray(imageName);
+    }
+
+    private JsonObject getCheckpoint(String imageName, String stageName) {
+        JsonArray stages = getStages(imageName, false);
+        if (stages != null) {
+            for (JsonElement stage : stages) {
+                if (stage.getAsJsonObject().get("stage").getAsString().equals(stageName)) {
+                    return stage.getAsJsonObject();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes a stage and the stages after it
+     *
+     * @return True if the stage was found
+     */
+    private static boolean removeFrom(JsonArray stages, String stageName) {
+        for (int i = 0; i < stages.size(); i++) {
+            if (stages.get(i).getAsJsonObject().get("stage").getAsString().equals(stageName)) {
+                while (stages.size() > i) {
+                    stages.remove(stages.size() - 1);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static JsonObject toJson(Map<String, String> params) {
+        JsonObject json = new JsonObject();
+        params.entrySet().stream().sorted(Map.Entry.comparingByKey())
+                .forEach(param -> json.addProperty(param.getKey(), param.getValue()));
+        return json;
+    }
+
+    /**
+     * Writes the manifest to a temporary file and then moves it, so that a
+     * crash while saving does not corrupt it
+     */
+    private void save() {
+        try {
+            File folder = path.getParent().toFile();
+            if (!folder.exists()) {
+                folder.mkdirs();
+            }
+            Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+                gson.toJson(images, writer);
+            }
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Could not save checkpoints to {}: {}", path, e.getMessage(), e);
+        }
+    }
+}
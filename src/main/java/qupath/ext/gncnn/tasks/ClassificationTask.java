@@ -5,32 +5,29 @@ package qupath.ext.gncnn.tasks;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javafx.concurrent.Task;
+import qupath.ext.gncnn.cache.ResultsSummaryStore;
 import qupath.ext.gncnn.entities.ProgressListener;
+import qupath.ext.gncnn.entities.ResultsSummary;
 import qupath.ext.gncnn.env.VirtualEnvironment;
+import qupath.ext.gncnn.utils.ClassificationMetadata;
 import qupath.ext.gncnn.utils.Utils;
-import qupath.lib.common.ColorTools;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.images.ImageData;
-import qupath.lib.objects.PathObject;
-import qupath.lib.objects.classes.PathClass;
 import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.scripting.QP;
 
 /**
@@ -41,28 +38,6 @@ public class ClassificationTask extends Task<Void> {
 
     private static final Logger logger = LoggerFactory.getLogger(ClassificationTask.class);
 
-    private static final String[] CLASSES = { "NoSclerotic", "Sclerotic", "ABMGN", "ANCA", "C3-GN", "CryoglobulinemicGN",
-            "DDD", "Fibrillary", "IAGN", "IgAGN", "MPGN", "Membranous", "PGNMID", "SLEGN-IV" };
-
-    private static final HashMap<String, Integer> CLASS_COLORS = new HashMap<String, Integer>() {
-        {
-            put("NoSclerotic", ColorTools.GREEN);
-            put("Sclerotic", ColorTools.RED);
-            put("ABMGN", ColorTools.BLUE);
-            put("ANCA", ColorTools.BLACK);
-            put("C3-GN", ColorTools.MAGENTA);
-            put("CryoglobulinemicGN", ColorTools.CYAN);
-            put("DDD", ColorTools.YELLOW);
-            put("Fibrillary", ColorTools.packRGB(225, 128, 128)); // Pink
-            put("IAGN", ColorTools.packRGB(75, 0, 130)); // Indigo
-            put("IgAGN", ColorTools.packRGB(128, 0, 0)); // Brown
-            put("MPGN", ColorTools.packRGB(255, 165, 0)); // Orange
-            put("Membranous", ColorTools.packRGB(0, 128, 128)); // Teal
-            put("PGNMID", ColorTools.packRGB(128, 0, 128)); // Purple
-            put("SLEGN-IV", ColorTools.packRGB(64, 224, 208)); // Turquoise
-        }
-    };
-
     private QuPathGUI qupath;
 
     private List<String> selectedImages;
@@ -73,6 +48,10 @@ public class ClassificationTask extends Task<Void> {
 
     private ProgressListener progressListener;
 
+    private ImageDataSession session;
+
+    private Set<String> imagesWithCrops;
+
     public ClassificationTask(QuPathGUI quPath, List<String> selectedImages, String binaryModelName,
             ProgressListener progressListener) {
         this.qupath = quPath;
@@ -91,48 +70,79 @@ public class ClassificationTask extends Task<Void> {
         this.progressListener = progressListener;
     }
 
+    /**
+     * Sets the session whose image data is shared with the other stages. The
+     * images are then saved by the pipeline instead of by this task
+     * 
+     * @param session
+     */
+    public void setImageDataSession(ImageDataSession session) {
+        this.session = session;
+    }
+
     @Override
     protected Void call() throws Exception {
         try {
             Project<BufferedImage> project = qupath.getProject();
             String outputBaseDir = Utils.getBaseDir(qupath);
             if (project != null) {
-                runClassification(outputBaseDir);
+                imagesWithCrops = getImagesWithCrops(outputBaseDir, selectedImages);
+                runClassification(outputBaseDir, imagesWithCrops);
                 classifyGlomeruliProject(project, outputBaseDir);
             } else {
                 ImageData<BufferedImage> imageData = qupath.getImageData();
                 if (imageData != null) {
-                    runClassification(outputBaseDir);
+                    String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
+                    imagesWithCrops = getImagesWithCrops(outputBaseDir, List.of(imageName));
+                    runClassification(outputBaseDir, imagesWithCrops);
                     classifyGlomeruli(imageData, outputBaseDir);
                 } else {
                     logger.error("No image or project is open");
                 }
             }
-
-            // The temp folder is not needed anymore
-            File tempFolder = new File(QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER));
-            if (tempFolder.exists()) {
-                Utils.deleteFolder(tempFolder);
-            }
         } catch (IOException e) {
+            // Rethrown so that the task fails, and the image is not recorded
+            // as completed
             logger.error("Error with I/O of files: {}", e.getMessage(), e);
+            throw e;
         } catch (InterruptedException e) {
-            logger.error("Thread interrupted: {}", e.getMessage(), e);
+            logger.warn("Thread interrupted: {}", e.getMessage());
+            throw e;
         }
 
         return null;
     }
 
     /**
-     * Runs the classification of glomeruli for all the annotations exported
-     * previously
+     * Returns the images with exported glomeruli. The glomeruli which keep
+     * their previous results are not exported, so an image may have none
+     * 
+     * @param outputBaseDir
+     * @param imageNames
+     * @return The names of the images with exported glomeruli
+     */
+    private static Set<String> getImagesWithCrops(String outputBaseDir, List<String> imageNames) {
+        return imageNames.stream().filter(imageName -> {
+            String[] crops = new File(TaskPaths.getAnnotationOutputDir(outputBaseDir, imageName)).list();
+            return crops != null && crops.length > 0;
+        }).collect(Collectors.toSet());
+    }
+
+    /**
+     * Runs the classification of glomeruli for the annotations exported
+     * previously for the given images
      * 
      * @param outputBaseDir
+     * @param imageNames
      * @throws InterruptedException
      * @throws IOException
      */
-    private void runClassification(String outputBaseDir)
+    private void runClassification(String outputBaseDir, Collection<String> imageNames)
             throws IOException, InterruptedException {
+        if (imageNames.isEmpty()) {
+            logger.info("No new or changed glomeruli to classify");
+            return;
+        }
         VirtualEnvironment venv = new VirtualEnvironment(this.getClass().getSimpleName(), progressListener);
 
         // This is the list of commands after the 'python' call
@@ -142,6 +152,10 @@ public class ClassificationTask extends Task<Void> {
         if (!multiclassModelName.equals("None")) {
             arguments.addAll(Arrays.asList("--netM", multiclassModelName, "--multi", "--topk", "3"));
         }
+        // Only classify the given images, as the crops of other images may be
+        // being exported at the same time
+        arguments.add("--wsi");
+        arguments.addAll(imageNames);
         venv.setArguments(arguments);
 
         // Check if the thread has been interrupted before starting the process
@@ -168,64 +182,43 @@ public class ClassificationTask extends Task<Void> {
     public void classifyGlomeruli(ImageData<BufferedImage> imageData, String outputBaseDir)
             throws IOException, InterruptedException, NumberFormatException {
         String imageName = imageData.getServer().getMetadata().getName();
-        String reportPath = QP.buildFilePath(outputBaseDir, "Report",
-                "B-" + binaryModelName + "_M-" + multiclassModelName,
+        String modelId = ClassificationMetadata.getModelId(binaryModelName, multiclassModelName);
+        String reportPath = QP.buildFilePath(outputBaseDir, "Report", modelId,
                 GeneralTools.stripExtension(imageName) + ".csv");
 
-        Collection<PathObject> annotations = imageData.getHierarchy().getAnnotationObjects();
-        logger.info("Updating {} annotations for {}", annotations.size(), imageName);
+        // The report of an image without exported glomeruli is from a previous
+        // run, and its glomeruli keep their results
+        if (!imagesWithCrops.contains(GeneralTools.stripExtension(imageName))) {
+            logger.info("No new or changed glomeruli in {}, keeping the previous results", imageName);
+            progressListener.updateProgress();
+            return;
+        }
+
+        logger.info("Updating annotations for {}", imageName);
 
         // Check if the thread has been interrupted before reading the report
         if (Thread.interrupted()) {
             throw new InterruptedException();
         }
 
-        try (FileReader fileReader = new FileReader(reportPath);
-                CSVParser csvParser = new CSVParser(fileReader, CSVFormat.newFormat(';'))) {
-            // Skip the header
-            csvParser.iterator().next();
-            for (CSVRecord record : csvParser) {
-                String filename = record.get(0);
-                // The annotation ID is after the first underscore after 'Glomerulus'
-                // until the next underscore in filename
-                String annotationId = filename.substring(filename.indexOf("_", filename.indexOf("Glomerulus")) + 1,
-                        filename.indexOf("_", filename.indexOf("Glomerulus") + "Glomerulus".length() + 1));
-                logger.info("Updating annotation {}", annotationId);
-
-                PathObject annotation = annotations.stream().filter(a -> a.getID().toString().equals(annotationId))
-                        .findFirst().orElse(null);
-
-                if (annotation != null) {
-                    String predictedClass = record.get(1);
-                    Integer color = CLASS_COLORS.get(predictedClass.split(" | ")[0]);
-                    PathClass pathClass = PathClass.getInstance(predictedClass, color);
-
-                    annotation.setPathClass(pathClass);
-                }
-
-                // Add custom measurements for each class probabilities
-                for (int i = 2; i < record.size(); i++) {
-                    Double prob = 0.0;
-                    if (!record.get(i).isEmpty()) {
-                        prob = Double.parseDouble(record.get(i));
-                    }
-                    annotation.getMeasurementList().put(CLASSES[i - 2] + "-prob", prob);
-                }
+        new ReportIngestor(imageData.getHierarchy(), modelId).ingest(Paths.get(reportPath));
 
-                // Check if the thread has been interrupted before updating the
-                // next annotation
-                if (Thread.interrupted()) {
-                    throw new InterruptedException();
-                }
-            }
+        // The exported annotations are not needed anymore
+        File annotationOutputFolder = new File(
+                TaskPaths.getAnnotationOutputDir(outputBaseDir, GeneralTools.stripExtension(imageName)));
+        if (annotationOutputFolder.exists()) {
+            Utils.deleteFolder(annotationOutputFolder);
         }
+
         // Update progress
         progressListener.updateProgress();
     }
 
     /**
      * Classifies glomeruli in the WSIs in a project and updates the detected
-     * objects in each image hierarchy
+     * objects in each image hierarchy. The results summary of each image is
+     * written once its image data is saved, so the results view does not have
+     * to read it
      * 
      * @param project
      * @param outputBaseDir
@@ -235,15 +228,20 @@ public class ClassificationTask extends Task<Void> {
      */
     private void classifyGlomeruliProject(Project<BufferedImage> project, String outputBaseDir)
             throws IOException, InterruptedException, NumberFormatException {
-        List<ProjectImageEntry<BufferedImage>> imageEntryList = project.getImageList();
+        // Without a session shared by the pipeline, the images are saved at the end
+        ImageDataSession session = this.session != null ? this.session : new ImageDataSession(project);
+        ResultsSummaryStore summaryStore = new ResultsSummaryStore(TaskPaths.getResultsSummaryDir(outputBaseDir));
         logger.info("Running classification for {} images", selectedImages.size());
         // Only process the selected images
-        for (ProjectImageEntry<BufferedImage> imageEntry : imageEntryList) {
-            ImageData<BufferedImage> imageData = imageEntry.readImageData();
-            if (selectedImages.contains(GeneralTools.stripExtension(imageData.getServer().getMetadata().getName()))) {
+        for (String imageName : selectedImages) {
+            session.process(imageName, true, imageData -> {
                 classifyGlomeruli(imageData, outputBaseDir);
-                imageEntry.saveImageData(imageData);
-            }
+                ResultsSummary summary = ResultsSummary.fromHierarchy(imageData.getHierarchy());
+                session.whenSaved(imageName, projectEntry -> summaryStore.write(projectEntry, summary));
+            });
+        }
+        if (this.session == null) {
+            session.closeAll();
         }
         logger.info("Classification for {} images in the project finished", selectedImages.size());
     }
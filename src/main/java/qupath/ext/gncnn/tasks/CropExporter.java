@@ -0,0 +1,456 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.gncnn.io.CropContainerWriter;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Class to export regions of a WSI to PNG files in parallel.
+ *
+ * The regions are sorted along a Z-order curve, so that neighbouring regions
+ * are read one after the other and share the tiles cached by the server.
+ * Reading and encoding run as two stages with their own threads, joined by a
+ * queue. The number of regions read but not written yet is bounded, so the
+ * readers wait for the writers when the encoding is slower.
+ *
+ * Crops which overlap or are close to each other, as the padded crops of the
+ * glomeruli in a cluster, are coalesced into groups read as one enclosing
+ * region, from which the crops are cut in memory. The size of the groups is
+ * capped, to bound the memory used by each read.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class CropExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CropExporter.class);
+
+    // Size of the cells of the Z-order curve, in full resolution pixels
+    private static final int ZORDER_CELL_SIZE = 512;
+
+    // Maximum fraction of pixels read in a group which are not in any crop,
+    // relative to reading the crops separately
+    private static final double MAX_EXTRA_PIXELS = 0.25;
+
+    /**
+     * A region of the image, the annotation it belongs to and the file where
+     * it is written if there is no container
+     */
+    public static class Crop {
+
+        private final RegionRequest request;
+
+        private final UUID annotationId;
+
+        private final File outputFile;
+
+        public Crop(RegionRequest request, UUID annotationId, File outputFile) {
+            this.request = request;
+            this.annotationId = annotationId;
+            this.outputFile = outputFile;
+        }
+
+        public RegionRequest getRequest() {
+            return request;
+        }
+
+        public UUID getAnnotationId() {
+            return annotationId;
+        }
+
+        public File getOutputFile() {
+            return outputFile;
+        }
+    }
+
+    private static class ReadCrop {
+
+        private final Crop crop;
+
+        private final BufferedImage img;
+
+        private ReadCrop(Crop crop, BufferedImage img) {
+            this.crop = crop;
+            this.img = img;
+        }
+    }
+
+    /**
+     * Crops read together from their enclosing region
+     */
+    private static class CropGroup {
+
+        private final List<Crop> crops = new ArrayList<>();
+
+        private int minX, minY, maxX, maxY;
+
+        // Pixels read if the crops were read separately
+        private long separatePixels = 0;
+
+        private CropGroup(Crop crop) {
+            RegionRequest request = crop.getRequest();
+            minX = request.getMinX();
+            minY = request.getMinY();
+            maxX = request.getMaxX();
+            maxY = request.getMaxY();
+            add(crop);
+        }
+
+        private void add(Crop crop) {
+            RegionRequest request = crop.getRequest();
+            minX = Math.min(minX, request.getMinX());
+            minY = Math.min(minY, request.getMinY());
+            maxX = Math.max(maxX, request.getMaxX());
+            maxY = Math.max(maxY, request.getMaxY());
+            separatePixels += (long) request.getWidth() * request.getHeight();
+            crops.add(crop);
+        }
+
+        private RegionRequest getRequest() {
+            RegionRequest first = crops.get(0).getRequest();
+            if (crops.size() == 1) {
+                return first;
+            }
+            return RegionRequest.createInstance(first.getPath(), first.getDownsample(), minX, minY, maxX - minX,
+                    maxY - minY, first.getZ(), first.getT());
+        }
+    }
+
+    // Sent to each writer once all the regions have been read
+    private static final ReadCrop END = new ReadCrop(null, null);
+
+    private ImageServer<BufferedImage> server;
+
+    private int readThreads = 2;
+
+    private int writeThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    private int maxPendingCrops = 16;
+
+    private int coalesceGap = 64;
+
+    private int maxGroupCrops = 8;
+
+    private long maxGroupPixels = 16L << 20;
+
+    private CropContainerWriter container;
+
+    public CropExporter(ImageServer<BufferedImage> server) {
+        this.server = server;
+    }
+
+    /**
+     * Sets the number of threads reading the regions from the server
+     *
+     * @param readThreads
+     * @return This exporter
+     */
+    public CropExporter readThreads(int readThreads) {
+        this.readThreads = Math.max(1, readThreads);
+        return this;
+    }
+
+    /**
+     * Sets the number of threads encoding and writing the PNG files
+     *
+     * @param writeThreads
+     * @return This exporter
+     */
+    public CropExporter writeThreads(int writeThreads) {
+        this.writeThreads = Math.max(1, writeThreads);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of regions kept in memory between the read and
+     * the write
+     *
+     * @param maxPendingCrops
+     * @return This exporter
+     */
+    public CropExporter maxPendingCrops(int maxPendingCrops) {
+        this.maxPendingCrops = Math.max(1, maxPendingCrops);
+        return this;
+    }
+
+    /**
+     * Sets the maximum distance between crops read together, in full
+     * resolution pixels. Overlapping crops are always candidates
+     *
+     * @param coalesceGap
+     * @return This exporter
+     */
+    public CropExporter coalesceGap(int coalesceGap) {
+        this.coalesceGap = coalesceGap;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of crops read together, 1 to read each crop
+     * separately. It is limited by the maximum number of pending crops
+     *
+     * @param maxGroupCrops
+     * @return This exporter
+     */
+    public CropExporter maxGroupCrops(int maxGroupCrops) {
+        this.maxGroupCrops = Math.max(1, maxGroupCrops);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of pixels of a region read for several crops,
+     * at the downsample of the crops
+     *
+     * @param maxGroupPixels
+     * @return This exporter
+     */
+    public CropExporter maxGroupPixels(long maxGroupPixels) {
+        this.maxGroupPixels = maxGroupPixels;
+        return this;
+    }
+
+    /**
+     * Sets the container where the crops are appended, instead of writing
+     * each of them to its own file
+     *
+     * @param container The container, or null to write loose files
+     * @return This exporter
+     */
+    public CropExporter container(CropContainerWriter container) {
+        this.container = container;
+        return this;
+    }
+
+    /**
+     * Reads and writes the given crops
+     *
+     * @param crops
+     * @return The number of crops written
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public int export(List<Crop> crops) throws IOException, InterruptedException {
+        if (crops.isEmpty()) {
+            return 0;
+        }
+        long startTime = System.nanoTime();
+
+        List<Crop> sortedCrops = new ArrayList<>(crops);
+        sortedCrops.sort(Comparator.comparingLong(crop -> getZOrder(crop.getRequest())));
+        List<CropGroup> groups = coalesce(sortedCrops);
+
+        BlockingQueue<ReadCrop> queue = new LinkedBlockingQueue<>();
+        Semaphore pending = new Semaphore(maxPendingCrops);
+        AtomicInteger nextGroup = new AtomicInteger();
+        AtomicInteger written = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(readThreads + writeThreads,
+                ThreadTools.createThreadFactory("GNCnn-crop-export-", true));
+        CompletionService<Void> completionService = new ExecutorCompletionService<>(pool);
+        Set<Future<Void>> readers = new HashSet<>();
+        try {
+            Callable<Void> reader = () -> {
+                int i;
+                while ((i = nextGroup.getAndIncrement()) < groups.size()) {
+                    CropGroup group = groups.get(i);
+                    pending.acquire(group.crops.size());
+                    RegionRequest groupRequest = group.getRequest();
+                    BufferedImage groupImg = server.readRegion(groupRequest);
+                    for (Crop crop : group.crops) {
+                        BufferedImage img = group.crops.size() == 1 ? groupImg : cut(groupImg, groupRequest, crop);
+                        queue.put(new ReadCrop(crop, img));
+                    }
+                }
+                return null;
+            };
+            Callable<Void> writer = () -> {
+                ReadCrop readCrop;
+                while ((readCrop = queue.take()) != END) {
+                    write(readCrop);
+                    pending.release();
+                    written.incrementAndGet();
+                }
+                return null;
+            };
+            for (int i = 0; i < readThreads; i++) {
+                readers.add(completionService.submit(reader));
+            }
+            for (int i = 0; i < writeThreads; i++) {
+                completionService.submit(writer);
+            }
+
+            // Wait for all the threads, stopping at the first error
+            int remainingReaders = readThreads;
+            for (int remaining = readThreads + writeThreads; remaining > 0; remaining--) {
+                Future<Void> future = completionService.take();
+                getResult(future);
+                if (readers.contains(future) && --remainingReaders == 0) {
+                    for (int i = 0; i < writeThreads; i++) {
+                        queue.put(END);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        logger.info("Exported {} crops from {} region reads in {} s ({} crops/s) [read threads={}, write threads={}]",
+                written.get(), groups.size(), String.format("%.2f", seconds),
+                String.format("%.1f", written.get() / Math.max(seconds, 1e-9)), readThreads, writeThreads);
+        return written.get();
+    }
+
+    private void write(ReadCrop readCrop) throws IOException {
+        Crop crop = readCrop.crop;
+        if (container == null) {
+            ImageIO.write(readCrop.img, "PNG", crop.getOutputFile());
+            return;
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(readCrop.img, "PNG", png);
+        container.append(crop.getAnnotationId(), crop.getRequest(), png.toByteArray());
+    }
+
+    /**
+     * Groups the crops which are close to each other, in the given order. A
+     * crop joins a group if it is within the gap of the group, and the
+     * enclosing region does not exceed the caps nor adds too many pixels
+     * which are not in any crop
+     *
+     * @param sortedCrops
+     * @return The groups of crops
+     */
+    private List<CropGroup> coalesce(List<Crop> sortedCrops) {
+        int groupCrops = Math.min(maxGroupCrops, maxPendingCrops);
+        List<CropGroup> groups = new ArrayList<>();
+        List<CropGroup> openGroups = new ArrayList<>();
+        for (Crop crop : sortedCrops) {
+            RegionRequest request = crop.getRequest();
+            CropGroup target = null;
+            for (CropGroup group : openGroups) {
+                RegionRequest groupRequest = group.crops.get(0).getRequest();
+                if (groupRequest.getDownsample() != request.getDownsample() || groupRequest.getZ() != request.getZ()
+                        || groupRequest.getT() != request.getT()
+                        || request.getMinX() > group.maxX + coalesceGap || request.getMaxX() < group.minX - coalesceGap
+                        || request.getMinY() > group.maxY + coalesceGap || request.getMaxY() < group.minY - coalesceGap) {
+                    continue;
+                }
+                long width = Math.max(group.maxX, request.getMaxX()) - Math.min(group.minX, request.getMinX());
+                long height = Math.max(group.maxY, request.getMaxY()) - Math.min(group.minY, request.getMinY());
+                long separatePixels = group.separatePixels + (long) request.getWidth() * request.getHeight();
+                if (width * height / (request.getDownsample() * request.getDownsample()) <= maxGroupPixels
+                        && width * height <= separatePixels * (1 + MAX_EXTRA_PIXELS)) {
+                    target = group;
+                    break;
+                }
+            }
+
+            if (target == null) {
+                target = new CropGroup(crop);
+                groups.add(target);
+                openGroups.add(target);
+            } else {
+                target.add(crop);
+            }
+            if (target.crops.size() >= groupCrops) {
+                openGroups.remove(target);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Cuts a crop from the region read for its group
+     *
+     * @param groupImg
+     * @param groupRequest
+     * @param crop
+     * @return A copy of the pixels of the crop
+     */
+    private static BufferedImage cut(BufferedImage groupImg, RegionRequest groupRequest, Crop crop) {
+        RegionRequest request = crop.getRequest();
+        double downsample = groupRequest.getDownsample();
+        int x = (int) Math.round((request.getMinX() - groupRequest.getMinX()) / downsample);
+        int y = (int) Math.round((request.getMinY() - groupRequest.getMinY()) / downsample);
+        int width = Math.min((int) Math.round(request.getWidth() / downsample), groupImg.getWidth() - x);
+        int height = Math.min((int) Math.round(request.getHeight() / downsample), groupImg.getHeight() - y);
+
+        // Copied, so that the region of the group is released once cut
+        BufferedImage sub = groupImg.getSubimage(x, y, Math.max(1, width), Math.max(1, height));
+        BufferedImage img = new BufferedImage(groupImg.getColorModel(),
+                sub.getRaster().createCompatibleWritableRaster(sub.getWidth(), sub.getHeight()),
+                groupImg.isAlphaPremultiplied(), null);
+        img.setData(sub.getRaster().createTranslatedChild(0, 0));
+        return img;
+    }
+
+    private static void getResult(Future<Void> future) throws IOException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Returns the position of a region along a Z-order curve, interleaving the
+     * bits of the cell coordinates of its centre
+     *
+     * @param request
+     * @return The Z-order of the region
+     */
+    static long getZOrder(RegionRequest request) {
+        long x = (long) (request.getX() + request.getWidth() / 2.0) / ZORDER_CELL_SIZE;
+        long y = (long) (request.getY() + request.getHeight() / 2.0) / ZORDER_CELL_SIZE;
+        return interleave(Math.max(0, x)) | (interleave(Math.max(0, y)) << 1);
+    }
+
+    private static long interleave(long value) {
+        value &= 0xFFFFFFFFL;
+        value = (value | (value << 16)) & 0x0000FFFF0000FFFFL;
+        value = (value | (value << 8)) & 0x00FF00FF00FF00FFL;
+        value = (value | (value << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        value = (value | (value << 2)) & 0x3333333333333333L;
+        value = (value | (value << 1)) & 0x5555555555555555L;
+        return value;
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.concurrent.Task;
+import qupath.ext.gncnn.utils.Utils;
+import qupath.lib.gui.QuPathGUI;
+
+/**
+ * Class to check which of the selected images have glomeruli to classify, in
+ * the background, before running the classification
+ */
+public class GlomeruliCheckTask extends Task<List<String>> {
+
+    private static final Logger logger = LoggerFactory.getLogger(GlomeruliCheckTask.class);
+
+    private QuPathGUI qupath;
+
+    private List<String> selectedImages;
+
+    private String modelId;
+
+    /**
+     * Creates a check of the glomeruli of the selected images
+     * 
+     * @param quPath
+     * @param selectedImages
+     * @param modelId        Identifier of the classification models, or null
+     *                       to only check for "Glomerulus" annotations
+     */
+    public GlomeruliCheckTask(QuPathGUI quPath, List<String> selectedImages, String modelId) {
+        this.qupath = quPath;
+        // Copy the images, as the list of checked items may change while running
+        this.selectedImages = new ArrayList<>(selectedImages);
+        this.modelId = modelId;
+    }
+
+    @Override
+    protected List<String> call() throws Exception {
+        try {
+            AtomicInteger checked = new AtomicInteger();
+            updateProgress(0, selectedImages.size());
+            List<String> imgsWithGlomeruli = Utils.getImgsWithGlomeruli(qupath, selectedImages, modelId,
+                    imageName -> updateProgress(checked.incrementAndGet(), selectedImages.size()));
+            logger.info("{} of {} images have glomeruli to classify", imgsWithGlomeruli.size(),
+                    selectedImages.size());
+            return imgsWithGlomeruli;
+        } catch (IOException e) {
+            logger.error("Error with I/O of files: {}", e.getMessage(), e);
+            throw e;
+        } catch (InterruptedException e) {
+            logger.warn("Thread interrupted: {}", e.getMessage());
+            throw e;
+        }
+    }
+}
@@ -6,26 +6,40 @@ package qupath.ext.gncnn.tasks;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonObject;
+
+import javafx.application.Platform;
 import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
+import qupath.ext.gncnn.cache.DetectionCache;
+import qupath.ext.gncnn.detection.DetectionDeduplicator;
+import qupath.ext.gncnn.detection.DetectionMerger;
+import qupath.ext.gncnn.detection.DetectionRecordReader;
+import qupath.ext.gncnn.detection.PolygonSimplifier;
+import qupath.ext.gncnn.detection.ProvisionalDetectionOverlay;
 import qupath.ext.gncnn.entities.ProgressListener;
 import qupath.ext.gncnn.env.VirtualEnvironment;
+import qupath.ext.gncnn.io.PolygonFileReader;
 import qupath.ext.gncnn.utils.Utils;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.viewer.QuPathViewer;
 import qupath.lib.images.ImageData;
-import qupath.lib.io.PathIO;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.RegionRequest;
 import qupath.lib.scripting.QP;
 
 /**
@@ -36,6 +50,9 @@ public class GlomerulusDetectionTask extends Task<Void> {
 
     private static final Logger logger = LoggerFactory.getLogger(GlomerulusDetectionTask.class);
 
+    // Time between two reads of the detection records while the detector runs
+    private static final long RECORDS_POLL_INTERVAL_MS = 500;
+
     private QuPathGUI qupath;
 
     private ObservableList<String> selectedImages;
@@ -46,18 +63,139 @@ public class GlomerulusDetectionTask extends Task<Void> {
 
     private double desiredPixelSize;
 
+    private boolean useWorker;
+
+    private boolean streamTiles;
+
+    private int tileSize;
+
+    private int tileOverlap;
+
+    private double minTissueFraction;
+
+    private DetectionCache detectionCache;
+
+    private Map<String, String> detectionParams;
+
     private ProgressListener progressListener;
 
+    private ImageDataSession session;
+
+    private boolean writeGeoJSON = false;
+
+    private double simplifyToleranceMicrons = 0;
+
+    private int maxVertices = 0;
+
+    private DetectionMerger detectionMerger = new DetectionMerger();
+
+    private DetectionDeduplicator detectionDeduplicator = new DetectionDeduplicator();
+
     public GlomerulusDetectionTask(QuPathGUI quPath, ObservableList<String> selectedImages, String modelName,
-            String trainConfig, double desiredPixelSize, ProgressListener progressListener) {
+            String trainConfig, double desiredPixelSize, boolean useWorker, ProgressListener progressListener) {
+        this(quPath, selectedImages, modelName, trainConfig, desiredPixelSize, useWorker, false, 0, 0, 0, null,
+                null, progressListener);
+    }
+
+    /**
+     * Creates a detection task which, if streamTiles is set, reads the tiles
+     * itself and streams them to the detector, instead of reading the tiles
+     * written by the tiler
+     *
+     * @param quPath
+     * @param selectedImages
+     * @param modelName
+     * @param trainConfig
+     * @param desiredPixelSize
+     * @param useWorker
+     * @param streamTiles
+     * @param tileSize         Tile size at the desired pixel size, as in the
+     *                         tiler
+     * @param tileOverlap      Tile overlap at the desired pixel size, as in the
+     *                         tiler
+     * @param minTissueFraction Minimum tissue fraction of the streamed tiles,
+     *                         as in the tiler
+     * @param detectionCache   Cache of the detections, or null to always run
+     *                         the detector
+     * @param detectionParams  Parameters which identify the detections in the
+     *                         cache
+     * @param progressListener
+     */
+    public GlomerulusDetectionTask(QuPathGUI quPath, ObservableList<String> selectedImages, String modelName,
+            String trainConfig, double desiredPixelSize, boolean useWorker, boolean streamTiles, int tileSize,
+            int tileOverlap, double minTissueFraction, DetectionCache detectionCache,
+            Map<String, String> detectionParams, ProgressListener progressListener) {
         this.qupath = quPath;
         this.selectedImages = selectedImages;
         this.modelName = modelName;
         this.trainConfig = trainConfig;
         this.desiredPixelSize = desiredPixelSize;
+        this.useWorker = useWorker;
+        this.streamTiles = streamTiles;
+        this.tileSize = tileSize;
+        this.tileOverlap = tileOverlap;
+        this.minTissueFraction = minTissueFraction;
+        this.detectionCache = detectionCache;
+        this.detectionParams = detectionParams;
         this.progressListener = progressListener;
     }
 
+    /**
+     * Sets the session whose image data is shared with the other stages. The
+     * images are then saved by the pipeline instead of by this task
+     * 
+     * @param session
+     */
+    public void setImageDataSession(ImageDataSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Sets whether the detections are also written as GeoJSON by the
+     * Python script, for debugging. Both files are then read, and their sizes
+     * and parse times logged
+     * 
+     * @param writeGeoJSON
+     */
+    public void setWriteGeoJSON(boolean writeGeoJSON) {
+        this.writeGeoJSON = writeGeoJSON;
+    }
+
+    /**
+     * Sets how the polygons of the glomeruli are simplified before being added to the
+     * image hierarchy
+     * 
+     * @param toleranceMicrons Maximum distance to the original polygons, 0 to
+     *                         not simplify them
+     * @param maxVertices      Maximum number of vertices of each object, 0 for
+     *                         no limit
+     */
+    public void setSimplification(double toleranceMicrons, int maxVertices) {
+        this.simplifyToleranceMicrons = toleranceMicrons;
+        this.maxVertices = maxVertices;
+    }
+
+    /**
+     * Sets the merger which removes the glomeruli detected more than once in
+     * overlapping tiles
+     * 
+     * @param detectionMerger
+     */
+    public void setDetectionMerger(DetectionMerger detectionMerger) {
+        this.detectionMerger = detectionMerger;
+    }
+
+    /**
+     * Sets the deduplicator which adds the glomeruli to the image hierarchy,
+     * replacing, skipping or merging the ones which overlap the glomeruli
+     * already in it, e.g. when the detection is run again
+     * 
+     * @param detectionDeduplicator
+     */
+    public void setDetectionDeduplicator(DetectionDeduplicator detectionDeduplicator) {
+        this.detectionDeduplicator = detectionDeduplicator;
+    }
+
     @Override
     protected Void call() throws Exception {
         try {
@@ -73,22 +211,14 @@ public class GlomerulusDetectionTask extends Task<Void> {
                     logger.error("No image or project is open");
                 }
             }
-
-            // Tiles are not needed anymore
-            File tilerOutputFolder = new File(
-                    QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER, TaskPaths.TILER_OUTPUT_FOLDER));
-            if (tilerOutputFolder.exists())
-                Utils.deleteFolder(tilerOutputFolder);
-
-            // Detections are already added to the image hierarchy, so they are not needed
-            File segmentOutputFolder = new File(
-                    QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER, TaskPaths.SEGMENT_OUTPUT_FOLDER));
-            if (segmentOutputFolder.exists())
-                Utils.deleteFolder(segmentOutputFolder);
         } catch (IOException e) {
+            // Rethrown so that the task fails, and the image is not recorded
+            // as completed
             logger.error("Error with I/O of files: {}", e.getMessage(), e);
+            throw e;
         } catch (InterruptedException e) {
-            logger.error("Thread interrupted: {}", e.getMessage(), e);
+            logger.warn("Thread interrupted: {}", e.getMessage());
+            throw e;
         }
 
         return null;
@@ -106,32 +236,62 @@ public class GlomerulusDetectionTask extends Task<Void> {
     private void detectGlomeruli(ImageData<BufferedImage> imageData, String outputBaseDir)
             throws IOException, InterruptedException {
         String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
-        VirtualEnvironment venv = new VirtualEnvironment(this.getClass().getSimpleName(), progressListener);
-
-        double pixelSize = imageData.getServer().getPixelCalibration().getAveragedPixelSizeMicrons();
-        double undersampling = desiredPixelSize / imageData.getServer().getPixelCalibration().getAveragedPixelSize().doubleValue();
-
-        // This is the list of commands after the 'python' call
-        List<String> arguments = Arrays.asList(TaskPaths.SEGMENT_COMMAND, "--wsi", imageName, "--export",
-                QP.buildFilePath(outputBaseDir),
-                "--model",
-                modelName, "--train-config", trainConfig, "--undersampling", Double.toString(undersampling),
-                "--pixel-size", Double.toString(pixelSize));
-        venv.setArguments(arguments);
 
         // Check if the thread has been interrupted before starting the process
         if (Thread.interrupted()) {
             throw new InterruptedException();
         }
 
-        // Run the command
-        logger.info("Running detection for {}", imageName);
-        venv.runCommand();
-        logger.info("Detection for {} finished", imageName);
+        // The detections of the same slide with the same parameters may be
+        // cached, e.g. from another project. They are read from a copy, which
+        // the tiler makes when it skips the tiling, so that they cannot be
+        // evicted from the cache by other images in the meantime
+        String cacheKey = getCacheKey(imageData);
+        Path detectionsPath = null;
+        if (cacheKey != null) {
+            Path cachedPath = Paths.get(TaskPaths.getCachedDetectionsPath(outputBaseDir, imageName, cacheKey));
+            if (Files.exists(cachedPath) || copyCachedDetections(cacheKey, cachedPath)) {
+                detectionsPath = cachedPath;
+            }
+        }
+        boolean cached = detectionsPath != null;
+        List<PathObject> rawDetections = null;
+        if (cached) {
+            logger.info("Using cached detections for {}", imageName);
+            // The detector does not run, so it does not report the progress
+            progressListener.updateProgress();
+        } else {
+            rawDetections = runDetector(imageData, outputBaseDir);
+            detectionsPath = Paths.get(TaskPaths.getDetectionResultsPath(outputBaseDir, imageName));
+            if (cacheKey != null) {
+                try {
+                    detectionCache.put(cacheKey, detectionsPath);
+                } catch (IOException e) {
+                    logger.warn("Could not cache the detections of {}: {}", imageName, e.getMessage());
+                }
+            }
+        }
+
+        // Without the tiler, the 'Tissue' annotations are removed here
+        if (streamTiles) {
+            imageData.getHierarchy().getAnnotationObjects().stream()
+                    .filter(annotation -> annotation.getPathClass() != null
+                            && annotation.getPathClass().getName().equals("Tissue"))
+                    .forEach(annotation -> imageData.getHierarchy().removeObject(annotation, false));
+        }
 
-        // Read the annotations from the GeoJSON file
-        String geoJSONPath = TaskPaths.getDetectionResultsPath(outputBaseDir, imageName);
-        List<PathObject> detectedObjects = PathIO.readObjects(Paths.get(geoJSONPath));
+        // The detections already read from the records of the detector are
+        // used, otherwise they are read from the polygon file, as well as when
+        // comparing it with GeoJSON. The detector keeps the duplicates of
+        // overlapping tiles, which are removed here
+        if (rawDetections == null || writeGeoJSON) {
+            rawDetections = PolygonFileReader.read(detectionsPath,
+                    Paths.get(TaskPaths.getDetectionGeoJSONPath(outputBaseDir, imageName)));
+        }
+        long startTime = System.currentTimeMillis();
+        List<PathObject> detectedObjects = detectionMerger.merge(rawDetections);
+        logger.info("Merged {} detections of {} into {} in {} ms", rawDetections.size(), imageName,
+                detectedObjects.size(), System.currentTimeMillis() - startTime);
 
         // Check if the thread has been interrupted before adding the detected
         // objects to the image hierarchy
@@ -139,17 +299,364 @@ public class GlomerulusDetectionTask extends Task<Void> {
             throw new InterruptedException();
         }
 
-        // Add the detected objects to the image hierarchy
+        // Contours have a vertex at every pixel step of the masks, which are
+        // removed before they are stored in the hierarchy
+        detectedObjects = new PolygonSimplifier(
+                imageData.getServer().getPixelCalibration().getAveragedPixelSizeMicrons())
+                .toleranceMicrons(simplifyToleranceMicrons)
+                .maxVertices(maxVertices)
+                .simplify(detectedObjects);
+
+        // Add the detected objects to the image hierarchy, without duplicating
+        // the glomeruli already in it
         PathObjectHierarchy hierarchy = imageData.getHierarchy();
-        hierarchy.addObjects(detectedObjects);
-        logger.info("Added {} detected objects to {}", detectedObjects.size(), imageName);
+        int nAdded = detectionDeduplicator.addDetections(hierarchy, detectedObjects);
+        logger.info("Added {} of {} detected objects to {}", nAdded, detectedObjects.size(), imageName);
 
-        // Update progress
-        if (progressListener.getProgress() >= 0.99) {
+        // Tiles are not needed anymore, if they were written. Only the folders
+        // of this image are removed, as other images may be processed at the
+        // same time
+        File tilerOutputFolder = new File(TaskPaths.getTilerOutputDir(outputBaseDir, imageName));
+        if (tilerOutputFolder.exists())
+            Utils.deleteFolder(tilerOutputFolder);
+
+        // Detections are already added to the image hierarchy, so they are not needed
+        File segmentOutputFolder = new File(TaskPaths.getDetectionOutputDir(outputBaseDir, imageName));
+        if (segmentOutputFolder.exists())
+            Utils.deleteFolder(segmentOutputFolder);
+
+        // Update progress, unless the detections were cached
+        if (!cached && progressListener.getProgress() >= 0.99) {
             progressListener.updateProgress();
         }
     }
 
+    /**
+     * Runs the detector, which writes the detections of the image to the
+     * detection output folder. The detections of each tile are read while the
+     * detector runs, and shown in the viewers of the image until it finishes
+     * 
+     * @param imageData
+     * @param outputBaseDir
+     * @return The detections read from the records of the detector, or null if
+     *         they are incomplete
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private List<PathObject> runDetector(ImageData<BufferedImage> imageData, String outputBaseDir)
+            throws IOException, InterruptedException {
+        String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
+        // Records of a previous run must not be read as the ones of this run
+        Path recordsPath = Paths.get(TaskPaths.getDetectionRecordsPath(outputBaseDir, imageName));
+        Files.deleteIfExists(recordsPath);
+
+        RecordsIngest ingest = new RecordsIngest(imageData, recordsPath);
+        Thread ingestThread = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(RECORDS_POLL_INTERVAL_MS);
+                    ingest.poll();
+                }
+            } catch (InterruptedException e) {
+                // Stopped once the detector finishes
+            } catch (IOException e) {
+                logger.warn("Could not read the detection records of {}: {}", imageName, e.getMessage());
+            }
+        }, Thread.currentThread().getName() + "-records");
+        ingestThread.setDaemon(true);
+        ingestThread.start();
+
+        try {
+            runDetectorProcess(imageData, outputBaseDir, ingest);
+        } finally {
+            ingest.close();
+            ingestThread.interrupt();
+            ingestThread.join();
+        }
+
+        // Records left since the last poll
+        try {
+            ingest.poll();
+        } catch (IOException e) {
+            logger.warn("Could not read the detection records of {}: {}", imageName, e.getMessage());
+            return null;
+        }
+        return ingest.getDetections();
+    }
+
+    /**
+     * Runs the detector process, or the detection job of the worker
+     * 
+     * @param imageData
+     * @param outputBaseDir
+     * @param ingest        Reader of the records, reset if the detector is run
+     *                      again
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void runDetectorProcess(ImageData<BufferedImage> imageData, String outputBaseDir, RecordsIngest ingest)
+            throws IOException, InterruptedException {
+        String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
+        VirtualEnvironment venv = new VirtualEnvironment(this.getClass().getSimpleName(), progressListener);
+
+        double pixelSize = imageData.getServer().getPixelCalibration().getAveragedPixelSizeMicrons();
+        double undersampling = desiredPixelSize / imageData.getServer().getPixelCalibration().getAveragedPixelSize().doubleValue();
+
+        // When streaming, the tiles are planned here with the same grid as the
+        // tiler, and only read while the detector consumes them
+        List<RegionRequest> tiles = null;
+        if (streamTiles) {
+            tiles = new TilePlanner(imageData, tileSize, tileOverlap, desiredPixelSize)
+                    .minTissueFraction(minTissueFraction)
+                    .planTiles();
+            logger.info("Planned {} tiles for {} [size={},overlap={}]", tiles.size(), imageName, tileSize,
+                    tileOverlap);
+        }
+
+        logger.info("Running detection for {}", imageName);
+        boolean detected = false;
+        if (useWorker) {
+            // The worker keeps the model loaded across images, so only the
+            // first image pays for loading it
+            try {
+                runDetection(imageData, tiles, streamPort -> {
+                    JsonObject params = new JsonObject();
+                    params.addProperty("wsi", imageName);
+                    params.addProperty("export", QP.buildFilePath(outputBaseDir));
+                    params.addProperty("model", modelName);
+                    params.addProperty("train_config", trainConfig);
+                    params.addProperty("undersampling", undersampling);
+                    params.addProperty("pixel_size", pixelSize);
+                    params.addProperty("nms", false);
+                    params.addProperty("geojson", writeGeoJSON);
+                    if (streamPort != null) {
+                        params.addProperty("stream_port", streamPort);
+                    }
+                    venv.runWorkerJob(TaskPaths.WORKER_COMMAND, "segment", params);
+                });
+                detected = true;
+            } catch (IOException e) {
+                logger.warn("Detection worker failed, running the detection command instead: {}", e.getMessage());
+            }
+        }
+        if (!detected) {
+            // The records of the failed worker job are not reused
+            ingest.reset();
+            runDetection(imageData, tiles, streamPort -> {
+                // This is the list of commands after the 'python' call
+                List<String> arguments = new ArrayList<>(Arrays.asList(TaskPaths.SEGMENT_COMMAND, "--wsi", imageName,
+                        "--export", QP.buildFilePath(outputBaseDir),
+                        "--model",
+                        modelName, "--train-config", trainConfig, "--undersampling", Double.toString(undersampling),
+                        "--pixel-size", Double.toString(pixelSize), "--no-nms"));
+                if (streamPort != null) {
+                    arguments.addAll(Arrays.asList("--stream-port", Integer.toString(streamPort)));
+                }
+                if (writeGeoJSON) {
+                    arguments.add("--geojson");
+                }
+                venv.setArguments(arguments);
+
+                // Run the command
+                venv.runCommand();
+            });
+        }
+        logger.info("Detection for {} finished", imageName);
+    }
+
+    /**
+     * Returns the key of the detections of the image in the cache
+     * 
+     * @param imageData
+     * @return The key, or null if the cache is not used or the key cannot be
+     *         computed
+     */
+    private String getCacheKey(ImageData<BufferedImage> imageData) {
+        if (detectionCache == null) {
+            return null;
+        }
+        try {
+            return detectionCache.getKey(imageData.getServer(), detectionParams);
+        } catch (IOException e) {
+            logger.warn("Could not fingerprint {}, the detection cache is not used: {}",
+                    imageData.getServer().getMetadata().getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Copies the cached detections of the image out of the cache
+     * 
+     * @param cacheKey
+     * @param cachedPath
+     * @return False if the detections are not cached
+     */
+    private boolean copyCachedDetections(String cacheKey, Path cachedPath) {
+        try {
+            return detectionCache.copyTo(cacheKey, cachedPath);
+        } catch (IOException e) {
+            logger.warn("Could not copy the cached detections {}: {}", cacheKey, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Runs the detector, streaming the given tiles to it if they are not null
+     * 
+     * @param imageData
+     * @param tiles     Tiles to stream, or null to read the tiler output
+     * @param detector  Runs the detector, reading from the given stream port
+     *                  if it is not null
+     * @throws IOException          If the detector or the streaming fail
+     * @throws InterruptedException
+     */
+    private void runDetection(ImageData<BufferedImage> imageData, List<RegionRequest> tiles, Detector detector)
+            throws IOException, InterruptedException {
+        if (tiles == null) {
+            detector.run(null);
+            return;
+        }
+
+        Exception[] streamError = { null };
+        try (TileStreamer streamer = new TileStreamer()) {
+            Thread streamThread = new Thread(() -> {
+                try {
+                    streamer.stream(imageData.getServer(), tiles);
+                } catch (IOException | InterruptedException e) {
+                    streamError[0] = e;
+                }
+            }, Thread.currentThread().getName() + "-stream");
+            streamThread.setDaemon(true);
+            streamThread.start();
+
+            try {
+                detector.run(streamer.getPort());
+            } finally {
+                // Stop waiting for the detector if it never connected
+                streamer.close();
+                streamThread.interrupt();
+                streamThread.join();
+            }
+        }
+        if (streamError[0] != null) {
+            throw new IOException("Tile streaming failed: " + streamError[0].getMessage(), streamError[0]);
+        }
+    }
+
+    /**
+     * Runs the detector for an image
+     */
+    @FunctionalInterface
+    private interface Detector {
+        void run(Integer streamPort) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Detections read from the records of the detector while it runs. The
+     * detections are merged each time new tiles are read, and drawn over the
+     * viewers showing the image
+     */
+    private class RecordsIngest {
+
+        private final Path recordsPath;
+
+        private DetectionRecordReader reader;
+
+        private boolean failed = false;
+
+        private final List<PathObject> detections = new ArrayList<>();
+
+        private final ProvisionalDetectionOverlay overlay;
+
+        private final long startTime = System.currentTimeMillis();
+
+        private final String imageName;
+
+        private final String serverPath;
+
+        private RecordsIngest(ImageData<BufferedImage> imageData, Path recordsPath) {
+            this.recordsPath = recordsPath;
+            this.reader = new DetectionRecordReader(recordsPath);
+            this.imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
+            this.serverPath = imageData.getServer().getPath();
+            this.overlay = new ProvisionalDetectionOverlay(qupath.getOverlayOptions());
+            Platform.runLater(() -> {
+                for (QuPathViewer viewer : qupath.getAllViewers()) {
+                    if (viewer.getServer() != null && serverPath.equals(viewer.getServer().getPath())) {
+                        viewer.getCustomOverlayLayers().add(overlay);
+                    }
+                }
+            });
+        }
+
+        private synchronized void poll() throws IOException {
+            List<PathObject> newDetections;
+            try {
+                newDetections = reader.poll();
+            } catch (IOException e) {
+                // Some detections may have been skipped
+                failed = true;
+                throw e;
+            }
+            if (newDetections.isEmpty()) {
+                return;
+            }
+            if (detections.isEmpty()) {
+                logger.info("First detections of {} read after {} ms", imageName,
+                        System.currentTimeMillis() - startTime);
+            }
+            detections.addAll(newDetections);
+            overlay.setDetections(detectionMerger.merge(detections));
+            Platform.runLater(() -> qupath.getAllViewers().stream()
+                    .filter(viewer -> viewer.getCustomOverlayLayers().contains(overlay))
+                    .forEach(QuPathViewer::repaint));
+        }
+
+        /**
+         * Discards the detections read, and the records written, before
+         * running the detector again
+         * 
+         * @throws IOException
+         */
+        private synchronized void reset() throws IOException {
+            Files.deleteIfExists(recordsPath);
+            reader = new DetectionRecordReader(recordsPath);
+            failed = false;
+            detections.clear();
+            overlay.setDetections(detections);
+        }
+
+        /**
+         * Returns the detections read, if the records of all the tiles have
+         * been read
+         * 
+         * @return The detections, or null if the records are incomplete
+         */
+        private synchronized List<PathObject> getDetections() {
+            if (failed || !reader.isDone()) {
+                logger.warn("Detection records of {} are incomplete, reading the detections file", imageName);
+                return null;
+            }
+            logger.info("Read {} detections from the records of {} tiles of {}", reader.getDetections(),
+                    reader.getTiles(), imageName);
+            return new ArrayList<>(detections);
+        }
+
+        /**
+         * Removes the overlay from the viewers, as the final detections are
+         * added to the image hierarchy
+         */
+        private void close() {
+            Platform.runLater(() -> {
+                for (QuPathViewer viewer : qupath.getAllViewers()) {
+                    if (viewer.getCustomOverlayLayers().remove(overlay)) {
+                        viewer.repaint();
+                    }
+                }
+            });
+        }
+    }
+
     /**
      * Detects glomeruli in the WSIs in a project and adds the detected objects to
      * the each image hierarchy
@@ -161,15 +668,15 @@ public class GlomerulusDetectionTask extends Task<Void> {
      */
     private void detectGlomeruliProject(Project<BufferedImage> project, String outputBaseDir)
             throws IOException, InterruptedException {
-        List<ProjectImageEntry<BufferedImage>> imageEntryList = project.getImageList();
+        // Without a session shared by the pipeline, the images are saved at the end
+        ImageDataSession session = this.session != null ? this.session : new ImageDataSession(project);
         logger.info("Running detection for {} images", selectedImages.size());
         // Only process the selected images
-        for (ProjectImageEntry<BufferedImage> imageEntry : imageEntryList) {
-            ImageData<BufferedImage> imageData = imageEntry.readImageData();
-            if (selectedImages.contains(GeneralTools.stripExtension(imageData.getServer().getMetadata().getName()))) {
-                detectGlomeruli(imageData, outputBaseDir);
-                imageEntry.saveImageData(imageData);
-            }
+        for (String imageName : selectedImages) {
+            session.process(imageName, true, imageData -> detectGlomeruli(imageData, outputBaseDir));
+        }
+        if (this.session == null) {
+            session.closeAll();
         }
         logger.info("Detection for {} images in the project finished", selectedImages.size());
     }
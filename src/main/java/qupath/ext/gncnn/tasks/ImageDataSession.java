@@ -0,0 +1,477 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.concurrent.Task;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Class to share the image data of a project across the pipeline stages, so
+ * that each image is read once, instead of once per stage, and saved when all
+ * its stages have finished (write-behind), or before a later stage modifies
+ * it again.
+ *
+ * The images are looked up by name, so the images which are not selected are
+ * never read. If the estimated size of the loaded images exceeds the memory
+ * budget, the least recently used images which are not being processed are
+ * saved and unloaded, and read again if needed.
+ *
+ * Before a stage modifies an image with unsaved changes, the image is saved,
+ * so that if the stage fails only its own changes are discarded. As images
+ * are only saved between their stages, the saved data is always the output of
+ * complete stages.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class ImageDataSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageDataSession.class);
+
+    /**
+     * Default memory budget of the loaded images
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 512L << 20;
+
+    // Rough estimate of the memory used by an object and by each ROI vertex
+    private static final long OBJECT_BYTES = 512;
+    private static final long VERTEX_BYTES = 16;
+
+    /**
+     * Function applied to the image data of an image
+     */
+    @FunctionalInterface
+    public interface ImageDataAction {
+        void apply(ImageData<BufferedImage> imageData) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Function applied to a project entry once its image data has been saved
+     */
+    @FunctionalInterface
+    public interface SavedAction {
+        void apply(ProjectImageEntry<BufferedImage> projectEntry) throws IOException;
+    }
+
+    private static class Entry {
+
+        private final ProjectImageEntry<BufferedImage> projectEntry;
+
+        private ImageData<BufferedImage> imageData;
+
+        private int users = 0;
+
+        private boolean dirty = false;
+
+        // Whether the image is being saved to be unloaded, during which it
+        // cannot be used
+        private boolean saving = false;
+
+        private long estimatedBytes = 0;
+
+        private final List<SavedAction> savedActions = new ArrayList<>();
+
+        // Number of saved actions registered before the current stage
+        private int stageActions = 0;
+
+        private Entry(ProjectImageEntry<BufferedImage> projectEntry) {
+            this.projectEntry = projectEntry;
+        }
+    }
+
+    private final Project<BufferedImage> project;
+
+    private long memoryBudget;
+
+    private Map<String, ProjectImageEntry<BufferedImage>> projectEntries;
+
+    // Loaded images, in access order
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long estimatedBytes = 0;
+
+    private boolean closed = false;
+
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private final AtomicInteger writes = new AtomicInteger();
+
+    public ImageDataSession(Project<BufferedImage> project) {
+        this(project, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Creates a session for the images of a project
+     *
+     * @param project
+     * @param memoryBudget Maximum estimated size of the loaded images, in bytes
+     */
+    public ImageDataSession(Project<BufferedImage> project, long memoryBudget) {
+        this.project = project;
+        this.memoryBudget = memoryBudget;
+    }
+
+    public int getReads() {
+        return reads.get();
+    }
+
+    public int getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * Applies an action to the image data of an image, reading it if it is
+     * not loaded yet
+     *
+     * @param imageName Name of the image, without extension
+     * @param modifies  Whether the action changes the image data, which then
+     *                  has to be saved
+     * @param action
+     * @return False if the image is not in the project
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public boolean process(String imageName, boolean modifies, ImageDataAction action)
+            throws IOException, InterruptedException {
+        ImageData<BufferedImage> imageData = acquire(imageName);
+        if (imageData == null) {
+            logger.warn("Image {} not found in the project", imageName);
+            return false;
+        }
+
+        boolean started = false;
+        boolean succeeded = false;
+        try {
+            if (modifies) {
+                saveBeforeStage(imageName);
+            }
+            started = true;
+            action.apply(imageData);
+            succeeded = true;
+        } finally {
+            release(imageName, modifies && started, succeeded);
+        }
+        return true;
+    }
+
+    /**
+     * Registers an action to apply once the image is saved and closed, e.g. to
+     * write data derived from its final state. The action is not applied if
+     * the stage which registers it fails and its changes are discarded
+     *
+     * @param imageName
+     * @param action
+     */
+    public synchronized void whenSaved(String imageName, SavedAction action) {
+        Entry entry = entries.get(imageName);
+        if (entry != null && !closed) {
+            entry.savedActions.add(action);
+        }
+    }
+
+    /**
+     * Returns true if the image has changes which have not been saved
+     *
+     * @param imageName
+     * @return True if there are unsaved changes
+     */
+    public synchronized boolean hasUnsavedChanges(String imageName) {
+        Entry entry = entries.get(imageName);
+        return entry != null && entry.dirty;
+    }
+
+    /**
+     * Saves the image data of an image if it has changed, and unloads it
+     *
+     * @param imageName
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void close(String imageName) throws IOException, InterruptedException {
+        Entry entry;
+        synchronized (this) {
+            entry = waitUntilSaved(imageName);
+            if (entry == null) {
+                return;
+            }
+            entries.remove(imageName);
+            estimatedBytes -= entry.estimatedBytes;
+        }
+        // The entry is not shared anymore, so other images are not blocked
+        // while it is saved
+        save(imageName, entry);
+        for (SavedAction action : entry.savedActions) {
+            action.apply(entry.projectEntry);
+        }
+    }
+
+    /**
+     * Saves and unloads all the images
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void closeAll() throws IOException, InterruptedException {
+        List<String> imageNames;
+        synchronized (this) {
+            imageNames = new ArrayList<>(entries.keySet());
+        }
+        for (String imageName : imageNames) {
+            close(imageName);
+        }
+    }
+
+    /**
+     * Discards all the unsaved changes, e.g. when the pipeline is cancelled.
+     * Images released afterwards are not saved
+     */
+    public synchronized void discardAll() {
+        closed = true;
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().dirty) {
+                logger.info("Discarding unsaved changes of {}", entry.getKey());
+            }
+        }
+        entries.clear();
+        estimatedBytes = 0;
+    }
+
+    private ImageData<BufferedImage> acquire(String imageName) throws IOException, InterruptedException {
+        Entry entry;
+        synchronized (this) {
+            entry = waitUntilSaved(imageName);
+            if (entry == null) {
+                ProjectImageEntry<BufferedImage> projectEntry = getProjectEntries().get(imageName);
+                if (projectEntry == null) {
+                    return null;
+                }
+                entry = new Entry(projectEntry);
+                entries.put(imageName, entry);
+            }
+            // Entries in use are not unloaded
+            entry.users++;
+            if (entry.imageData != null) {
+                return entry.imageData;
+            }
+        }
+
+        // An image is only used by one stage at a time, so it can be read
+        // without blocking the other images
+        ImageData<BufferedImage> imageData;
+        try {
+            imageData = entry.projectEntry.readImageData();
+        } catch (IOException e) {
+            synchronized (this) {
+                entry.users--;
+            }
+            throw e;
+        }
+        reads.incrementAndGet();
+        logger.debug("Read image data of {}", imageName);
+        synchronized (this) {
+            entry.imageData = imageData;
+        }
+        return imageData;
+    }
+
+    /**
+     * Waits until the image is not being saved to be unloaded
+     *
+     * @return The entry of the image, or null if it is not loaded
+     * @throws InterruptedException
+     */
+    private synchronized Entry waitUntilSaved(String imageName) throws InterruptedException {
+        Entry entry = entries.get(imageName);
+        while (entry != null && entry.saving) {
+            wait();
+            entry = entries.get(imageName);
+        }
+        return entry;
+    }
+
+    /**
+     * Saves the changes of the previous stages of an image before a stage
+     * modifies it, so that they are kept if the stage fails
+     *
+     * @throws IOException
+     */
+    private void saveBeforeStage(String imageName) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(imageName);
+            if (entry == null) {
+                return;
+            }
+            entry.stageActions = entry.savedActions.size();
+        }
+        // The image is in use by this stage only, so it is not unloaded
+        // while it is saved
+        save(imageName, entry);
+    }
+
+    private void release(String imageName, boolean modified, boolean succeeded) {
+        Map<String, Entry> unloaded;
+        synchronized (this) {
+            Entry entry = entries.get(imageName);
+            if (entry == null || closed) {
+                return;
+            }
+            entry.users--;
+            if (modified && !succeeded) {
+                // The image data may have been partially changed. The changes
+                // of the previous stages were saved before the stage started
+                if (entry.dirty) {
+                    logger.warn("Discarding the changes of the failed stage of {}", imageName);
+                }
+                entry.dirty = false;
+                entry.imageData = null;
+                entry.savedActions.subList(entry.stageActions, entry.savedActions.size()).clear();
+                estimatedBytes -= entry.estimatedBytes;
+                entry.estimatedBytes = 0;
+                return;
+            }
+
+            entry.dirty = entry.dirty || modified;
+            estimatedBytes -= entry.estimatedBytes;
+            entry.estimatedBytes = estimateBytes(entry.imageData);
+            estimatedBytes += entry.estimatedBytes;
+            unloaded = selectUnloaded();
+        }
+        unload(unloaded);
+    }
+
+    /**
+     * Selects the least recently used images not in use to unload until the
+     * loaded images fit in the memory budget, and marks them as being saved
+     *
+     * @return The images to unload
+     */
+    private Map<String, Entry> selectUnloaded() {
+        Map<String, Entry> unloaded = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> next : entries.entrySet()) {
+            if (estimatedBytes <= memoryBudget) {
+                break;
+            }
+            Entry entry = next.getValue();
+            if (entry.users > 0 || entry.imageData == null || entry.saving) {
+                continue;
+            }
+            entry.saving = true;
+            estimatedBytes -= entry.estimatedBytes;
+            unloaded.put(next.getKey(), entry);
+        }
+        return unloaded;
+    }
+
+    /**
+     * Saves and unloads images outside the lock, so that the other images are
+     * not blocked while they are written. An image which cannot be saved is
+     * kept in memory, to be saved again when it is closed
+     */
+    private void unload(Map<String, Entry> unloaded) {
+        for (Map.Entry<String, Entry> next : unloaded.entrySet()) {
+            String imageName = next.getKey();
+            Entry entry = next.getValue();
+            logger.info("Unloading {} to keep the image data under {} MB", imageName, memoryBudget >> 20);
+            boolean saved = false;
+            try {
+                save(imageName, entry);
+                saved = true;
+            } catch (IOException e) {
+                logger.error("Could not save {}, keeping it in memory", imageName, e);
+            }
+            synchronized (this) {
+                entry.saving = false;
+                if (saved) {
+                    entry.imageData = null;
+                    entry.estimatedBytes = 0;
+                } else if (entries.get(imageName) == entry) {
+                    estimatedBytes += entry.estimatedBytes;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void save(String imageName, Entry entry) throws IOException {
+        ImageData<BufferedImage> imageData;
+        synchronized (this) {
+            if (closed || !entry.dirty || entry.imageData == null) {
+                return;
+            }
+            imageData = entry.imageData;
+        }
+        entry.projectEntry.saveImageData(imageData);
+        synchronized (this) {
+            entry.dirty = false;
+        }
+        writes.incrementAndGet();
+        logger.debug("Saved image data of {}", imageName);
+    }
+
+    /**
+     * Returns the entries of the project by image name, without reading any
+     * image data
+     *
+     * @return The project entries
+     */
+    private Map<String, ProjectImageEntry<BufferedImage>> getProjectEntries() {
+        if (projectEntries == null) {
+            projectEntries = new HashMap<>();
+            for (ProjectImageEntry<BufferedImage> projectEntry : project.getImageList()) {
+                projectEntries.put(GeneralTools.stripExtension(projectEntry.getImageName()), projectEntry);
+            }
+        }
+        return projectEntries;
+    }
+
+    private static long estimateBytes(ImageData<BufferedImage> imageData) {
+        long bytes = 0;
+        for (PathObject pathObject : imageData.getHierarchy().getFlattenedObjectList(null)) {
+            bytes += OBJECT_BYTES;
+            ROI roi = pathObject.getROI();
+            if (roi != null) {
+                bytes += VERTEX_BYTES * roi.getNumPoints();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Task which saves and unloads an image once all its stages have finished
+     */
+    public static class SaveTask extends Task<Void> {
+
+        private final ImageDataSession session;
+
+        private final String imageName;
+
+        public SaveTask(ImageDataSession session, String imageName) {
+            this.session = session;
+            this.imageName = imageName;
+        }
+
+        @Override
+        protected Void call() throws IOException, InterruptedException {
+            session.close(imageName);
+            return null;
+        }
+    }
+}
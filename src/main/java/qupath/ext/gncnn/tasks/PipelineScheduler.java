@@ -0,0 +1,575 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.concurrent.Task;
+import javafx.concurrent.WorkerStateEvent;
+import qupath.lib.common.ThreadTools;
+
+/**
+ * Class to schedule the pipeline stages image by image, so that the stages of
+ * different images overlap. Each (image, stage) pair is a job which depends on
+ * the previous stage of the same image, and each stage runs in its own thread
+ * pool with a configurable concurrency limit.
+ *
+ * If a checkpoint manifest is set, each image resumes after the last stage
+ * which completed with the same parameters and whose output is still
+ * available, and each completed stage is recorded in the manifest. The
+ * outputs are checked in the background, as the checks may read the image.
+ *
+ * If an image data session is set, each image is saved once all its stages
+ * have finished. The stages completed since the last save of an image are
+ * only recorded in the manifest once their changes have been saved.
+ *
+ * All the methods are expected to be called from the JavaFX application thread.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class PipelineScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(PipelineScheduler.class);
+
+    /**
+     * Name of the pool where the images are saved
+     */
+    public static final String SAVE_STAGE = "SaveTask";
+
+    /**
+     * Name of the pool where the completed stages of the images are checked
+     */
+    public static final String RESUME_CHECK_STAGE = "ResumeCheckTask";
+
+    /**
+     * A pipeline stage, which creates the task to run for a single image
+     */
+    public static class Stage {
+
+        private final String name;
+
+        private final Function<String, Task<?>> taskFactory;
+
+        private Map<String, String> params = Map.of();
+
+        private Predicate<String> outputAvailable = imageName -> true;
+
+        public Stage(String name, Function<String, Task<?>> taskFactory) {
+            this.name = name;
+            this.taskFactory = taskFactory;
+        }
+
+        /**
+         * Sets the parameters recorded in the checkpoints of the stage, and
+         * the check of whether the output of the stage for an image is still
+         * available, e.g. temporary files which may have been removed or
+         * glomeruli added since the stage completed. The check is called
+         * outside the JavaFX application thread
+         *
+         * @param params
+         * @param outputAvailable
+         * @return This stage
+         */
+        public Stage checkpointed(Map<String, String> params, Predicate<String> outputAvailable) {
+            this.params = params;
+            this.outputAvailable = outputAvailable;
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Map<String, String> getParams() {
+            return params;
+        }
+
+        public boolean isOutputAvailable(String imageName) {
+            return outputAvailable.test(imageName);
+        }
+
+        public Task<?> createTask(String imageName) {
+            return taskFactory.apply(imageName);
+        }
+    }
+
+    private final BiConsumer<Task<?>, ExecutorService> submitter;
+
+    private final Map<String, Integer> stageConcurrency = new HashMap<>();
+
+    private final Map<String, ThreadPoolExecutor> stagePools = new HashMap<>();
+
+    private final Deque<String> pendingImages = new ArrayDeque<>();
+
+    private int maxImagesInFlight = 3;
+
+    private int imagesInFlight = 0;
+
+    private boolean shutdown = false;
+
+    // Incremented on each run, so that the events of the tasks of a cancelled
+    // run do not affect the next one
+    private int generation = 0;
+
+    private List<Stage> stages = new ArrayList<>();
+
+    private Runnable onFinished;
+
+    private CheckpointManifest checkpoints;
+
+    private boolean resume = true;
+
+    private BiConsumer<String, String> onStageSkipped;
+
+    private Consumer<String> onImageCompleted;
+
+    private BiConsumer<String, String> onImageFailed;
+
+    private ImageDataSession session;
+
+    // Completed stages of each image waiting for their changes to be saved
+    private final Map<String, List<Stage>> pendingCheckpoints = new HashMap<>();
+
+    /**
+     * Creates a scheduler
+     *
+     * @param submitter Function used to submit each task to the pool of its
+     *                  stage
+     */
+    public PipelineScheduler(BiConsumer<Task<?>, ExecutorService> submitter) {
+        this.submitter = submitter;
+    }
+
+    /**
+     * Sets the maximum number of tasks of a stage that can run at the same time.
+     * If the pool of the stage has already been created it is resized: the
+     * running tasks are not interrupted, and extra threads stop once idle
+     *
+     * @param stageName
+     * @param concurrency
+     */
+    public void setStageConcurrency(String stageName, int concurrency) {
+        concurrency = Math.max(1, concurrency);
+        stageConcurrency.put(stageName, concurrency);
+        ThreadPoolExecutor pool = stagePools.get(stageName);
+        if (pool == null || pool.getMaximumPoolSize() == concurrency) {
+            return;
+        }
+        // The core size cannot exceed the maximum one at any point
+        if (concurrency > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(concurrency);
+            pool.setCorePoolSize(concurrency);
+        } else {
+            pool.setCorePoolSize(concurrency);
+            pool.setMaximumPoolSize(concurrency);
+        }
+        logger.info("Pool for {} resized to {} threads", stageName, concurrency);
+    }
+
+    /**
+     * Sets the maximum number of images going through the pipeline at the same
+     * time. It bounds the temporary files kept on disk (e.g. tiles waiting
+     * for detection)
+     *
+     * @param maxImagesInFlight
+     */
+    public void setMaxImagesInFlight(int maxImagesInFlight) {
+        this.maxImagesInFlight = Math.max(1, maxImagesInFlight);
+    }
+
+    /**
+     * Sets the manifest where the completed stages are recorded
+     *
+     * @param checkpoints The manifest, or null to disable the checkpoints
+     * @param resume      Whether the stages already completed are skipped
+     */
+    public void setCheckpoints(CheckpointManifest checkpoints, boolean resume) {
+        this.checkpoints = checkpoints;
+        this.resume = resume;
+    }
+
+    /**
+     * Sets the session shared by the tasks, whose images are saved when they
+     * go out of the pipeline
+     *
+     * @param session The session, or null if the tasks save the images
+     */
+    public void setImageDataSession(ImageDataSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Sets the function called with the image and stage names for each stage
+     * skipped because it had already completed
+     *
+     * @param onStageSkipped
+     */
+    public void setOnStageSkipped(BiConsumer<String, String> onStageSkipped) {
+        this.onStageSkipped = onStageSkipped;
+    }
+
+    /**
+     * Sets the function called with the name of each image which has gone
+     * through all the stages, once its changes have been saved
+     *
+     * @param onImageCompleted
+     */
+    public void setOnImageCompleted(Consumer<String> onImageCompleted) {
+        this.onImageCompleted = onImageCompleted;
+    }
+
+    /**
+     * Sets the function called with the image and stage names when a stage
+     * fails for an image, or its changes cannot be saved. The remaining
+     * stages of the image do not run
+     *
+     * @param onImageFailed
+     */
+    public void setOnImageFailed(BiConsumer<String, String> onImageFailed) {
+        this.onImageFailed = onImageFailed;
+    }
+
+    /**
+     * Returns true if there are images being processed or waiting to be
+     * processed
+     *
+     * @return True if the scheduler is running
+     */
+    public boolean isRunning() {
+        return imagesInFlight > 0 || !pendingImages.isEmpty();
+    }
+
+    /**
+     * Runs the given stages for each image. The stages of an image run in order,
+     * while the stages of different images can run at the same time
+     *
+     * @param imageNames
+     * @param stages
+     * @param onFinished Called when all the images have gone through the
+     *                   pipeline
+     */
+    public void run(List<String> imageNames, List<Stage> stages, Runnable onFinished) {
+        if (isRunning()) {
+            logger.error("Pipeline already running");
+            return;
+        }
+
+        shutdown = false;
+        generation++;
+        this.stages = new ArrayList<>(stages);
+        this.onFinished = onFinished;
+        pendingImages.addAll(imageNames);
+
+        logger.info("Scheduling {} stages for {} images [max images in flight={}]", stages.size(),
+                imageNames.size(), maxImagesInFlight);
+        startPendingImages();
+    }
+
+    /**
+     * Cancels all the running tasks and discards the pending ones. The
+     * scheduler can be run again afterwards
+     */
+    public void shutdownNow() {
+        shutdown = true;
+        pendingImages.clear();
+        pendingCheckpoints.clear();
+        imagesInFlight = 0;
+        for (ExecutorService pool : stagePools.values()) {
+            pool.shutdownNow();
+        }
+        stagePools.clear();
+    }
+
+    private void startPendingImages() {
+        while (imagesInFlight < maxImagesInFlight && !pendingImages.isEmpty()) {
+            imagesInFlight++;
+            String imageName = pendingImages.poll();
+            resumeImage(imageName);
+        }
+    }
+
+    /**
+     * Starts an image from the first stage to run. The output checks may
+     * read the image, so if any stage may be skipped the resume index is
+     * found in the background
+     *
+     * @param imageName
+     */
+    private void resumeImage(String imageName) {
+        int completedStages = getCompletedStages(imageName);
+        if (completedStages == 0) {
+            startImage(imageName, 0);
+            return;
+        }
+
+        int taskGeneration = generation;
+        ResumeCheckTask task = new ResumeCheckTask(imageName, new ArrayList<>(stages), completedStages);
+        task.addEventHandler(WorkerStateEvent.WORKER_STATE_SUCCEEDED, e -> {
+            if (taskGeneration == generation) {
+                startImage(imageName, task.getValue());
+            }
+        });
+        task.addEventHandler(WorkerStateEvent.WORKER_STATE_FAILED, e -> {
+            if (taskGeneration == generation) {
+                logger.warn("Could not check the completed stages of {}, running all of them", imageName,
+                        task.getException());
+                startImage(imageName, 0);
+            }
+        });
+        task.addEventHandler(WorkerStateEvent.WORKER_STATE_CANCELLED, e -> {
+            if (taskGeneration == generation) {
+                finishImage(imageName);
+            }
+        });
+        submitter.accept(task, getStagePool(RESUME_CHECK_STAGE));
+    }
+
+    /**
+     * Returns the number of stages which have completed for an image, from
+     * the first one, with the current parameters
+     *
+     * @param imageName
+     * @return The number of completed stages
+     */
+    private int getCompletedStages(String imageName) {
+        if (checkpoints == null || !resume) {
+            return 0;
+        }
+        int completedStages = 0;
+        while (completedStages < stages.size()) {
+            Stage stage = stages.get(completedStages);
+            if (!checkpoints.isCompleted(imageName, stage.getName(), stage.getParams())) {
+                break;
+            }
+            completedStages++;
+        }
+        return completedStages;
+    }
+
+    /**
+     * Returns the index of the first stage to run for an image, i.e. after the
+     * last completed stage whose output is still available. The stages are
+     * checked from the last one, so the output of a stage is not required if
+     * it has been consumed by a later stage whose output is available, e.g.
+     * the tiles once the glomeruli have been detected. A stage whose output
+     * is not available, e.g. the classification of an image with new
+     * glomeruli, runs again with all the stages before it back to the last
+     * available output
+     *
+     * @param imageName
+     * @param stages
+     * @param completedStages
+     * @return The index of the first stage to run
+     */
+    static int getResumeIndex(String imageName, List<Stage> stages, int completedStages) {
+        for (int i = completedStages; i > 0; i--) {
+            if (stages.get(i - 1).isOutputAvailable(imageName)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Submits the first stage to run for an image, notifying the stages
+     * skipped and invalidating the checkpoints of the stages which run again
+     *
+     * @param imageName
+     * @param resumeIndex
+     */
+    private void startImage(String imageName, int resumeIndex) {
+        if (shutdown) {
+            return;
+        }
+        if (resumeIndex > 0) {
+            logger.info("Skipping {} completed stages for {}", resumeIndex, imageName);
+            if (onStageSkipped != null) {
+                for (int i = 0; i < resumeIndex; i++) {
+                    onStageSkipped.accept(imageName, stages.get(i).getName());
+                }
+            }
+        }
+
+        // The stages which run again invalidate the ones depending on them
+        if (checkpoints != null && resumeIndex < stages.size()) {
+            checkpoints.invalidate(imageName, stages.get(resumeIndex).getName());
+        }
+        submitStage(imageName, resumeIndex);
+    }
+
+    /**
+     * Task to check in the background which completed stages of an image can
+     * be skipped
+     */
+    private static class ResumeCheckTask extends Task<Integer> {
+
+        private final String imageName;
+
+        private final List<Stage> stages;
+
+        private final int completedStages;
+
+        private ResumeCheckTask(String imageName, List<Stage> stages, int completedStages) {
+            this.imageName = imageName;
+            this.stages = stages;
+            this.completedStages = completedStages;
+        }
+
+        @Override
+        protected Integer call() throws Exception {
+            return getResumeIndex(imageName, stages, completedStages);
+        }
+    }
+
+    private void submitStage(String imageName, int stageIndex) {
+        if (shutdown) {
+            return;
+        }
+        if (stageIndex >= stages.size()) {
+            saveImage(imageName, true);
+            return;
+        }
+
+        int taskGeneration = generation;
+        Stage stage = stages.get(stageIndex);
+        Task<?> task = stage.createTask(imageName);
+        task.addEventHandler(WorkerStateEvent.WORKER_STATE_SUCCEEDED, e -> {
+            if (taskGeneration != generation) {
+                return;
+            }
+            if (checkpoints != null) {
+                pendingCheckpoints.computeIfAbsent(imageName, name -> new ArrayList<>()).add(stage);
+                if (session == null || !session.hasUnsavedChanges(imageName)) {
+                    commitCheckpoints(imageName);
+                }
+            }
+            submitStage(imageName, stageIndex + 1);
+        });
+        task.addEventHandler(WorkerStateEvent.WORKER_STATE_FAILED, e -> {
+            if (taskGeneration != generation) {
+                return;
+            }
+            logger.warn("{} failed for {}, skipping the remaining stages", stage.getName(), imageName);
+            notifyImageFailed(imageName, stage.getName());
+            // The changes of the failed stage have been discarded, while those
+            // of the stages completed before it were saved when it started, or
+            // are saved now, and their checkpoints recorded
+            saveImage(imageName, false);
+        });
+        task.addEventHandler(WorkerStateEvent.WORKER_STATE_CANCELLED, e -> {
+            if (taskGeneration == generation) {
+                finishImage(imageName);
+            }
+        });
+
+        logger.debug("Submitting {} for {}", stage.getName(), imageName);
+        submitter.accept(task, getStagePool(stage.getName()));
+    }
+
+    /**
+     * Saves the changes of an image in the session, and records the stages
+     * completed since the last save, before finishing the image
+     *
+     * @param imageName
+     * @param completed Whether all the stages of the image succeeded
+     */
+    private void saveImage(String imageName, boolean completed) {
+        if (session == null) {
+            commitCheckpoints(imageName);
+            if (completed) {
+                notifyImageCompleted(imageName);
+            }
+            finishImage(imageName);
+            return;
+        }
+
+        int taskGeneration = generation;
+        ImageDataSession.SaveTask task = new ImageDataSession.SaveTask(session, imageName);
+        task.addEventHandler(WorkerStateEvent.WORKER_STATE_SUCCEEDED, e -> {
+            if (taskGeneration != generation) {
+                return;
+            }
+            commitCheckpoints(imageName);
+            if (completed) {
+                notifyImageCompleted(imageName);
+            }
+            finishImage(imageName);
+        });
+        task.addEventHandler(WorkerStateEvent.WORKER_STATE_FAILED, e -> {
+            if (taskGeneration != generation) {
+                return;
+            }
+            logger.error("Error saving {}", imageName, task.getException());
+            pendingCheckpoints.remove(imageName);
+            notifyImageFailed(imageName, SAVE_STAGE);
+            finishImage(imageName);
+        });
+        task.addEventHandler(WorkerStateEvent.WORKER_STATE_CANCELLED, e -> {
+            if (taskGeneration == generation) {
+                finishImage(imageName);
+            }
+        });
+
+        logger.debug("Submitting save of {}", imageName);
+        submitter.accept(task, getStagePool(SAVE_STAGE));
+    }
+
+    private void commitCheckpoints(String imageName) {
+        List<Stage> completed = pendingCheckpoints.remove(imageName);
+        if (checkpoints == null || completed == null) {
+            return;
+        }
+        for (Stage stage : completed) {
+            checkpoints.markCompleted(imageName, stage.getName(), stage.getParams());
+        }
+    }
+
+    private void notifyImageCompleted(String imageName) {
+        if (onImageCompleted != null) {
+            onImageCompleted.accept(imageName);
+        }
+    }
+
+    private void notifyImageFailed(String imageName, String stageName) {
+        if (onImageFailed != null) {
+            onImageFailed.accept(imageName, stageName);
+        }
+    }
+
+    private void finishImage(String imageName) {
+        if (shutdown) {
+            return;
+        }
+        logger.info("Pipeline finished for {}", imageName);
+        imagesInFlight--;
+        startPendingImages();
+        if (!isRunning() && onFinished != null) {
+            onFinished.run();
+        }
+    }
+
+    private ExecutorService getStagePool(String stageName) {
+        return stagePools.computeIfAbsent(stageName, name -> {
+            int concurrency = stageConcurrency.getOrDefault(name, 1);
+            return new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), ThreadTools.createThreadFactory("GNCnn-" + name + "-", true));
+        });
+    }
+}
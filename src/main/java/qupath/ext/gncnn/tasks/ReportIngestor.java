@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.gncnn.entities.GlomerulusClass;
+import qupath.ext.gncnn.utils.ClassificationMetadata;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Class to apply the classification report of a WSI to its glomeruli.
+ *
+ * The annotations are indexed by ID once, and the report is parsed in a
+ * single streaming pass using its header, so the columns may be in any order.
+ * Only the glomeruli to classify with the given models are updated, as the
+ * report also has the rows of the glomeruli classified by previous runs.
+ * The classes and probability measurements are applied once the whole report
+ * has been read, with a single classification event for the hierarchy.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class ReportIngestor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportIngestor.class);
+
+    private static final GlomerulusClass[] CLASSES = GlomerulusClass.PREDICTED_CLASSES;
+
+    private static final String FILENAME_COLUMN = "filename";
+
+    private static final String ANNOTATION_ID_COLUMN = "annotation-id";
+
+    private static final String CLASS_COLUMN = "predicted-class";
+
+    private static final CSVFormat REPORT_FORMAT = CSVFormat.DEFAULT.builder()
+            .setDelimiter(';')
+            .setHeader()
+            .setSkipHeaderRecord(true)
+            .build();
+
+    private PathObjectHierarchy hierarchy;
+
+    private String modelId;
+
+    private Map<UUID, PathObject> index;
+
+    /**
+     * Creates an ingestor for the glomeruli of a hierarchy
+     *
+     * @param hierarchy
+     * @param modelId   Identifier of the models which created the reports
+     */
+    public ReportIngestor(PathObjectHierarchy hierarchy, String modelId) {
+        this.hierarchy = hierarchy;
+        this.modelId = modelId;
+    }
+
+    /**
+     * Reads a classification report and applies it to the annotations
+     *
+     * @param reportPath
+     * @return The number of annotations updated
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public int ingest(Path reportPath) throws IOException, InterruptedException {
+        long startTime = System.nanoTime();
+        if (index == null) {
+            index = buildIndex(hierarchy);
+        }
+        long indexTime = System.nanoTime();
+
+        List<Update> updates = new ArrayList<>();
+        int unmatched = 0;
+        int kept = 0;
+        try (Reader reader = Files.newBufferedReader(reportPath, StandardCharsets.UTF_8);
+                CSVParser csvParser = new CSVParser(reader, REPORT_FORMAT)) {
+            Map<String, Integer> header = csvParser.getHeaderMap();
+            int filenameColumn = getColumn(header, FILENAME_COLUMN, reportPath);
+            // Reports of packed crops only have the ID in its own column
+            int annotationIdColumn = header.getOrDefault(ANNOTATION_ID_COLUMN, -1);
+            int classColumn = getColumn(header, CLASS_COLUMN, reportPath);
+            int[] probColumns = new int[CLASSES.length];
+            for (int i = 0; i < CLASSES.length; i++) {
+                probColumns[i] = header.getOrDefault(CLASSES[i].getProbName(), -1);
+            }
+
+            for (CSVRecord record : csvParser) {
+                // Check if the thread has been interrupted every few rows
+                if ((record.getRecordNumber() & 0xFF) == 0 && Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                UUID annotationId = annotationIdColumn >= 0 ? parseId(record.get(annotationIdColumn)) : null;
+                if (annotationId == null) {
+                    annotationId = getAnnotationId(record.get(filenameColumn));
+                }
+                PathObject annotation = annotationId == null ? null : index.get(annotationId);
+                if (annotation == null) {
+                    unmatched++;
+                    continue;
+                }
+                // The report keeps the rows of previous runs, whose glomeruli
+                // keep their results, e.g. a class changed by hand
+                if (!ClassificationMetadata.needsClassification(annotation, modelId)) {
+                    kept++;
+                    continue;
+                }
+
+                double[] probs = new double[CLASSES.length];
+                for (int i = 0; i < CLASSES.length; i++) {
+                    // Missing probabilities (NaN in the report) are written as 0
+                    if (probColumns[i] >= 0 && probColumns[i] < record.size()
+                            && !record.get(probColumns[i]).isEmpty()) {
+                        double prob = Double.parseDouble(record.get(probColumns[i]));
+                        probs[i] = Double.isNaN(prob) ? 0 : prob;
+                    }
+                }
+                updates.add(new Update(annotation, getPathClass(record.get(classColumn)), probs));
+            }
+        }
+        long parseTime = System.nanoTime();
+
+        apply(updates);
+        long applyTime = System.nanoTime();
+
+        logger.info("Applied {} rows of {} ({} unmatched, {} kept) in {} ms [index={} ms, parse={} ms, "
+                + "apply={} ms]", updates.size(), reportPath.getFileName(), unmatched, kept,
+                (applyTime - startTime) / 1_000_000,
+                (indexTime - startTime) / 1_000_000, (parseTime - indexTime) / 1_000_000,
+                (applyTime - parseTime) / 1_000_000);
+        return updates.size();
+    }
+
+    /**
+     * Applies the updates to the annotations, and notifies the hierarchy once
+     *
+     * @param updates
+     */
+    private void apply(List<Update> updates) {
+        if (updates.isEmpty()) {
+            return;
+        }
+        List<PathObject> changed = new ArrayList<>(updates.size());
+        for (Update update : updates) {
+            PathObject annotation = update.annotation;
+            annotation.setPathClass(update.pathClass);
+            ClassificationMetadata.markClassified(annotation, modelId);
+
+            // Add custom measurements for each class probabilities
+            try (MeasurementList measurements = annotation.getMeasurementList()) {
+                for (int i = 0; i < CLASSES.length; i++) {
+                    measurements.put(CLASSES[i].getProbName(), update.probs[i]);
+                }
+            }
+            changed.add(annotation);
+        }
+        hierarchy.fireObjectClassificationsChangedEvent(this, changed);
+    }
+
+    private static Map<UUID, PathObject> buildIndex(PathObjectHierarchy hierarchy) {
+        Map<UUID, PathObject> index = new HashMap<>();
+        for (PathObject annotation : hierarchy.getAnnotationObjects()) {
+            index.put(annotation.getID(), annotation);
+        }
+        return index;
+    }
+
+    private static int getColumn(Map<String, Integer> header, String name, Path reportPath) throws IOException {
+        Integer column = header.get(name);
+        if (column == null) {
+            throw new IOException("Column '" + name + "' not found in " + reportPath);
+        }
+        return column;
+    }
+
+    private static UUID parseId(String annotationId) {
+        try {
+            return annotationId.isEmpty() ? null : UUID.fromString(annotationId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the annotation ID of an exported crop, named as
+     * "{image}_{class}_{id}_{x}_{y}_{w}_{h}.png". The ID is taken counting
+     * from the end, as the image name may have underscores
+     *
+     * @param filename Name or path of the crop
+     * @return The annotation ID, or null if the name does not have one
+     */
+    static UUID getAnnotationId(String filename) {
+        int end = filename.lastIndexOf('.');
+        if (end < 0) {
+            end = filename.length();
+        }
+        // Skip the four region fields
+        for (int i = 0; i < 4 && end > 0; i++) {
+            end = filename.lastIndexOf('_', end - 1);
+        }
+        int start = end > 0 ? filename.lastIndexOf('_', end - 1) : -1;
+        if (start < 0) {
+            return null;
+        }
+        try {
+            return UUID.fromString(filename.substring(start + 1, end));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the class of a predicted label. Multiclass predictions are the
+     * top-k classes separated by " | ", and are coloured as the first one
+     *
+     * @param predictedClass
+     * @return The path class
+     */
+    private static PathClass getPathClass(String predictedClass) {
+        int separator = predictedClass.indexOf(" | ");
+        GlomerulusClass glomerulusClass = GlomerulusClass
+                .fromClassName(separator < 0 ? predictedClass : predictedClass.substring(0, separator));
+        Integer color = glomerulusClass == null ? null : glomerulusClass.getColor();
+        return PathClass.getInstance(predictedClass, color);
+    }
+
+    private static class Update {
+
+        private final PathObject annotation;
+
+        private final PathClass pathClass;
+
+        private final double[] probs;
+
+        private Update(PathObject annotation, PathClass pathClass, double[] probs) {
+            this.annotation = annotation;
+            this.pathClass = pathClass;
+            this.probs = probs;
+        }
+    }
+}
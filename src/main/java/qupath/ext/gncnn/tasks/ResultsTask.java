@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
+import qupath.ext.gncnn.entities.ImageResult;
+import qupath.ext.gncnn.utils.Utils;
+import qupath.lib.gui.QuPathGUI;
+
+/**
+ * Class to compute the results of the selected images in the background,
+ * adding the results to the results list as they are ready. The results are
+ * added in batches, at most a few times per second, so that the table is not
+ * refreshed for each image, and are kept in the order the images were
+ * selected, whatever the order they finish
+ */
+public class ResultsTask extends Task<Void> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResultsTask.class);
+
+    // Minimum time between two updates of the results list
+    public static final long UPDATE_INTERVAL_MS = 250;
+
+    private QuPathGUI qupath;
+
+    private List<String> selectedImages;
+
+    private ObservableList<ImageResult> results;
+
+    private List<String> imageOrder;
+
+    /**
+     * Creates a task filling the given results list
+     * 
+     * @param quPath
+     * @param selectedImages
+     * @param results        List shown in the results view, only modified in
+     *                       the JavaFX thread
+     */
+    public ResultsTask(QuPathGUI quPath, List<String> selectedImages, ObservableList<ImageResult> results) {
+        this.qupath = quPath;
+        // Copy the images, as the list of checked items may change while running
+        this.selectedImages = new ArrayList<>(selectedImages);
+        this.results = results;
+        this.imageOrder = this.selectedImages;
+    }
+
+    /**
+     * Sets the order of the rows in the results list, e.g. the images selected
+     * when the results were first shown, if the task only updates some of
+     * them. Images not in the order are added at the end
+     * 
+     * @param imageOrder
+     */
+    public void setImageOrder(List<String> imageOrder) {
+        this.imageOrder = new ArrayList<>(imageOrder);
+    }
+
+    public List<String> getImageOrder() {
+        return imageOrder;
+    }
+
+    @Override
+    protected Void call() throws Exception {
+        try {
+            AtomicInteger done = new AtomicInteger();
+            List<ImageResult> batch = new ArrayList<>();
+            long[] lastUpdate = { System.currentTimeMillis() };
+            updateProgress(0, selectedImages.size());
+            // The results are passed in this thread, so the batch needs no
+            // synchronisation
+            Utils.getResults(qupath, selectedImages, result -> {
+                batch.add(result);
+                long now = System.currentTimeMillis();
+                if (now - lastUpdate[0] >= UPDATE_INTERVAL_MS) {
+                    publish(batch);
+                    lastUpdate[0] = now;
+                }
+                updateProgress(done.incrementAndGet(), selectedImages.size());
+            });
+            publish(batch);
+        } catch (IOException e) {
+            logger.error("Error with I/O of files: {}", e.getMessage(), e);
+            throw e;
+        } catch (InterruptedException e) {
+            logger.warn("Thread interrupted: {}", e.getMessage());
+            throw e;
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds the results of a batch to the results list in the JavaFX thread,
+     * emptying the batch
+     * 
+     * @param batch
+     */
+    private void publish(List<ImageResult> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<ImageResult> toAdd = new ArrayList<>(batch);
+        batch.clear();
+        Map<String, Integer> positions = getPositions(imageOrder);
+        Platform.runLater(() -> {
+            if (!isCancelled()) {
+                toAdd.forEach(result -> putResult(results, result, positions));
+            }
+        });
+    }
+
+    /**
+     * Puts the result of an image in a results list, replacing the previous
+     * result of the same image if there is one, or inserting it before the
+     * first result of an image later in the order. It must be called in the
+     * JavaFX thread if the list is shown
+     * 
+     * @param results   Results sorted by their positions
+     * @param result
+     * @param positions Position of each image in the order of the results.
+     *                  Images without a position go at the end
+     */
+    public static void putResult(List<ImageResult> results, ImageResult result, Map<String, Integer> positions) {
+        int position = positions.getOrDefault(result.getName(), Integer.MAX_VALUE);
+        int insertAt = -1;
+        for (int i = 0; i < results.size(); i++) {
+            String name = results.get(i).getName();
+            if (name.equals(result.getName())) {
+                results.set(i, result);
+                return;
+            }
+            if (insertAt < 0 && positions.getOrDefault(name, Integer.MAX_VALUE) > position) {
+                insertAt = i;
+            }
+        }
+        results.add(insertAt < 0 ? results.size() : insertAt, result);
+    }
+
+    /**
+     * Returns the position of each image in an order of the results
+     * 
+     * @param imageOrder
+     * @return The index of the first occurrence of each image
+     */
+    public static Map<String, Integer> getPositions(List<String> imageOrder) {
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < imageOrder.size(); i++) {
+            positions.putIfAbsent(imageOrder.get(i), i);
+        }
+        return positions;
+    }
+}
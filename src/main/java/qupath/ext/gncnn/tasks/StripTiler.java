@@ -0,0 +1,244 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.writers.ImageWriterTools;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Class to tile a WSI with the same grid and naming as QuPath's TileExporter,
+ * but reading each source pixel only once.
+ *
+ * The image is split into cells of the size of the tile step, so that each
+ * overlapping tile is made of a few neighbouring cells. Cells are read one band
+ * of rows at a time at the requested pixel size, kept in a rolling buffer while
+ * the tiles of the band are sliced out of them, and dropped once no later tile
+ * needs them. When the bands of the whole slide would not fit in the buffer,
+ * the slide is processed in vertical strips, and only the cells at the edges
+ * of the strips are read twice.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class StripTiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(StripTiler.class);
+
+    private ImageData<BufferedImage> imageData;
+
+    private TilePlanner planner;
+
+    private String imageExtension = ".jpeg";
+
+    private long maxBufferBytes = 1L << 30;
+
+    private int regionReads;
+
+    public StripTiler(ImageData<BufferedImage> imageData, int tileSize, int tileOverlap, double desiredPixelSize) {
+        this.imageData = imageData;
+        this.planner = new TilePlanner(imageData, tileSize, tileOverlap, desiredPixelSize);
+    }
+
+    /**
+     * Sets the extension, and therefore the format, of the tiles
+     *
+     * @param imageExtension
+     * @return This tiler
+     */
+    public StripTiler imageExtension(String imageExtension) {
+        this.imageExtension = imageExtension;
+        return this;
+    }
+
+    /**
+     * Sets whether only the tiles touching an annotation are written
+     *
+     * @param annotatedTilesOnly
+     * @return This tiler
+     */
+    public StripTiler annotatedTilesOnly(boolean annotatedTilesOnly) {
+        planner.annotatedTilesOnly(annotatedTilesOnly);
+        return this;
+    }
+
+    /**
+     * Sets the minimum fraction of a tile covered by the 'Tissue' annotations
+     * for the tile to be written
+     *
+     * @param minTissueFraction
+     * @return This tiler
+     */
+    public StripTiler minTissueFraction(double minTissueFraction) {
+        planner.minTissueFraction(minTissueFraction);
+        return this;
+    }
+
+    /**
+     * Sets the approximate maximum memory used by the buffered cells
+     *
+     * @param maxBufferBytes
+     * @return This tiler
+     */
+    public StripTiler maxBufferBytes(long maxBufferBytes) {
+        this.maxBufferBytes = maxBufferBytes;
+        return this;
+    }
+
+    /**
+     * Returns the number of regions read from the image server by the last
+     * call to {@link #writeTiles(String)}
+     *
+     * @return The number of region reads
+     */
+    public int getRegionReads() {
+        return regionReads;
+    }
+
+    /**
+     * Returns the number of tiles dropped by the tissue filter in the last
+     * call to {@link #writeTiles(String)}
+     *
+     * @return The number of dropped tiles
+     */
+    public int getDroppedTiles() {
+        return planner.getDroppedTiles();
+    }
+
+    /**
+     * Writes the tiles to the given folder, which must exist
+     *
+     * @param outputPath
+     * @return The number of tiles written
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public int writeTiles(String outputPath) throws IOException, InterruptedException {
+        ImageServer<BufferedImage> server = imageData.getServer();
+        String imageName = GeneralTools.stripExtension(server.getMetadata().getName());
+        double downsample = planner.getDownsample();
+        int step = planner.getFullResTileStep();
+        int cellsPerTile = (int) Math.ceil((double) planner.getFullResTileSize() / step);
+
+        // Group the tiles by row and column of the cell grid
+        List<RegionRequest> tiles = planner.planTiles();
+        TreeMap<Integer, TreeMap<Integer, RegionRequest>> rows = new TreeMap<>();
+        for (RegionRequest tile : tiles) {
+            rows.computeIfAbsent(tile.getY() / step, r -> new TreeMap<>()).put(tile.getX() / step, tile);
+        }
+
+        // Number of tile columns per strip, so that the cells of the bands
+        // being sliced fit in the buffer
+        int nColumns = (int) Math.ceil((double) server.getWidth() / step);
+        double cellPixels = Math.pow(step / downsample, 2);
+        long bandColumns = (long) (maxBufferBytes / (4 * cellPixels * cellsPerTile));
+        int stripColumns = (int) Math.max(1, Math.min(nColumns, bandColumns - cellsPerTile + 1));
+
+        regionReads = 0;
+        for (int stripStart = 0; stripStart < nColumns; stripStart += stripColumns) {
+            int stripEnd = stripStart + stripColumns;
+            Map<Long, BufferedImage> cells = new HashMap<>();
+
+            for (Map.Entry<Integer, TreeMap<Integer, RegionRequest>> row : rows.entrySet()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                int r = row.getKey();
+                for (Map.Entry<Integer, RegionRequest> column : row.getValue().subMap(stripStart, stripEnd)
+                        .entrySet()) {
+                    int c = column.getKey();
+                    RegionRequest tile = column.getValue();
+                    BufferedImage img = createTile(tile, downsample);
+                    Graphics2D g2d = img.createGraphics();
+                    g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    for (int cr = r; cr < r + cellsPerTile; cr++) {
+                        for (int cc = c; cc < c + cellsPerTile; cc++) {
+                            BufferedImage cell = getCell(server, cells, cr, cc, step, downsample);
+                            if (cell != null) {
+                                drawCell(g2d, cell, tile, cr * step, cc * step, step, downsample, server);
+                            }
+                        }
+                    }
+                    g2d.dispose();
+
+                    String tilePath = Paths.get(outputPath, TilePlanner.getTileName(imageName, tile, imageExtension))
+                            .toString();
+                    ImageWriterTools.writeImage(img, tilePath);
+                }
+
+                // Later tiles start further down, so they do not need the
+                // cells of this row anymore
+                cells.keySet().removeIf(key -> (int) (key >> 32) <= r);
+            }
+        }
+
+        logger.info("Wrote {} tiles of {} with {} region reads", tiles.size(), imageName, regionReads);
+        return tiles.size();
+    }
+
+    /**
+     * Creates an empty tile with the size TileExporter would read it with
+     */
+    private static BufferedImage createTile(RegionRequest tile, double downsample) {
+        int width = (int) Math.max(1, Math.round(tile.getWidth() / downsample));
+        int height = (int) Math.max(1, Math.round(tile.getHeight() / downsample));
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /**
+     * Returns a cell of the grid, reading it if it is not buffered yet
+     *
+     * @return The cell, or null if it is outside the image
+     * @throws IOException
+     */
+    private BufferedImage getCell(ImageServer<BufferedImage> server, Map<Long, BufferedImage> cells, int cr, int cc,
+            int step, double downsample) throws IOException {
+        int x = cc * step;
+        int y = cr * step;
+        if (x >= server.getWidth() || y >= server.getHeight()) {
+            return null;
+        }
+        long key = ((long) cr << 32) | (cc & 0xffffffffL);
+        BufferedImage cell = cells.get(key);
+        if (cell == null) {
+            int w = Math.min(step, server.getWidth() - x);
+            int h = Math.min(step, server.getHeight() - y);
+            cell = server.readRegion(RegionRequest.createInstance(server.getPath(), downsample, x, y, w, h));
+            regionReads++;
+            cells.put(key, cell);
+        }
+        return cell;
+    }
+
+    /**
+     * Draws a cell in a tile, placing its borders where they fall in the tile
+     * at the requested pixel size, so that neighbouring cells leave no gaps
+     */
+    private static void drawCell(Graphics2D g2d, BufferedImage cell, RegionRequest tile, int cellY, int cellX,
+            int step, double downsample, ImageServer<BufferedImage> server) {
+        int cellX2 = Math.min(cellX + step, server.getWidth());
+        int cellY2 = Math.min(cellY + step, server.getHeight());
+        int dx1 = (int) Math.round((cellX - tile.getX()) / downsample);
+        int dy1 = (int) Math.round((cellY - tile.getY()) / downsample);
+        int dx2 = (int) Math.round((cellX2 - tile.getX()) / downsample);
+        int dy2 = (int) Math.round((cellY2 - tile.getY()) / downsample);
+        g2d.drawImage(cell, dx1, dy1, dx2, dy2, 0, 0, cell.getWidth(), cell.getHeight(), null);
+    }
+}
@@ -6,11 +6,19 @@ package qupath.ext.gncnn.tasks;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,7 +34,14 @@ import javafx.beans.property.StringProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
+import javafx.concurrent.WorkerStateEvent;
+import qupath.ext.gncnn.cache.DetectionCache;
+import qupath.ext.gncnn.detection.DetectionDeduplicator;
+import qupath.ext.gncnn.detection.DetectionMerger;
+import qupath.ext.gncnn.entities.GlomerulusClass;
 import qupath.ext.gncnn.entities.ProgressListener;
+import qupath.ext.gncnn.env.VirtualEnvironment;
+import qupath.ext.gncnn.utils.ClassificationMetadata;
 import qupath.ext.gncnn.utils.Utils;
 import qupath.fx.dialogs.Dialogs;
 import qupath.lib.common.GeneralTools;
@@ -44,18 +59,32 @@ public class TaskManager {
 
     private static final Logger logger = LoggerFactory.getLogger(TaskManager.class);
 
+    public static final String TISSUE_DETECTION_STAGE = "TissueDetectionTask";
+    public static final String TILER_STAGE = "TilerTask";
+    public static final String GLOMERULUS_DETECTION_STAGE = "GlomerulusDetectionTask";
+    public static final String ANNOTATION_EXPORT_STAGE = "AnnotationExportTask";
+    public static final String CLASSIFICATION_STAGE = "ClassificationTask";
+    public static final String GLOMERULI_CHECK = "GlomeruliCheckTask";
+
+    public static final String BINARY_MODEL_NAME = "swin_transformer";
+    public static final String MULTICLASS_MODEL_NAME = "convnext";
+
     private QuPathGUI qupath;
 
-    private final ExecutorService pool = Executors
-            .newSingleThreadExecutor(ThreadTools.createThreadFactory("GNCnn", true));
+    // Each (image, stage) pair runs as a separate task, so the stages of
+    // different images overlap
+    private final PipelineScheduler scheduler = new PipelineScheduler(this::submitTask);
 
     private final HashMap<String, String> PROGRESS_MESSAGES = new HashMap<String, String>() {
         {
-            put("TissueDetectionTask", "Detecting tissue...");
-            put("TilerTask", "Tiling images...");
-            put("GlomerulusDetectionTask", "Detecting glomeruli... (this may take a while)");
-            put("AnnotationExportTask", "Exporting glomerular annotations...");
-            put("ClassificationTask", "Classifying glomeruli...");
+            put(TISSUE_DETECTION_STAGE, "Detecting tissue...");
+            put(TILER_STAGE, "Tiling images...");
+            put(GLOMERULUS_DETECTION_STAGE, "Detecting glomeruli... (this may take a while)");
+            put(ANNOTATION_EXPORT_STAGE, "Exporting glomerular annotations...");
+            put(CLASSIFICATION_STAGE, "Classifying glomeruli...");
+            put(PipelineScheduler.SAVE_STAGE, "Saving images...");
+            put(PipelineScheduler.RESUME_CHECK_STAGE, "Checking completed stages...");
+            put(GLOMERULI_CHECK, "Checking glomeruli...");
         }
     };
 
@@ -73,9 +102,62 @@ public class TaskManager {
 
     private double progressStep = 0;
 
+    private boolean useDetectionWorker = true;
+
+    private boolean streamTiles = false;
+
+    private double minTissueFraction = 0.01;
+
+    // The in-memory tissue detection has not been compared with the output
+    // of 'gncnn-threshold' on real slides yet, so it is opt-in
+    private boolean useJavaTissueDetection = false;
+
+    private boolean resume = true;
+
+    private boolean useDetectionCache = true;
+
+    private boolean useCropContainer = true;
+
+    private boolean mergeDetectionsByUnion = false;
+
+    private DetectionDeduplicator.Mode detectionIngestMode = DetectionDeduplicator.Mode.SKIP;
+
+    private boolean writeGeoJSON = false;
+
+    // Simplification of the polygons added to the hierarchy, in microns. The
+    // tissue is traced at a much lower resolution than the glomeruli, so it
+    // takes a larger tolerance
+    private double detectionSimplifyTolerance = 1.0;
+
+    private int detectionMaxVertices = 256;
+
+    private double tissueSimplifyTolerance = 4.0;
+
+    private long imageDataMemoryBudget = ImageDataSession.DEFAULT_MEMORY_BUDGET;
+
+    // Image data shared by the stages of the current pipeline
+    private ImageDataSession session;
+
+    // Checks run before a pipeline, off the JavaFX thread
+    private final ExecutorService checkPool = Executors
+            .newSingleThreadExecutor(ThreadTools.createThreadFactory("GNCnn-check-", true));
+
+    private Task<?> checkTask;
+
+    private final List<Consumer<String>> imageCompletedListeners = new CopyOnWriteArrayList<>();
+
+    private final DetectionCache detectionCache = new DetectionCache(DetectionCache.getDefaultCacheDir(), 1L << 30);
+
     public TaskManager(QuPathGUI qupath) {
         this.qupath = qupath;
 
+        // Skipped stages count as done for the progress
+        scheduler.setOnStageSkipped((imageName, stageName) -> progressListener.updateProgress());
+
+        // Publish each image as soon as its results are saved
+        scheduler.setOnImageCompleted(
+                imageName -> imageCompletedListeners.forEach(listener -> listener.accept(imageName)));
+
         // Bind the running property to the current tasks
         runningProperty.bind(Bindings.isNotEmpty(currentTasks));
 
@@ -96,6 +178,22 @@ public class TaskManager {
         }, progressProperty, runningProperty));
     }
 
+    /**
+     * Adds a listener called in the JavaFX thread with the name of each image
+     * which has gone through all the stages of a pipeline, once its changes
+     * have been saved, e.g. to show its results while the others are still
+     * being processed
+     * 
+     * @param listener
+     */
+    public void addImageCompletedListener(Consumer<String> listener) {
+        imageCompletedListeners.add(listener);
+    }
+
+    public void removeImageCompletedListener(Consumer<String> listener) {
+        imageCompletedListeners.remove(listener);
+    }
+
     public BooleanProperty doneProperty() {
         return doneProperty;
     }
@@ -116,6 +214,195 @@ public class TaskManager {
         return messageProperty;
     }
 
+    /**
+     * Sets the maximum number of images that can be processed at the same time
+     * by a stage of the pipeline
+     * 
+     * @param stageName One of the '*_STAGE' constants
+     * @param concurrency
+     */
+    public void setStageConcurrency(String stageName, int concurrency) {
+        scheduler.setStageConcurrency(stageName, concurrency);
+    }
+
+    /**
+     * Sets whether the glomerulus detection runs in a long-lived Python worker,
+     * which keeps the model loaded across images, instead of starting a new
+     * process for each image
+     * 
+     * @param useDetectionWorker
+     */
+    public void setUseDetectionWorker(boolean useDetectionWorker) {
+        this.useDetectionWorker = useDetectionWorker;
+    }
+
+    /**
+     * Sets whether the tiles are streamed from memory to the glomerulus
+     * detection, instead of being written to disk by a tiling stage
+     * 
+     * @param streamTiles
+     */
+    public void setStreamTiles(boolean streamTiles) {
+        this.streamTiles = streamTiles;
+    }
+
+    /**
+     * Sets whether the stages already completed for an image, with the same
+     * parameters, are skipped when running the pipeline again
+     * 
+     * @param resume
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Sets whether the detections are cached and reused when the same slide is
+     * processed again with the same parameters, even from another project
+     * 
+     * @param useDetectionCache
+     */
+    public void setUseDetectionCache(boolean useDetectionCache) {
+        this.useDetectionCache = useDetectionCache;
+    }
+
+    /**
+     * Sets the maximum size of the detection cache on disk. The least recently
+     * used detections are removed when it is exceeded
+     * 
+     * @param maxSizeBytes
+     */
+    public void setDetectionCacheSize(long maxSizeBytes) {
+        detectionCache.setMaxSizeBytes(maxSizeBytes);
+    }
+
+    /**
+     * Returns the detection cache, e.g. to check its hit and miss counts
+     * 
+     * @return The detection cache
+     */
+    public DetectionCache getDetectionCache() {
+        return detectionCache;
+    }
+
+    /**
+     * Sets whether the tissue is detected in memory, instead of running the
+     * thresholding script on a low-resolution export of each image. It is
+     * disabled by default
+     * 
+     * @param useJavaTissueDetection
+     */
+    public void setUseJavaTissueDetection(boolean useJavaTissueDetection) {
+        this.useJavaTissueDetection = useJavaTissueDetection;
+        // The tissue detected in memory only uses the CPU, so several images
+        // can be processed at the same time. The thresholding script starts
+        // a Python process per image, so it runs one image at a time
+        scheduler.setStageConcurrency(TISSUE_DETECTION_STAGE,
+                useJavaTissueDetection ? Math.max(1, Runtime.getRuntime().availableProcessors() / 2) : 1);
+    }
+
+    /**
+     * Sets whether the glomeruli detected more than once in overlapping tiles
+     * are merged by the union of their shapes, instead of keeping only the
+     * best ranked one
+     * 
+     * @param mergeDetectionsByUnion
+     */
+    public void setMergeDetectionsByUnion(boolean mergeDetectionsByUnion) {
+        this.mergeDetectionsByUnion = mergeDetectionsByUnion;
+    }
+
+    /**
+     * Sets what is done with the detected glomeruli which overlap glomeruli
+     * detected by a previous run, so that running the detection again does
+     * not duplicate them. Detections overlapping glomeruli annotated by hand
+     * are always skipped
+     * 
+     * @param detectionIngestMode
+     */
+    public void setDetectionIngestMode(DetectionDeduplicator.Mode detectionIngestMode) {
+        this.detectionIngestMode = detectionIngestMode;
+    }
+
+    /**
+     * Sets whether the Python scripts also write the tissue regions and
+     * detections as GeoJSON, for debugging. The sizes and parse times of both
+     * formats are then logged
+     * 
+     * @param writeGeoJSON
+     */
+    public void setWriteGeoJSON(boolean writeGeoJSON) {
+        this.writeGeoJSON = writeGeoJSON;
+    }
+
+    /**
+     * Sets how the polygons of the detected glomeruli are simplified before
+     * being added to the image hierarchy
+     * 
+     * @param toleranceMicrons Maximum distance to the original polygons, 0 to
+     *                         not simplify them
+     * @param maxVertices      Maximum number of vertices of each glomerulus, 0
+     *                         for no limit
+     */
+    public void setDetectionSimplification(double toleranceMicrons, int maxVertices) {
+        this.detectionSimplifyTolerance = toleranceMicrons;
+        this.detectionMaxVertices = maxVertices;
+    }
+
+    /**
+     * Sets how the tissue regions are simplified before being added to the
+     * image hierarchy
+     * 
+     * @param toleranceMicrons Maximum distance to the original polygons, 0 to
+     *                         not simplify them
+     */
+    public void setTissueSimplification(double toleranceMicrons) {
+        this.tissueSimplifyTolerance = toleranceMicrons;
+    }
+
+    /**
+     * Sets the minimum fraction of a tile covered by tissue for the tile to be
+     * passed to the glomerulus detection. Tiles touching the tissue but with
+     * less tissue than this are dropped before reading any pixels
+     * 
+     * @param minTissueFraction Between 0 and 1, 0 to keep all the tiles
+     */
+    public void setMinTissueFraction(double minTissueFraction) {
+        this.minTissueFraction = minTissueFraction;
+    }
+
+    /**
+     * Sets whether the exported glomeruli of each image are packed in a single
+     * container file. If not, each glomerulus is written to its own PNG file,
+     * which is easier to inspect
+     * 
+     * @param useCropContainer
+     */
+    public void setUseCropContainer(boolean useCropContainer) {
+        this.useCropContainer = useCropContainer;
+    }
+
+    /**
+     * Sets the maximum estimated size of the image data kept in memory between
+     * the stages of the pipeline. Above it, the least recently used images are
+     * saved and read again when needed
+     * 
+     * @param imageDataMemoryBudget In bytes
+     */
+    public void setImageDataMemoryBudget(long imageDataMemoryBudget) {
+        this.imageDataMemoryBudget = imageDataMemoryBudget;
+    }
+
+    /**
+     * Sets the maximum number of images going through the pipeline at the same
+     * time
+     * 
+     * @param maxImagesInFlight
+     */
+    public void setMaxImagesInFlight(int maxImagesInFlight) {
+        scheduler.setMaxImagesInFlight(maxImagesInFlight);
+    }
+
     private String getCurrentTaskName() {
         if (currentTasks.isEmpty()) {
             return null;
@@ -124,11 +411,12 @@ public class TaskManager {
     }
 
     /**
-     * Submits a task to the thread pool to run in the background
+     * Submits a task to the given thread pool to run in the background
      * 
      * @param task
+     * @param pool
      */
-    private void submitTask(Task<?> task) {
+    private void submitTask(Task<?> task, ExecutorService pool) {
         task.setOnSucceeded(e -> {
             if (task instanceof GlomerulusDetectionTask || task instanceof ClassificationTask) {
                 // If there is an image selected, select an object from the
@@ -145,12 +433,17 @@ public class TaskManager {
                     }
                 }
             }
-            logger.info("Task succeeded");
-            Dialogs.showInfoNotification("Task succeeded", task.getClass().getSimpleName() + " succeeded");
+            logger.info("{} succeeded", task.getClass().getSimpleName());
         });
         task.setOnFailed(e -> {
-            logger.error("Task failed", e.getSource().getException());
-            Dialogs.showErrorMessage("Task failed", e.getSource().getException());
+            Throwable exception = e.getSource().getException();
+            if (exception instanceof InterruptedException) {
+                // Cancelled by the user
+                logger.info("{} cancelled", task.getClass().getSimpleName());
+                return;
+            }
+            logger.error("Task failed", exception);
+            Dialogs.showErrorMessage("Task failed", exception);
         });
         task.stateProperty().addListener((Observable o) -> {
             if (task.isDone()) {
@@ -169,16 +462,33 @@ public class TaskManager {
      */
     public void cancelAllTasks(ObservableList<String> selectedImages) throws IOException {
         logger.info("Cancelling all tasks");
-        pool.shutdownNow();
+        if (checkTask != null) {
+            checkTask.cancel(true);
+            checkTask = null;
+        }
+        scheduler.shutdownNow();
+        // The changes not saved yet are partial, as the images did not finish
+        // the pipeline, so they are discarded
+        if (session != null) {
+            session.discardAll();
+            session = null;
+        }
+        // The running jobs cannot be aborted, so the workers are stopped
+        VirtualEnvironment.shutdownWorkers();
         currentTasks.clear();
 
-        // Clean the temporary files
+        // Clean the scratch files. The outputs of the completed stages, e.g.
+        // the tiles, are kept so that the next run can resume from them
         logger.info("Cleaning temporary files");
         String outputBaseDir = Utils.getBaseDir(qupath);
-        File tempFolder = new File(QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER));
-        if (tempFolder.exists()) {
-            Utils.deleteFolder(tempFolder);
+        for (String scratchFolder : Arrays.asList(TaskPaths.LOWRES_OUTPUT_FOLDER, TaskPaths.THRESHOLD_OUTPUT_FOLDER)) {
+            File folder = new File(QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER, scratchFolder));
+            if (folder.exists()) {
+                Utils.deleteFolder(folder);
+            }
         }
+        CheckpointManifest checkpoints = CheckpointManifest
+                .read(TaskPaths.getCheckpointManifestPath(outputBaseDir));
 
         // Clean the temporary annotations, i.e. "Tissue"
         logger.info("Cleaning temporary annotations");
@@ -192,12 +502,11 @@ public class TaskManager {
                     ImageData<BufferedImage> imageData = imageEntry.readImageData();
 
                     // Remove all "Tissue" annotations in the image hierarchy
-                    imageData.getHierarchy().getAnnotationObjects().stream()
-                            .filter(annotation -> annotation.getPathClass().getName().equals("Tissue"))
-                            .forEach(annotation -> imageData.getHierarchy().removeObject(annotation, false));
-
-                    imageEntry.saveImageData(imageData);
-                    logger.info("Removed 'Tissue' annotations from {}", imageEntry.getImageName());
+                    if (removeTissueAnnotations(imageData)) {
+                        imageEntry.saveImageData(imageData);
+                        checkpoints.invalidate(imageName, TISSUE_DETECTION_STAGE);
+                        logger.info("Removed 'Tissue' annotations from {}", imageEntry.getImageName());
+                    }
                 }
             }
         } else {
@@ -205,16 +514,33 @@ public class TaskManager {
             ImageData<BufferedImage> imageData = qupath.getImageData();
             if (imageData != null) {
                 // Remove all "Tissue" annotations in the image hierarchy
-                imageData.getHierarchy().getAnnotationObjects().stream()
-                        .filter(annotation -> annotation.getPathClass().getName().equals("Tissue"))
-                        .forEach(annotation -> imageData.getHierarchy().removeObject(annotation, false));
-                logger.info("Removed 'Tissue' annotations from {}", imageData.getServer().getMetadata().getName());
+                if (removeTissueAnnotations(imageData)) {
+                    checkpoints.invalidate(GeneralTools.stripExtension(imageData.getServer().getMetadata().getName()),
+                            TISSUE_DETECTION_STAGE);
+                    logger.info("Removed 'Tissue' annotations from {}",
+                            imageData.getServer().getMetadata().getName());
+                }
             } else {
                 logger.error("No project or image is open");
             }
         }
     }
 
+    /**
+     * Removes the "Tissue" annotations of an image
+     * 
+     * @param imageData
+     * @return True if any annotation was removed
+     */
+    private static boolean removeTissueAnnotations(ImageData<BufferedImage> imageData) {
+        List<PathObject> tissue = imageData.getHierarchy().getAnnotationObjects().stream()
+                .filter(annotation -> annotation.getPathClass() != null
+                        && annotation.getPathClass().getName().equals("Tissue"))
+                .toList();
+        imageData.getHierarchy().removeObjects(tissue, false);
+        return !tissue.isEmpty();
+    }
+
     /**
      * Runs the detection and classification of the glomeruli
      * 
@@ -225,16 +551,21 @@ public class TaskManager {
     public void runAll(ObservableList<String> selectedImages, Boolean multiclass) throws IOException {
         logger.info("Running all tasks");
 
-        progressStep = 1.0 / (5.0 * selectedImages.size()); // 5 tasks in total
+        // 5 tasks in total, or 4 if the tiles are streamed
+        progressStep = 1.0 / ((streamTiles ? 4.0 : 5.0) * selectedImages.size());
 
         progressListener = new ProgressListener(progressStep);
         progressProperty.bind(progressListener.progressProperty());
 
-        detectTissue(selectedImages, progressListener);
-        tileWSIs(selectedImages, progressListener);
-        detectGlomeruli(selectedImages, progressListener);
-        exportAnnotations(selectedImages, progressListener);
-        classifyGlomeruli(selectedImages, multiclass, progressListener);
+        List<PipelineScheduler.Stage> stages = new ArrayList<>();
+        stages.add(detectTissue(progressListener));
+        if (!streamTiles) {
+            stages.add(tileWSIs(progressListener));
+        }
+        stages.add(detectGlomeruli(progressListener));
+        stages.add(exportAnnotations(multiclass, progressListener));
+        stages.add(classifyGlomeruli(multiclass, progressListener));
+        runPipeline(selectedImages, stages);
     }
 
     /**
@@ -246,14 +577,19 @@ public class TaskManager {
     public void runDetection(ObservableList<String> selectedImages) throws IOException {
         logger.info("Running detection pipeline");
 
-        progressStep = 1.0 / (3.0 * selectedImages.size()); // 3 tasks in total
+        // 3 tasks in total, or 2 if the tiles are streamed
+        progressStep = 1.0 / ((streamTiles ? 2.0 : 3.0) * selectedImages.size());
 
         progressListener = new ProgressListener(progressStep);
         progressProperty.bind(progressListener.progressProperty());
 
-        detectTissue(selectedImages, progressListener);
-        tileWSIs(selectedImages, progressListener);
-        detectGlomeruli(selectedImages, progressListener);
+        List<PipelineScheduler.Stage> stages = new ArrayList<>();
+        stages.add(detectTissue(progressListener));
+        if (!streamTiles) {
+            stages.add(tileWSIs(progressListener));
+        }
+        stages.add(detectGlomeruli(progressListener));
+        runPipeline(selectedImages, stages);
     }
 
     /**
@@ -271,73 +607,303 @@ public class TaskManager {
         progressListener = new ProgressListener(progressStep);
         progressProperty.bind(progressListener.progressProperty());
 
-        exportAnnotations(imgsWithGlomeruli, progressListener);
-        classifyGlomeruli(imgsWithGlomeruli, multiclass, progressListener);
+        runPipeline(imgsWithGlomeruli, Arrays.asList(
+                exportAnnotations(multiclass, progressListener),
+                classifyGlomeruli(multiclass, progressListener)));
     }
 
     /**
-     * Apply the threshold to separate the foreground from the background
+     * Checks in the background which of the selected images have glomeruli to
+     * classify with the given models, showing the progress of the check. The
+     * check can be cancelled as the other tasks
      * 
      * @param selectedImages
+     * @param multiclass
+     * @param onChecked      Called in the JavaFX thread with the images with
+     *                       glomeruli to classify, unless the check fails or
+     *                       is cancelled
+     */
+    public void checkGlomeruli(List<String> selectedImages, Boolean multiclass, Consumer<List<String>> onChecked) {
+        logger.info("Checking glomeruli of {} images", selectedImages.size());
+        GlomeruliCheckTask task = new GlomeruliCheckTask(qupath, selectedImages,
+                getClassificationModelId(multiclass));
+        progressProperty.bind(task.progressProperty());
+        // Reset the progress before the task is removed from the current
+        // tasks, so the check is not shown as done
+        task.stateProperty().addListener((Observable o) -> {
+            if (task.isDone()) {
+                progressProperty.unbind();
+                progressProperty.set(0);
+            }
+        });
+        task.addEventHandler(WorkerStateEvent.WORKER_STATE_SUCCEEDED, e -> {
+            checkTask = null;
+            onChecked.accept(task.getValue());
+        });
+        checkTask = task;
+        submitTask(task, checkPool);
+    }
+
+    /**
+     * Runs the given stages for each of the images
+     * 
+     * @param images
+     * @param stages
+     */
+    private void runPipeline(List<String> images, List<PipelineScheduler.Stage> stages) {
+        // Copy the images, as the list of checked items may change while running
+        List<String> imageNames = new ArrayList<>(images);
+        scheduler.setCheckpoints(
+                CheckpointManifest.read(TaskPaths.getCheckpointManifestPath(Utils.getBaseDir(qupath))), resume);
+        // Each image is read once, and saved once it goes out of the pipeline,
+        // or before a stage modifies it again
+        Project<BufferedImage> project = qupath.getProject();
+        session = project != null ? new ImageDataSession(project, imageDataMemoryBudget) : null;
+        scheduler.setImageDataSession(session);
+        ImageDataSession pipelineSession = session;
+        // The stages which do not run after a failure count as done for the
+        // progress, so the pipeline still finishes
+        List<String> failedImages = new ArrayList<>();
+        ProgressListener pipelineProgress = progressListener;
+        scheduler.setOnImageFailed((imageName, stageName) -> {
+            if (!failedImages.contains(imageName)) {
+                failedImages.add(imageName);
+            }
+            int failedIndex = stages.stream().map(PipelineScheduler.Stage::getName).toList().indexOf(stageName);
+            for (int i = failedIndex + 1; failedIndex >= 0 && i < stages.size(); i++) {
+                pipelineProgress.updateProgress();
+            }
+        });
+        scheduler.run(imageNames, stages, () -> {
+            logger.info("Pipeline finished for {} images", imageNames.size());
+            if (pipelineSession != null) {
+                logger.info("Image data: {} reads, {} writes", pipelineSession.getReads(),
+                        pipelineSession.getWrites());
+            }
+            if (useDetectionCache) {
+                logger.info("Detection cache: {} hits, {} misses", detectionCache.getHits(),
+                        detectionCache.getMisses());
+            }
+            if (failedImages.isEmpty()) {
+                Dialogs.showInfoNotification("Task succeeded",
+                        "GNCnn finished processing " + imageNames.size() + " image(s)");
+            } else {
+                // The failed stages did not report all their progress
+                pipelineProgress.complete();
+                logger.warn("Pipeline failed for {} of {} images: {}", failedImages.size(), imageNames.size(),
+                        failedImages);
+                Dialogs.showWarningNotification("Task failed for some images",
+                        "GNCnn failed to process " + failedImages.size() + " of " + imageNames.size()
+                                + " image(s): " + String.join(", ", failedImages));
+            }
+        });
+    }
+
+    /**
+     * Apply the threshold to separate the foreground from the background
+     * 
      * @param progressListener
-     * @throws IOException
+     * @return The tissue detection stage
      */
-    private void detectTissue(ObservableList<String> selectedImages, ProgressListener progressListener)
-            throws IOException {
-        submitTask(new TissueDetectionTask(qupath, selectedImages, 20, ".jpeg", progressListener));
+    private PipelineScheduler.Stage detectTissue(ProgressListener progressListener) {
+        return new PipelineScheduler.Stage(TISSUE_DETECTION_STAGE,
+                imageName -> {
+                    TissueDetectionTask task = new TissueDetectionTask(qupath,
+                            FXCollections.observableArrayList(imageName), 20, ".jpeg", useJavaTissueDetection,
+                            progressListener);
+                    task.setWriteGeoJSON(writeGeoJSON);
+                    task.setSimplification(tissueSimplifyTolerance, 0);
+                    task.setImageDataSession(session);
+                    return task;
+                })
+                // The "Tissue" annotations are removed when cancelling, which
+                // invalidates the checkpoint
+                .checkpointed(Map.of("downsample", "20", "simplifyTolerance",
+                        Double.toString(tissueSimplifyTolerance), "method",
+                        useJavaTissueDetection ? "java" : "threshold"), imageName -> true);
     }
 
     /**
      * Tiles each WSI and saves them in a temporary folder
      * 
-     * @param selectedImages
      * @param progressListener
-     * @throws IOException // In case there is an issue reading the image
+     * @return The tiling stage
      */
-    private void tileWSIs(ObservableList<String> selectedImages, ProgressListener progressListener) throws IOException {
-        submitTask(new TilerTask(qupath, selectedImages, 4096, 2048, 0.25, ".jpeg", progressListener));
+    private PipelineScheduler.Stage tileWSIs(ProgressListener progressListener) {
+        return new PipelineScheduler.Stage(TILER_STAGE,
+                imageName -> {
+                    TilerTask task = new TilerTask(qupath, FXCollections.observableArrayList(imageName), 4096, 2048,
+                            0.25, ".jpeg", minTissueFraction, useDetectionCache ? detectionCache : null,
+                            getDetectionParams(), progressListener);
+                    task.setImageDataSession(session);
+                    return task;
+                })
+                .checkpointed(Map.of("tileSize", "4096", "tileOverlap", "2048", "pixelSize", "0.25",
+                        "minTissueFraction", Double.toString(minTissueFraction)),
+                        imageName -> isNotEmpty(TaskPaths.getTilerOutputDir(Utils.getBaseDir(qupath), imageName)));
     }
 
     /**
      * Detects glomeruli in the WSI patches
      * 
-     * @param selectedImages
      * @param progressListener
-     * @throws IOException
+     * @return The glomerulus detection stage
      */
-    private void detectGlomeruli(ObservableList<String> selectedImages, ProgressListener progressListener)
-            throws IOException {
-        submitTask(new GlomerulusDetectionTask(qupath, selectedImages, "cascade_R_50_FPN_1x", "external", 0.25,
-                progressListener));
+    private PipelineScheduler.Stage detectGlomeruli(ProgressListener progressListener) {
+        return new PipelineScheduler.Stage(GLOMERULUS_DETECTION_STAGE,
+                imageName -> {
+                    GlomerulusDetectionTask task = new GlomerulusDetectionTask(qupath,
+                            FXCollections.observableArrayList(imageName), "cascade_R_50_FPN_1x", "external", 0.25,
+                            useDetectionWorker, streamTiles, 4096, 2048, minTissueFraction,
+                            useDetectionCache ? detectionCache : null, getDetectionParams(), progressListener);
+                    task.setDetectionMerger(new DetectionMerger().mergeByUnion(mergeDetectionsByUnion));
+                    task.setDetectionDeduplicator(new DetectionDeduplicator().mode(detectionIngestMode));
+                    task.setWriteGeoJSON(writeGeoJSON);
+                    task.setSimplification(detectionSimplifyTolerance, detectionMaxVertices);
+                    task.setImageDataSession(session);
+                    return task;
+                })
+                .checkpointed(getDetectionCheckpointParams(), imageName -> hasAnnotation(imageName,
+                        annotation -> GlomerulusClass.indexOf(annotation.getPathClass()) >= 0));
     }
 
     /**
-     * Exports the annotations of each WSI to images
+     * Returns the parameters which determine the detections of an image
      * 
-     * @param selectedImages
+     * @return The detection parameters
+     */
+    private Map<String, String> getDetectionParams() {
+        // The detections are cached before removing the duplicates, which
+        // older versions did in the detector. The tissue determines which
+        // tiles are detected, so its parameters are included
+        Map<String, String> params = new HashMap<>();
+        params.put("modelName", "cascade_R_50_FPN_1x");
+        params.put("trainConfig", "external");
+        params.put("tileSize", "4096");
+        params.put("tileOverlap", "2048");
+        params.put("pixelSize", "0.25");
+        params.put("minTissueFraction", Double.toString(minTissueFraction));
+        params.put("nms", "none");
+        params.put("tissueDetection", useJavaTissueDetection ? "java" : "threshold");
+        params.put("tissueDownsample", "20");
+        params.put("tissueSimplifyTolerance", Double.toString(tissueSimplifyTolerance));
+        return params;
+    }
+
+    /**
+     * Returns the parameters which determine the glomeruli added to an image
+     * 
+     * @return The detection parameters, with how the duplicates are removed,
+     *         the polygons simplified and the existing glomeruli handled
+     */
+    private Map<String, String> getDetectionCheckpointParams() {
+        Map<String, String> params = new HashMap<>(getDetectionParams());
+        params.put("merge", mergeDetectionsByUnion ? "union" : "suppress");
+        params.put("simplifyTolerance", Double.toString(detectionSimplifyTolerance));
+        params.put("maxVertices", Integer.toString(detectionMaxVertices));
+        params.put("ingest", detectionIngestMode.name());
+        return params;
+    }
+
+    /**
+     * Exports the glomeruli of each WSI which have to be classified to images
+     * 
+     * @param multiclass
      * @param progressListener
+     * @return The annotation export stage
      */
-    private void exportAnnotations(List<String> selectedImages, ProgressListener progressListener) {
-        submitTask(new AnnotationExportTask(qupath, selectedImages, 300, 1, progressListener));
+    private PipelineScheduler.Stage exportAnnotations(Boolean multiclass, ProgressListener progressListener) {
+        return new PipelineScheduler.Stage(ANNOTATION_EXPORT_STAGE,
+                imageName -> {
+                    AnnotationExportTask task = new AnnotationExportTask(qupath, List.of(imageName),
+                            getClassificationModelId(multiclass), AnnotationExportTask.CLASSIFIER_INPUT_SIZE,
+                            AnnotationExportTask.PADDING_RATIO, progressListener);
+                    task.setUseCropContainer(useCropContainer);
+                    task.setImageDataSession(session);
+                    return task;
+                })
+                .checkpointed(Map.of("inputSize", Integer.toString(AnnotationExportTask.CLASSIFIER_INPUT_SIZE),
+                        "paddingRatio", Double.toString(AnnotationExportTask.PADDING_RATIO), "modelId",
+                        getClassificationModelId(multiclass)),
+                        imageName -> isNotEmpty(
+                                TaskPaths.getAnnotationOutputDir(Utils.getBaseDir(qupath), imageName)));
     }
 
     /**
      * Classifies annotated glomeruli
      * 
-     * @param selectedImages
      * @param multiclass
      * @param progressListener
-     * @throws IOException
+     * @return The classification stage
+     */
+    private PipelineScheduler.Stage classifyGlomeruli(Boolean multiclass, ProgressListener progressListener) {
+        return new PipelineScheduler.Stage(CLASSIFICATION_STAGE, imageName -> {
+            ClassificationTask task;
+            if (multiclass) {
+                task = new ClassificationTask(qupath, List.of(imageName), BINARY_MODEL_NAME, MULTICLASS_MODEL_NAME,
+                        progressListener);
+            } else {
+                task = new ClassificationTask(qupath, List.of(imageName), BINARY_MODEL_NAME, progressListener);
+            }
+            task.setImageDataSession(session);
+            return task;
+        }).checkpointed(Map.of("modelId", getClassificationModelId(multiclass)),
+                // Glomeruli added or changed since the classification, e.g.
+                // by hand, are classified again
+                imageName -> hasAnnotation(imageName,
+                        annotation -> GlomerulusClass.indexOf(annotation.getPathClass()) >= 0)
+                        && !hasAnnotation(imageName, annotation -> ClassificationMetadata
+                                .needsClassification(annotation, getClassificationModelId(multiclass))));
+    }
+
+    /**
+     * Checks if any annotation of an image matches a predicate, reading the
+     * image through the session of the pipeline, or the current image if there
+     * is no project. Called when checking the completed stages of an image
+     * 
+     * @param imageName
+     * @param predicate
+     * @return True if an annotation matches
      */
-    private void classifyGlomeruli(List<String> selectedImages, Boolean multiclass, ProgressListener progressListener)
-            throws IOException {
-        ClassificationTask classificationTask;
-        if (multiclass) {
-            classificationTask = new ClassificationTask(qupath, selectedImages, "swin_transformer", "convnext",
-                    progressListener);
+    private boolean hasAnnotation(String imageName, Predicate<PathObject> predicate) {
+        AtomicBoolean found = new AtomicBoolean(false);
+        if (session != null) {
+            try {
+                session.process(imageName, false,
+                        imageData -> found.set(Utils.hasAnnotation(imageData.getHierarchy().getRootObject(),
+                                predicate)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         } else {
-            classificationTask = new ClassificationTask(qupath, selectedImages, "swin_transformer", progressListener);
+            ImageData<BufferedImage> imageData = qupath.getImageData();
+            if (imageData != null) {
+                found.set(Utils.hasAnnotation(imageData.getHierarchy().getRootObject(), predicate));
+            }
         }
-        submitTask(classificationTask);
+        return found.get();
+    }
+
+    /**
+     * Returns the identifier of the classification models used
+     * 
+     * @param multiclass
+     * @return The model identifier stored in the classified glomeruli
+     */
+    public static String getClassificationModelId(boolean multiclass) {
+        return ClassificationMetadata.getModelId(BINARY_MODEL_NAME, multiclass ? MULTICLASS_MODEL_NAME : "None");
+    }
+
+    /**
+     * Checks if a folder exists and has any file
+     * 
+     * @param path
+     * @return True if the folder is not empty
+     */
+    private static boolean isNotEmpty(String path) {
+        String[] files = new File(path).list();
+        return files != null && files.length > 0;
     }
 }
@@ -3,6 +3,7 @@
  */
 package qupath.ext.gncnn.tasks;
 
+import qupath.ext.gncnn.io.PolygonFile;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.scripting.QP;
 
@@ -12,10 +13,12 @@ import qupath.lib.scripting.QP;
 public class TaskPaths {
 
     public static final String TMP_FOLDER = "Temp";
+    public static final String GNCNN_FOLDER = "gncnn";
 
     public static final String THRESHOLD_COMMAND = "gncnn-threshold";
     public static final String SEGMENT_COMMAND = "gncnn-segment";
     public static final String CLASSIFICATION_COMMAND = "gncnn-classify";
+    public static final String WORKER_COMMAND = "gncnn-worker";
 
     public static final String LOWRES_OUTPUT_FOLDER = "lowres-output";
     public static final String THRESHOLD_OUTPUT_FOLDER = "threshold-output";
@@ -30,6 +33,26 @@ public class TaskPaths {
     private static final String REPORT_FOLDER = "Report";
     private static final String MODEL_FOLDER = "B-swin_transformer_M-None";
 
+    /**
+     * Returns the path to the manifest of the completed pipeline stages
+     * 
+     * @param baseDir
+     * @return Path to the checkpoint manifest
+     */
+    public static String getCheckpointManifestPath(String baseDir) {
+        return QP.buildFilePath(baseDir, GNCNN_FOLDER, "checkpoints.json");
+    }
+
+    /**
+     * Returns the path to the folder where the results summaries are stored
+     * 
+     * @param baseDir
+     * @return Path to the folder of the results summaries
+     */
+    public static String getResultsSummaryDir(String baseDir) {
+        return QP.buildFilePath(baseDir, GNCNN_FOLDER, "summaries");
+    }
+
     public static String getLowResOutputDir(String baseDir, String imageName) {
         return QP.buildFilePath(baseDir, TMP_FOLDER, LOWRES_OUTPUT_FOLDER, LOWRES_IMAGES_FOLDER, imageName);
     }
@@ -56,6 +79,17 @@ public class TaskPaths {
         return QP.buildFilePath(baseDir, TMP_FOLDER, TILER_OUTPUT_FOLDER, TILES_FOLDER, imageName);
     }
 
+    /**
+     * Returns the path to the folder where the detections are stored
+     * 
+     * @param baseDir
+     * @param imageName
+     * @return Path to the folder where the detections are stored
+     */
+    public static String getDetectionOutputDir(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, SEGMENT_OUTPUT_FOLDER, DETECTIONS_FOLDER, imageName);
+    }
+
     /**
      * Returns the path to the folder where the annotations are stored
      * 
@@ -75,6 +109,19 @@ public class TaskPaths {
      * @return Path to the threshold results
      */
     public static String getThresholdResultsPath(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, THRESHOLD_OUTPUT_FOLDER, THRESHOLD_ANNOTATIONS_FOLDER, imageName,
+                "annotations" + PolygonFile.FILE_EXTENSION);
+    }
+
+    /**
+     * Returns the path to the threshold results as GeoJSON, only written for
+     * debugging
+     * 
+     * @param baseDir
+     * @param imageName
+     * @return Path to the threshold results as GeoJSON
+     */
+    public static String getThresholdGeoJSONPath(String baseDir, String imageName) {
         return QP.buildFilePath(baseDir, TMP_FOLDER, THRESHOLD_OUTPUT_FOLDER, THRESHOLD_ANNOTATIONS_FOLDER, imageName,
                 "annotations.geojson");
     }
@@ -87,10 +134,50 @@ public class TaskPaths {
      * @return Path to the detection results
      */
     public static String getDetectionResultsPath(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, SEGMENT_OUTPUT_FOLDER, DETECTIONS_FOLDER, imageName,
+                "detections" + PolygonFile.FILE_EXTENSION);
+    }
+
+    /**
+     * Returns the path where the cached detections of an image are copied, so
+     * that they are kept until the detection stage reads them
+     * 
+     * @param baseDir
+     * @param imageName
+     * @param cacheKey
+     * @return Path to the copy of the cached detections
+     */
+    public static String getCachedDetectionsPath(String baseDir, String imageName, String cacheKey) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, SEGMENT_OUTPUT_FOLDER, DETECTIONS_FOLDER, imageName,
+                "cached_" + cacheKey + PolygonFile.FILE_EXTENSION);
+    }
+
+    /**
+     * Returns the path to the detection results as GeoJSON, only written for
+     * debugging
+     * 
+     * @param baseDir
+     * @param imageName
+     * @return Path to the detection results as GeoJSON
+     */
+    public static String getDetectionGeoJSONPath(String baseDir, String imageName) {
         return QP.buildFilePath(baseDir, TMP_FOLDER, SEGMENT_OUTPUT_FOLDER, DETECTIONS_FOLDER, imageName,
                 "detections.geojson");
     }
 
+    /**
+     * Returns the path to the records of the detections of each tile, written
+     * while the detection runs
+     * 
+     * @param baseDir
+     * @param imageName
+     * @return Path to the detection records
+     */
+    public static String getDetectionRecordsPath(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, SEGMENT_OUTPUT_FOLDER, DETECTIONS_FOLDER, imageName,
+                "detections.jsonl");
+    }
+
     /**
      * Returns the path to the classification results
      * 
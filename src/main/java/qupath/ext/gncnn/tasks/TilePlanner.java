@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Class to plan the tiles of a WSI, using the same grid and naming as
+ * QuPath's TileExporter, without reading any pixels
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class TilePlanner {
+
+    private static final Logger logger = LoggerFactory.getLogger(TilePlanner.class);
+
+    /**
+     * Downsample of the tissue coverage grid, the same used by the tissue
+     * detection
+     */
+    public static final double TISSUE_MASK_DOWNSAMPLE = 20;
+
+    private ImageData<BufferedImage> imageData;
+
+    private int tileSize;
+
+    private int tileOverlap;
+
+    private double desiredPixelSize;
+
+    private boolean annotatedTilesOnly = true;
+
+    private double minTissueFraction = 0;
+
+    private int droppedTiles = 0;
+
+    public TilePlanner(ImageData<BufferedImage> imageData, int tileSize, int tileOverlap, double desiredPixelSize) {
+        this.imageData = imageData;
+        this.tileSize = tileSize;
+        this.tileOverlap = tileOverlap;
+        this.desiredPixelSize = desiredPixelSize;
+    }
+
+    /**
+     * Sets whether only the tiles touching an annotation are planned
+     *
+     * @param annotatedTilesOnly
+     * @return This planner
+     */
+    public TilePlanner annotatedTilesOnly(boolean annotatedTilesOnly) {
+        this.annotatedTilesOnly = annotatedTilesOnly;
+        return this;
+    }
+
+    /**
+     * Sets the minimum fraction of a tile which has to be covered by the
+     * 'Tissue' annotations for the tile to be planned. Tiles are only filtered
+     * if the image has 'Tissue' annotations
+     *
+     * @param minTissueFraction Between 0 and 1, 0 to keep all the tiles
+     * @return This planner
+     */
+    public TilePlanner minTissueFraction(double minTissueFraction) {
+        this.minTissueFraction = minTissueFraction;
+        return this;
+    }
+
+    /**
+     * Returns the number of tiles dropped by the tissue filter in the last
+     * call to {@link #planTiles()}
+     *
+     * @return The number of dropped tiles
+     */
+    public int getDroppedTiles() {
+        return droppedTiles;
+    }
+
+    /**
+     * Returns the downsample at which the tiles are read
+     *
+     * @return The downsample of the tiles
+     */
+    public double getDownsample() {
+        return desiredPixelSize / imageData.getServer().getPixelCalibration().getAveragedPixelSize().doubleValue();
+    }
+
+    /**
+     * Returns the size of the tiles in full-resolution pixels
+     *
+     * @return The tile size in full-resolution pixels
+     */
+    public int getFullResTileSize() {
+        return (int) Math.round(tileSize * getDownsample());
+    }
+
+    /**
+     * Returns the step between consecutive tiles in full-resolution pixels
+     *
+     * @return The tile step in full-resolution pixels
+     */
+    public int getFullResTileStep() {
+        return getFullResTileSize() - (int) Math.round(tileOverlap * getDownsample());
+    }
+
+    /**
+     * Plans the tiles, row by row, including partial tiles at the right and
+     * bottom borders
+     *
+     * @return The regions of the tiles in full-resolution coordinates
+     */
+    public List<RegionRequest> planTiles() {
+        ImageServer<BufferedImage> server = imageData.getServer();
+        double downsample = getDownsample();
+        int size = getFullResTileSize();
+        int step = getFullResTileStep();
+
+        Collection<PathObject> annotations = imageData.getHierarchy().getAnnotationObjects();
+        List<ROI> annotationROIs = null;
+        if (annotatedTilesOnly) {
+            annotationROIs = annotations.stream().map(PathObject::getROI).collect(Collectors.toList());
+        }
+
+        TissueCoverage coverage = null;
+        if (minTissueFraction > 0) {
+            List<ROI> tissueROIs = annotations.stream()
+                    .filter(annotation -> annotation.getPathClass() != null
+                            && annotation.getPathClass().getName().equals("Tissue"))
+                    .map(PathObject::getROI).collect(Collectors.toList());
+            if (!tissueROIs.isEmpty()) {
+                coverage = new TissueCoverage(server.getWidth(), server.getHeight(), tissueROIs);
+            }
+        }
+
+        droppedTiles = 0;
+        List<RegionRequest> tiles = new ArrayList<>();
+        for (int y = 0; y < server.getHeight(); y += step) {
+            int h = Math.min(size, server.getHeight() - y);
+            for (int x = 0; x < server.getWidth(); x += step) {
+                int w = Math.min(size, server.getWidth() - x);
+                if (annotationROIs != null && !touchesAnyROI(annotationROIs, x, y, w, h)) {
+                    continue;
+                }
+                if (coverage != null && coverage.getFraction(x, y, w, h) < minTissueFraction) {
+                    droppedTiles++;
+                    continue;
+                }
+                tiles.add(RegionRequest.createInstance(server.getPath(), downsample, x, y, w, h));
+            }
+        }
+
+        if (coverage != null) {
+            logger.info("Dropped {} of {} tiles of {} with less than {}% tissue", droppedTiles,
+                    tiles.size() + droppedTiles, server.getMetadata().getName(), minTissueFraction * 100);
+        }
+        return tiles;
+    }
+
+    private static boolean touchesAnyROI(List<ROI> rois, int x, int y, int w, int h) {
+        for (ROI roi : rois) {
+            if (roi.getBoundsX() < x + w && roi.getBoundsX() + roi.getBoundsWidth() > x
+                    && roi.getBoundsY() < y + h && roi.getBoundsY() + roi.getBoundsHeight() > y) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tissue mask rasterised at {@link #TISSUE_MASK_DOWNSAMPLE}, with a summed
+     * area table to get the tissue fraction of any region in constant time
+     */
+    private static class TissueCoverage {
+
+        private final int width;
+
+        private final int height;
+
+        private final int[] summedArea;
+
+        TissueCoverage(int imageWidth, int imageHeight, List<ROI> tissueROIs) {
+            width = (int) Math.ceil(imageWidth / TISSUE_MASK_DOWNSAMPLE);
+            height = (int) Math.ceil(imageHeight / TISSUE_MASK_DOWNSAMPLE);
+
+            BufferedImage mask = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+            Graphics2D g2d = mask.createGraphics();
+            g2d.scale(1 / TISSUE_MASK_DOWNSAMPLE, 1 / TISSUE_MASK_DOWNSAMPLE);
+            g2d.setColor(Color.WHITE);
+            for (ROI roi : tissueROIs) {
+                g2d.fill(roi.getShape());
+            }
+            g2d.dispose();
+
+            Raster raster = mask.getRaster();
+            int[] row = new int[width];
+            summedArea = new int[(width + 1) * (height + 1)];
+            for (int y = 0; y < height; y++) {
+                raster.getSamples(0, y, width, 1, 0, row);
+                int rowSum = 0;
+                for (int x = 0; x < width; x++) {
+                    rowSum += row[x] != 0 ? 1 : 0;
+                    summedArea[(y + 1) * (width + 1) + x + 1] = summedArea[y * (width + 1) + x + 1] + rowSum;
+                }
+            }
+        }
+
+        /**
+         * Returns the fraction of a region, in full-resolution coordinates,
+         * covered by tissue
+         */
+        double getFraction(int x, int y, int w, int h) {
+            int x1 = Math.min(width, (int) Math.floor(x / TISSUE_MASK_DOWNSAMPLE));
+            int y1 = Math.min(height, (int) Math.floor(y / TISSUE_MASK_DOWNSAMPLE));
+            int x2 = Math.min(width, (int) Math.ceil((x + w) / TISSUE_MASK_DOWNSAMPLE));
+            int y2 = Math.min(height, (int) Math.ceil((y + h) / TISSUE_MASK_DOWNSAMPLE));
+            int area = (x2 - x1) * (y2 - y1);
+            if (area <= 0) {
+                return 0;
+            }
+            int covered = summedArea[y2 * (width + 1) + x2] - summedArea[y1 * (width + 1) + x2]
+                    - summedArea[y2 * (width + 1) + x1] + summedArea[y1 * (width + 1) + x1];
+            return (double) covered / area;
+        }
+    }
+
+    /**
+     * Returns the name of a tile file, following TileExporter's naming, i.e.
+     * '{@code <image> [d=<downsample>,x=<x>,y=<y>,w=<w>,h=<h>]<extension>}'
+     *
+     * @param imageName
+     * @param tile
+     * @param imageExtension
+     * @return The tile file name
+     */
+    public static String getTileName(String imageName, RegionRequest tile, String imageExtension) {
+        String region = "x=" + tile.getX() + ",y=" + tile.getY() + ",w=" + tile.getWidth() + ",h=" + tile.getHeight();
+        if (tile.getDownsample() != 1) {
+            region = "d=" + GeneralTools.formatNumber(tile.getDownsample(), 5) + "," + region;
+        }
+        return imageName + " [" + region + "]" + imageExtension;
+    }
+}
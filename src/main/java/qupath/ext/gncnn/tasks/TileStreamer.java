@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Class to stream the tiles of a WSI to the detector as raw RGB frames through
+ * a local socket, instead of writing them to disk.
+ *
+ * The stream starts with the magic number and the number of tiles, and each
+ * tile is sent as a header with its region in full-resolution coordinates
+ * (x, y, w, h) and its size in pixels (width, height), followed by the
+ * width * height * 3 RGB bytes. A header with a size of 0 x 0 marks the end
+ * of the stream. All the integers are 32-bit little-endian.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class TileStreamer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TileStreamer.class);
+
+    public static final int MAGIC = 0x54434E47; // 'GNCT' in little-endian
+
+    private final ServerSocket serverSocket;
+
+    public TileStreamer() throws IOException {
+        // Only local connections are accepted
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Returns the port the detector has to connect to
+     *
+     * @return The local port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Waits for the detector to connect and streams the tiles. Tiles are read
+     * one at a time, so the socket provides the back-pressure. The tiles can
+     * only be streamed once
+     *
+     * @param server
+     * @param tiles
+     * @throws IOException          If the connection is closed, e.g. the
+     *                              detector exits before reading all the tiles
+     * @throws InterruptedException
+     */
+    public void stream(ImageServer<BufferedImage> server, List<RegionRequest> tiles)
+            throws IOException, InterruptedException {
+        try (Socket socket = serverSocket.accept();
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 20)) {
+            logger.info("Streaming {} tiles to the detector", tiles.size());
+
+            ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(tiles.size());
+            out.write(header.array(), 0, 8);
+
+            byte[] frame = new byte[0];
+            int[] row = new int[0];
+            for (RegionRequest tile : tiles) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                BufferedImage img = server.readRegion(tile);
+                int width = img.getWidth();
+                int height = img.getHeight();
+
+                header.clear();
+                header.putInt(tile.getX()).putInt(tile.getY()).putInt(tile.getWidth()).putInt(tile.getHeight())
+                        .putInt(width).putInt(height);
+                out.write(header.array());
+
+                // Pack the pixels as RGB, reusing the buffers between tiles
+                if (frame.length < width * height * 3) {
+                    frame = new byte[width * height * 3];
+                }
+                if (row.length < width) {
+                    row = new int[width];
+                }
+                int i = 0;
+                for (int y = 0; y < height; y++) {
+                    img.getRGB(0, y, width, 1, row, 0, width);
+                    for (int x = 0; x < width; x++) {
+                        int rgb = row[x];
+                        frame[i++] = (byte) (rgb >> 16);
+                        frame[i++] = (byte) (rgb >> 8);
+                        frame[i++] = (byte) rgb;
+                    }
+                }
+                out.write(frame, 0, i);
+            }
+
+            // End of the stream
+            header.clear();
+            header.putInt(0).putInt(0).putInt(0).putInt(0).putInt(0).putInt(0);
+            out.write(header.array());
+            out.flush();
+            logger.info("Streaming of {} tiles finished", tiles.size());
+        } finally {
+            // The tiles can only be streamed once, so later connections, e.g.
+            // from a restarted detector, are refused instead of left waiting
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Stops waiting for the detector, if it has not connected yet
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
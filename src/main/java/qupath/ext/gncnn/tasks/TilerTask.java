@@ -5,21 +5,22 @@ package qupath.ext.gncnn.tasks;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
+import qupath.ext.gncnn.cache.DetectionCache;
 import qupath.ext.gncnn.entities.ProgressListener;
 import qupath.ext.gncnn.utils.Utils;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.images.ImageData;
-import qupath.lib.images.writers.TileExporter;
 import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectImageEntry;
 
 /**
  * Class to tile the WSI into the given size patches and save them in a
@@ -43,19 +44,64 @@ public class TilerTask extends Task<Void> {
 
     private String imageExtension;
 
+    private double minTissueFraction;
+
+    private DetectionCache detectionCache;
+
+    private Map<String, String> detectionParams;
+
     private ProgressListener progressListener;
 
+    private ImageDataSession session;
+
     public TilerTask(QuPathGUI quPath, ObservableList<String> selectedImages, int tileSize, int tileOverlap,
-            double desiredPixelSize, String imageExtension, ProgressListener progressListener) {
+            double desiredPixelSize, String imageExtension, double minTissueFraction,
+            ProgressListener progressListener) {
+        this(quPath, selectedImages, tileSize, tileOverlap, desiredPixelSize, imageExtension, minTissueFraction, null,
+                null, progressListener);
+    }
+
+    /**
+     * Creates a tiler task which skips the images whose detections are already
+     * cached, as the tiles would not be used
+     * 
+     * @param quPath
+     * @param selectedImages
+     * @param tileSize
+     * @param tileOverlap
+     * @param desiredPixelSize
+     * @param imageExtension
+     * @param minTissueFraction
+     * @param detectionCache    Cache of the detections, or null to always tile
+     * @param detectionParams   Parameters which identify the detections in the
+     *                          cache
+     * @param progressListener
+     */
+    public TilerTask(QuPathGUI quPath, ObservableList<String> selectedImages, int tileSize, int tileOverlap,
+            double desiredPixelSize, String imageExtension, double minTissueFraction, DetectionCache detectionCache,
+            Map<String, String> detectionParams, ProgressListener progressListener) {
         this.qupath = quPath;
         this.selectedImages = selectedImages;
         this.tileSize = tileSize;
         this.tileOverlap = tileOverlap;
         this.desiredPixelSize = desiredPixelSize;
         this.imageExtension = imageExtension;
+        this.minTissueFraction = minTissueFraction;
+        this.detectionCache = detectionCache;
+        this.detectionParams = detectionParams;
         this.progressListener = progressListener;
     }
 
+    /**
+     * Sets the session whose image data is shared with the other stages. The
+     * images are then saved by the pipeline instead of by this task
+     * 
+     * @param session
+     */
+    public void setImageDataSession(ImageDataSession session) {
+        this.session = session;
+    }
+
     @Override
     protected Void call() throws Exception {
         try {
@@ -72,9 +118,13 @@ public class TilerTask extends Task<Void> {
                 }
             }
         } catch (IOException e) {
+            // Rethrown so that the task fails, and the image is not recorded
+            // as completed
             logger.error("Error with I/O of files: {}", e.getMessage(), e);
+            throw e;
         } catch (InterruptedException e) {
-            logger.error("Thread interrupted: {}", e.getMessage(), e);
+            logger.warn("Thread interrupted: {}", e.getMessage());
+            throw e;
         }
 
         return null;
@@ -98,18 +148,21 @@ public class TilerTask extends Task<Void> {
             throw new InterruptedException();
         }
 
-        // Create the output folder if it does not exist
-        Utils.createFolder(outputPath);
-        logger.info("Tiling {} [size={},overlap={}]", imageName, tileSize, tileOverlap);
-        new TileExporter(imageData)
-                .tileSize(tileSize)
-                .imageExtension(imageExtension)
-                .overlap(tileOverlap)
-                .requestedPixelSize(desiredPixelSize)
-                .annotatedTilesOnly(true)
-                .includePartialTiles(true)
-                .writeTiles(outputPath);
-        logger.info("Tiling of {} finished: {}", imageName, outputPath);
+        if (copyCachedDetections(imageData, outputBaseDir)) {
+            logger.info("Detections of {} are cached, skipping the tiling", imageName);
+        } else {
+            // Create the output folder if it does not exist
+            Utils.createFolder(outputPath);
+            logger.info("Tiling {} [size={},overlap={}]", imageName, tileSize, tileOverlap);
+            // Same tiles as QuPath's TileExporter, but the overlapping parts are
+            // only read once
+            new StripTiler(imageData, tileSize, tileOverlap, desiredPixelSize)
+                    .imageExtension(imageExtension)
+                    .annotatedTilesOnly(true)
+                    .minTissueFraction(minTissueFraction)
+                    .writeTiles(outputPath);
+            logger.info("Tiling of {} finished: {}", imageName, outputPath);
+        }
 
         // Remove all 'Tissue' annotations in the image hierarchy
         imageData.getHierarchy().getAnnotationObjects().stream()
@@ -125,6 +178,30 @@ public class TilerTask extends Task<Void> {
         progressListener.updateProgress();
     }
 
+    /**
+     * Copies the cached detections of the image out of the cache, where the
+     * detection stage reads them. They are copied instead of checked, as
+     * other images may evict them from the cache before the detection runs
+     * 
+     * @param imageData
+     * @param outputBaseDir
+     * @return True if the detections were cached, so the tiling is not needed
+     */
+    private boolean copyCachedDetections(ImageData<BufferedImage> imageData, String outputBaseDir) {
+        if (detectionCache == null) {
+            return false;
+        }
+        String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
+        try {
+            String key = detectionCache.getKey(imageData.getServer(), detectionParams);
+            return detectionCache.copyTo(key,
+                    Paths.get(TaskPaths.getCachedDetectionsPath(outputBaseDir, imageName, key)));
+        } catch (IOException e) {
+            logger.warn("Could not get the cached detections of {}, tiling it: {}", imageName, e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Tiles each WSI in a project and saves them in corresponding temporary folders
      * 
@@ -135,18 +212,18 @@ public class TilerTask extends Task<Void> {
      */
     private void tileWSIProject(Project<BufferedImage> project, String outputBaseDir)
             throws IOException, InterruptedException {
-        List<ProjectImageEntry<BufferedImage>> imageEntryList = project.getImageList();
+        // Without a session shared by the pipeline, the images are saved at the end
+        ImageDataSession session = this.session != null ? this.session : new ImageDataSession(project);
 
         logger.info("Tiling {} images in the project [size={},overlap={}]",
                 selectedImages.size(), tileSize, tileOverlap);
         // For each image, tile it and save the tiles in a temporary folder
         // Only process the selected images
-        for (ProjectImageEntry<BufferedImage> imageEntry : imageEntryList) {
-            ImageData<BufferedImage> imageData = imageEntry.readImageData();
-            if (selectedImages.contains(GeneralTools.stripExtension(imageData.getServer().getMetadata().getName()))) {
-                tileWSI(imageData, outputBaseDir);
-                imageEntry.saveImageData(imageData);
-            }
+        for (String imageName : selectedImages) {
+            session.process(imageName, true, imageData -> tileWSI(imageData, outputBaseDir));
+        }
+        if (this.session == null) {
+            session.closeAll();
         }
 
         logger.info("Tiling {} images in the project finished", selectedImages.size());
@@ -7,6 +7,7 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -15,19 +16,19 @@ import org.slf4j.LoggerFactory;
 
 import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
+import qupath.ext.gncnn.detection.PolygonSimplifier;
 import qupath.ext.gncnn.entities.ProgressListener;
 import qupath.ext.gncnn.env.VirtualEnvironment;
+import qupath.ext.gncnn.io.PolygonFileReader;
 import qupath.ext.gncnn.utils.Utils;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.writers.ImageWriterTools;
-import qupath.lib.io.PathIO;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.scripting.QP;
 
@@ -47,17 +48,80 @@ public class TissueDetectionTask extends Task<Void> {
 
     private String imageExtension;
 
+    private boolean useJavaDetector;
+
     private ProgressListener progressListener;
 
+    private ImageDataSession session;
+
+    private boolean writeGeoJSON = false;
+
+    private double simplifyToleranceMicrons = 0;
+
+    private int maxVertices = 0;
+
     public TissueDetectionTask(QuPathGUI quPath, ObservableList<String> selectedImages, int downsample,
             String imageExtension, ProgressListener progressListener) {
+        this(quPath, selectedImages, downsample, imageExtension, false, progressListener);
+    }
+
+    /**
+     * Creates a tissue detection task which, if useJavaDetector is set, detects
+     * the tissue in memory with {@link TissueDetector}, only running the
+     * thresholding script if it fails
+     *
+     * @param quPath
+     * @param selectedImages
+     * @param downsample
+     * @param imageExtension
+     * @param useJavaDetector
+     * @param progressListener
+     */
+    public TissueDetectionTask(QuPathGUI quPath, ObservableList<String> selectedImages, int downsample,
+            String imageExtension, boolean useJavaDetector, ProgressListener progressListener) {
         this.qupath = quPath;
         this.selectedImages = selectedImages;
         this.downsample = downsample;
         this.imageExtension = imageExtension;
+        this.useJavaDetector = useJavaDetector;
         this.progressListener = progressListener;
     }
 
+    /**
+     * Sets the session whose image data is shared with the other stages. The
+     * images are then saved by the pipeline instead of by this task
+     * 
+     * @param session
+     */
+    public void setImageDataSession(ImageDataSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Sets whether the tissue regions are also written as GeoJSON by the
+     * Python script, for debugging. Both files are then read, and their sizes
+     * and parse times logged
+     * 
+     * @param writeGeoJSON
+     */
+    public void setWriteGeoJSON(boolean writeGeoJSON) {
+        this.writeGeoJSON = writeGeoJSON;
+    }
+
+    /**
+     * Sets how the tissue regions are simplified before being added to the
+     * image hierarchy
+     * 
+     * @param toleranceMicrons Maximum distance to the original polygons, 0 to
+     *                         not simplify them
+     * @param maxVertices      Maximum number of vertices of each object, 0 for
+     *                         no limit
+     */
+    public void setSimplification(double toleranceMicrons, int maxVertices) {
+        this.simplifyToleranceMicrons = toleranceMicrons;
+        this.maxVertices = maxVertices;
+    }
+
     @Override
     protected Void call() throws IOException, InterruptedException {
         try {
@@ -73,23 +137,14 @@ public class TissueDetectionTask extends Task<Void> {
                     logger.error("No image or project is open");
                 }
             }
-
-            // Low-resolution images are not needed anymore
-            File lowresOutputFolder = new File(
-                    QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER, TaskPaths.LOWRES_OUTPUT_FOLDER));
-            if (lowresOutputFolder.exists())
-                Utils.deleteFolder(lowresOutputFolder);
-
-            // Tissue detections are already added to the image hierarchy, so they
-            // are not needed
-            File thresholdOutputFolder = new File(
-                    QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER, TaskPaths.THRESHOLD_OUTPUT_FOLDER));
-            if (thresholdOutputFolder.exists())
-                Utils.deleteFolder(thresholdOutputFolder);
         } catch (IOException e) {
+            // Rethrown so that the task fails, and the image is not recorded
+            // as completed
             logger.error("Error with I/O of files: {}", e.getMessage(), e);
+            throw e;
         } catch (InterruptedException e) {
-            logger.error("Thread interrupted: {}", e.getMessage(), e);
+            logger.warn("Thread interrupted: {}", e.getMessage());
+            throw e;
         }
 
         return null;
@@ -128,6 +183,55 @@ public class TissueDetectionTask extends Task<Void> {
             throw new InterruptedException();
         }
 
+        String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
+        List<PathObject> detectedObjects = null;
+        if (useJavaDetector) {
+            logger.info("Running tissue detection for {}", imageName);
+            try {
+                detectedObjects = new TissueDetector(downsample).detect(imageData.getServer());
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Tissue detection failed, running the thresholding algorithm instead: {}",
+                        e.getMessage(), e);
+            }
+        }
+        if (detectedObjects == null) {
+            detectedObjects = runThresholding(imageData, outputBaseDir);
+        }
+
+        // Check if the thread has been interrupted before adding the detected
+        // objects to the image hierarchy
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        // Contours have a vertex at every pixel step of the masks, which are
+        // removed before they are stored in the hierarchy
+        detectedObjects = new PolygonSimplifier(
+                imageData.getServer().getPixelCalibration().getAveragedPixelSizeMicrons())
+                .toleranceMicrons(simplifyToleranceMicrons)
+                .maxVertices(maxVertices)
+                .simplify(detectedObjects);
+
+        // Add the detected objects to the image hierarchy
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        hierarchy.addObjects(detectedObjects);
+        logger.info("Added {} detected objects to {}", detectedObjects.size(), imageName);
+
+        // Update progress
+        progressListener.updateProgress();
+    }
+
+    /**
+     * Runs the thresholding script on the low-resolution image
+     * 
+     * @param imageData
+     * @param outputBaseDir
+     * @return The detected tissue objects
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private List<PathObject> runThresholding(ImageData<BufferedImage> imageData, String outputBaseDir)
+            throws IOException, InterruptedException {
         exportLowResolutionImage(imageData, outputBaseDir);
 
         String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
@@ -136,9 +240,12 @@ public class TissueDetectionTask extends Task<Void> {
         double pixelSize = imageData.getServer().getPixelCalibration().getAveragedPixelSizeMicrons();
 
         // This is the list of commands after the 'python' call
-        List<String> arguments = Arrays.asList(TaskPaths.THRESHOLD_COMMAND, "--wsi", imageName, "--export",
-                QP.buildFilePath(outputBaseDir), "--undersampling", Integer.toString(downsample), "--pixel-size",
-                Double.toString(pixelSize));
+        List<String> arguments = new ArrayList<>(Arrays.asList(TaskPaths.THRESHOLD_COMMAND, "--wsi", imageName,
+                "--export", QP.buildFilePath(outputBaseDir), "--undersampling", Integer.toString(downsample),
+                "--pixel-size", Double.toString(pixelSize)));
+        if (writeGeoJSON) {
+            arguments.add("--geojson");
+        }
         venv.setArguments(arguments);
 
         // Check if the thread has been interrupted before starting the process
@@ -151,23 +258,24 @@ public class TissueDetectionTask extends Task<Void> {
         venv.runCommand();
         logger.info("Thresholding algorithm for {} finished", imageName);
 
-        // Read the annotations from the GeoJSON file
-        String geoJSONPath = TaskPaths.getThresholdResultsPath(outputBaseDir, imageName);
-        List<PathObject> detectedObjects = PathIO.readObjects(Paths.get(geoJSONPath));
+        // Read the annotations from the polygon file
+        List<PathObject> detectedObjects = PolygonFileReader.read(
+                Paths.get(TaskPaths.getThresholdResultsPath(outputBaseDir, imageName)),
+                Paths.get(TaskPaths.getThresholdGeoJSONPath(outputBaseDir, imageName)));
 
-        // Check if the thread has been interrupted before adding the detected
-        // objects to the image hierarchy
-        if (Thread.interrupted()) {
-            throw new InterruptedException();
-        }
+        // Low-resolution image is not needed anymore. Only the folders of this
+        // image are removed, as other images may be processed at the same time
+        File lowresOutputFolder = new File(TaskPaths.getLowResOutputDir(outputBaseDir, imageName));
+        if (lowresOutputFolder.exists())
+            Utils.deleteFolder(lowresOutputFolder);
 
-        // Add the detected objects to the image hierarchy
-        PathObjectHierarchy hierarchy = imageData.getHierarchy();
-        hierarchy.addObjects(detectedObjects);
-        logger.info("Added {} detected objects to {}", detectedObjects.size(), imageName);
+        // Tissue detections are already added to the image hierarchy, so they
+        // are not needed
+        File thresholdOutputFolder = new File(TaskPaths.getThresholdOutputDir(outputBaseDir, imageName));
+        if (thresholdOutputFolder.exists())
+            Utils.deleteFolder(thresholdOutputFolder);
 
-        // Update progress
-        progressListener.updateProgress();
+        return detectedObjects;
     }
 
     /**
@@ -182,15 +290,15 @@ public class TissueDetectionTask extends Task<Void> {
      */
     private void detectTissueProject(Project<BufferedImage> project, String outputBaseDir)
             throws IOException, InterruptedException {
-        List<ProjectImageEntry<BufferedImage>> imageEntryList = project.getImageList();
+        // Without a session shared by the pipeline, the images are saved at the end
+        ImageDataSession session = this.session != null ? this.session : new ImageDataSession(project);
         logger.info("Running tissue detection for {} images", selectedImages.size());
         // Only process the selected images
-        for (ProjectImageEntry<BufferedImage> imageEntry : imageEntryList) {
-            ImageData<BufferedImage> imageData = imageEntry.readImageData();
-            if (selectedImages.contains(GeneralTools.stripExtension(imageData.getServer().getMetadata().getName()))) {
-                detectTissue(imageData, outputBaseDir);
-                imageEntry.saveImageData(imageData);
-            }
+        for (String imageName : selectedImages) {
+            session.process(imageName, true, imageData -> detectTissue(imageData, outputBaseDir));
+        }
+        if (this.session == null) {
+            session.closeAll();
         }
 
         logger.info("Tissue detection for {} images in the project finished", selectedImages.size());
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.analysis.images.ContourTracing;
+import qupath.lib.common.ColorTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Class to detect the tissue in a low-resolution version of a WSI, following
+ * the same steps as the 'gncnn-threshold' script, but without writing the image
+ * to disk or starting a process:
+ * <ol>
+ * <li>Saturation channel of the HSV image</li>
+ * <li>Otsu's thresholding</li>
+ * <li>Closing with an 11 x 11 elliptical kernel</li>
+ * <li>Tracing of the outer contours, removing the small ones</li>
+ * </ol>
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class TissueDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(TissueDetector.class);
+
+    /**
+     * Minimum area of a tissue region, as in the 'gncnn-threshold' script
+     */
+    public static final double MIN_AREA_UM = 5000;
+
+    private static final int KERNEL_SIZE = 11;
+
+    private double downsample;
+
+    public TissueDetector(double downsample) {
+        this.downsample = downsample;
+    }
+
+    /**
+     * Detects the tissue in the image
+     *
+     * @param server
+     * @return The 'Tissue' annotations, in full-resolution coordinates
+     * @throws IOException If the low-resolution image cannot be read
+     */
+    public List<PathObject> detect(ImageServer<BufferedImage> server) throws IOException {
+        long startTime = System.currentTimeMillis();
+        RegionRequest request = RegionRequest.createInstance(server, downsample);
+        BufferedImage img = server.readRegion(request);
+        int width = img.getWidth();
+        int height = img.getHeight();
+
+        byte[] saturation = getSaturation(img);
+        int threshold = getOtsuThreshold(saturation);
+        byte[] mask = new byte[width * height];
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = (byte) ((saturation[i] & 0xff) > threshold ? 1 : 0);
+        }
+        mask = close(mask, width, height);
+
+        BufferedImage maskImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster raster = maskImage.getRaster();
+        raster.setDataElements(0, 0, width, height, mask);
+        ROI traced = ContourTracing.createTracedROI(raster, 1, 1, 0, request);
+
+        // Split the traced region into its outer contours, filling the holes
+        List<PathObject> tissue = new ArrayList<>();
+        if (traced != null && !traced.isEmpty()) {
+            double pixelSize = server.getPixelCalibration().getAveragedPixelSizeMicrons();
+            double minArea = MIN_AREA_UM / (pixelSize * pixelSize);
+            PathClass tissueClass = PathClass.getInstance("Tissue", ColorTools.RED);
+            for (Polygon outer : getOuterContours(traced.getGeometry())) {
+                if (Double.isNaN(pixelSize) || outer.getArea() >= minArea) {
+                    ROI roi = GeometryTools.geometryToROI(outer, ImagePlane.getDefaultPlane());
+                    tissue.add(PathObjects.createAnnotationObject(roi, tissueClass));
+                }
+            }
+        }
+
+        logger.info("Detected {} tissue regions in {} ms [threshold={}]", tissue.size(),
+                System.currentTimeMillis() - startTime, threshold);
+        return tissue;
+    }
+
+    /**
+     * Returns the exterior rings of the parts of a traced region, without the
+     * ones inside another part, e.g. islands of tissue in a hole, as the outer
+     * contours retrieved by OpenCV
+     *
+     * @param geometry
+     * @return The outer contours, as polygons without holes
+     */
+    static List<Polygon> getOuterContours(Geometry geometry) {
+        List<Polygon> shells = new ArrayList<>();
+        for (int i = 0; i < geometry.getNumGeometries(); i++) {
+            Geometry part = geometry.getGeometryN(i);
+            if (part instanceof Polygon polygon) {
+                shells.add(part.getFactory().createPolygon(polygon.getExteriorRing().getCoordinates()));
+            }
+        }
+
+        List<Polygon> outer = new ArrayList<>(shells.size());
+        for (Polygon shell : shells) {
+            boolean nested = false;
+            for (Polygon other : shells) {
+                // Parts of a valid region do not overlap, so a part is nested
+                // if a point inside it is inside another shell
+                if (other != shell && other.getEnvelopeInternal().covers(shell.getEnvelopeInternal())
+                        && other.covers(shell.getInteriorPoint())) {
+                    nested = true;
+                    break;
+                }
+            }
+            if (!nested) {
+                outer.add(shell);
+            }
+        }
+        return outer;
+    }
+
+    /**
+     * Returns the saturation channel of the HSV image, scaled to 0-255 as in
+     * OpenCV
+     */
+    private static byte[] getSaturation(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        byte[] saturation = new byte[width * height];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            img.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int r = (row[x] >> 16) & 0xff;
+                int g = (row[x] >> 8) & 0xff;
+                int b = row[x] & 0xff;
+                int max = Math.max(r, Math.max(g, b));
+                int min = Math.min(r, Math.min(g, b));
+                saturation[y * width + x] = (byte) (max == 0 ? 0 : Math.round(255.0 * (max - min) / max));
+            }
+        }
+        return saturation;
+    }
+
+    /**
+     * Returns the threshold maximising the between-class variance, as in
+     * OpenCV. Pixels above the threshold are foreground
+     */
+    private static int getOtsuThreshold(byte[] values) {
+        int[] histogram = new int[256];
+        for (byte v : values) {
+            histogram[v & 0xff]++;
+        }
+
+        double n = values.length;
+        double mu = 0;
+        for (int i = 0; i < 256; i++) {
+            mu += i * histogram[i] / n;
+        }
+
+        double q1 = 0;
+        double mu1 = 0;
+        double maxSigma = 0;
+        int threshold = 0;
+        for (int i = 0; i < 256; i++) {
+            double p = histogram[i] / n;
+            mu1 *= q1;
+            q1 += p;
+            double q2 = 1 - q1;
+            if (Math.min(q1, q2) < 1e-7 || Math.max(q1, q2) > 1 - 1e-7) {
+                continue;
+            }
+            mu1 = (mu1 + i * p) / q1;
+            double mu2 = (mu - q1 * mu1) / q2;
+            double sigma = q1 * q2 * (mu1 - mu2) * (mu1 - mu2);
+            if (sigma > maxSigma) {
+                maxSigma = sigma;
+                threshold = i;
+            }
+        }
+        return threshold;
+    }
+
+    /**
+     * Applies a morphological closing with an elliptical kernel, built as
+     * OpenCV's getStructuringElement(MORPH_ELLIPSE). Pixels outside the image
+     * do not affect the result
+     */
+    private static byte[] close(byte[] mask, int width, int height) {
+        int radius = KERNEL_SIZE / 2;
+        int[] halfWidths = new int[KERNEL_SIZE];
+        for (int i = 0; i < KERNEL_SIZE; i++) {
+            int dy = i - radius;
+            halfWidths[i] = (int) Math.round(radius * Math.sqrt((double) (radius * radius - dy * dy) / (radius * radius)));
+        }
+        byte[] dilated = morph(mask, width, height, halfWidths, true);
+        return morph(dilated, width, height, halfWidths, false);
+    }
+
+    /**
+     * Dilates or erodes a binary mask. Each row of the kernel is applied with
+     * the prefix sums of the mask rows, so the cost does not depend on the
+     * kernel width
+     */
+    private static byte[] morph(byte[] mask, int width, int height, int[] halfWidths, boolean dilate) {
+        int radius = halfWidths.length / 2;
+        int[] prefix = new int[(width + 1) * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                prefix[y * (width + 1) + x + 1] = prefix[y * (width + 1) + x] + mask[y * width + x];
+            }
+        }
+
+        byte[] result = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Dilation: any pixel set in the kernel. Erosion: all the
+                // pixels inside the image set in the kernel
+                boolean value = !dilate;
+                for (int k = 0; k < halfWidths.length; k++) {
+                    int yy = y + k - radius;
+                    if (yy < 0 || yy >= height) {
+                        continue;
+                    }
+                    int x1 = Math.max(0, x - halfWidths[k]);
+                    int x2 = Math.min(width, x + halfWidths[k] + 1);
+                    int count = prefix[yy * (width + 1) + x2] - prefix[yy * (width + 1) + x1];
+                    if (dilate && count > 0) {
+                        value = true;
+                        break;
+                    } else if (!dilate && count < x2 - x1) {
+                        value = false;
+                        break;
+                    }
+                }
+                result[y * width + x] = (byte) (value ? 1 : 0);
+            }
+        }
+        return result;
+    }
+}
@@ -5,7 +5,9 @@ package qupath.ext.gncnn.ui;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.controlsfx.control.CheckListView;
@@ -27,7 +29,10 @@ import javafx.scene.control.ProgressIndicator;
 import javafx.scene.control.TextField;
 import javafx.scene.image.ImageView;
 import javafx.stage.Stage;
+import qupath.ext.gncnn.GNCnnPreferences;
+import qupath.ext.gncnn.cache.ThumbnailService;
 import qupath.ext.gncnn.entities.ImageResult;
+import qupath.ext.gncnn.tasks.ResultsTask;
 import qupath.ext.gncnn.tasks.TaskManager;
 import qupath.ext.gncnn.utils.Utils;
 import qupath.fx.dialogs.Dialogs;
@@ -79,6 +84,10 @@ public class GNCnnController {
 
     private TaskManager taskManager;
 
+    // Kept across the results windows, so the thumbnails are loaded once
+    private final ThumbnailService thumbnailService = new ThumbnailService(ThumbnailService.getDefaultCacheDir(),
+            200, 64L << 20, 256L << 20, 2);
+
     @FXML
     /**
      * Initializes the controller
@@ -139,6 +148,7 @@ public class GNCnnController {
             logger.info("Running all tasks");
             try {
                 refreshViewer(selectedImages);
+                GNCnnPreferences.applyTo(taskManager);
                 taskManager.runAll(selectedImages, multiclass);
             } catch (IOException e) {
                 logger.error("Error running all tasks", e);
@@ -160,6 +170,7 @@ public class GNCnnController {
             ObservableList<String> selectedImages = imgsCheckList.getCheckModel().getCheckedItems();
             try {
                 refreshViewer(selectedImages);
+                GNCnnPreferences.applyTo(taskManager);
                 taskManager.runDetection(selectedImages);
             } catch (IOException e) {
                 logger.error("Error running detection", e);
@@ -177,47 +188,57 @@ public class GNCnnController {
             Dialogs.showErrorMessage("No image or project open", "Please open an image or project to run the tasks");
             return;
         } else {
-            ObservableList<String> selectedImages = imgsCheckList.getCheckModel().getCheckedItems();
-            List<String> imgsWithGlomeruli;
-            boolean continueClassification = true;
+            // Copy the images, as the list of checked items may change while checking
+            List<String> selectedImages = new ArrayList<>(imgsCheckList.getCheckModel().getCheckedItems());
+            Boolean multiclass = isMulticlassClassification();
 
-            try {
-                imgsWithGlomeruli = Utils.getImgsWithGlomeruli(qupath, selectedImages);
-            } catch (IOException e) {
-                logger.error("Error checking \"Glomerulus\" annotations", e);
-                Dialogs.showErrorMessage("Error checking \"Glomerulus\" annotations", e);
-                return;
-            }
+            // Glomeruli already classified with the same models keep their
+            // results, unless they have been edited. The images are checked in
+            // the background, as all of them have to be read
+            GNCnnPreferences.applyTo(taskManager);
+            taskManager.checkGlomeruli(selectedImages, multiclass,
+                    imgsWithGlomeruli -> runClassification(selectedImages, imgsWithGlomeruli, multiclass));
+        }
+    }
 
-            if (imgsWithGlomeruli.isEmpty()) {
-                // If all the selected images don't have "Glomerulus" annotations, show
-                // an error message
-                Dialogs.showErrorMessage("No \"Glomerulus\" annotations",
-                        "There are no \"Glomerulus\" annotations in the selected images.\nPlease run the detection pipeline first or annotate them manually.");
-                return;
-            } else if (imgsWithGlomeruli.size() < selectedImages.size()) {
-                // If there are less images with "Glomerulus" annotations than the
-                // selected images, show a warning message
-                List<String> imgsWithoutGlomeruli = selectedImages.stream()
-                        .filter(img -> !imgsWithGlomeruli.contains(img))
-                        .collect(Collectors.toList());
-                ClassificationWarningPane warningPane = new ClassificationWarningPane(stage);
-                continueClassification = warningPane.show(imgsWithGlomeruli, imgsWithoutGlomeruli);
-            }
+    /**
+     * Runs the classification of the glomeruli once the selected images have
+     * been checked
+     * 
+     * @param selectedImages
+     * @param imgsWithGlomeruli
+     * @param multiclass
+     */
+    private void runClassification(List<String> selectedImages, List<String> imgsWithGlomeruli,
+            Boolean multiclass) {
+        boolean continueClassification = true;
+        if (imgsWithGlomeruli.isEmpty()) {
+            // If all the selected images don't have "Glomerulus" annotations, show
+            // an error message
+            Dialogs.showErrorMessage("No \"Glomerulus\" annotations",
+                    "There are no \"Glomerulus\" annotations in the selected images, or they have already been classified with these models.\nPlease run the detection pipeline first or annotate them manually.");
+            return;
+        } else if (imgsWithGlomeruli.size() < selectedImages.size()) {
+            // If there are less images with "Glomerulus" annotations than the
+            // selected images, show a warning message
+            List<String> imgsWithoutGlomeruli = selectedImages.stream()
+                    .filter(img -> !imgsWithGlomeruli.contains(img))
+                    .collect(Collectors.toList());
+            ClassificationWarningPane warningPane = new ClassificationWarningPane(stage);
+            continueClassification = warningPane.show(imgsWithGlomeruli, imgsWithoutGlomeruli);
+        }
 
-            if (continueClassification) {
-                logger.info("Running classification pipeline");
-                Boolean multiclass = isMulticlassClassification();
-                try {
-                    refreshViewer(imgsWithGlomeruli);
-                    taskManager.runClassification(imgsWithGlomeruli, multiclass);
-                } catch (IOException e) {
-                    logger.error("Error running classification", e);
-                    Dialogs.showErrorMessage("Error running classification", e);
-                }
-            } else {
-                logger.info("Classification cancelled");
+        if (continueClassification) {
+            logger.info("Running classification pipeline");
+            try {
+                refreshViewer(imgsWithGlomeruli);
+                taskManager.runClassification(imgsWithGlomeruli, multiclass);
+            } catch (IOException e) {
+                logger.error("Error running classification", e);
+                Dialogs.showErrorMessage("Error running classification", e);
             }
+        } else {
+            logger.info("Classification cancelled");
         }
     }
 
@@ -231,14 +252,25 @@ public class GNCnnController {
             return;
         } else {
             logger.info("Showing results");
+            // The window is shown at once, and filled in the background
+            ObservableList<String> selectedImages = imgsCheckList.getCheckModel().getCheckedItems();
+            ObservableList<ImageResult> results = FXCollections.observableArrayList();
+            ResultsTask task = new ResultsTask(qupath, selectedImages, results);
+            task.setOnFailed(e -> {
+                Throwable exception = task.getException();
+                if (!(exception instanceof InterruptedException)) {
+                    logger.error("Error showing results", exception);
+                    Dialogs.showErrorMessage("Error showing results", exception);
+                }
+            });
+            ResultsPane resultsPane = new ResultsPane(stage, thumbnailService);
+            // The images classified while the results are shown are added to them
+            Consumer<String> onImageCompleted = resultsPane::updateResults;
+            taskManager.addImageCompletedListener(onImageCompleted);
             try {
-                ObservableList<String> selectedImages = imgsCheckList.getCheckModel().getCheckedItems();
-                ObservableList<ImageResult> results = Utils.getResults(qupath, selectedImages);
-                ResultsPane resultsPane = new ResultsPane(stage);
-                resultsPane.show(results);
-            } catch (IOException e) {
-                logger.error("Error showing results", e);
-                Dialogs.showErrorMessage("Error showing results", e);
+                resultsPane.show(results, task);
+            } finally {
+                taskManager.removeImageCompletedListener(onImageCompleted);
             }
         }
     }
@@ -6,24 +6,35 @@ package qupath.ext.gncnn.ui;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javafx.animation.PauseTransition;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
+import javafx.concurrent.Worker;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
 import javafx.scene.control.TextField;
 import javafx.scene.control.cell.PropertyValueFactory;
-import javafx.scene.image.ImageView;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
+import javafx.util.Duration;
+import qupath.ext.gncnn.cache.ThumbnailService;
 import qupath.ext.gncnn.entities.ImageResult;
-import qupath.ext.gncnn.utils.Utils;
+import qupath.ext.gncnn.tasks.ResultsTask;
+import qupath.lib.gui.QuPathGUI;
 
 /**
  * Controller for the results pane
@@ -35,7 +46,7 @@ public class ResultsController {
     @FXML
     private TableView<ImageResult> resultsTable;
     @FXML
-    private TableColumn<ImageResult, ImageView> thumbnailCol;
+    private TableColumn<ImageResult, ImageResult> thumbnailCol;
     @FXML
     private TableColumn<ImageResult, String> imageCol;
     @FXML
@@ -76,8 +87,27 @@ public class ResultsController {
     private Button saveBtn;
     @FXML
     private TextField resultsSearchBar;
+    @FXML
+    private ProgressBar resultsProgressBar;
+
+    private ObservableList<ImageResult> allResults;
+
+    private FilteredList<ImageResult> results;
+
+    // Images completed while the results are shown, waiting to be updated
+    private final Set<String> pendingImages = new LinkedHashSet<>();
+
+    // Coalesces the completed images, so the table is updated at most a few
+    // times per second
+    private final PauseTransition updateDelay = new PauseTransition(
+            Duration.millis(ResultsTask.UPDATE_INTERVAL_MS));
 
-    private ObservableList<ImageResult> results;
+    private ResultsTask updateTask;
+
+    // Order of the rows, kept by the updates
+    private List<String> imageOrder = List.of();
+
+    private boolean closed = false;
 
     @FXML
     /**
@@ -95,7 +125,6 @@ public class ResultsController {
      */
     private void bindValueFactories() {
         // Bindings
-        PropertyValueFactory<ImageResult, ImageView> thumbnailColFactory = new PropertyValueFactory<>("thumbnail");
         PropertyValueFactory<ImageResult, String> imageColFactory = new PropertyValueFactory<>("name");
         PropertyValueFactory<ImageResult, String> mostPredictedClassColFactory = new PropertyValueFactory<>(
                 "mostPredictedClass");
@@ -118,7 +147,7 @@ public class ResultsController {
         PropertyValueFactory<ImageResult, Integer> noClassifiedColFactory = new PropertyValueFactory<>("noClassified");
 
         // Set value factories
-        thumbnailCol.setCellValueFactory(thumbnailColFactory);
+        thumbnailCol.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(cell.getValue()));
         imageCol.setCellValueFactory(imageColFactory);
         mostPredictedClassCol.setCellValueFactory(mostPredictedClassColFactory);
         nGlomeruliCol.setCellValueFactory(nGlomeruliColFactory);
@@ -144,14 +173,20 @@ public class ResultsController {
      */
     private void bindSearchBar() {
         // Filter the images in the check list using the search bar
+        // The results are filtered as they are added, so the filter applies to
+        // the results still being loaded
         resultsSearchBar.textProperty().addListener((observable, oldValue, newValue) -> {
+            if (results == null) {
+                return;
+            }
             // If the search bar is empty, show all the images
-            if (newValue.isEmpty() || newValue.isBlank() || newValue == null) {
-                resultsTable.setItems(results);
+            if (newValue == null || newValue.isBlank()) {
+                results.setPredicate(null);
             } else {
                 // Filter the results by their name and most predicted class
-                ObservableList<ImageResult> filteredResults = Utils.filterResults(results, newValue);
-                resultsTable.setItems(filteredResults);
+                String filter = newValue.toLowerCase();
+                results.setPredicate(result -> result.getName().toLowerCase().contains(filter)
+                        || result.getMostPredictedClass().toLowerCase().contains(filter));
             }
         });
     }
@@ -195,13 +230,99 @@ public class ResultsController {
         logger.info("Results saved to {}", file.getAbsolutePath());
     }
 
+    /**
+     * Sets the service which loads the thumbnails of the results
+     * 
+     * @param thumbnailService
+     */
+    public void setThumbnailService(ThumbnailService thumbnailService) {
+        thumbnailCol.setCellFactory(column -> new ThumbnailCell(thumbnailService));
+    }
+
     /**
      * Fills the table with the results
      * 
      * @param results
      */
     public void fillTable(ObservableList<ImageResult> results) {
-        resultsTable.setItems(results);
-        this.results = results;
+        this.allResults = results;
+        this.results = new FilteredList<>(results);
+        resultsTable.setItems(this.results);
+    }
+
+    /**
+     * Starts the task which loads the results, showing its progress until it
+     * finishes
+     * 
+     * @param resultsTask
+     */
+    public void loadResults(ResultsTask resultsTask) {
+        imageOrder = resultsTask.getImageOrder();
+        resultsProgressBar.progressProperty().bind(resultsTask.progressProperty());
+        resultsProgressBar.visibleProperty().bind(resultsTask.runningProperty());
+        Thread thread = new Thread(resultsTask, "GNCnn-results");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Inserts or updates the row of an image whose results have changed, e.g.
+     * because it has just been classified. The updates are coalesced and
+     * computed in the background. It must be called in the JavaFX thread
+     * 
+     * @param imageName
+     */
+    public void updateResults(String imageName) {
+        if (closed || allResults == null) {
+            return;
+        }
+        pendingImages.add(imageName);
+        // A running update schedules the next one when it finishes
+        if (updateTask == null) {
+            updateDelay.setOnFinished(e -> startUpdate());
+            updateDelay.playFromStart();
+        }
+    }
+
+    /**
+     * Stops the pending updates of the results, once the window is closed
+     */
+    public void close() {
+        closed = true;
+        updateDelay.stop();
+        pendingImages.clear();
+        if (updateTask != null) {
+            updateTask.cancel(true);
+        }
+    }
+
+    private void startUpdate() {
+        if (closed || pendingImages.isEmpty()) {
+            return;
+        }
+        List<String> images = new ArrayList<>(pendingImages);
+        pendingImages.clear();
+        logger.debug("Updating the results of {} images", images.size());
+
+        ResultsTask task = new ResultsTask(QuPathGUI.getInstance(), images, allResults);
+        task.setImageOrder(imageOrder);
+        updateTask = task;
+        task.stateProperty().addListener((observable, oldValue, newValue) -> {
+            if (newValue != Worker.State.SUCCEEDED && newValue != Worker.State.FAILED
+                    && newValue != Worker.State.CANCELLED) {
+                return;
+            }
+            if (newValue == Worker.State.FAILED) {
+                logger.error("Error updating results", task.getException());
+            }
+            updateTask = null;
+            if (!closed && !pendingImages.isEmpty()) {
+                updateDelay.setOnFinished(e -> startUpdate());
+                updateDelay.playFromStart();
+            }
+        });
+        Thread thread = new Thread(task, "GNCnn-results-update");
+        thread.setDaemon(true);
+        thread.start();
     }
 }
@@ -15,7 +15,9 @@ import javafx.scene.Scene;
 import javafx.scene.layout.GridPane;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
+import qupath.ext.gncnn.cache.ThumbnailService;
 import qupath.ext.gncnn.entities.ImageResult;
+import qupath.ext.gncnn.tasks.ResultsTask;
 
 /**
  * Pane to display the results of the detection and classification of glomeruli.
@@ -28,17 +30,32 @@ public class ResultsPane {
 
     private final Stage ownerStage;
 
+    private final ThumbnailService thumbnailService;
+
     private Stage stage;
     private ResultsController controller;
 
-    public ResultsPane(Stage ownerStage) {
+    public ResultsPane(Stage ownerStage, ThumbnailService thumbnailService) {
         this.ownerStage = ownerStage;
+        this.thumbnailService = thumbnailService;
     }
 
-    public void show(ObservableList<ImageResult> results) {
+    /**
+     * Shows the results, filled by a task started here. The task is cancelled
+     * if the window is closed before it finishes
+     * 
+     * @param results
+     * @param resultsTask
+     */
+    public void show(ObservableList<ImageResult> results, ResultsTask resultsTask) {
         if (stage == null) {
             try {
                 stage = createStage(results);
+                controller.loadResults(resultsTask);
+                stage.setOnHidden(e -> {
+                    resultsTask.cancel(true);
+                    controller.close();
+                });
                 stage.showAndWait();
             } catch (IOException e) {
                 logger.error(e.getMessage(), e);
@@ -48,6 +65,18 @@ public class ResultsPane {
         }
     }
 
+    /**
+     * Inserts or updates the row of an image in the results being shown, e.g.
+     * when its classification has just finished
+     * 
+     * @param imageName
+     */
+    public void updateResults(String imageName) {
+        if (controller != null) {
+            controller.updateResults(imageName);
+        }
+    }
+
     private Stage createStage(ObservableList<ImageResult> results) throws IOException {
         URL url = getClass().getResource("ResultsPane.fxml");
         if (url == null) {
@@ -68,6 +97,7 @@ public class ResultsPane {
         stage.setScene(new Scene(root));
         stage.setTitle("Results");
 
+        controller.setThumbnailService(thumbnailService);
         controller.fillTable(results);
 
         return stage;
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.ui;
+
+import java.util.concurrent.CompletableFuture;
+
+import javafx.application.Platform;
+import javafx.scene.control.TableCell;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import qupath.ext.gncnn.cache.ThumbnailService;
+import qupath.ext.gncnn.entities.ImageResult;
+
+/**
+ * Table cell which loads the thumbnail of its result in the background when
+ * it is shown. The table only creates cells for the visible rows, so the
+ * thumbnails are loaded as the rows scroll into view
+ *
+ * @author Israel Mateos Aparicio
+ */
+class ThumbnailCell extends TableCell<ImageResult, ImageResult> {
+
+    private final ThumbnailService thumbnailService;
+
+    private final ImageView imageView = new ImageView();
+
+    private CompletableFuture<Image> pending;
+
+    ThumbnailCell(ThumbnailService thumbnailService) {
+        this.thumbnailService = thumbnailService;
+        imageView.setPreserveRatio(true);
+        imageView.setFitWidth(thumbnailService.getSize());
+        imageView.setFitHeight(thumbnailService.getSize());
+    }
+
+    @Override
+    protected void updateItem(ImageResult result, boolean empty) {
+        super.updateItem(result, empty);
+
+        // The cell is reused for another row, so the previous load is not needed
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+
+        if (empty || result == null) {
+            imageView.setImage(null);
+            setGraphic(null);
+            return;
+        }
+
+        setGraphic(imageView);
+        Image cached = thumbnailService.getCached(result.getThumbnailKey());
+        imageView.setImage(cached);
+        if (cached == null) {
+            CompletableFuture<Image> future = thumbnailService.load(result.getThumbnailKey(),
+                    result.getThumbnailSource());
+            pending = future;
+            future.thenAccept(image -> Platform.runLater(() -> {
+                if (pending == future && getItem() == result) {
+                    imageView.setImage(image);
+                    pending = null;
+                }
+            }));
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.utils;
+
+import java.util.Map;
+
+import qupath.lib.geom.Point2;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Class to store in the annotations which model classified them, and the ROI
+ * they had at that moment, so that only new or changed glomeruli are
+ * classified again
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class ClassificationMetadata {
+
+    public static final String ROI_HASH_KEY = "gncnn.roiHash";
+
+    public static final String MODEL_KEY = "gncnn.model";
+
+    /**
+     * Returns the identifier of a combination of classification models, the
+     * same used for the report folder
+     *
+     * @param binaryModelName
+     * @param multiclassModelName The multiclass model, or "None"
+     * @return The model identifier
+     */
+    public static String getModelId(String binaryModelName, String multiclassModelName) {
+        return "B-" + binaryModelName + "_M-" + multiclassModelName;
+    }
+
+    /**
+     * Returns a hash of the geometry of a ROI, which changes if any vertex is
+     * moved, added or removed
+     *
+     * @param roi
+     * @return The ROI hash
+     */
+    public static String getRoiHash(ROI roi) {
+        long hash = 1125899906842597L;
+        hash = 31 * hash + roi.getRoiType().ordinal();
+        hash = 31 * hash + roi.getZ();
+        hash = 31 * hash + roi.getT();
+        for (Point2 point : roi.getAllPoints()) {
+            hash = 31 * hash + Double.doubleToLongBits(point.getX());
+            hash = 31 * hash + Double.doubleToLongBits(point.getY());
+        }
+        return Long.toHexString(hash);
+    }
+
+    /**
+     * Checks if an annotation has to be classified with the given model. This
+     * is the case for the unclassified glomeruli, and for the glomeruli
+     * classified with another model or whose ROI has changed since they were
+     * classified. Other annotations are never classified
+     *
+     * @param annotation
+     * @param modelId
+     * @return True if the annotation has to be classified
+     */
+    public static boolean needsClassification(PathObject annotation, String modelId) {
+        if (annotation.getPathClass() != null && annotation.getPathClass().getName().equals("Glomerulus")) {
+            return true;
+        }
+        Map<String, String> metadata = annotation.getMetadata();
+        String classifiedWith = metadata.get(MODEL_KEY);
+        if (classifiedWith == null) {
+            return false;
+        }
+        return !classifiedWith.equals(modelId)
+                || !getRoiHash(annotation.getROI()).equals(metadata.get(ROI_HASH_KEY));
+    }
+
+    /**
+     * Records that an annotation has been classified with the given model
+     *
+     * @param annotation
+     * @param modelId
+     */
+    public static void markClassified(PathObject annotation, String modelId) {
+        Map<String, String> metadata = annotation.getMetadata();
+        metadata.put(MODEL_KEY, modelId);
+        metadata.put(ROI_HASH_KEY, getRoiHash(annotation.getROI()));
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Class to apply a function to the selected entries of a project on a
+ * bounded thread pool, e.g. to read their image data, passing the results to
+ * the caller as each entry finishes
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class ProjectScanner {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProjectScanner.class);
+
+    /**
+     * Function applied to a project entry
+     */
+    @FunctionalInterface
+    public interface EntryFunction<T> {
+        T apply(ProjectImageEntry<BufferedImage> entry) throws IOException;
+    }
+
+    private final Project<BufferedImage> project;
+
+    // Reading image data is mostly I/O and deserialisation, so a few threads
+    // are enough, and more would only increase the memory used
+    private int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    public ProjectScanner(Project<BufferedImage> project) {
+        this.project = project;
+    }
+
+    /**
+     * Sets the maximum number of entries processed at the same time
+     *
+     * @param threads
+     * @return This scanner
+     */
+    public ProjectScanner threads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * Applies a function to the entries of the given images. The entries are
+     * submitted in the order of the images, and the results are passed to the
+     * consumer in the calling thread as the entries finish. An entry whose
+     * function fails is logged and skipped, so one unreadable image does not
+     * stop the scan. The scan stops if the calling thread is interrupted
+     *
+     * @param imageNames Names of the images, without extension
+     * @param function
+     * @param consumer   Receives the image name and its result
+     * @return The number of entries scanned without errors
+     * @throws InterruptedException
+     */
+    public <T> int scan(Collection<String> imageNames, EntryFunction<T> function, BiConsumer<String, T> consumer)
+            throws InterruptedException {
+        Map<String, Integer> order = new HashMap<>();
+        for (String imageName : imageNames) {
+            order.putIfAbsent(imageName, order.size());
+        }
+        List<ProjectImageEntry<BufferedImage>> entries = project.getImageList().stream()
+                .filter(entry -> order.containsKey(GeneralTools.stripExtension(entry.getImageName())))
+                .sorted(Comparator.comparing(entry -> order.get(GeneralTools.stripExtension(entry.getImageName()))))
+                .toList();
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        long startTime = System.currentTimeMillis();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, entries.size()),
+                ThreadTools.createThreadFactory("GNCnn-project-scan-", true));
+        CompletionService<T> completionService = new ExecutorCompletionService<>(pool);
+        Map<Future<T>, String> futures = new HashMap<>();
+        int failed = 0;
+        try {
+            for (ProjectImageEntry<BufferedImage> entry : entries) {
+                futures.put(completionService.submit(() -> function.apply(entry)),
+                        GeneralTools.stripExtension(entry.getImageName()));
+            }
+            for (int remaining = futures.size(); remaining > 0; remaining--) {
+                Future<T> future = completionService.take();
+                String imageName = futures.get(future);
+                T result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException e) {
+                    logger.warn("Skipping image '{}': {}", imageName, e.getCause().getMessage(), e.getCause());
+                    failed++;
+                    continue;
+                }
+                consumer.accept(imageName, result);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (failed > 0) {
+            logger.warn("{} of {} project entries could not be scanned", failed, entries.size());
+        }
+        logger.debug("Scanned {} project entries in {} ms", entries.size(), System.currentTimeMillis() - startTime);
+        return entries.size() - failed;
+    }
+}
@@ -7,30 +7,29 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
-import javafx.embed.swing.SwingFXUtils;
-import javafx.scene.image.ImageView;
+import qupath.ext.gncnn.cache.ResultsSummaryStore;
+import qupath.ext.gncnn.cache.ThumbnailService;
 import qupath.ext.gncnn.entities.ImageResult;
+import qupath.ext.gncnn.entities.ResultsSummary;
+import qupath.ext.gncnn.tasks.TaskPaths;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.images.ImageData;
-import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.PathObject;
-import qupath.lib.objects.classes.PathClass;
-import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectImageEntry;
-import qupath.lib.regions.RegionRequest;
 import qupath.lib.scripting.QP;
 
 /**
@@ -105,107 +104,103 @@ public class Utils {
      * @param selectedImages
      * @return The images with "Glomerulus" annotations
      * @throws IOException
+     * @throws InterruptedException
      */
-    public static List<String> getImgsWithGlomeruli(QuPathGUI qupath, ObservableList<String> selectedImages)
-            throws IOException {
-        List<String> imgsWithGlomeruli = new ArrayList<String>();
+    public static List<String> getImgsWithGlomeruli(QuPathGUI qupath, List<String> selectedImages)
+            throws IOException, InterruptedException {
+        return getImgsWithGlomeruli(qupath, selectedImages, null);
+    }
+
+    /**
+     * Checks if there are glomeruli to classify with the given model in the
+     * selected images, and returns the images with them. These are the
+     * "Glomerulus" annotations, and the glomeruli classified with another
+     * model or changed since they were classified
+     * 
+     * @param qupath
+     * @param selectedImages
+     * @param modelId        Identifier of the classification models, or null
+     *                       to only check for "Glomerulus" annotations
+     * @return The images with glomeruli to classify
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static List<String> getImgsWithGlomeruli(QuPathGUI qupath, List<String> selectedImages,
+            String modelId) throws IOException, InterruptedException {
+        return getImgsWithGlomeruli(qupath, selectedImages, modelId, imageName -> {
+        });
+    }
 
+    /**
+     * Checks if there are glomeruli to classify with the given model in the
+     * selected images, reading the images of a project in parallel
+     * 
+     * @param qupath
+     * @param selectedImages
+     * @param modelId        Identifier of the classification models, or null
+     *                       to only check for "Glomerulus" annotations
+     * @param onImageScanned Called with the name of each image once checked
+     * @return The images with glomeruli to classify, in the order they were
+     *         selected
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static List<String> getImgsWithGlomeruli(QuPathGUI qupath, List<String> selectedImages,
+            String modelId, Consumer<String> onImageScanned) throws IOException, InterruptedException {
+        Predicate<PathObject> isGlomerulus = modelId == null
+                ? annotation -> annotation.getPathClass() != null
+                        && annotation.getPathClass().getName().equals("Glomerulus")
+                : annotation -> ClassificationMetadata.needsClassification(annotation, modelId);
+
+        Set<String> imgsWithGlomeruli = ConcurrentHashMap.newKeySet();
         Project<BufferedImage> project = qupath.getProject();
         if (project != null) {
             // Check for glomerulus annotations in the selected images
-            List<ProjectImageEntry<BufferedImage>> imageEntryList = project.getImageList();
-            for (ProjectImageEntry<BufferedImage> imageEntry : imageEntryList) {
-                String imageName = GeneralTools.stripExtension(imageEntry.getImageName());
-                if (selectedImages.contains(imageName)) {
-                    ImageData<BufferedImage> imageData = imageEntry.readImageData();
-                    PathObjectHierarchy hierarchy = imageData.getHierarchy();
-                    Collection<PathObject> annotations = hierarchy.getAnnotationObjects();
-
-                    for (PathObject annotation : annotations) {
-                        if (annotation.getPathClass() != null
-                                && annotation.getPathClass().getName().equals("Glomerulus")) {
+            new ProjectScanner(project).<Boolean>scan(selectedImages,
+                    imageEntry -> hasAnnotation(imageEntry.readImageData().getHierarchy().getRootObject(),
+                            isGlomerulus),
+                    (imageName, hasGlomeruli) -> {
+                        if (hasGlomeruli) {
                             imgsWithGlomeruli.add(imageName);
-                            break;
                         }
-                    }
-                }
-            }
+                        onImageScanned.accept(imageName);
+                    });
         } else {
             // Check for glomerulus annotations in the current image
             ImageData<BufferedImage> imageData = qupath.getImageData();
             if (imageData != null) {
                 String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
-                PathObjectHierarchy hierarchy = imageData.getHierarchy();
-                Collection<PathObject> annotations = hierarchy.getAnnotationObjects();
-
-                for (PathObject annotation : annotations) {
-                    if (annotation.getPathClass() != null
-                            && annotation.getPathClass().getName().equals("Glomerulus")) {
-                        imgsWithGlomeruli.add(imageName);
-                        break;
-                    }
+                if (hasAnnotation(imageData.getHierarchy().getRootObject(), isGlomerulus)) {
+                    imgsWithGlomeruli.add(imageName);
                 }
+                onImageScanned.accept(imageName);
             } else {
                 logger.error("No project or image is open");
             }
         }
 
-        return imgsWithGlomeruli;
+        return selectedImages.stream().filter(imgsWithGlomeruli::contains).collect(Collectors.toList());
     }
 
     /**
-     * Returns a thumbnail of the image
+     * Checks if any annotation under an object matches a predicate, stopping
+     * at the first match. Detections are not descended into, as they do not
+     * contain annotations, so the objects of large slides are not all visited
      * 
-     * @param imageData
-     * @param desiredSize
-     * @return The thumbnail of the image
-     * @throws IOException
+     * @param parent
+     * @param predicate
+     * @return True if an annotation matches
      */
-    private static BufferedImage getThumbnail(ImageData<BufferedImage> imageData, double desiredSize)
-            throws IOException {
-        ImageServer<BufferedImage> server = imageData.getServer();
-
-        int width = server.getWidth();
-        int height = server.getHeight();
-
-        // Calculate downsample factor depending on the desired size
-        double downsample = Math.max(width / desiredSize, height / desiredSize);
-
-        RegionRequest request = RegionRequest.createInstance(imageData.getServerPath(), downsample, 0, 0, width,
-                height);
-
-        BufferedImage img = server.readRegion(request);
-
-        return img;
-    }
-
-    public static String getTopkMostPredictedClass(HashMap<String, Double> diseaseProbs, int k) {
-        // Check if any value for any key which is not 'Non-sclerotic' or 'Sclerotic' is greater than 0
-        boolean removeNonSclerotic = false;
-        for (Map.Entry<String, Double> entry : diseaseProbs.entrySet()) {
-            String key = entry.getKey();
-            double value = entry.getValue();
-            if (!key.equals("Non-sclerotic") && !key.equals("Sclerotic") && value > 0) {
-                removeNonSclerotic = true;
-                break;
+    public static boolean hasAnnotation(PathObject parent, Predicate<PathObject> predicate) {
+        for (PathObject child : parent.getChildObjectsAsArray()) {
+            if (child.isDetection()) {
+                continue;
+            }
+            if ((child.isAnnotation() && predicate.test(child)) || hasAnnotation(child, predicate)) {
+                return true;
             }
         }
-        
-        // Get the top k most predicted classes, i.e., the classes with the highest probabilities,
-        // removing the 'Non-sclerotic' and 'Sclerotic' classes if necessary
-        List<Map.Entry<String, Double>> sortedProbs = new ArrayList<>(diseaseProbs.entrySet());
-        if (removeNonSclerotic) {
-            sortedProbs.removeIf(entry -> entry.getKey().equals("Non-sclerotic"));
-            sortedProbs.removeIf(entry -> entry.getKey().equals("Sclerotic"));
-        }
-        sortedProbs.sort((entry1, entry2) -> entry2.getValue().compareTo(entry1.getValue()));
-        List<String> topkClasses = new ArrayList<>();
-        int topk = removeNonSclerotic ? k : 1;
-        for (int i = 0; i < topk && i < sortedProbs.size(); i++) {
-            topkClasses.add(sortedProbs.get(i).getKey());
-        }
-
-        return String.join(" | ", topkClasses);
+        return false;
     }
 
     /**
@@ -217,224 +212,65 @@ public class Utils {
      * @param selectedImages
      * @return The results of the detection and classification of the glomeruli
      * @throws IOException
+     * @throws InterruptedException
      */
-    public static ObservableList<ImageResult> getResults(QuPathGUI qupath, ObservableList<String> selectedImages)
-            throws IOException {
+    public static ObservableList<ImageResult> getResults(QuPathGUI qupath, List<String> selectedImages)
+            throws IOException, InterruptedException {
         ObservableList<ImageResult> results = FXCollections.observableArrayList();
+        getResults(qupath, selectedImages, results::add);
+        return results;
+    }
+
+    /**
+     * Computes the results of the detection and classification of the
+     * glomeruli, passing the result of each image as soon as it is ready. The
+     * results of each image are taken from its results summary, and the image
+     * data is only read, in parallel, if the summary is missing or stale
+     * 
+     * @param qupath
+     * @param selectedImages
+     * @param onResult       Called with the result of each image, in the
+     *                       calling thread
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void getResults(QuPathGUI qupath, List<String> selectedImages, Consumer<ImageResult> onResult)
+            throws IOException, InterruptedException {
         Project<BufferedImage> project = qupath.getProject();
         if (project != null) {
-            // Check for glomerulus annotations in the selected images
-            List<ProjectImageEntry<BufferedImage>> imageEntryList = project.getImageList();
-            for (ProjectImageEntry<BufferedImage> imageEntry : imageEntryList) {
+            ResultsSummaryStore summaryStore = new ResultsSummaryStore(
+                    TaskPaths.getResultsSummaryDir(getBaseDir(qupath)));
+            AtomicInteger scanned = new AtomicInteger();
+            long startTime = System.currentTimeMillis();
+            int nImages = new ProjectScanner(project).<ImageResult>scan(selectedImages, imageEntry -> {
                 String imageName = GeneralTools.stripExtension(imageEntry.getImageName());
-                if (selectedImages.contains(imageName)) {
+                ResultsSummary summary = summaryStore.read(imageEntry);
+                if (summary == null) {
                     ImageData<BufferedImage> imageData = imageEntry.readImageData();
-                    PathObjectHierarchy hierarchy = imageData.getHierarchy();
-                    Collection<PathObject> annotations = hierarchy.getAnnotationObjects();
-
-                    int nGlomeruli = 0;
-                    HashMap<String, Integer> diseaseCounts = new HashMap<String, Integer>() {
-                        {
-                            put("Non-sclerotic", 0);
-                            put("Sclerotic", 0);
-                            put("ABMGN", 0);
-                            put("ANCA", 0);
-                            put("C3-GN", 0);
-                            put("CryoglobulinemicGN", 0);
-                            put("DDD", 0);
-                            put("Fibrillary", 0);
-                            put("IAGN", 0);
-                            put("IgAGN", 0);
-                            put("MPGN", 0);
-                            put("Membranous", 0);
-                            put("PGNMID", 0);
-                            put("SLEGN-IV", 0);
-                            put("Non-classified", 0);
-                        }
-                    };
-                    HashMap<String, Double> diseaseProbs = new HashMap<String, Double>() {
-                        {
-                            put("Non-sclerotic", 0.0);
-                            put("Sclerotic", 0.0);
-                            put("ABMGN", 0.0);
-                            put("ANCA", 0.0);
-                            put("C3-GN", 0.0);
-                            put("CryoglobulinemicGN", 0.0);
-                            put("DDD", 0.0);
-                            put("Fibrillary", 0.0);
-                            put("IAGN", 0.0);
-                            put("IgAGN", 0.0);
-                            put("MPGN", 0.0);
-                            put("Membranous", 0.0);
-                            put("PGNMID", 0.0);
-                            put("SLEGN-IV", 0.0);
-                            put("Non-classified", 0.0);
-                        }
-                    };
-
-                    for (PathObject annotation : annotations) {
-                        PathClass pathClass = annotation.getPathClass();
-                        if (pathClass != null) {
-                            String className = pathClass.getName();
-                            // Adapt the class names to the ones in the report
-                            className = className.replace("Glomerulus", "Non-classified");
-                            className = className.replace("NoSclerotic", "Non-sclerotic");
-                            className = className.split(" ")[0];
-
-                            if (diseaseCounts.containsKey(className)) {
-                                diseaseCounts.put(className, diseaseCounts.get(className) + 1);
-                                nGlomeruli++;
-
-                                // Get the probabilities of the detected classes
-                                Map<String, Number> measurements = annotation.getMeasurements();
-                                Double noScleroticProb = measurements.getOrDefault("NoSclerotic-prob", 0.0).doubleValue();
-
-                                // All the probabilities except the "NoSclerotic" and "Sclerotic"
-                                // must be multiplied by the "NoSclerotic" probability, as they
-                                // are sub-classes of "NoSclerotic"
-                                for (Map.Entry<String, Number> entry : measurements.entrySet()) {
-                                    String key = entry.getKey();
-                                    Double value = entry.getValue().doubleValue();
-                                    if (!key.equals("NoSclerotic-prob") && !key.equals("Sclerotic-prob")) {
-                                        diseaseProbs.put(key.replace("-prob", ""), diseaseProbs.get(key.replace("-prob", "")) + value * noScleroticProb);
-                                    } else {
-                                        diseaseProbs.put(key.replace("-prob", "").replace("NoSclerotic", "Non-sclerotic"), diseaseProbs.get(key.replace("-prob", "").replace("NoSclerotic", "Non-sclerotic")) + value);
-                                    }
-                                }
-                            }
-                        }
-                    }
-
-                    // If all the probabilities are 0, the class is empty
-                    boolean empty = true;
-                    for (Map.Entry<String, Double> entry : diseaseProbs.entrySet()) {
-                        if (entry.getValue() > 0) {
-                            empty = false;
-                            break;
-                        }
-                    }
-
-                    // Get the top 3 most predicted classes
-                    String mostPredictedClass = "";
-                    if (empty) {
-                        // If there are non-classified glomeruli, the most predicted class is "Non-classified"
-                        if (diseaseCounts.get("Non-classified") > 0) {
-                            mostPredictedClass = "Non-classified";
-                        }
-                    } else {
-                        mostPredictedClass = getTopkMostPredictedClass(diseaseProbs, 3);
-                    }
-
-                    ImageView thumbnail = new ImageView(SwingFXUtils.toFXImage(getThumbnail(imageData, 200), null));
-                    results.add(new ImageResult(thumbnail, imageName, mostPredictedClass, nGlomeruli, diseaseCounts));
+                    summary = ResultsSummary.fromHierarchy(imageData.getHierarchy());
+                    // The image data is saved, so the summary is valid until it changes
+                    summaryStore.write(imageEntry, summary);
+                    scanned.incrementAndGet();
                 }
-            }
+
+                // The thumbnail is loaded by the results table when its row is shown
+                String thumbnailKey = project.getPath() + "#" + imageEntry.getID();
+                return summary.toImageResult(imageName, thumbnailKey, ThumbnailService.fromProjectEntry(imageEntry));
+            }, (imageName, result) -> onResult.accept(result));
+            logger.info("Results of {} images read in {} ms ({} scanned)", nImages,
+                    System.currentTimeMillis() - startTime, scanned.get());
         } else {
             // Check for glomerulus annotations in the current image
             ImageData<BufferedImage> imageData = qupath.getImageData();
             if (imageData != null) {
                 String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
-                PathObjectHierarchy hierarchy = imageData.getHierarchy();
-                Collection<PathObject> annotations = hierarchy.getAnnotationObjects();
-
-                int nGlomeruli = 0;
-                HashMap<String, Integer> diseaseCounts = new HashMap<String, Integer>() {
-                    {
-                        put("Non-sclerotic", 0);
-                        put("Sclerotic", 0);
-                        put("ABMGN", 0);
-                        put("ANCA", 0);
-                        put("C3-GN", 0);
-                        put("CryoglobulinemicGN", 0);
-                        put("DDD", 0);
-                        put("Fibrillary", 0);
-                        put("IAGN", 0);
-                        put("IgAGN", 0);
-                        put("MPGN", 0);
-                        put("Membranous", 0);
-                        put("PGNMID", 0);
-                        put("SLEGN-IV", 0);
-                        put("Non-classified", 0);
-                    }
-                };
-                HashMap<String, Double> diseaseProbs = new HashMap<String, Double>() {
-                    {
-                        put("Non-sclerotic", 0.0);
-                        put("Sclerotic", 0.0);
-                        put("ABMGN", 0.0);
-                        put("ANCA", 0.0);
-                        put("C3-GN", 0.0);
-                        put("CryoglobulinemicGN", 0.0);
-                        put("DDD", 0.0);
-                        put("Fibrillary", 0.0);
-                        put("IAGN", 0.0);
-                        put("IgAGN", 0.0);
-                        put("MPGN", 0.0);
-                        put("Membranous", 0.0);
-                        put("PGNMID", 0.0);
-                        put("SLEGN-IV", 0.0);
-                        put("Non-classified", 0.0);
-                    }
-                };
-
-                for (PathObject annotation : annotations) {
-                    PathClass pathClass = annotation.getPathClass();
-                    if (pathClass != null) {
-                        String className = pathClass.getName();
-                        // Adapt the class names to the ones in the report
-                        className = className.replace("Glomerulus", "Non-classified");
-                        className = className.replace("NoSclerotic", "Non-sclerotic");
-                        className = className.split(" ")[0];
-                        diseaseCounts.put(className, diseaseCounts.get(className) + 1);
-                        nGlomeruli++;
-
-                        // Get the probabilities of the detected classes
-                        Map<String, Number> measurements = annotation.getMeasurements();
-                        Double noScleroticProb = measurements.getOrDefault("NoSclerotic-prob", 0.0).doubleValue();
-
-                        // All the probabilities except the "NoSclerotic" and "Sclerotic"
-                        // must be multiplied by the "NoSclerotic" probability, as they
-                        // are sub-classes of "NoSclerotic"
-                        for (Map.Entry<String, Number> entry : measurements.entrySet()) {
-                            String key = entry.getKey();
-                            Double value = entry.getValue().doubleValue();
-                            if (!key.equals("NoSclerotic-prob") && !key.equals("Sclerotic-prob")) {
-                                diseaseProbs.put(key.replace("-prob", ""), diseaseProbs.get(key.replace("-prob", "")) + value * noScleroticProb);
-                            } else {
-                                diseaseProbs.put(key.replace("-prob", "").replace("NoSclerotic", "Non-sclerotic"), diseaseProbs.get(key.replace("-prob", "").replace("NoSclerotic", "Non-sclerotic")) + value);
-                            }
-                        }
-                    }
-                }
-
-                // If all the probabilities are 0, the class is empty
-                boolean empty = true;
-                for (Map.Entry<String, Double> entry : diseaseProbs.entrySet()) {
-                    if (entry.getValue() > 0) {
-                        empty = false;
-                        break;
-                    }
-                }
-
-                // Get the top 3 most predicted classes
-                String mostPredictedClass = "";
-                if (empty) {
-                    // If there are non-classified glomeruli, the most predicted class is "Non-classified"
-                    if (diseaseCounts.get("Non-classified") > 0) {
-                        mostPredictedClass = "Non-classified";
-                    }
-                } else {
-                    mostPredictedClass = getTopkMostPredictedClass(diseaseProbs, 3);
-                }
-
-                ImageView thumbnail = new ImageView(SwingFXUtils.toFXImage(getThumbnail(imageData, 200), null));
-                results.add(new ImageResult(thumbnail, imageName, mostPredictedClass, nGlomeruli, diseaseCounts));
+                ResultsSummary summary = ResultsSummary.fromHierarchy(imageData.getHierarchy());
+                onResult.accept(summary.toImageResult(imageName, imageData.getServerPath(),
+                        ThumbnailService.fromServer(imageData.getServer())));
             } else {
                 logger.error("No project or image is open");
             }
         }
-
-        return results;
     }
 
     /**
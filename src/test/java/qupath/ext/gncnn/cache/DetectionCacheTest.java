@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+
+/**
+ * Tests of {@link DetectionCache}
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class DetectionCacheTest {
+
+    private static final Map<String, String> PARAMS = Map.of("model", "cascade_mask_rcnn", "undersampling", "4");
+
+    @TempDir
+    Path tempDir;
+
+    private static ImageServer<BufferedImage> createServer(String name, long seed) {
+        BufferedImage img = new BufferedImage(512, 384, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(seed);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                img.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        return new WrappedBufferedImageServer(name, img);
+    }
+
+    private Path createDetections(String name, int size) throws IOException {
+        Path path = tempDir.resolve(name);
+        Files.write(path, new byte[size]);
+        return path;
+    }
+
+    @Test
+    void testKey() throws IOException {
+        DetectionCache cache = new DetectionCache(tempDir.resolve("cache").toString(), 1 << 20);
+        String key = cache.getKey(createServer("slide.svs", 1), PARAMS);
+
+        // The key does not depend on the name of the slide or the order of
+        // the parameters
+        Map<String, String> reordered = new LinkedHashMap<>();
+        reordered.put("undersampling", "4");
+        reordered.put("model", "cascade_mask_rcnn");
+        assertEquals(key, cache.getKey(createServer("copy of slide.svs", 1), reordered));
+
+        assertNotEquals(key, cache.getKey(createServer("slide.svs", 1), Map.of("model", "cascade_mask_rcnn",
+                "undersampling", "2")));
+        assertNotEquals(key, cache.getKey(createServer("other slide.svs", 2), PARAMS));
+    }
+
+    @Test
+    void testPutAndGet() throws IOException {
+        DetectionCache cache = new DetectionCache(tempDir.resolve("cache").toString(), 1 << 20);
+        Path detections = createDetections("detections.gncp", 100);
+
+        assertFalse(cache.contains("key"));
+        assertNull(cache.get("key"));
+        cache.put("key", detections);
+
+        assertTrue(cache.contains("key"));
+        Path entry = cache.get("key");
+        assertNotNull(entry);
+        assertEquals(-1, Files.mismatch(detections, entry));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void testCopyIsKeptAfterEviction() throws IOException {
+        DetectionCache cache = new DetectionCache(tempDir.resolve("cache").toString(), 150);
+        Path detections = createDetections("detections.gncp", 100);
+        Path copy = tempDir.resolve("pinned").resolve("detections.gncp");
+
+        assertFalse(cache.copyTo("key", copy));
+        cache.put("key", detections);
+        assertTrue(cache.copyTo("key", copy));
+        assertEquals(1, cache.getHits());
+        Files.setLastModifiedTime(cache.get("key"), FileTime.fromMillis(1000));
+
+        // Storing another entry evicts the copied one
+        cache.put("other", createDetections("other.gncp", 100));
+        assertFalse(cache.contains("key"));
+        assertEquals(-1, Files.mismatch(detections, copy));
+    }
+
+    @Test
+    void testLeastRecentlyUsedEntriesAreEvicted() throws IOException {
+        DetectionCache cache = new DetectionCache(tempDir.resolve("cache").toString(), 250);
+        cache.put("first", createDetections("first.gncp", 100));
+        cache.put("second", createDetections("second.gncp", 100));
+        Files.setLastModifiedTime(cache.get("first"), FileTime.fromMillis(1000));
+        Files.setLastModifiedTime(cache.get("second"), FileTime.fromMillis(2000));
+        // Reading the first entry makes it the most recently used
+        cache.get("first");
+
+        cache.put("third", createDetections("third.gncp", 100));
+
+        assertTrue(cache.contains("first"));
+        assertFalse(cache.contains("second"));
+        assertTrue(cache.contains("third"));
+    }
+}
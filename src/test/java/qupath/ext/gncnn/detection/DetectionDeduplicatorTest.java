@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.detection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.ext.gncnn.utils.ClassificationMetadata;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.PathROIObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Tests of {@link DetectionDeduplicator}
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class DetectionDeduplicatorTest {
+
+    private static final String MODEL_ID = ClassificationMetadata.getModelId("swin_transformer", "None");
+
+    /**
+     * Creates a hierarchy with a glomerulus detected and classified by a
+     * previous run
+     */
+    private static PathObjectHierarchy createHierarchy(PathObject glomerulus) {
+        glomerulus.setPathClass(PathClass.fromString("Sclerotic"));
+        DetectionDeduplicator.markDetected(glomerulus);
+        ClassificationMetadata.markClassified(glomerulus, MODEL_ID);
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        hierarchy.addObject(glomerulus);
+        return hierarchy;
+    }
+
+    private static PathObject getOnlyGlomerulus(PathObjectHierarchy hierarchy) {
+        List<PathObject> annotations = List.copyOf(hierarchy.getAnnotationObjects());
+        assertEquals(1, annotations.size());
+        return annotations.get(0);
+    }
+
+    @Test
+    void testEmptyHierarchy() {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        List<PathObject> detections = List.of(DetectionMergerTest.createDetection(0, 0, 100, 100, 0.9),
+                DetectionMergerTest.createDetection(500, 0, 100, 100, 0.8));
+
+        assertEquals(2, new DetectionDeduplicator().addDetections(hierarchy, detections));
+
+        assertEquals(2, hierarchy.getAnnotationObjects().size());
+        assertTrue(detections.stream().allMatch(DetectionDeduplicator::isDetected));
+    }
+
+    @Test
+    void testSkip() {
+        PathObject existing = DetectionMergerTest.createDetection(0, 0, 100, 100, 0.9);
+        PathObjectHierarchy hierarchy = createHierarchy(existing);
+        PathObject duplicate = DetectionMergerTest.createDetection(10, 10, 100, 100, 0.95);
+        PathObject separate = DetectionMergerTest.createDetection(500, 500, 100, 100, 0.8);
+
+        int added = new DetectionDeduplicator().addDetections(hierarchy, List.of(duplicate, separate));
+
+        assertEquals(1, added);
+        assertTrue(hierarchy.getAnnotationObjects().contains(existing));
+        assertTrue(hierarchy.getAnnotationObjects().contains(separate));
+        assertFalse(hierarchy.getAnnotationObjects().contains(duplicate));
+        assertEquals("Sclerotic", existing.getPathClass().getName());
+    }
+
+    @Test
+    void testReplace() {
+        PathObject existing = DetectionMergerTest.createDetection(0, 0, 100, 100, 0.9);
+        existing.setName("Glomerulus 1");
+        PathObjectHierarchy hierarchy = createHierarchy(existing);
+        PathObject duplicate = DetectionMergerTest.createDetection(10, 10, 120, 120, 0.95);
+
+        int added = new DetectionDeduplicator().mode(DetectionDeduplicator.Mode.REPLACE).addDetections(hierarchy,
+                List.of(duplicate));
+
+        assertEquals(1, added);
+        PathObject replacement = getOnlyGlomerulus(hierarchy);
+        assertEquals(duplicate.getROI(), replacement.getROI());
+        assertEquals("Sclerotic", replacement.getPathClass().getName());
+        assertEquals("Glomerulus 1", replacement.getName());
+        assertEquals(0.95, replacement.getMeasurementList().get(DetectionMerger.SCORE_MEASUREMENT), 1e-6);
+        assertTrue(DetectionDeduplicator.isDetected(replacement));
+        // The new ROI has to be classified again
+        assertTrue(ClassificationMetadata.needsClassification(replacement, MODEL_ID));
+    }
+
+    @Test
+    void testMerge() {
+        PathObject existing = DetectionMergerTest.createDetection(0, 0, 100, 100, 0.9);
+        PathObjectHierarchy hierarchy = createHierarchy(existing);
+        PathObject duplicate = DetectionMergerTest.createDetection(50, 0, 100, 100, 0.95);
+
+        int added = new DetectionDeduplicator().mode(DetectionDeduplicator.Mode.MERGE).addDetections(hierarchy,
+                List.of(duplicate));
+
+        assertEquals(1, added);
+        PathObject merged = getOnlyGlomerulus(hierarchy);
+        assertEquals(150 * 100, merged.getROI().getArea(), 1e-6);
+        assertEquals("Sclerotic", merged.getPathClass().getName());
+        assertEquals(0.9, merged.getMeasurementList().get(DetectionMerger.SCORE_MEASUREMENT), 1e-6);
+        assertTrue(DetectionDeduplicator.isDetected(merged));
+        assertTrue(ClassificationMetadata.needsClassification(merged, MODEL_ID));
+    }
+
+    @Test
+    void testManualAnnotationsAreKept() {
+        for (DetectionDeduplicator.Mode mode : DetectionDeduplicator.Mode.values()) {
+            PathObject manual = DetectionMergerTest.createDetection(0, 0, 100, 100, Double.NaN);
+            manual.setPathClass(PathClass.fromString("ABMGN"));
+            PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+            hierarchy.addObject(manual);
+
+            int added = new DetectionDeduplicator().mode(mode).addDetections(hierarchy,
+                    List.of(DetectionMergerTest.createDetection(10, 10, 100, 100, 0.9)));
+
+            assertEquals(0, added);
+            assertSame(manual, getOnlyGlomerulus(hierarchy));
+        }
+    }
+
+    @Test
+    void testEditedDetectionIsTreatedAsManual() {
+        PathObject existing = DetectionMergerTest.createDetection(0, 0, 100, 100, 0.9);
+        PathObjectHierarchy hierarchy = createHierarchy(existing);
+        ((PathROIObject) existing).setROI(ROIs.createRectangleROI(0, 0, 110, 100, ImagePlane.getDefaultPlane()));
+        assertFalse(DetectionDeduplicator.isDetected(existing));
+
+        int added = new DetectionDeduplicator().mode(DetectionDeduplicator.Mode.REPLACE).addDetections(hierarchy,
+                List.of(DetectionMergerTest.createDetection(10, 10, 100, 100, 0.95)));
+
+        assertEquals(0, added);
+        assertSame(existing, getOnlyGlomerulus(hierarchy));
+    }
+
+    @Test
+    void testOtherAnnotationsAreIgnored() {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        PathObject tissue = PathObjects.createAnnotationObject(
+                ROIs.createRectangleROI(0, 0, 1000, 1000, ImagePlane.getDefaultPlane()),
+                PathClass.fromString("Tissue"));
+        hierarchy.addObject(tissue);
+
+        int added = new DetectionDeduplicator().addDetections(hierarchy,
+                List.of(DetectionMergerTest.createDetection(10, 10, 100, 100, 0.9)));
+
+        assertEquals(1, added);
+        assertEquals(2, hierarchy.getAnnotationObjects().size());
+    }
+}
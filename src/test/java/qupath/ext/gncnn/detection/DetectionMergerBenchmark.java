@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.detection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import qupath.lib.objects.PathObject;
+
+/**
+ * Timing of {@link DetectionMerger} with the detections of overlapping tiles,
+ * where each glomerulus is detected twice. Run with 'gradle benchmark'
+ *
+ * @author Israel Mateos Aparicio
+ */
+@Tag("benchmark")
+public class DetectionMergerBenchmark {
+
+    private static final int REPETITIONS = 5;
+
+    @ParameterizedTest
+    @ValueSource(ints = { 10_000, 100_000, 1_000_000 })
+    void benchmarkMerge(int nDetections) {
+        List<PathObject> detections = createDetections(nDetections, new Random(nDetections));
+        DetectionMerger merger = new DetectionMerger();
+
+        // The first run warms up the JIT compiler
+        assertEquals(nDetections / 2, merger.merge(detections).size());
+        long[] times = new long[REPETITIONS];
+        for (int i = 0; i < REPETITIONS; i++) {
+            long startTime = System.nanoTime();
+            merger.merge(detections);
+            times[i] = System.nanoTime() - startTime;
+        }
+        System.out.printf("DetectionMerger: %d detections merged in %d ms (median of %d runs)%n", nDetections,
+                median(times) / 1_000_000, REPETITIONS);
+    }
+
+    /**
+     * Creates glomeruli on a grid, so they do not overlap, each detected in
+     * two tiles with a small shift, in a random order
+     */
+    private static List<PathObject> createDetections(int nDetections, Random random) {
+        int nGlomeruli = nDetections / 2;
+        int columns = (int) Math.ceil(Math.sqrt(nGlomeruli));
+        List<PathObject> detections = new ArrayList<>(nDetections);
+        for (int i = 0; i < nGlomeruli; i++) {
+            double x = (i % columns) * 400 + random.nextInt(50);
+            double y = (i / columns) * 400 + random.nextInt(50);
+            double size = 150 + random.nextInt(150);
+            detections.add(DetectionMergerTest.createDetection(x, y, size, size, 0.5 + random.nextDouble() / 2));
+            detections.add(DetectionMergerTest.createDetection(x + random.nextInt(10), y + random.nextInt(10),
+                    size, size, 0.5 + random.nextDouble() / 2));
+        }
+        Collections.shuffle(detections, random);
+        return detections;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.detection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Tests of {@link DetectionMerger}
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class DetectionMergerTest {
+
+    static PathObject createDetection(double x, double y, double width, double height, double score) {
+        PathObject detection = PathObjects.createAnnotationObject(
+                ROIs.createRectangleROI(x, y, width, height, ImagePlane.getDefaultPlane()),
+                PathClass.fromString("Glomerulus"));
+        if (!Double.isNaN(score)) {
+            detection.getMeasurementList().put(DetectionMerger.SCORE_MEASUREMENT, score);
+            detection.getMeasurementList().close();
+        }
+        return detection;
+    }
+
+    @Test
+    void testEmpty() {
+        assertTrue(new DetectionMerger().merge(List.of()).isEmpty());
+    }
+
+    @Test
+    void testSeparateDetectionsAreKept() {
+        List<PathObject> detections = List.of(
+                createDetection(0, 0, 100, 100, 0.9),
+                createDetection(200, 0, 100, 100, 0.8),
+                createDetection(0, 200, 100, 100, Double.NaN));
+
+        assertEquals(3, new DetectionMerger().merge(detections).size());
+    }
+
+    @Test
+    void testOverlappingDetectionKeepsHighestRanked() {
+        PathObject low = createDetection(0, 0, 100, 100, 0.6);
+        PathObject high = createDetection(10, 10, 100, 100, 0.9);
+
+        List<PathObject> kept = new DetectionMerger().merge(List.of(low, high));
+
+        assertEquals(1, kept.size());
+        assertSame(high, kept.get(0));
+    }
+
+    @Test
+    void testRankUsesAreaAndScore() {
+        // 0.5^2 * 200^2 is larger than 0.9^2 * 100^2
+        PathObject small = createDetection(0, 0, 100, 100, 0.9);
+        PathObject large = createDetection(0, 0, 200, 200, 0.5);
+
+        List<PathObject> kept = new DetectionMerger().merge(List.of(small, large));
+
+        assertEquals(1, kept.size());
+        assertSame(large, kept.get(0));
+    }
+
+    @Test
+    void testPartCutByTileBorderIsSuppressedByIntersectionOverMinimum() {
+        // A glomerulus and the part of it detected in the next tile: the IoU
+        // is low, but the part is inside the glomerulus
+        PathObject glomerulus = createDetection(0, 0, 200, 200, 0.9);
+        PathObject part = createDetection(150, 0, 50, 200, 0.9);
+
+        assertEquals(1, new DetectionMerger().merge(List.of(glomerulus, part)).size());
+        assertEquals(2, new DetectionMerger().iomThreshold(1.1).merge(List.of(glomerulus, part)).size());
+    }
+
+    @Test
+    void testMergeByUnion() {
+        PathObject first = createDetection(0, 0, 100, 100, 0.9);
+        PathObject second = createDetection(50, 0, 100, 100, 0.8);
+
+        List<PathObject> kept = new DetectionMerger().mergeByUnion(true).merge(List.of(first, second));
+
+        assertEquals(1, kept.size());
+        PathObject merged = kept.get(0);
+        assertEquals(150 * 100, merged.getROI().getArea(), 1e-6);
+        assertEquals(first.getPathClass(), merged.getPathClass());
+        assertEquals(0.9, merged.getMeasurementList().get(DetectionMerger.SCORE_MEASUREMENT), 1e-6);
+    }
+
+    @Test
+    void testSameResultAsPairwiseSuppression() {
+        Random random = new Random(42);
+        List<PathObject> detections = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            detections.add(createDetection(random.nextInt(5000), random.nextInt(5000), 50 + random.nextInt(150),
+                    50 + random.nextInt(150), 0.5 + random.nextDouble() / 2));
+        }
+
+        List<PathObject> kept = new DetectionMerger().merge(detections);
+
+        assertEquals(pairwiseSuppression(detections, DetectionMerger.DEFAULT_IOU_THRESHOLD,
+                DetectionMerger.DEFAULT_IOM_THRESHOLD), new HashSet<>(kept));
+    }
+
+    /**
+     * Non-maximum suppression comparing all the pairs of detections, as the
+     * detector does
+     */
+    private static Set<PathObject> pairwiseSuppression(List<PathObject> detections, double iouThreshold,
+            double iomThreshold) {
+        List<PathObject> sorted = new ArrayList<>(detections);
+        sorted.sort(Comparator.comparingDouble(DetectionMergerTest::getRank).reversed());
+        Set<PathObject> kept = new HashSet<>();
+        Set<PathObject> suppressed = new HashSet<>();
+        for (PathObject detection : sorted) {
+            if (suppressed.contains(detection)) {
+                continue;
+            }
+            kept.add(detection);
+            for (PathObject other : sorted) {
+                if (kept.contains(other) || suppressed.contains(other)) {
+                    continue;
+                }
+                double intersection = getIntersection(detection, other);
+                double a1 = getArea(detection);
+                double a2 = getArea(other);
+                if (intersection / (a1 + a2 - intersection) >= iouThreshold
+                        || intersection / Math.min(a1, a2) >= iomThreshold) {
+                    suppressed.add(other);
+                }
+            }
+        }
+        return kept;
+    }
+
+    private static double getArea(PathObject detection) {
+        return (detection.getROI().getBoundsWidth() + 1) * (detection.getROI().getBoundsHeight() + 1);
+    }
+
+    private static double getRank(PathObject detection) {
+        double score = detection.getMeasurementList().get(DetectionMerger.SCORE_MEASUREMENT);
+        return getArea(detection) * score * score;
+    }
+
+    private static double getIntersection(PathObject a, PathObject b) {
+        double w = Math.max(0, Math.min(a.getROI().getBoundsX() + a.getROI().getBoundsWidth(),
+                b.getROI().getBoundsX() + b.getROI().getBoundsWidth())
+                - Math.max(a.getROI().getBoundsX(), b.getROI().getBoundsX()) + 1);
+        double h = Math.max(0, Math.min(a.getROI().getBoundsY() + a.getROI().getBoundsHeight(),
+                b.getROI().getBoundsY() + b.getROI().getBoundsHeight())
+                - Math.max(a.getROI().getBoundsY(), b.getROI().getBoundsY()) + 1);
+        return w * h;
+    }
+}
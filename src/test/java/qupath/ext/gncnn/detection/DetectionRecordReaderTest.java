@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.detection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.ext.gncnn.entities.GlomerulusClass;
+import qupath.lib.objects.PathObject;
+
+/**
+ * Tests of {@link DetectionRecordReader}
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class DetectionRecordReaderTest {
+
+    private static final String TILE_1 = "{\"tile\": \"image [x=0,y=0]\", \"x\": 0, \"y\": 0, \"detections\": ["
+            + "{\"polygon\": [[10, 10], [110, 10], [110, 110], [10, 110]], \"score\": 0.9}, "
+            + "{\"polygon\": [[200, 200], [260, 200], [230, 250]], \"score\": 0.6}]}\n";
+
+    // Tile names may have any character, e.g. from the image name
+    private static final String TILE_2 = "{\"tile\": \"imagen ri\u00f1\u00f3n [x=1024,y=0]\", \"x\": 1024, \"y\": 0, "
+            + "\"detections\": [{\"polygon\": [[1030, 5], [1100, 5], [1100, 90]], \"score\": 0.75}]}\n";
+
+    private static final String EMPTY_TILE = "{\"tile\": \"image [x=0,y=1024]\", \"x\": 0, \"y\": 1024, "
+            + "\"detections\": []}\n";
+
+    private static final String DONE = "{\"done\": true, \"tiles\": 3}\n";
+
+    @TempDir
+    Path tempDir;
+
+    private static void append(Path path, String content) throws IOException {
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    @Test
+    void testMissingFile() throws IOException {
+        DetectionRecordReader reader = new DetectionRecordReader(tempDir.resolve("detections.jsonl"));
+
+        assertTrue(reader.poll().isEmpty());
+        assertFalse(reader.isDone());
+    }
+
+    @Test
+    void testReadsDetections() throws IOException {
+        Path path = tempDir.resolve("detections.jsonl");
+        append(path, TILE_1 + TILE_2 + EMPTY_TILE + DONE);
+        DetectionRecordReader reader = new DetectionRecordReader(path);
+
+        List<PathObject> detections = reader.poll();
+
+        assertEquals(3, detections.size());
+        PathObject first = detections.get(0);
+        assertEquals(GlomerulusClass.NON_CLASSIFIED.getClassName(), first.getPathClass().getName());
+        assertEquals(0.9, first.getMeasurementList().get(DetectionMerger.SCORE_MEASUREMENT), 1e-6);
+        assertEquals(100 * 100, first.getROI().getArea(), 1e-6);
+        assertEquals(1030, detections.get(2).getROI().getBoundsX(), 1e-6);
+        assertEquals(3, reader.getTiles());
+        assertEquals(3, reader.getDetections());
+        assertTrue(reader.isDone());
+        assertTrue(reader.poll().isEmpty());
+    }
+
+    @Test
+    void testReadsLinesAsTheyAreWritten() throws IOException {
+        Path path = tempDir.resolve("detections.jsonl");
+        DetectionRecordReader reader = new DetectionRecordReader(path);
+
+        // The second tile is still being written
+        int split = TILE_2.length() / 2;
+        append(path, TILE_1 + TILE_2.substring(0, split));
+        assertEquals(2, reader.poll().size());
+        assertEquals(1, reader.getTiles());
+        assertTrue(reader.poll().isEmpty());
+
+        append(path, TILE_2.substring(split));
+        assertEquals(1, reader.poll().size());
+        assertFalse(reader.isDone());
+
+        append(path, DONE);
+        assertTrue(reader.poll().isEmpty());
+        assertTrue(reader.isDone());
+        assertEquals(2, reader.getTiles());
+        assertEquals(3, reader.getDetections());
+    }
+
+    @Test
+    void testInvalidRecord() throws IOException {
+        Path path = tempDir.resolve("detections.jsonl");
+        append(path, "{\"tile\": \"image\", \"x\": 0, \"y\": 0}\n");
+
+        assertThrows(IOException.class, () -> new DetectionRecordReader(path).poll());
+    }
+}
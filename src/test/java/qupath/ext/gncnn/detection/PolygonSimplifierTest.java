@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.detection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.algorithm.distance.DiscreteHausdorffDistance;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Tests of {@link PolygonSimplifier}
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class PolygonSimplifierTest {
+
+    /**
+     * Creates a circle traced from a mask, with a vertex at every pixel step
+     */
+    private static PathObject createTracedCircle(double radius) {
+        List<Double> x = new ArrayList<>();
+        List<Double> y = new ArrayList<>();
+        int steps = (int) (16 * radius);
+        for (int i = 0; i < steps; i++) {
+            double angle = 2 * Math.PI * i / steps;
+            double px = Math.round(1000 + radius * Math.cos(angle));
+            double py = Math.round(1000 + radius * Math.sin(angle));
+            if (x.isEmpty() || px != x.get(x.size() - 1) || py != y.get(y.size() - 1)) {
+                x.add(px);
+                y.add(py);
+            }
+        }
+        PathObject object = PathObjects.createAnnotationObject(
+                ROIs.createPolygonROI(x.stream().mapToDouble(Double::doubleValue).toArray(),
+                        y.stream().mapToDouble(Double::doubleValue).toArray(), ImagePlane.getDefaultPlane()),
+                PathClass.fromString("Glomerulus"));
+        object.setName("Traced");
+        object.getMeasurementList().put(DetectionMerger.SCORE_MEASUREMENT, 0.8);
+        object.getMeasurementList().close();
+        return object;
+    }
+
+    private static int getNumPoints(PathObject object) {
+        return object.getROI().getGeometry().getNumPoints();
+    }
+
+    @Test
+    void testSimplify() {
+        PathObject circle = createTracedCircle(100);
+
+        PathObject simplified = new PolygonSimplifier(Double.NaN).toleranceMicrons(1).simplify(List.of(circle))
+                .get(0);
+
+        assertTrue(getNumPoints(simplified) < getNumPoints(circle) / 4);
+        assertEquals(circle.getROI().getArea(), simplified.getROI().getArea(), circle.getROI().getArea() * 0.03);
+        assertTrue(DiscreteHausdorffDistance.distance(circle.getROI().getGeometry(),
+                simplified.getROI().getGeometry()) <= 1 + 1e-6);
+        assertEquals(circle.getPathClass(), simplified.getPathClass());
+        assertEquals("Traced", simplified.getName());
+        assertEquals(0.8, simplified.getMeasurementList().get(DetectionMerger.SCORE_MEASUREMENT), 1e-6);
+    }
+
+    @Test
+    void testToleranceInMicrons() {
+        PathObject circle = createTracedCircle(100);
+
+        PathObject pixels = new PolygonSimplifier(Double.NaN).toleranceMicrons(1).simplify(List.of(circle)).get(0);
+        PathObject microns = new PolygonSimplifier(0.25).toleranceMicrons(1).simplify(List.of(circle)).get(0);
+
+        // 1 um is 4 pixels of 0.25 um
+        assertTrue(getNumPoints(microns) < getNumPoints(pixels));
+        assertTrue(DiscreteHausdorffDistance.distance(circle.getROI().getGeometry(),
+                microns.getROI().getGeometry()) <= 4 + 1e-6);
+    }
+
+    @Test
+    void testVertexBudget() {
+        PathObject circle = createTracedCircle(200);
+
+        PathObject simplified = new PolygonSimplifier(Double.NaN).toleranceMicrons(0.5).maxVertices(24)
+                .simplify(List.of(circle)).get(0);
+
+        assertTrue(getNumPoints(simplified) <= 24);
+    }
+
+    @Test
+    void testUnchangedObjects() {
+        PathObject point = PathObjects.createAnnotationObject(ROIs.createPointsROI(5, 5,
+                ImagePlane.getDefaultPlane()));
+        PathObject rectangle = DetectionMergerTest.createDetection(0, 0, 100, 100, 0.9);
+        List<PathObject> objects = List.of(point, rectangle);
+
+        List<PathObject> simplified = new PolygonSimplifier(Double.NaN).simplify(objects);
+
+        assertSame(point, simplified.get(0));
+        assertSame(rectangle, simplified.get(1));
+        assertSame(objects, new PolygonSimplifier(Double.NaN).toleranceMicrons(0).simplify(objects));
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.env;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Tests of the JSON-lines protocol of {@link PythonWorker}, against a stub
+ * worker which answers as 'gncnn/worker.py' without loading any model
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class PythonWorkerTest {
+
+    private static final String STUB = String.join("\n",
+            "import json, os, sys, time",
+            "marker = sys.argv[1]",
+            "def send(message):",
+            "    sys.stdout.write(json.dumps(message) + '\\n')",
+            "    sys.stdout.flush()",
+            "send({'id': 0, 'status': 'ready'})",
+            "for line in sys.stdin:",
+            "    request = json.loads(line)",
+            "    request_id, job = request['id'], request['job']",
+            "    params = request.get('params', {})",
+            "    if job == 'shutdown':",
+            "        send({'id': request_id, 'status': 'ok', 'result': {}})",
+            "        break",
+            "    if job == 'crash_once' and not os.path.exists(marker):",
+            "        open(marker, 'w').close()",
+            "        sys.exit(1)",
+            "    if job == 'error':",
+            "        send({'id': request_id, 'status': 'error', 'message': 'failed on purpose'})",
+            "        continue",
+            "    if job == 'noise':",
+            "        print('not a response')",
+            "        send({'id': request_id + 1000, 'status': 'ok', 'result': {}})",
+            "    if job == 'sleep':",
+            "        time.sleep(params['millis'] / 1000)",
+            "    send({'id': request_id, 'status': 'ok', 'result': {'job': job, 'params': params, 'pid': os.getpid()}})",
+            "");
+
+    @TempDir
+    Path tempDir;
+
+    private PythonWorker worker;
+
+    private Path marker;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        String python = findPython();
+        Assumptions.assumeTrue(python != null, "python3 is not available");
+
+        Path script = tempDir.resolve("stub_worker.py");
+        Files.writeString(script, STUB);
+        marker = tempDir.resolve("crashed");
+        worker = new PythonWorker("stub", List.of(python, "-u", script.toString(), marker.toString()));
+        worker.setStartupTimeout(30, TimeUnit.SECONDS);
+        worker.setPingTimeout(10, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (worker != null) {
+            worker.shutdown();
+        }
+    }
+
+    @Test
+    void testSubmitReturnsResult() throws Exception {
+        JsonObject params = new JsonObject();
+        params.addProperty("wsi", "image.svs");
+
+        JsonObject result = worker.submit("echo", params, null);
+
+        assertTrue(worker.isAlive());
+        assertEquals("echo", result.get("job").getAsString());
+        assertEquals("image.svs", result.getAsJsonObject("params").get("wsi").getAsString());
+    }
+
+    @Test
+    void testWorkerIsReusedAcrossJobs() throws Exception {
+        long pid = worker.submit("echo", new JsonObject(), null).get("pid").getAsLong();
+
+        assertEquals(pid, worker.submit("echo", new JsonObject(), null).get("pid").getAsLong());
+        assertTrue(worker.ping());
+    }
+
+    @Test
+    void testErrorResponseFailsJob() throws Exception {
+        IOException e = assertThrows(IOException.class, () -> worker.submit("error", new JsonObject(), null));
+
+        assertTrue(e.getMessage().contains("failed on purpose"));
+        // A failed job does not stop the worker
+        assertEquals("echo", worker.submit("echo", new JsonObject(), null).get("job").getAsString());
+    }
+
+    @Test
+    void testUnexpectedOutputIsIgnored() throws Exception {
+        assertEquals("noise", worker.submit("noise", new JsonObject(), null).get("job").getAsString());
+    }
+
+    @Test
+    void testCrashedWorkerIsRestarted() throws Exception {
+        long pid = worker.submit("echo", new JsonObject(), null).get("pid").getAsLong();
+
+        JsonObject result = worker.submit("crash_once", new JsonObject(), null);
+
+        assertTrue(Files.exists(marker));
+        assertEquals("crash_once", result.get("job").getAsString());
+        assertNotEquals(pid, result.get("pid").getAsLong());
+    }
+
+    @Test
+    void testShutdown() throws Exception {
+        worker.submit("echo", new JsonObject(), null);
+
+        worker.shutdown();
+
+        assertFalse(worker.isAlive());
+        assertFalse(worker.ping());
+    }
+
+    @Test
+    void testIdleShutdown() throws Exception {
+        worker.setIdleTimeout(200, TimeUnit.MILLISECONDS);
+        worker.submit("echo", new JsonObject(), null);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (worker.isAlive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(worker.isAlive());
+    }
+
+    @Test
+    void testIdleShutdownDoesNotStopRunningJob() throws Exception {
+        // Jobs longer than the idle timeout, submitted back to back, so that
+        // the idle shutdown scheduled after each job fires during the next one
+        worker.setIdleTimeout(50, TimeUnit.MILLISECONDS);
+        JsonObject params = new JsonObject();
+        params.addProperty("millis", 100);
+        long pid = worker.submit("sleep", params, null).get("pid").getAsLong();
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(pid, worker.submit("sleep", params, null).get("pid").getAsLong());
+        }
+    }
+
+    private static String findPython() {
+        for (String candidate : List.of("python3", "python")) {
+            try {
+                Process p = new ProcessBuilder(candidate, "--version").redirectErrorStream(true).start();
+                if (p.waitFor(10, TimeUnit.SECONDS) && p.exitValue() == 0) {
+                    return candidate;
+                }
+            } catch (IOException e) {
+                // Try the next one
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Tests of {@link CropContainerWriter} and {@link CropContainerReader}
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class CropContainerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static RegionRequest createRegion(int x, int y) {
+        return RegionRequest.createInstance("image", 2, x, y, 300, 400);
+    }
+
+    private static byte[] getBytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getData(CropContainerReader reader, CropContainer.Record record) {
+        ByteBuffer data = reader.getData(record);
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    void testRoundTrip() throws IOException {
+        Path path = tempDir.resolve(CropContainer.FILE_NAME);
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        try (CropContainerWriter writer = new CropContainerWriter(path)) {
+            writer.append(first, createRegion(10, 20), getBytes("first crop"));
+            writer.append(second, createRegion(-5, 7), getBytes("second"));
+        }
+
+        try (CropContainerReader reader = new CropContainerReader(path)) {
+            List<CropContainer.Record> records = reader.getRecords();
+            assertEquals(2, records.size());
+
+            CropContainer.Record record = records.get(0);
+            assertEquals(first, record.getAnnotationId());
+            assertEquals(10, record.getX());
+            assertEquals(20, record.getY());
+            assertEquals(300, record.getWidth());
+            assertEquals(400, record.getHeight());
+            assertEquals(2, record.getDownsample());
+            assertArrayEquals(getBytes("first crop"), getData(reader, record));
+
+            assertEquals(second, records.get(1).getAnnotationId());
+            assertEquals(-5, records.get(1).getX());
+            assertArrayEquals(getBytes("second"), getData(reader, records.get(1)));
+        }
+    }
+
+    @Test
+    void testAppendReplacesCropsOfSameAnnotation() throws IOException {
+        Path path = tempDir.resolve(CropContainer.FILE_NAME);
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID third = UUID.randomUUID();
+        try (CropContainerWriter writer = new CropContainerWriter(path)) {
+            writer.append(first, createRegion(0, 0), getBytes("first"));
+            writer.append(second, createRegion(0, 0), getBytes("second"));
+        }
+        try (CropContainerWriter writer = new CropContainerWriter(path)) {
+            writer.append(first, createRegion(50, 60), getBytes("first, edited"));
+            writer.append(third, createRegion(0, 0), getBytes("third"));
+        }
+
+        try (CropContainerReader reader = new CropContainerReader(path)) {
+            List<CropContainer.Record> records = reader.getRecords();
+            assertEquals(List.of(second, first, third),
+                    records.stream().map(CropContainer.Record::getAnnotationId).toList());
+            assertArrayEquals(getBytes("second"), getData(reader, records.get(0)));
+            assertArrayEquals(getBytes("first, edited"), getData(reader, records.get(1)));
+            assertEquals(50, records.get(1).getX());
+        }
+    }
+
+    @Test
+    void testInterruptedAppendKeepsPreviousContent() throws IOException {
+        Path path = tempDir.resolve(CropContainer.FILE_NAME);
+        UUID id = UUID.randomUUID();
+        try (CropContainerWriter writer = new CropContainerWriter(path)) {
+            writer.append(id, createRegion(0, 0), getBytes("crop"));
+        }
+        // Crops appended without writing the new index and header
+        Files.write(path, getBytes("partial crops"), StandardOpenOption.APPEND);
+
+        try (CropContainerReader reader = new CropContainerReader(path)) {
+            assertEquals(1, reader.getRecords().size());
+            assertArrayEquals(getBytes("crop"), getData(reader, reader.getRecords().get(0)));
+        }
+    }
+
+    @Test
+    void testNotContainer() throws IOException {
+        Path path = tempDir.resolve(CropContainer.FILE_NAME);
+        Files.write(path, getBytes("not a crop container, but long enough for a header"));
+
+        assertThrows(IOException.class, () -> new CropContainerReader(path).close());
+    }
+}
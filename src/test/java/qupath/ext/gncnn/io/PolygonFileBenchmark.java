@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import qupath.lib.io.PathIO;
+import qupath.lib.io.PathIO.GeoJsonExportOptions;
+import qupath.lib.objects.PathObject;
+
+/**
+ * Size and read time of the polygon file against GeoJSON, with the glomeruli
+ * of large WSIs. Run with 'gradle benchmark'
+ *
+ * @author Israel Mateos Aparicio
+ */
+@Tag("benchmark")
+public class PolygonFileBenchmark {
+
+    private static final int REPETITIONS = 5;
+
+    private static final int VERTICES = 64;
+
+    @TempDir
+    Path tempDir;
+
+    @ParameterizedTest
+    @ValueSource(ints = { 10_000, 100_000 })
+    void benchmarkRead(int nObjects) throws Exception {
+        List<PathObject> objects = PolygonFileTest.createPolygons(nObjects, VERTICES, new Random(nObjects));
+        Path polygonPath = tempDir.resolve("objects" + PolygonFile.FILE_EXTENSION);
+        try (PolygonFileWriter writer = new PolygonFileWriter(polygonPath, 1)) {
+            writer.writeAll(objects);
+        }
+        Path geoJSONPath = tempDir.resolve("objects.geojson");
+        PathIO.exportObjectsAsGeoJSON(geoJSONPath.toFile(), objects, GeoJsonExportOptions.FEATURE_COLLECTION);
+
+        // The first run of each format warms up the JIT compiler
+        long[] polygonTimes = new long[REPETITIONS + 1];
+        long[] geoJSONTimes = new long[REPETITIONS + 1];
+        for (int i = 0; i <= REPETITIONS; i++) {
+            long startTime = System.nanoTime();
+            try (PolygonFileReader reader = new PolygonFileReader(polygonPath)) {
+                assertEquals(nObjects, reader.readObjects().size());
+            }
+            polygonTimes[i] = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            assertEquals(nObjects, PathIO.readObjects(geoJSONPath).size());
+            geoJSONTimes[i] = System.nanoTime() - startTime;
+        }
+
+        long polygonSize = Files.size(polygonPath);
+        long geoJSONSize = Files.size(geoJSONPath);
+        assertTrue(polygonSize < geoJSONSize);
+        long polygonTime = median(polygonTimes);
+        long geoJSONTime = median(geoJSONTimes);
+        System.out.printf("PolygonFile: %d objects of %d vertices, %d bytes read in %d ms; "
+                + "GeoJSON: %d bytes read in %d ms (%.1fx the bytes, %.1fx the time)%n", nObjects, VERTICES,
+                polygonSize, polygonTime / 1_000_000, geoJSONSize, geoJSONTime / 1_000_000,
+                (double) geoJSONSize / polygonSize, (double) geoJSONTime / Math.max(1, polygonTime));
+    }
+
+    /**
+     * Returns the median of the times, without the warm-up run
+     */
+    private static long median(long[] times) {
+        long[] measured = Arrays.copyOfRange(times, 1, times.length);
+        Arrays.sort(measured);
+        return measured[measured.length / 2];
+    }
+}
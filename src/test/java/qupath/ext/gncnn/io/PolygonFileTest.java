@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.ext.gncnn.detection.DetectionMerger;
+import qupath.lib.common.ColorTools;
+import qupath.lib.io.PathIO;
+import qupath.lib.io.PathIO.GeoJsonExportOptions;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Tests of {@link PolygonFileWriter} and {@link PolygonFileReader}
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class PolygonFileTest {
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Creates a star-shaped polygon with the given number of vertices around
+     * a centre, with whole pixel coordinates
+     */
+    static PathObject createPolygon(double cx, double cy, int nVertices, Random random, PathClass pathClass,
+            double score) {
+        double[] x = new double[nVertices];
+        double[] y = new double[nVertices];
+        for (int v = 0; v < nVertices; v++) {
+            double angle = 2 * Math.PI * v / nVertices;
+            double radius = 50 + random.nextInt(50);
+            x[v] = Math.round(cx + radius * Math.cos(angle));
+            y[v] = Math.round(cy + radius * Math.sin(angle));
+        }
+        PathObject object = PathObjects.createAnnotationObject(
+                ROIs.createPolygonROI(x, y, ImagePlane.getDefaultPlane()), pathClass);
+        if (!Double.isNaN(score)) {
+            object.getMeasurementList().put(DetectionMerger.SCORE_MEASUREMENT, score);
+            object.getMeasurementList().close();
+        }
+        return object;
+    }
+
+    static List<PathObject> createPolygons(int nObjects, int nVertices, Random random) {
+        PathClass glomerulus = PathClass.fromString("Glomerulus", ColorTools.packRGB(0, 255, 0));
+        List<PathObject> objects = new ArrayList<>(nObjects);
+        for (int i = 0; i < nObjects; i++) {
+            objects.add(createPolygon(random.nextInt(100_000), random.nextInt(100_000), nVertices, random, glomerulus,
+                    random.nextFloat()));
+        }
+        return objects;
+    }
+
+    @Test
+    void testRoundTrip() throws IOException {
+        Random random = new Random(1);
+        PathClass tissue = PathClass.fromString("Tissue", ColorTools.RED);
+        List<PathObject> objects = List.of(
+                createPolygon(1000, 2000, 16, random, PathClass.fromString("Glomerulus"), 0.875),
+                createPolygon(120_000, 80_000, 64, random, tissue, Double.NaN),
+                createPolygon(60, 60, 3, random, null, 0.5),
+                createPolygon(3000, 50, 8, random, tissue, 0.25));
+        Path path = tempDir.resolve("objects" + PolygonFile.FILE_EXTENSION);
+        try (PolygonFileWriter writer = new PolygonFileWriter(path, 1)) {
+            writer.writeAll(objects);
+        }
+
+        assertTrue(PolygonFile.isPolygonFile(path));
+        List<PathObject> read;
+        try (PolygonFileReader reader = new PolygonFileReader(path)) {
+            assertEquals(objects.size(), reader.getCount());
+            read = reader.readObjects();
+        }
+
+        assertEquals(objects.size(), read.size());
+        for (int i = 0; i < objects.size(); i++) {
+            PathObject expected = objects.get(i);
+            PathObject actual = read.get(i);
+            assertEquals(expected.getPathClass(), actual.getPathClass());
+            assertEquals(expected.getMeasurementList().get(DetectionMerger.SCORE_MEASUREMENT),
+                    actual.getMeasurementList().get(DetectionMerger.SCORE_MEASUREMENT), 1e-6);
+            assertTrue(expected.getROI().getGeometry().equalsTopo(actual.getROI().getGeometry()));
+        }
+        assertEquals(ColorTools.RED, read.get(1).getPathClass().getColor());
+        assertNull(read.get(2).getPathClass());
+    }
+
+    @Test
+    void testCoordinateUnit() throws IOException {
+        PathObject object = PathObjects.createAnnotationObject(ROIs.createPolygonROI(
+                new double[] { 0.5, 100.25, 50 }, new double[] { -10.75, 0, 80.5 }, ImagePlane.getDefaultPlane()));
+        Path path = tempDir.resolve("objects" + PolygonFile.FILE_EXTENSION);
+        try (PolygonFileWriter writer = new PolygonFileWriter(path, 0.25)) {
+            writer.write(object);
+        }
+
+        List<PathObject> read = PolygonFileReader.read(path, null);
+
+        assertEquals(1, read.size());
+        assertTrue(object.getROI().getGeometry().equalsTopo(read.get(0).getROI().getGeometry()));
+    }
+
+    @Test
+    void testEmptyFile() throws IOException {
+        Path path = tempDir.resolve("objects" + PolygonFile.FILE_EXTENSION);
+        new PolygonFileWriter(path, 1).close();
+
+        assertTrue(PolygonFileReader.read(path, null).isEmpty());
+    }
+
+    @Test
+    void testTruncatedFile() throws IOException {
+        Path path = tempDir.resolve("objects" + PolygonFile.FILE_EXTENSION);
+        try (PolygonFileWriter writer = new PolygonFileWriter(path, 1)) {
+            writer.writeAll(createPolygons(10, 20, new Random(2)));
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length / 2));
+
+        assertThrows(IOException.class, () -> PolygonFileReader.read(path, null));
+    }
+
+    @Test
+    void testNotPolygonFile() throws IOException {
+        Path path = tempDir.resolve("objects.geojson");
+        Files.writeString(path, "{\"type\": \"FeatureCollection\", \"features\": []}");
+
+        assertFalse(PolygonFile.isPolygonFile(path));
+        assertFalse(PolygonFile.isPolygonFile(tempDir.resolve("missing")));
+        assertThrows(IOException.class, () -> new PolygonFileReader(path).close());
+    }
+
+    @Test
+    void testFallBackToGeoJSON() throws IOException {
+        List<PathObject> objects = createPolygons(5, 12, new Random(3));
+        Path geoJSONPath = tempDir.resolve("objects.geojson");
+        PathIO.exportObjectsAsGeoJSON(geoJSONPath.toFile(), objects, GeoJsonExportOptions.FEATURE_COLLECTION);
+
+        // A missing polygon file, or a GeoJSON file cached with its name
+        Path polygonPath = tempDir.resolve("objects" + PolygonFile.FILE_EXTENSION);
+        assertEquals(objects.size(), PolygonFileReader.read(polygonPath, geoJSONPath).size());
+        Files.copy(geoJSONPath, polygonPath);
+        assertEquals(objects.size(), PolygonFileReader.read(polygonPath, null).size());
+        assertThrows(IOException.class, () -> PolygonFileReader.read(tempDir.resolve("missing"), null));
+    }
+}
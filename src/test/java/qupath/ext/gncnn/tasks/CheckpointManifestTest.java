@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of {@link CheckpointManifest}
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class CheckpointManifestTest {
+
+    private static final Map<String, String> PARAMS = Map.of("model", "cascade_mask_rcnn", "undersampling", "4");
+
+    @TempDir
+    Path tempDir;
+
+    private String path;
+
+    @BeforeEach
+    void setUp() {
+        path = tempDir.resolve("checkpoints").resolve("manifest.json").toString();
+    }
+
+    @Test
+    void testMissingManifest() {
+        CheckpointManifest manifest = CheckpointManifest.read(path);
+
+        assertFalse(manifest.isCompleted("image", "TilerTask", PARAMS));
+        assertNull(manifest.getLastCompletedStage("image"));
+    }
+
+    @Test
+    void testCompletedStagesAreSaved() {
+        CheckpointManifest manifest = CheckpointManifest.read(path);
+        manifest.markCompleted("image", "TilerTask", PARAMS);
+        manifest.markCompleted("image", "GlomerulusDetectionTask", PARAMS);
+
+        CheckpointManifest saved = CheckpointManifest.read(path);
+
+        assertTrue(saved.isCompleted("image", "TilerTask", PARAMS));
+        assertTrue(saved.isCompleted("image", "GlomerulusDetectionTask", PARAMS));
+        assertEquals("GlomerulusDetectionTask", saved.getLastCompletedStage("image"));
+        assertFalse(saved.isCompleted("other image", "TilerTask", PARAMS));
+    }
+
+    @Test
+    void testParamsMustMatch() {
+        CheckpointManifest manifest = CheckpointManifest.read(path);
+        manifest.markCompleted("image", "TilerTask", PARAMS);
+
+        // The order of the parameters does not matter
+        Map<String, String> reordered = new LinkedHashMap<>();
+        reordered.put("undersampling", "4");
+        reordered.put("model", "cascade_mask_rcnn");
+        assertTrue(manifest.isCompleted("image", "TilerTask", reordered));
+        assertFalse(manifest.isCompleted("image", "TilerTask", Map.of("model", "cascade_mask_rcnn",
+                "undersampling", "2")));
+        assertFalse(manifest.isCompleted("image", "TilerTask", Map.of("model", "cascade_mask_rcnn")));
+    }
+
+    @Test
+    void testRunningStageAgainInvalidatesLaterStages() {
+        CheckpointManifest manifest = CheckpointManifest.read(path);
+        manifest.markCompleted("image", "TilerTask", PARAMS);
+        manifest.markCompleted("image", "GlomerulusDetectionTask", PARAMS);
+        manifest.markCompleted("image", "ClassificationTask", PARAMS);
+
+        manifest.markCompleted("image", "GlomerulusDetectionTask", PARAMS);
+
+        assertTrue(manifest.isCompleted("image", "TilerTask", PARAMS));
+        assertTrue(manifest.isCompleted("image", "GlomerulusDetectionTask", PARAMS));
+        assertFalse(manifest.isCompleted("image", "ClassificationTask", PARAMS));
+    }
+
+    @Test
+    void testInvalidate() {
+        CheckpointManifest manifest = CheckpointManifest.read(path);
+        manifest.markCompleted("image", "TilerTask", PARAMS);
+        manifest.markCompleted("image", "GlomerulusDetectionTask", PARAMS);
+        manifest.markCompleted("image", "ClassificationTask", PARAMS);
+
+        manifest.invalidate("image", "GlomerulusDetectionTask");
+        manifest.invalidate("other image", "TilerTask");
+
+        CheckpointManifest saved = CheckpointManifest.read(path);
+        assertEquals("TilerTask", saved.getLastCompletedStage("image"));
+        assertFalse(saved.isCompleted("image", "ClassificationTask", PARAMS));
+    }
+
+    @Test
+    void testCorruptedManifest() throws IOException {
+        Files.createDirectories(Path.of(path).getParent());
+        Files.writeString(Path.of(path), "{\"image\": [{\"stage\": ");
+
+        CheckpointManifest manifest = CheckpointManifest.read(path);
+
+        assertNull(manifest.getLastCompletedStage("image"));
+        manifest.markCompleted("image", "TilerTask", PARAMS);
+        assertTrue(CheckpointManifest.read(path).isCompleted("image", "TilerTask", PARAMS));
+    }
+}
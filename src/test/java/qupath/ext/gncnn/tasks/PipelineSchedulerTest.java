@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.ext.gncnn.tasks.PipelineScheduler.Stage;
+
+/**
+ * Tests of the stages skipped when a pipeline is resumed
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class PipelineSchedulerTest {
+
+    /**
+     * Creates the stages of the detection pipeline, with the outputs
+     * available for the given stages
+     */
+    private static List<Stage> createStages(Set<String> available) {
+        return List.of("TissueDetectionTask", "TilerTask", "GlomerulusDetectionTask", "ClassificationTask")
+                .stream()
+                .map(name -> new Stage(name, imageName -> null).checkpointed(Map.of(),
+                        imageName -> available.contains(name)))
+                .toList();
+    }
+
+    @Test
+    void testNothingCompleted() {
+        List<Stage> stages = createStages(Set.of("TissueDetectionTask", "TilerTask"));
+
+        assertEquals(0, PipelineScheduler.getResumeIndex("image", stages, 0));
+    }
+
+    @Test
+    void testResumeAfterLastCompletedStage() {
+        List<Stage> stages = createStages(Set.of("TissueDetectionTask", "TilerTask"));
+
+        assertEquals(2, PipelineScheduler.getResumeIndex("image", stages, 2));
+    }
+
+    @Test
+    void testConsumedOutputsAreNotRequired() {
+        // The tiles and tissue were removed once the glomeruli were detected
+        List<Stage> stages = createStages(Set.of("GlomerulusDetectionTask"));
+
+        assertEquals(3, PipelineScheduler.getResumeIndex("image", stages, 3));
+    }
+
+    @Test
+    void testMissingOutputRunsStageAgain() {
+        // Glomeruli added since the classification completed
+        List<Stage> stages = createStages(Set.of("GlomerulusDetectionTask"));
+        assertEquals(3, PipelineScheduler.getResumeIndex("image", stages, 4));
+
+        // Glomeruli removed since the detection completed, and the tiles too
+        stages = createStages(Set.of("TissueDetectionTask"));
+        assertEquals(1, PipelineScheduler.getResumeIndex("image", stages, 4));
+
+        stages = createStages(Set.of());
+        assertEquals(0, PipelineScheduler.getResumeIndex("image", stages, 4));
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Timing of {@link ReportIngestor} with the report of a WSI with many
+ * glomeruli, named as the exported crops. Run with 'gradle benchmark'
+ *
+ * @author Israel Mateos Aparicio
+ */
+@Tag("benchmark")
+public class ReportIngestorBenchmark {
+
+    private static final int REPETITIONS = 5;
+
+    @TempDir
+    Path tempDir;
+
+    @ParameterizedTest
+    @ValueSource(ints = { 1_000, 10_000, 100_000 })
+    void benchmarkIngest(int nGlomeruli) throws Exception {
+        Path report = tempDir.resolve("report.csv");
+        List<PathObject> glomeruli = ReportIngestorTest.createReport(report, nGlomeruli);
+
+        // Each run classifies new glomeruli, as the classified ones are kept.
+        // The first run warms up the JIT compiler
+        long[] times = new long[REPETITIONS + 1];
+        for (int i = 0; i <= REPETITIONS; i++) {
+            PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+            for (PathObject glomerulus : glomeruli) {
+                glomerulus.setPathClass(PathClass.fromString("Glomerulus"));
+                glomerulus.getMetadata().clear();
+            }
+            hierarchy.addObjects(glomeruli);
+
+            long startTime = System.nanoTime();
+            assertEquals(nGlomeruli, new ReportIngestor(hierarchy, ReportIngestorTest.MODEL_ID).ingest(report));
+            times[i] = System.nanoTime() - startTime;
+        }
+        long[] measured = Arrays.copyOfRange(times, 1, times.length);
+        Arrays.sort(measured);
+        System.out.printf("ReportIngestor: %d rows ingested in %d ms (median of %d runs)%n", nGlomeruli,
+                measured[measured.length / 2] / 1_000_000, REPETITIONS);
+    }
+}
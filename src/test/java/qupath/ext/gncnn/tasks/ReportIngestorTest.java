@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.ext.gncnn.entities.GlomerulusClass;
+import qupath.ext.gncnn.utils.ClassificationMetadata;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Tests of {@link ReportIngestor}
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class ReportIngestorTest {
+
+    static final String MODEL_ID = ClassificationMetadata.getModelId("swin_transformer", "convnext");
+
+    @TempDir
+    Path tempDir;
+
+    static PathObject createGlomerulus(int i) {
+        return PathObjects.createAnnotationObject(
+                ROIs.createRectangleROI(i * 10, i * 10, 100, 100, ImagePlane.getDefaultPlane()),
+                PathClass.fromString("Glomerulus"));
+    }
+
+    /**
+     * Returns the name of an exported crop of an annotation
+     */
+    static String getCropName(String imageName, PathObject annotation) {
+        return imageName + "_Glomerulus_" + annotation.getID() + "_10_20_300_400.png";
+    }
+
+    /**
+     * Returns the header of a report, with the columns in a different order
+     * than the script writes them
+     */
+    static String getHeader() {
+        StringBuilder header = new StringBuilder("predicted-class");
+        for (GlomerulusClass glomerulusClass : GlomerulusClass.PREDICTED_CLASSES) {
+            header.append(';').append(glomerulusClass.getProbName());
+        }
+        return header.append(";filename").toString();
+    }
+
+    /**
+     * Returns a row of a report, with the probability of the predicted class
+     */
+    static String getRow(String filename, String predictedClass, int probIndex, double prob) {
+        StringBuilder row = new StringBuilder(predictedClass);
+        for (int i = 0; i < GlomerulusClass.PREDICTED_CLASSES.length; i++) {
+            row.append(';').append(i == probIndex ? Double.toString(prob) : "");
+        }
+        return row.append(';').append(filename).toString();
+    }
+
+    @Test
+    void testGetAnnotationId() {
+        UUID id = UUID.randomUUID();
+
+        assertEquals(id, ReportIngestor.getAnnotationId("image_Glomerulus_" + id + "_10_20_300_400.png"));
+        assertEquals(id, ReportIngestor.getAnnotationId("/crops/my_image_1_Sclerotic_" + id + "_0_0_1_1.png"));
+        assertEquals(id, ReportIngestor.getAnnotationId("image_Glomerulus_" + id + "_10_20_300_400"));
+        assertNull(ReportIngestor.getAnnotationId("image_Glomerulus_10_20_300_400.png"));
+        assertNull(ReportIngestor.getAnnotationId("image_Glomerulus_not-an-id_10_20_300_400.png"));
+        assertNull(ReportIngestor.getAnnotationId("crop.png"));
+        assertNull(ReportIngestor.getAnnotationId(""));
+    }
+
+    @Test
+    void testIngest() throws Exception {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        PathObject sclerotic = createGlomerulus(0);
+        PathObject multiclass = createGlomerulus(1);
+        PathObject classified = createGlomerulus(2);
+        classified.setPathClass(PathClass.fromString("NoSclerotic"));
+        ClassificationMetadata.markClassified(classified, MODEL_ID);
+        hierarchy.addObjects(List.of(sclerotic, multiclass, classified));
+
+        Path report = tempDir.resolve("report.csv");
+        Files.write(report, List.of(getHeader(),
+                getRow(getCropName("image_with_underscores", sclerotic), "Sclerotic", 1, 0.75),
+                getRow(getCropName("image_with_underscores", multiclass), "ABMGN | ANCA", 2, 0.5),
+                getRow(getCropName("image_with_underscores", classified), "Sclerotic", 1, 0.9),
+                getRow(getCropName("image", createGlomerulus(3)), "Sclerotic", 1, 0.9),
+                getRow("crop.png", "Sclerotic", 1, 0.9)));
+
+        int updated = new ReportIngestor(hierarchy, MODEL_ID).ingest(report);
+
+        assertEquals(2, updated);
+        assertEquals("Sclerotic", sclerotic.getPathClass().getName());
+        assertEquals(0.75, sclerotic.getMeasurementList().get(GlomerulusClass.SCLEROTIC.getProbName()), 1e-6);
+        assertEquals(0, sclerotic.getMeasurementList().get(GlomerulusClass.NON_SCLEROTIC.getProbName()), 1e-6);
+        assertEquals(MODEL_ID, sclerotic.getMetadata().get(ClassificationMetadata.MODEL_KEY));
+
+        // Multiclass predictions are coloured as their first class
+        assertEquals("ABMGN | ANCA", multiclass.getPathClass().getName());
+        assertEquals(GlomerulusClass.ABMGN.getColor(), multiclass.getPathClass().getColor());
+        assertEquals(0.5, multiclass.getMeasurementList().get(GlomerulusClass.ABMGN.getProbName()), 1e-6);
+
+        // Glomeruli classified by a previous run keep their results
+        assertEquals("NoSclerotic", classified.getPathClass().getName());
+    }
+
+    @Test
+    void testIngestAnnotationIdColumn() throws Exception {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        PathObject glomerulus = createGlomerulus(0);
+        hierarchy.addObject(glomerulus);
+
+        // Packed crops are named after their container, with the ID in its
+        // own column
+        Path report = tempDir.resolve("report.csv");
+        Files.write(report, List.of("annotation-id;filename;predicted-class;"
+                + GlomerulusClass.NON_SCLEROTIC.getProbName(),
+                glomerulus.getID() + ";crops.gncc#" + glomerulus.getID() + ";NoSclerotic;0.8"));
+
+        assertEquals(1, new ReportIngestor(hierarchy, MODEL_ID).ingest(report));
+        assertEquals("NoSclerotic", glomerulus.getPathClass().getName());
+        assertEquals(0.8, glomerulus.getMeasurementList().get(GlomerulusClass.NON_SCLEROTIC.getProbName()), 1e-6);
+    }
+
+    @Test
+    void testNaNProbabilityIsWrittenAsZero() throws Exception {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        PathObject glomerulus = createGlomerulus(0);
+        hierarchy.addObject(glomerulus);
+
+        Path report = tempDir.resolve("report.csv");
+        Files.write(report, List.of("annotation-id;filename;predicted-class;"
+                + GlomerulusClass.NON_SCLEROTIC.getProbName(),
+                glomerulus.getID() + ";crops.gncc#" + glomerulus.getID() + ";NoSclerotic;NaN"));
+
+        assertEquals(1, new ReportIngestor(hierarchy, MODEL_ID).ingest(report));
+        assertEquals(0, glomerulus.getMeasurementList().get(GlomerulusClass.NON_SCLEROTIC.getProbName()), 1e-6);
+    }
+
+    @Test
+    void testMissingColumn() throws Exception {
+        Path report = tempDir.resolve("report.csv");
+        Files.write(report, List.of("filename;prob", "crop.png;0.5"));
+
+        assertThrows(IOException.class, () -> new ReportIngestor(new PathObjectHierarchy(), MODEL_ID).ingest(report));
+    }
+
+    /**
+     * Creates the glomeruli of a large WSI and its report
+     */
+    static List<PathObject> createReport(Path report, int nGlomeruli) throws IOException {
+        List<PathObject> glomeruli = new ArrayList<>(nGlomeruli);
+        List<String> lines = new ArrayList<>(nGlomeruli + 1);
+        lines.add(getHeader());
+        for (int i = 0; i < nGlomeruli; i++) {
+            PathObject glomerulus = createGlomerulus(i);
+            glomeruli.add(glomerulus);
+            lines.add(getRow(getCropName("image", glomerulus), i % 2 == 0 ? "Sclerotic" : "NoSclerotic", 1 - i % 2,
+                    0.9));
+        }
+        Files.write(report, lines);
+        return glomeruli;
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Tests of {@link StripTiler}, against the tiles planned by
+ * {@link TilePlanner} and read directly from the server
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class StripTilerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testTilesMatchServer() throws Exception {
+        ImageData<BufferedImage> imageData = TilePlannerTest.createImageData(1);
+        StripTiler tiler = new StripTiler(imageData, 256, 56, 1).imageExtension(".png").annotatedTilesOnly(false);
+
+        assertEquals(20, tiler.writeTiles(tempDir.toString()));
+
+        // Each cell of the tile step is read once
+        assertEquals(20, tiler.getRegionReads());
+        assertTilesMatchServer(imageData, new TilePlanner(imageData, 256, 56, 1).annotatedTilesOnly(false));
+    }
+
+    @Test
+    void testStrips() throws Exception {
+        ImageData<BufferedImage> imageData = TilePlannerTest.createImageData(2);
+        // Room for the cells of 3 columns of a band of 2 rows, so that the
+        // slide is split into strips of 2 tile columns
+        StripTiler tiler = new StripTiler(imageData, 256, 56, 1).imageExtension(".png").annotatedTilesOnly(false)
+                .maxBufferBytes(3 * 2 * 4 * 200 * 200);
+
+        assertEquals(20, tiler.writeTiles(tempDir.toString()));
+
+        // The cells at the edges of the strips are read twice
+        assertEquals(28, tiler.getRegionReads());
+        assertTilesMatchServer(imageData, new TilePlanner(imageData, 256, 56, 1).annotatedTilesOnly(false));
+    }
+
+    @Test
+    void testDownsampledTiles() throws Exception {
+        ImageData<BufferedImage> imageData = TilePlannerTest.createImageData(3);
+        StripTiler tiler = new StripTiler(imageData, 256, 56, 2).imageExtension(".png").annotatedTilesOnly(false);
+
+        assertEquals(6, tiler.writeTiles(tempDir.toString()));
+
+        List<RegionRequest> tiles = new TilePlanner(imageData, 256, 56, 2).annotatedTilesOnly(false).planTiles();
+        assertEquals(getTileNames(tiles), listFiles());
+        for (RegionRequest tile : tiles) {
+            BufferedImage img = ImageIO.read(tempDir.resolve(TilePlanner.getTileName("slide", tile, ".png")).toFile());
+            assertEquals(Math.round(tile.getWidth() / 2.0), img.getWidth());
+            assertEquals(Math.round(tile.getHeight() / 2.0), img.getHeight());
+        }
+    }
+
+    @Test
+    void testTissueFilter() throws Exception {
+        ImageData<BufferedImage> imageData = TilePlannerTest.createImageData(4);
+        imageData.getHierarchy().addObject(PathObjects.createAnnotationObject(
+                ROIs.createRectangleROI(0, 0, 500, 700, ImagePlane.getDefaultPlane()),
+                PathClass.fromString("Tissue")));
+        StripTiler tiler = new StripTiler(imageData, 256, 56, 1).imageExtension(".png").annotatedTilesOnly(false)
+                .minTissueFraction(0.5);
+
+        assertEquals(8, tiler.writeTiles(tempDir.toString()));
+        assertEquals(12, tiler.getDroppedTiles());
+        assertEquals(8, listFiles().size());
+    }
+
+    private void assertTilesMatchServer(ImageData<BufferedImage> imageData, TilePlanner planner) throws IOException {
+        ImageServer<BufferedImage> server = imageData.getServer();
+        List<RegionRequest> tiles = planner.planTiles();
+        assertEquals(getTileNames(tiles), listFiles());
+        for (RegionRequest tile : tiles) {
+            BufferedImage expected = server.readRegion(tile);
+            BufferedImage actual = ImageIO.read(
+                    tempDir.resolve(TilePlanner.getTileName("slide", tile, ".png")).toFile());
+            assertEquals(expected.getWidth(), actual.getWidth());
+            assertEquals(expected.getHeight(), actual.getHeight());
+            assertArrayEquals(getRGB(expected), getRGB(actual), "Pixels of " + tile);
+        }
+    }
+
+    private static Set<String> getTileNames(List<RegionRequest> tiles) {
+        return tiles.stream().map(tile -> TilePlanner.getTileName("slide", tile, ".png")).collect(Collectors.toSet());
+    }
+
+    private Set<String> listFiles() throws IOException {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            Set<String> names = files.map(path -> path.getFileName().toString()).collect(Collectors.toSet());
+            assertTrue(names.stream().allMatch(name -> name.endsWith(".png")));
+            return names;
+        }
+    }
+
+    private static int[] getRGB(BufferedImage img) {
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+}
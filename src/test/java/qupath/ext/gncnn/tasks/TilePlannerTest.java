@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Tests of {@link TilePlanner}
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class TilePlannerTest {
+
+    /**
+     * Creates the data of a 1000x700 image with random pixels, whose pixel
+     * size is 1
+     */
+    static ImageData<BufferedImage> createImageData(long seed) {
+        BufferedImage img = new BufferedImage(1000, 700, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(seed);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                img.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        return new ImageData<>(new WrappedBufferedImageServer("slide.svs", img));
+    }
+
+    @Test
+    void testGrid() {
+        TilePlanner planner = new TilePlanner(createImageData(1), 256, 56, 1).annotatedTilesOnly(false);
+
+        List<RegionRequest> tiles = planner.planTiles();
+
+        assertEquals(1, planner.getDownsample(), 1e-9);
+        assertEquals(256, planner.getFullResTileSize());
+        assertEquals(200, planner.getFullResTileStep());
+        // 5 columns and 4 rows, row by row
+        assertEquals(20, tiles.size());
+        for (int i = 0; i < tiles.size(); i++) {
+            RegionRequest tile = tiles.get(i);
+            assertEquals((i % 5) * 200, tile.getX());
+            assertEquals((i / 5) * 200, tile.getY());
+            assertEquals(i % 5 == 4 ? 200 : 256, tile.getWidth());
+            assertEquals(i / 5 == 3 ? 100 : 256, tile.getHeight());
+        }
+    }
+
+    @Test
+    void testDownsampledGrid() {
+        TilePlanner planner = new TilePlanner(createImageData(1), 256, 56, 2).annotatedTilesOnly(false);
+
+        List<RegionRequest> tiles = planner.planTiles();
+
+        assertEquals(2, planner.getDownsample(), 1e-9);
+        assertEquals(512, planner.getFullResTileSize());
+        assertEquals(400, planner.getFullResTileStep());
+        assertEquals(6, tiles.size());
+        assertTrue(tiles.stream().allMatch(tile -> tile.getDownsample() == 2));
+    }
+
+    @Test
+    void testAnnotatedTilesOnly() {
+        ImageData<BufferedImage> imageData = createImageData(1);
+        imageData.getHierarchy().addObject(PathObjects.createAnnotationObject(
+                ROIs.createRectangleROI(450, 450, 20, 20, ImagePlane.getDefaultPlane())));
+
+        List<RegionRequest> tiles = new TilePlanner(imageData, 256, 56, 1).planTiles();
+
+        // Only the tiles overlapping the annotation, including the ones it
+        // touches through the overlap
+        assertEquals(4, tiles.size());
+        for (RegionRequest tile : tiles) {
+            assertTrue(tile.getX() == 200 || tile.getX() == 400);
+            assertTrue(tile.getY() == 200 || tile.getY() == 400);
+        }
+    }
+
+    @Test
+    void testMinTissueFraction() {
+        ImageData<BufferedImage> imageData = createImageData(1);
+        imageData.getHierarchy().addObject(PathObjects.createAnnotationObject(
+                ROIs.createRectangleROI(0, 0, 500, 700, ImagePlane.getDefaultPlane()),
+                PathClass.fromString("Tissue")));
+        TilePlanner planner = new TilePlanner(imageData, 256, 56, 1).annotatedTilesOnly(false);
+
+        // The tiles of the first two columns are inside the tissue, the
+        // third one is less than half covered
+        List<RegionRequest> tiles = planner.minTissueFraction(0.5).planTiles();
+        assertEquals(8, tiles.size());
+        assertEquals(12, planner.getDroppedTiles());
+        assertTrue(tiles.stream().allMatch(tile -> tile.getX() < 400));
+
+        assertEquals(20, planner.minTissueFraction(0).planTiles().size());
+        assertEquals(0, planner.getDroppedTiles());
+    }
+
+    @Test
+    void testMinTissueFractionWithoutTissue() {
+        TilePlanner planner = new TilePlanner(createImageData(1), 256, 56, 1).annotatedTilesOnly(false)
+                .minTissueFraction(0.5);
+
+        assertEquals(20, planner.planTiles().size());
+        assertEquals(0, planner.getDroppedTiles());
+    }
+
+    @Test
+    void testTileName() {
+        assertEquals("slide [x=200,y=0,w=256,h=256].jpeg", TilePlanner.getTileName("slide",
+                RegionRequest.createInstance("path", 1, 200, 0, 256, 256), ".jpeg"));
+        assertEquals("slide [d=2,x=0,y=400,w=512,h=300].png", TilePlanner.getTileName("slide",
+                RegionRequest.createInstance("path", 2, 0, 400, 512, 300), ".png"));
+        assertEquals("slide [d=1.5,x=0,y=0,w=384,h=384].jpeg", TilePlanner.getTileName("slide",
+                RegionRequest.createInstance("path", 1.5, 0, 0, 384, 384), ".jpeg"));
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.util.GeometricShapeFactory;
+
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+
+/**
+ * Tests of {@link TissueDetector}
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class TissueDetectorTest {
+
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    private static Polygon createSquare(double x, double y, double size) {
+        GeometricShapeFactory shapeFactory = new GeometricShapeFactory(FACTORY);
+        shapeFactory.setBase(new Coordinate(x, y));
+        shapeFactory.setSize(size);
+        return shapeFactory.createRectangle();
+    }
+
+    @Test
+    void testOuterContoursDropNestedParts() {
+        // A region with a hole, an island of tissue in the hole, and a
+        // separate region
+        Geometry ring = createSquare(0, 0, 100).difference(createSquare(20, 20, 60));
+        Geometry island = createSquare(40, 40, 20);
+        Geometry separate = createSquare(200, 0, 50);
+        Geometry region = FACTORY.createGeometryCollection(new Geometry[] { ring, island, separate }).union();
+
+        List<Polygon> outer = TissueDetector.getOuterContours(region);
+
+        assertEquals(2, outer.size());
+        outer.sort(Comparator.comparingDouble(Polygon::getArea));
+        assertTrue(outer.get(0).equalsTopo(separate));
+        // The hole is filled
+        assertTrue(outer.get(1).equalsTopo(createSquare(0, 0, 100)));
+        assertEquals(0, outer.get(1).getNumInteriorRing());
+    }
+
+    @Test
+    void testOuterContoursOfSinglePolygon() {
+        Polygon square = createSquare(10, 10, 30);
+
+        List<Polygon> outer = TissueDetector.getOuterContours(square);
+
+        assertEquals(1, outer.size());
+        assertTrue(outer.get(0).equalsTopo(square));
+    }
+
+    @Test
+    void testDetect() throws Exception {
+        // White background with a saturated ring, an island in its hole and a
+        // separate blob
+        BufferedImage img = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = img.createGraphics();
+        g2d.setColor(Color.WHITE);
+        g2d.fillRect(0, 0, 300, 200);
+        g2d.setColor(new Color(200, 60, 160));
+        g2d.fillRect(20, 20, 140, 140);
+        g2d.setColor(Color.WHITE);
+        g2d.fillRect(50, 50, 80, 80);
+        g2d.setColor(new Color(200, 60, 160));
+        g2d.fillRect(80, 80, 20, 20);
+        g2d.fillRect(200, 40, 60, 60);
+        g2d.dispose();
+
+        List<PathObject> tissue = new TissueDetector(1).detect(new WrappedBufferedImageServer("slide", img));
+
+        assertEquals(2, tissue.size());
+        tissue.sort(Comparator.comparingDouble(annotation -> annotation.getROI().getArea()));
+        assertEquals("Tissue", tissue.get(0).getPathClass().getName());
+        assertEquals(60 * 60, tissue.get(0).getROI().getArea(), 60 * 4);
+        // The island is dropped and the hole of the ring is filled
+        assertEquals(140 * 140, tissue.get(1).getROI().getArea(), 140 * 4);
+    }
+}